@@ -7,7 +7,15 @@ import javax.swing.event.TreeExpansionEvent;
 import javax.swing.event.TreeExpansionListener;
 import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.EventListener;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
 
 /**
  * Glues the JTable and the JTree together.
@@ -32,6 +40,27 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
 
     // Reference to the JTree
     private JTree tree;
+    // Flattened index of the visible rows, used instead of asking the JTree for every cell
+    private VisibleRowIndex rowIndex;
+
+    // Changes held back between beginUpdate() and endUpdate(), null when not updating
+    private UpdateBatch updateBatch;
+    // Number of beginUpdate() calls that haven't had a matching endUpdate()
+    private int updateDepth;
+    // The batch whose events are being fired, the JTree sees the children of the parents it touched through it
+    private UpdateBatch firingBatch;
+    // Queue for changes made from other threads, created when first asked for
+    private TreeTableUpdateQueue updateQueue;
+    // Cache in front of getValueAt(Object, int), null unless turned on with setValueCacheSize
+    private CellValueCache valueCache;
+    // Text the TreeTable renders cells with, dropped along with the values, null unless the TreeTable turns it on
+    private RenderCache renderCache;
+    // Values of the aggregate columns, null unless setAggregate has been called
+    private AggregateColumns aggregates;
+    // Keeps the selection and scroll position of the TreeTable when rows are replaced, null until the TreeTable sets it
+    private ViewKeeper viewKeeper;
+    // Set while nodesChanged events for nodes whose tree column hasn't changed are fired, the JTree doesn't hear those
+    private boolean treeColumnUnchanged;
 
     /**
      * TODO: describe me
@@ -41,14 +70,47 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
         // Store reference to the JTree
         this.tree = tree;
 
-        // Set the expansion listener and get it to fire the table events to update the view
+        // Build the index of the visible rows from the current state of the JTree
+        rowIndex = new VisibleRowIndex(tree);
+        rowIndex.rebuild();
+
+        // Set the expansion listener, update the row index and get it to fire the table events for just the rows that appeared or disappeared
         tree.addTreeExpansionListener(new TreeExpansionListener() {
             public void treeExpanded(TreeExpansionEvent event) {
-                fireTableDataChanged();
+                int count = rowIndex.treeExpanded(event.getPath());
+                // The new rows go directly below the expanded node (or at the top for the hidden root)
+                if(count > 0) {
+                    int firstRow = rowIndex.getRow(event.getPath().getLastPathComponent()) + 1;
+                    fireTableRowsInserted(firstRow, firstRow + count - 1);
+                }
             }
 
             public void treeCollapsed(TreeExpansionEvent event) {
-                fireTableDataChanged();
+                int count = rowIndex.treeCollapsed(event.getPath());
+                if(count > 0) {
+                    int firstRow = rowIndex.getRow(event.getPath().getLastPathComponent()) + 1;
+                    fireTableRowsDeleted(firstRow, firstRow + count - 1);
+                }
+            }
+        });
+
+        // Showing or hiding the root adds or removes the first row, the rest of the rows stay as they are
+        tree.addPropertyChangeListener(JTree.ROOT_VISIBLE_PROPERTY, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent event) {
+                rowIndex.rebuild();
+                if(getRoot() == null) return;
+
+                if(Boolean.TRUE.equals(event.getNewValue())) fireTableRowsInserted(0, 0);
+                else fireTableRowsDeleted(0, 0);
+            }
+        });
+
+        // Switching between large and normal model makes the JTree build a new layout cache, which may show the root differently
+        tree.addPropertyChangeListener(JTree.LARGE_MODEL_PROPERTY, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent event) {
+                Object[] oldRows = rowsReplacing(0);
+                rowIndex.layoutReplaced();
+                fireRowsReplaced(0, oldRows);
             }
         });
     }
@@ -92,21 +154,63 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @return int - number of rows in the TreeTable
      */
     public int getRowCount() {
-        // Return the row count from the JTree, this will be equal to the number of rows in the table.
-        return tree.getRowCount();
+        // Return the row count from the row index, this will be equal to the number of rows in the JTree.
+        return rowIndex.size();
     }
 
     /**
-     * Find the object at position row. This will query the JTree and find the the TreePath for the row, then return the Object
+     * Find the object at position row. This is looked up in the index of visible rows rather than the JTree
+     * so no TreePath is created.
      *
      * @param row - the row in the view being queried
-     * @return Object - Object that contains the tree data at the specified row
+     * @return Object - Object that contains the tree data at the specified row or null if there is no such row
      */
     public Object nodeForRow(int row) {
-        // Get the path for the object at that row
-        TreePath treePath = tree.getPathForRow(row);
-        // Return the Object at that position in the path
-        return treePath.getLastPathComponent();
+        return rowIndex.getNode(row);
+    }
+
+    /**
+     * Find the row that node is displayed in. This is the opposite of nodeForRow(int)
+     *
+     * @param node - the node being queried
+     * @return int - the row in the view or -1 if the node is not visible (one of its ancestors is collapsed)
+     */
+    public int rowForNode(Object node) {
+        return rowIndex.getRow(node);
+    }
+
+    /**
+     * Returns the JTree the model was set up with
+     *
+     * @return JTree - the JTree part of the TreeTable or null if the model hasn't been given one yet
+     */
+    JTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the index of the visible rows, for the other parts of the TreeTable that need to walk the rows
+     *
+     * @return VisibleRowIndex - the row index or null if the model hasn't been given a JTree yet
+     */
+    VisibleRowIndex getRowIndex() {
+        return rowIndex;
+    }
+
+    /**
+     * Sets the keeper that is told when a block of rows is replaced, the TreeTable calls this with its own
+     *
+     * @param viewKeeper - the keeper or null
+     */
+    void setViewKeeper(ViewKeeper viewKeeper) {
+        this.viewKeeper = viewKeeper;
+    }
+
+    /**
+     * Sets the cache of rendered text that is dropped whenever the cached values would be, null for none
+     */
+    void setRenderCache(RenderCache renderCache) {
+        this.renderCache = renderCache;
     }
 
     /**
@@ -117,7 +221,160 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @return Object - Object at the specified location
      */
     public Object getValueAt(int row, int column) {
-        return getValueAt(nodeForRow(row), column);
+        return getCachedValueAt(nodeForRow(row), column);
+    }
+
+    /**
+     * Returns the value for the cell at column of node from the value cache, asking getValueAt(Object, int)
+     * if it isn't cached or the cache is turned off.
+     *
+     * @param node - an object in the tree that contains tree data
+     * @param column - the column being queried
+     * @return Object - value Object at the specified cell
+     */
+    protected Object getCachedValueAt(Object node, int column) {
+        if(aggregates != null && aggregates.isAggregate(column)) return aggregates.getValue(node, column);
+
+        CellValueCache cache = valueCache;
+        if(cache == null) return getValueAt(node, column);
+        return cache.getValueAt(this, node, column);
+    }
+
+    /**
+     * Turns on a cache of up to size values in front of getValueAt(Object, int), or turns it off if size is 0.
+     * This is worth it when working out the values is slow as the TreeTable asks for them on every repaint.
+     *
+     * Values are cached until the model is told they have changed, through nodeChanged, nodesChanged,
+     * valueForPathChanged or one of the methods that reload the tree, or the node is removed. If the values can
+     * change without the model being told then don't use the cache.
+     *
+     * @param size - maximum number of cells to cache, 0 to turn the cache off
+     */
+    public void setValueCacheSize(int size) {
+        if(size < 0) throw new IllegalArgumentException("size must not be negative.");
+
+        if(size == 0) valueCache = null;
+        else if(valueCache == null) valueCache = new CellValueCache(size);
+        else valueCache.setMaxSize(size);
+    }
+
+    /**
+     * Returns the value cache so that its hit, miss and eviction counts can be read
+     *
+     * @return CellValueCache - the value cache or null if it is turned off
+     */
+    public CellValueCache getValueCache() {
+        return valueCache;
+    }
+
+    /**
+     * Makes column show aggregate of the values in sourceColumn for each node and everything underneath it, for
+     * example the total size of the files in a folder. The values are worked out once for the whole tree and kept
+     * per node, after that each insert, remove or change only updates the nodes on the path up to the root and the
+     * rows of those that are visible are repainted. getValueAt(Object, int) is not asked for column any more,
+     * getColumnClass(int) should return Long for a COUNT or a whole number sourceColumn and Double otherwise.
+     *
+     * The values only follow changes the model is told about, through nodeChanged, insertNodeInto,
+     * removeNodeFromParent and the other methods that fire events.
+     *
+     * @param column - the column to show the aggregate in
+     * @param sourceColumn - the column whose values are aggregated
+     * @param aggregate - how the values are aggregated or null to stop column being an aggregate
+     */
+    public void setAggregate(int column, int sourceColumn, Aggregate aggregate) {
+        if(aggregate == null) {
+            if(aggregates != null && aggregates.remove(column)) {
+                if(aggregates.isEmpty()) aggregates = null;
+                fireTreeTableRowsUpdated();
+            }
+            return;
+        }
+
+        if(column < 0 || column >= getColumnCount() || sourceColumn < 0 || sourceColumn >= getColumnCount()) throw new IllegalArgumentException("Column is not in the model.");
+        if(column == sourceColumn) throw new IllegalArgumentException("A column can't be an aggregate of itself.");
+        if(getColumnClass(column) == TreeTableModel.class) throw new IllegalArgumentException("The tree column can't be an aggregate.");
+        if(aggregates != null && (aggregates.isAggregate(sourceColumn) || aggregates.isSource(column))) throw new IllegalArgumentException("Aggregates can't be aggregated.");
+
+        if(aggregates == null) aggregates = new AggregateColumns(this);
+        aggregates.add(column, sourceColumn, aggregate);
+        fireAggregatesChanged();
+    }
+
+    /**
+     * Returns true if column has been made an aggregate with setAggregate
+     *
+     * @param column - the column being queried
+     * @return boolean - true if column is an aggregate
+     */
+    public boolean isAggregate(int column) {
+        return aggregates != null && aggregates.isAggregate(column);
+    }
+
+    /**
+     * Returns the value of column for node that aggregates are worked out from
+     *
+     * @param node - a node in the tree
+     * @param column - the source column of an aggregate
+     * @return Object - the value, anything that isn't a Number is left out
+     */
+    Object getAggregateSourceValue(Object node, int column) {
+        return getValueAt(node, column);
+    }
+
+    /**
+     * Fires the table events for the visible rows whose aggregate values have changed since this was last called.
+     * Each run of consecutive rows is one event.
+     */
+    private void fireAggregatesChanged() {
+        if(aggregates == null) return;
+
+        Set<Object> changed = aggregates.takeChanged();
+        if(rowIndex == null || getRowCount() == 0) return;
+        if(changed == null) {
+            fireTableRowsUpdated(0, getRowCount() - 1);
+            return;
+        }
+
+        int[] rows = new int[changed.size()];
+        int count = 0;
+        for(Object node : changed) {
+            int row = rowForNode(node);
+            if(row >= 0) rows[count++] = row;
+        }
+        Arrays.sort(rows, 0, count);
+
+        int first = 0;
+        for(int i = 1; i <= count; i++) {
+            if(i < count && rows[i] == rows[i - 1] + 1) continue;
+            fireTableRowsUpdated(rows[first], rows[i - 1]);
+            first = i;
+        }
+    }
+
+    /**
+     * Drops the cached values for every column of node
+     */
+    private void invalidateValues(Object node) {
+        if(node == null) return;
+        if(valueCache != null) valueCache.invalidateNode(node, getColumnCount());
+        if(renderCache != null) renderCache.invalidateNode(node, getColumnCount(), true);
+    }
+
+    /**
+     * Drops the cached values for node and everything underneath it
+     */
+    private void invalidateSubtree(Object node) {
+        if(node == null || ((valueCache == null || valueCache.size() == 0) && (renderCache == null || renderCache.size() == 0))) return;
+
+        // Iterative so that a deep subtree can't overflow the stack
+        List<Object> stack = new ArrayList<Object>();
+        stack.add(node);
+        while(!stack.isEmpty()) {
+            Object next = stack.remove(stack.size() - 1);
+            invalidateValues(next);
+            int count = getChildCount(next);
+            for(int i = 0; i < count; i++) stack.add(getChild(next, i));
+        }
     }
 
     /**
@@ -144,6 +401,41 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
         return true;
     }
 
+    /**
+     * Called by the TreeTable on a background thread for the nodes that are about to be scrolled into view,
+     * see TreeTable.setPrefetchRows(int). This implementation puts the values of the columns into the value cache,
+     * if it is turned on (see setValueCacheSize(int)), and asks whether the node is a leaf and how many children it
+     * has so a subclass that works those out lazily has them ready when the rows are painted. Subclasses with other
+     * slow work can override this to do it ahead of time too.
+     *
+     * This is not called on the EDT so getValueAt(Object, int), isLeaf(Object) and getChildCount(Object) must be
+     * safe to call from another thread while prefetching is on, or this must be overridden. It must not change the model.
+     *
+     * @param node - a node that is about to become visible
+     * @param columns - the columns being shown, as model indices
+     */
+    protected void prefetch(Object node, int[] columns) {
+        prefetchValues(node, columns);
+        if(!isLeaf(node)) getChildCount(node);
+    }
+
+    /**
+     * Puts the values of columns of node into the value cache if it is turned on. Aggregate columns are left
+     * out, they are worked out from the rest of the tree on the EDT.
+     *
+     * @param node - a node that is about to become visible
+     * @param columns - the columns being shown, as model indices
+     */
+    void prefetchValues(Object node, int[] columns) {
+        CellValueCache cache = valueCache;
+        if(cache == null) return;
+
+        AggregateColumns aggregates = this.aggregates;
+        for(int column : columns) {
+            if(aggregates == null || !aggregates.isAggregate(column)) getCachedValueAt(node, column);
+        }
+    }
+
     /**
      * fireTreeStructureChanged (from JTree). Only used internally, if needed to expose
      * publicly, should have the correct name (for TreeTable).
@@ -157,7 +449,14 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
       TreeModelEvent event = new TreeModelEvent(source, path, childIndices, children);
       TreeModelListener[] listeners = getTreeModelListeners();
 
+      // Anything under the path could have changed
+      if (valueCache != null) valueCache.clear();
+      if (renderCache != null) renderCache.clear();
+      if (aggregates != null) aggregates.structureChanged(event.getTreePath());
       for (int i = listeners.length - 1; i >= 0; --i) listeners[i].treeStructureChanged(event);
+
+      // The JTree has updated its expanded state, bring the row index in line with it
+      if (rowIndex != null) rowIndex.structureChanged(event.getTreePath());
     }
 
     /**
@@ -166,6 +465,8 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      */
     public void fireTreeTableStructureChanged() {
         // Should be enough to just reload the table.
+        if (valueCache != null) valueCache.clear();
+        if (renderCache != null) renderCache.clear();
         fireTableStructureChanged();
     }
 
@@ -175,6 +476,8 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      */
     public void fireTreeTableRowsUpdated() {
         // Notifies all listeners that all rows have changed. Probably not the best performance...
+        if (valueCache != null) valueCache.clear();
+        if (renderCache != null) renderCache.clear();
         fireTableRowsUpdated(0, getRowCount()-1);
     }
 
@@ -194,6 +497,19 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @param children the changed elements
      */
     protected void fireTreeNodesChanged(Object source, Object[] path, int[] childIndices, Object[] children) {
+        fireTreeNodesChanged(source, (path == null) ? null : new TreePath(path), childIndices, children);
+    }
+
+    /**
+     * fireTreeNodesChanged(Object, Object[], int[], Object[]) for callers that already have the path as a TreePath
+     */
+    private void fireTreeNodesChanged(Object source, TreePath path, int[] childIndices, Object[] children) {
+        // Bring the aggregates of the changed nodes and their ancestors up to date before anyone looks at them
+        if(aggregates != null && path != null) {
+            if(children == null) aggregates.changed(path);
+            else for(Object child : children) aggregates.changed(path.pathByAddingChild(child));
+        }
+
         // Guaranteed to return a non-null array
         Object[] listeners = listenerList.getListenerList();
         TreeModelEvent e = null;
@@ -208,6 +524,128 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
                 ((TreeModelListener)listeners[i+1]).treeNodesChanged(e);
             }
         }
+        fireAggregatesChanged();
+    }
+
+    /**
+     * Starts a batch of changes. Until the matching endUpdate() is called, insertNodeInto, removeNodeFromParent,
+     * nodeChanged and the other methods that notify listeners change the nodes straight away but hold back the events.
+     * When the batch ends the changes are merged per parent and the smallest set of tree and table events is fired.
+     *
+     * Calls can be nested, the events are fired when the outermost batch ends. Listeners will not see any of the
+     * changes until then so nothing that relies on the events (like the rows in the table) is up to date in between.
+     */
+    public void beginUpdate() {
+        if(updateDepth++ == 0) updateBatch = new UpdateBatch(this);
+    }
+
+    /**
+     * Ends a batch of changes started by beginUpdate(). If this is the outermost batch the events for all of the
+     * changes made during it are fired.
+     */
+    public void endUpdate() {
+        if(updateDepth == 0) throw new IllegalStateException("endUpdate() called without beginUpdate().");
+        if(--updateDepth > 0) return;
+
+        UpdateBatch batch = updateBatch;
+        updateBatch = null;
+        UpdateBatch previous = firingBatch;
+        firingBatch = batch;
+        try {
+            batch.fireEvents();
+        }
+        finally {
+            firingBatch = previous;
+        }
+        expandEmptyRoot();
+    }
+
+    /**
+     * Replaces the children of the last node in parentPath with newChildren, a new snapshot of them, making as few
+     * changes as possible. Old and new nodes are matched by the keys keyFn gives them, all the way down. A node that
+     * has a match is kept and takes over the values of the new node if they differ (see updateNode), so it stays
+     * expanded and selected. Nodes without a match are removed or inserted and matched nodes that are out of order
+     * are moved, keeping the most that are already in order where they are.
+     *
+     * The changes are made in a batch so they are sent as a few coalesced events, the same as between beginUpdate()
+     * and endUpdate(). If this is called during a batch, moved nodes that were expanded are collapsed when it ends.
+     * The nodes in newChildren are used for the nodes that are inserted, they must not be used elsewhere afterwards.
+     *
+     * @param parentPath - path to the node whose children are replaced, the node must be a TreeTableNode
+     * @param newChildren - the new children, each with its own children
+     * @param keyFn - gives the key of a node, two nodes with equal keys are the same node. Keys must be unique among the new children of each parent.
+     */
+    public void reconcile(TreePath parentPath, List<? extends TreeTableNode> newChildren, Function<? super TreeTableNode, ?> keyFn) {
+        if(parentPath == null || !(parentPath.getLastPathComponent() instanceof TreeTableNode)) throw new IllegalArgumentException("The parent must be a TreeTableNode.");
+        if(newChildren == null || keyFn == null) throw new IllegalArgumentException("The new children and the key function can't be null.");
+
+        Reconciler reconciler = new Reconciler(this, keyFn);
+        beginUpdate();
+        try {
+            reconciler.reconcile((TreeTableNode) parentPath.getLastPathComponent(), newChildren.toArray(new TreeTableNode[newChildren.size()]));
+        }
+        finally {
+            endUpdate();
+        }
+        if(!isUpdating()) reconciler.restoreView();
+    }
+
+    /**
+     * Called by reconcile when a node that is kept shows different values to the new node with the same key. Make
+     * node show what newNode shows and return true, node is then repainted. Returning false replaces node with
+     * newNode, which loses what was expanded and selected underneath it. DefaultTreeTableNodes take over the user
+     * object of newNode, other nodes are replaced unless this is overridden.
+     *
+     * @param node - the node in the tree
+     * @param newNode - the node from the new snapshot with the same key
+     * @return boolean - true if node has been updated, false to replace it
+     */
+    protected boolean updateNode(TreeTableNode node, TreeTableNode newNode) {
+        if(!(node instanceof DefaultTreeTableNode) || !(newNode instanceof DefaultTreeTableNode)) return false;
+
+        ((DefaultTreeTableNode) node).setUserObject(((DefaultTreeTableNode) newNode).getUserObject());
+        return true;
+    }
+
+    /**
+     * Remembers the children of parent before they are changed directly during a batch, see UpdateBatch
+     *
+     * @param parent - the node whose children are about to change
+     */
+    void childrenChanging(TreeTableNode parent) {
+        if(updateBatch == null) throw new IllegalStateException("Children can only be changed directly during a batch.");
+        updateBatch.childrenChanging(parent);
+    }
+
+    /**
+     * Returns the children of parent as the JTree should see them while the events of a batch are being fired,
+     * see LayoutTreeModel
+     *
+     * @param parent - the node being queried
+     * @return Object[] - the children described by the events fired so far, or null to ask the model
+     */
+    Object[] getLayoutChildren(Object parent) {
+        return (firingBatch == null) ? null : firingBatch.getLayoutChildren(parent);
+    }
+
+    /**
+     * Returns true if a batch of changes has been started with beginUpdate() and not yet ended
+     *
+     * @return boolean - true if events are being held back
+     */
+    public boolean isUpdating() {
+        return updateDepth > 0;
+    }
+
+    /**
+     * Returns the queue that other threads can post changes to. The changes are applied on the EDT in
+     * batches a few times a second, see TreeTableUpdateQueue. This can be called from any thread.
+     *
+     * @return TreeTableUpdateQueue - the update queue for this model
+     */
+    public synchronized TreeTableUpdateQueue getUpdateQueue() {
+        if(updateQueue == null) updateQueue = new TreeTableUpdateQueue(this);
+        return updateQueue;
     }
 
     /**
@@ -220,6 +658,8 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * </p>
      */
     public void reload() {
+        // Take a copy of the rows before the JTree reloads so the TreeTable can keep its place
+        Object[] oldRows = (rowIndex != null) ? rowsReplacing(0) : null;
         int n = getChildCount(getRoot());
         int[] childIdx = new int[n];
         Object[] children = new Object[n];
@@ -231,8 +671,10 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
 
         // Reload the JTree
         fireTreeStructureChanged(this, new Object[] { getRoot() }, childIdx, children);
-        // Reload the JTable
+        // Reload the JTable, the rows that are now showing something else first and then the values of all of them
+        if(oldRows != null) fireRowsReplaced(0, oldRows);
         fireTreeTableRowsUpdated();
+        fireAggregatesChanged();
     }
 
     /**
@@ -242,16 +684,20 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * repaints the TreeTable.
      *
      * This is fine as long as you dont have listeners that want to know where the
-     * new data appeared.
+     * new data appeared. The JTable is told about each block of new rows provided
+     * nothing else moved, otherwise the rows that moved are replaced.
      */
     public void nodesWereInserted() {
+        // Take a copy of the rows before the JTree reloads so we can tell which rows are new
+        Object[] oldRows = (rowIndex != null) ? rowsReplacing(0) : null;
+
         // Reload the JTree
         fireTreeStructureChanged(this, new Object[] { getRoot() }, null, null);
+
         // Reload the JTable
-        // TODO: This doesnt work when the table is empty and rows are added. There appears to be a race between the Tree and the Table.
-        // What happens is that getRowCount() from the model returns 0 when there is data in the model. The Tree tries to update from the data in the model and checks in with
-        // the table to see what the index is in the view. This will fail with index out of bounds because the Table still thinks there are 0 rows.
-        fireTableDataChanged();
+        if(oldRows == null) fireTableDataChanged();
+        else fireRowsReplaced(0, oldRows);
+        fireAggregatesChanged();
     }
 
     /**
@@ -263,6 +709,18 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @param node the changed node
      */
     public void nodeChanged(TreeTableNode node) {
+        invalidateValues(node);
+        notifyNodeChanged(node);
+    }
+
+    /**
+     * Sends the events for nodeChanged without touching the value cache
+     */
+    private void notifyNodeChanged(TreeTableNode node) {
+        if(updateBatch != null && node != null) {
+            updateBatch.nodeChanged(node);
+            return;
+        }
         if(listenerList != null && node != null) {
             TreeTableNode         parent = node.getParent();
 
@@ -272,13 +730,96 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
                     int[]        cIndexs = new int[1];
 
                     cIndexs[0] = anIndex;
-                    nodesChanged(parent, cIndexs);
+                    notifyNodesChanged(parent, cIndexs);
                 }
             }
             else if (node == getRoot()) {
-                nodesChanged(node, null);
+                notifyNodesChanged(node, null);
+            }
+        }
+    }
+
+    /**
+     * Invoke this method after you've changed the values in some of the columns of node. Only those cells are
+     * repainted, and unless the tree column is one of them the JTree isn't told so it doesn't measure the node again.
+     * Rows that aren't showing cost nothing more than remembering the change.
+     *
+     * During a batch, or a drain of the update queue, the columns changed for each node are merged and the cells are
+     * repainted when it ends, in one event per block of rows for each column. A node that is also changed with
+     * nodeChanged is repainted whole.
+     *
+     * @param node - the changed node
+     * @param columns - the model indices of the columns whose values changed
+     */
+    public void cellsChanged(TreeTableNode node, int[] columns) {
+        if(node == null || columns == null) return;
+
+        BitSet mask = new BitSet(getColumnCount());
+        for(int column : columns) {
+            if(column < 0 || column >= getColumnCount()) throw new IllegalArgumentException("Column is not in the model.");
+            mask.set(column);
+        }
+        cellsChanged(node, mask);
+    }
+
+    /**
+     * cellsChanged(TreeTableNode, int[]) with the columns as a mask
+     */
+    void cellsChanged(TreeTableNode node, BitSet columns) {
+        // Columns posted to the update queue before the model lost them are left out
+        if(columns.length() > getColumnCount()) {
+            columns = (BitSet) columns.clone();
+            columns.clear(getColumnCount(), columns.length());
+        }
+        if(columns.isEmpty()) return;
+
+        // Only the changed columns have to be worked out again
+        if(valueCache != null) {
+            for(int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) valueCache.invalidate(node, column);
+        }
+        if(renderCache != null) {
+            for(int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+                renderCache.invalidate(node, column);
+                // The JTree shows the node itself in the tree column
+                if(getColumnClass(column) == TreeTableModel.class) renderCache.invalidate(node, RenderCache.LABEL);
             }
         }
+        if(updateBatch != null) {
+            updateBatch.cellsChanged(node, columns);
+            return;
+        }
+
+        // On its own the change is a batch of one, the batch works out the events
+        beginUpdate();
+        try {
+            updateBatch.cellsChanged(node, columns);
+        }
+        finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Sends the events for nodesChanged for children of node whose tree column hasn't changed, the JTree doesn't
+     * hear about them (see LayoutTreeModel)
+     */
+    void notifyCellsChanged(TreeTableNode node, int[] childIndices) {
+        treeColumnUnchanged = true;
+        try {
+            notifyNodesChanged(node, childIndices);
+        }
+        finally {
+            treeColumnUnchanged = false;
+        }
+    }
+
+    /**
+     * Returns true while the nodesChanged events being fired are for nodes whose tree column hasn't changed
+     *
+     * @return boolean - true if the JTree doesn't need to hear about the event being fired
+     */
+    boolean isTreeColumnUnchanged() {
+        return treeColumnUnchanged;
     }
 
     /**
@@ -291,6 +832,24 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @param childIndices indexes of changed children
      */
     public void nodesChanged(TreeTableNode node, int[] childIndices) {
+        if(node != null && childIndices != null) {
+            for(int counter = 0; counter < childIndices.length; counter++) invalidateValues(node.getChildAt(childIndices[counter]));
+        }
+        else if(node == getRoot()) invalidateValues(node);
+        notifyNodesChanged(node, childIndices);
+    }
+
+    /**
+     * Sends the events for nodesChanged without touching the value cache
+     */
+    void notifyNodesChanged(TreeTableNode node, int[] childIndices) {
+        if(updateBatch != null && node != null) {
+            if(childIndices != null) {
+                for(int counter = 0; counter < childIndices.length; counter++) updateBatch.nodeChanged(node.getChildAt(childIndices[counter]));
+            }
+            else if(node == getRoot()) updateBatch.nodeChanged(node);
+            return;
+        }
         if(node != null) {
             if (childIndices != null) {
                 int            cCount = childIndices.length;
@@ -301,12 +860,12 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
                     for(int counter = 0; counter < cCount; counter++)
                         cChildren[counter] = node.getChildAt
                             (childIndices[counter]);
-                    fireTreeNodesChanged(this, getPathToRoot(node),
+                    fireTreeNodesChanged(this, pathTo(node),
                                          childIndices, cChildren);
                 }
             }
             else if (node == getRoot()) {
-                fireTreeNodesChanged(this, getPathToRoot(node), null, null);
+                fireTreeNodesChanged(this, pathTo(node), null, null);
             }
         }
     }
@@ -368,11 +927,12 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
 
         // TODO: What's the point in this call or the second param (newValue) ?
         //aNode.setUserObject(newValue);
-        // Fire the events that this node has changed
+        // Fire the events that this node has changed, if this is part of a batch the row is updated when it ends
         nodeChanged(aNode);
+        if(updateBatch != null) return;
 
-        // Get the row for this TreePath
-        int row = tree.getRowForPath(path);
+        // Get the row for this node
+        int row = rowForNode(aNode);
         // Fire the event to update all columns for this row provided it is visible to the JTable
         if (row >= 0) fireTableRowsUpdated(row, row);
     }
@@ -381,6 +941,7 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * Same as valueForPathChanged(TreePath, Object) but this allows the user methods to specify which column has been updated.
      *
      * The cell will only get updated if getRowForPath() method can find the row (and it is not under a collapsed parent.)
+     * This is cellsChanged(TreeTableNode, int[]) for one column.
      *
      * @param path - path to the node that the user has altered
      * @param int - column number that has been changed.
@@ -388,13 +949,8 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
     public void valueForPathChanged(TreePath path, int column) {
         TreeTableNode   aNode = (TreeTableNode) path.getLastPathComponent();
 
-        // Fire the events that this node has changed
-        nodeChanged(aNode);
-
-        // Get the row for this TreePath
-        int row = tree.getRowForPath(path);
-        // Fire the event to update the specified cell provided that it is visible to the JTable
-        if (row >= 0) fireTableCellUpdated(row, column);
+        // Only the one column has changed, leave the cached values and cells of the others alone
+        cellsChanged(aNode, new int[] { column });
     }
 
     /**
@@ -408,7 +964,7 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @param children - the new elements
      *
      */
-    private void fireTreeNodesInserted(Object source, Object[] path, int[] childIndices, Object[] children) {
+    private void fireTreeNodesInserted(Object source, TreePath path, int[] childIndices, Object[] children) {
         // Guaranteed to return a non-null array
         Object[] listeners = listenerList.getListenerList();
         TreeModelEvent e = null;
@@ -437,7 +993,7 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @param childIndices the indices of the removed elements
      * @param children the removed elements
      */
-    private void fireTreeNodesRemoved(Object source, Object[] path,
+    private void fireTreeNodesRemoved(Object source, TreePath path,
                                         int[] childIndices,
                                         Object[] children) {
         // Guaranteed to return a non-null array
@@ -465,6 +1021,10 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      *
      */
     public void nodesWereInserted(TreeTableNode node, int[] childIndices) {
+        if(updateBatch != null && node != null && childIndices != null && childIndices.length > 0) {
+            updateBatch.childrenInserted(node, childIndices);
+            return;
+        }
         if(listenerList != null && node != null && childIndices != null && childIndices.length > 0) {
             int               cCount = childIndices.length;
             Object[]          newChildren = new Object[cCount];
@@ -472,9 +1032,54 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
             for(int counter = 0; counter < cCount; counter++)
                 newChildren[counter] = node.getChildAt(childIndices[counter]);
 
-            fireTreeNodesInserted(this, getPathToRoot(node, 0), childIndices, newChildren);
-            // Inform the JTable of the change
-            fireTableDataChanged();
+            fireNodesInserted(pathTo(node), childIndices, newChildren);
+        }
+    }
+
+    /**
+     * Notifies the JTree and the JTable that children were inserted under the last node in parentPath.
+     * nodesWereInserted(TreeTableNode, int[]) calls this, subclasses whose nodes are not TreeTableNodes
+     * can call it directly. The events are always fired straight away so this can't be used during a batch.
+     *
+     * @param parentPath - path to the parent the children were inserted into
+     * @param childIndices - indices of the new children in ascending order
+     * @param children - the new children
+     */
+    protected void fireNodesInserted(TreePath parentPath, int[] childIndices, Object[] children) {
+        if(updateBatch != null) throw new IllegalStateException("Events can't be fired directly during a batch.");
+
+        if(aggregates != null) aggregates.inserted(parentPath, children);
+        fireTreeNodesInserted(this, parentPath, childIndices, children);
+        // Inform the JTable of the rows that appeared
+        if(rowIndex != null) updateRowsInserted(parentPath, childIndices);
+        fireAggregatesChanged();
+    }
+
+    /**
+     * Adds the rows for newly inserted children to the row index and fires the table events for them.
+     * Children with consecutive indices end up in consecutive rows so each run of indices is one event.
+     * Nothing is fired if the parent is collapsed or not visible.
+     *
+     * @param parentPath - path to the parent the children were inserted into
+     * @param childIndices - indices of the new children in ascending order
+     */
+    private void updateRowsInserted(TreePath parentPath, int[] childIndices) {
+        if(!rowIndex.isShowingChildren(parentPath)) return;
+
+        int counter = 0;
+        while(counter < childIndices.length) {
+            int firstRow = -1;
+            int oldRowCount = rowIndex.size();
+
+            // Add the run of consecutive children, the first one tells us where the run starts
+            do {
+                int row = rowIndex.childInserted(parentPath, childIndices[counter]);
+                if(firstRow < 0) firstRow = row;
+                counter++;
+            } while(counter < childIndices.length && childIndices[counter] == childIndices[counter - 1] + 1);
+
+            int count = rowIndex.size() - oldRowCount;
+            if(firstRow >= 0 && count > 0) fireTableRowsInserted(firstRow, firstRow + count - 1);
         }
     }
 
@@ -491,11 +1096,252 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @param removedChildren  array of the children objects that were removed
      */
     public void nodesWereRemoved(TreeTableNode node, int[] childIndices, Object[] removedChildren) {
+        if(updateBatch != null && node != null && childIndices != null && removedChildren != null) {
+            updateBatch.childrenRemoved(node, childIndices, removedChildren);
+            return;
+        }
         if(node != null && childIndices != null) {
-            fireTreeNodesRemoved(this, getPathToRoot(node), childIndices,
-                                 removedChildren);
-            // Inform the JTable of the change
+            fireNodesRemoved(pathTo(node), childIndices, removedChildren);
+        }
+    }
+
+    /**
+     * Notifies the JTree and the JTable that children were removed from the last node in parentPath.
+     * nodesWereRemoved(TreeTableNode, int[], Object[]) calls this, subclasses whose nodes are not TreeTableNodes
+     * can call it directly. The events are always fired straight away so this can't be used during a batch.
+     *
+     * @param parentPath - path to the parent the children were removed from
+     * @param childIndices - indices the children had in ascending order
+     * @param removedChildren - the children that were removed
+     */
+    protected void fireNodesRemoved(TreePath parentPath, int[] childIndices, Object[] removedChildren) {
+        if(updateBatch != null) throw new IllegalStateException("Events can't be fired directly during a batch.");
+
+        if(removedChildren != null) for(Object child : removedChildren) invalidateSubtree(child);
+        if(aggregates != null) aggregates.removed(parentPath, removedChildren);
+        boolean hiddenExpanded = tree != null && tree.isLargeModel() && tree.hasBeenExpanded(parentPath) && !tree.isVisible(parentPath);
+        fireTreeNodesRemoved(this, parentPath, childIndices, removedChildren);
+        // The JTree forgets a parent was expanded once it has lost all of its children but FixedHeightLayoutCache only
+        // collapses it if it is showing, tell it the parent has changed so it forgets too and they agree when it is shown
+        if(hiddenExpanded && !tree.hasBeenExpanded(parentPath)) fireTreeStructureChanged(this, parentPath.getPath(), null, null);
+        // Inform the JTable of the rows that disappeared
+        if(rowIndex != null) updateRowsRemoved(parentPath, childIndices, removedChildren);
+        fireAggregatesChanged();
+    }
+
+    /**
+     * Notifies the JTree and the JTable that anything underneath the last node in path may have changed. The JTree
+     * forgets which of the descendants were expanded and the rows underneath the node are replaced.
+     *
+     * @param path - path to the node whose subtree has changed
+     */
+    protected void fireNodeStructureChanged(TreePath path) {
+        if(updateBatch != null) throw new IllegalStateException("Events can't be fired directly during a batch.");
+
+        if(rowIndex == null) {
+            fireTreeStructureChanged(this, path.getPath(), null, null);
             fireTableDataChanged();
+            fireAggregatesChanged();
+            return;
+        }
+
+        int firstRow = firstRowUnder(path);
+        Object[] oldRows = rowsReplacing(firstRow);
+        fireTreeStructureChanged(this, path.getPath(), null, null);
+        if(oldRows != null) {
+            fireRowsReplaced(firstRow, oldRows);
+            // The values of the node and everything under it may have changed as well
+            int lastRow = firstRow + rowIndex.getDescendantCount(firstRow - 1) - 1;
+            if(lastRow >= Math.max(firstRow - 1, 0)) fireTableRowsUpdated(Math.max(firstRow - 1, 0), lastRow);
+        }
+        fireAggregatesChanged();
+    }
+
+    /**
+     * Notifies the JTree and the JTable that the children at childIndices of the last node in parentPath have changed
+     * how they are represented. This is the equivalent of nodesChanged(TreeTableNode, int[]) for subclasses whose
+     * nodes are not TreeTableNodes, unlike nodesChanged the rows of the children are repainted as well.
+     * As with nodesChanged, passing null children means the root (the only node in parentPath) has changed.
+     *
+     * @param parentPath - path to the parent of the changed children
+     * @param childIndices - indices of the changed children
+     * @param children - the changed children
+     */
+    protected void fireNodesChanged(TreePath parentPath, int[] childIndices, Object[] children) {
+        if(updateBatch != null) throw new IllegalStateException("Events can't be fired directly during a batch.");
+
+        if(children == null) {
+            invalidateValues(parentPath.getLastPathComponent());
+            fireTreeNodesChanged(this, parentPath, null, null);
+            int row = (rowIndex != null) ? rowForNode(parentPath.getLastPathComponent()) : -1;
+            if(row >= 0) fireTableRowsUpdated(row, row);
+            return;
+        }
+
+        for(Object child : children) invalidateValues(child);
+        fireTreeNodesChanged(this, parentPath, childIndices, children);
+        if(rowIndex != null) for(Object child : children) {
+            int row = rowForNode(child);
+            if(row >= 0) fireTableRowsUpdated(row, row);
+        }
+    }
+
+    /**
+     * Notifies the JTree and the JTable that the values of some columns of the last node in path have changed. This is
+     * the equivalent of cellsChanged(TreeTableNode, int[]) for subclasses whose nodes are not TreeTableNodes, only those
+     * cells are repainted and unless the tree column is one of them the JTree isn't told, so it doesn't measure the
+     * node again.
+     *
+     * @param path - path to the changed node
+     * @param columns - the model indices of the columns whose values changed
+     */
+    protected void fireCellsChanged(TreePath path, int[] columns) {
+        if(updateBatch != null) throw new IllegalStateException("Events can't be fired directly during a batch.");
+        if(path == null || columns == null || columns.length == 0) return;
+
+        Object node = path.getLastPathComponent();
+        boolean label = false;
+        for(int column : columns) {
+            if(column < 0 || column >= getColumnCount()) throw new IllegalArgumentException("Column is not in the model.");
+            if(valueCache != null) valueCache.invalidate(node, column);
+            if(getColumnClass(column) == TreeTableModel.class) label = true;
+            if(renderCache != null) renderCache.invalidate(node, column);
+        }
+        if(label && renderCache != null) renderCache.invalidate(node, RenderCache.LABEL);
+
+        TreePath parentPath = path.getParentPath();
+        treeColumnUnchanged = !label;
+        try {
+            if(parentPath == null) fireTreeNodesChanged(this, path, null, null);
+            else fireTreeNodesChanged(this, parentPath, new int[] { getIndexOfChild(parentPath.getLastPathComponent(), node) }, new Object[] { node });
+        }
+        finally {
+            treeColumnUnchanged = false;
+        }
+
+        int row = (rowIndex != null) ? rowForNode(node) : -1;
+        if(row < 0) return;
+        int[] sorted = columns.clone();
+        Arrays.sort(sorted);
+        for(int i = 0; i < sorted.length; i++) {
+            if(i == 0 || sorted[i] != sorted[i - 1]) fireTableCellUpdated(row, sorted[i]);
+        }
+    }
+
+    /**
+     * Returns the first of the rows underneath the node at the end of path, the rows a change to its structure
+     * replaces. Every row is underneath the root.
+     *
+     * @param path - path to the node
+     * @return int - the row after the node or -1 if the node isn't visible
+     */
+    private int firstRowUnder(TreePath path) {
+        if(path == null || path.getParentPath() == null) return 0;
+
+        int row = rowIndex.getRow(path.getLastPathComponent());
+        return (row < 0) ? -1 : row + 1;
+    }
+
+    /**
+     * Takes a copy of the rows from firstRow that are underneath the node in the row above it and tells the TreeTable
+     * they are about to be replaced. Call this before the JTree is told about the change, it clears the selection
+     * when the structure of the root changes. fireRowsReplaced(int, Object[]) must follow once the change is made.
+     *
+     * @param firstRow - the row after the node, 0 for everything or -1 if nothing is going to be replaced
+     * @return Object[] - the nodes in those rows or null if firstRow is -1
+     */
+    private Object[] rowsReplacing(int firstRow) {
+        if(firstRow < 0) return null;
+
+        Object[] oldRows = rowIndex.toArray(firstRow, rowIndex.getDescendantCount(firstRow - 1));
+        if(viewKeeper != null) viewKeeper.rowsReplacing(firstRow, oldRows);
+        return oldRows;
+    }
+
+    /**
+     * Tells the JTable that the rows from firstRow, which were showing oldRows, are now showing the rows the row index
+     * has underneath the node above firstRow. Rows at either end that still show the same node are left alone. If the
+     * old rows in between are all still there, in the same order, each block of new rows is inserted. Otherwise the
+     * rows in between are updated and the difference in the number of rows is inserted or removed after them.
+     * The TreeTable then puts the selection and the scroll position back on the nodes they were on.
+     *
+     * @param firstRow - the first of the replaced rows, 0 for everything
+     * @param oldRows - the nodes that were in the rows before the change, from rowsReplacing(int)
+     */
+    private void fireRowsReplaced(int firstRow, Object[] oldRows) {
+        if(oldRows == null) return;
+        int newCount = rowIndex.getDescendantCount(firstRow - 1);
+
+        try {
+            // Leave the rows that haven't changed at both ends out
+            int same = 0;
+            while(same < oldRows.length && same < newCount && oldRows[same].equals(rowIndex.getNode(firstRow + same))) same++;
+            int sameAtEnd = 0;
+            while(sameAtEnd < oldRows.length - same && sameAtEnd < newCount - same && oldRows[oldRows.length - 1 - sameAtEnd].equals(rowIndex.getNode(firstRow + newCount - 1 - sameAtEnd))) sameAtEnd++;
+
+            int first = firstRow + same;
+            int oldCount = oldRows.length - same - sameAtEnd;
+            int count = newCount - same - sameAtEnd;
+            if(oldCount == 0 && count == 0) return;
+
+            // Find each block of new rows, the old rows must appear in the same order around them
+            List<int[]> blocks = new ArrayList<int[]>();
+            int oldRow = same;
+            for(int row = first; row < first + count; row++) {
+                if(oldRow < same + oldCount && oldRows[oldRow].equals(rowIndex.getNode(row))) oldRow++;
+                else if(!blocks.isEmpty() && blocks.get(blocks.size() - 1)[1] == row - 1) blocks.get(blocks.size() - 1)[1] = row;
+                else blocks.add(new int[] { row, row });
+            }
+
+            // The blocks are in terms of the final rows so fire them from the top, each one is then valid when it arrives
+            if(oldRow == same + oldCount) {
+                for(int[] block : blocks) fireTableRowsInserted(block[0], block[1]);
+                return;
+            }
+
+            if(count > oldCount) fireTableRowsInserted(first + oldCount, first + count - 1);
+            else if(count < oldCount) fireTableRowsDeleted(first + count, first + oldCount - 1);
+            int kept = Math.min(oldCount, count);
+            if(kept > 0) fireTableRowsUpdated(first, first + kept - 1);
+        }
+        finally {
+            if(viewKeeper != null) viewKeeper.rowsReplaced(firstRow, oldRows, newCount);
+        }
+    }
+
+    /**
+     * Takes the rows for removed children (and their subtrees) out of the row index and fires the table events for them.
+     * Children with consecutive indices were in consecutive rows so each run of indices is one event. The runs are
+     * removed from the bottom up so that the rows above are still correct when each event is fired.
+     *
+     * @param parentPath - path to the parent the children were removed from
+     * @param childIndices - indices the children had in ascending order
+     * @param removedChildren - the children that were removed
+     */
+    private void updateRowsRemoved(TreePath parentPath, int[] childIndices, Object[] removedChildren) {
+        // Without the children there is no way to find their rows, replace everything under the parent
+        if(removedChildren == null) {
+            int firstRow = firstRowUnder(parentPath);
+            Object[] oldRows = rowsReplacing(firstRow);
+            rowIndex.structureChanged(parentPath);
+            if(oldRows != null) fireRowsReplaced(firstRow, oldRows);
+            return;
+        }
+
+        int counter = removedChildren.length - 1;
+        while(counter >= 0) {
+            int firstRow = -1;
+            int oldRowCount = rowIndex.size();
+
+            // Remove the run of consecutive children, the last one removed is the top of the run
+            do {
+                int row = rowIndex.childRemoved(parentPath, removedChildren[counter]);
+                if(row >= 0) firstRow = row;
+                counter--;
+            } while(counter >= 0 && childIndices[counter] == childIndices[counter + 1] - 1);
+
+            int count = oldRowCount - rowIndex.size();
+            if(firstRow >= 0 && count > 0) fireTableRowsDeleted(firstRow, firstRow + count - 1);
         }
     }
 
@@ -512,13 +1358,31 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
      * @param index     index of parent's children
      */
     public void insertNodeInto(TreeTableNode newChild, TreeTableNode parent, int index){
+        // When updating in a batch just remember what the children were, the events are fired when it ends
+        if(updateBatch != null) {
+            // Inserting a node that is somewhere else in the tree moves it, its old parent loses it
+            TreeTableNode oldParent = newChild.getParent();
+            if(oldParent != null && oldParent != parent) updateBatch.childrenChanging(oldParent);
+            updateBatch.childrenChanging(parent);
+            parent.insert(newChild, index);
+            return;
+        }
+
         parent.insert(newChild, index);
 
         int[]           newIndexs = new int[1];
 
         newIndexs[0] = index;
         nodesWereInserted(parent, newIndexs);
-        if(getRowCount() == 0) nodesWereInserted();
+        if(parent == getRoot()) expandEmptyRoot();
+    }
+
+    /**
+     * The first children of an empty root won't show up until the root is expanded. If there are no
+     * rows but the root has children then expand it, the expansion fires the table events for them.
+     */
+    private void expandEmptyRoot() {
+        if(tree != null && getRowCount() == 0 && getRoot() != null && getChildCount(getRoot()) > 0) tree.expandPath(new TreePath(getRoot()));
     }
 
     /**
@@ -537,6 +1401,13 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
         if(parent == null)
             throw new IllegalArgumentException("node does not have a parent.");
 
+        // When updating in a batch just remember what the children were, the events are fired when it ends
+        if(updateBatch != null) {
+            updateBatch.childrenChanging(parent);
+            parent.remove(parent.getIndex(node));
+            return;
+        }
+
         int[]            childIndex = new int[1];
         Object[]         removedArray = new Object[1];
 
@@ -561,6 +1432,22 @@ public abstract class AbstractTreeTableModel extends AbstractTableModel implemen
         return getPathToRoot(aNode, 0);
     }
 
+    /**
+     * Returns the path from the root to node. DefaultTreeTableNodes keep their paths so those are reused rather
+     * than building a new path every time.
+     *
+     * @param node - the node to get the path for
+     * @return TreePath - the path to node
+     */
+    private TreePath pathTo(TreeTableNode node) {
+        if(node instanceof DefaultTreeTableNode) {
+            TreePath path = ((DefaultTreeTableNode) node).getTreePath();
+            // The node may be in a tree that goes above the root of this model
+            if(path.getPathComponent(0) == getRoot()) return path;
+        }
+        return new TreePath(getPathToRoot(node));
+    }
+
     /**
      * Cribbed from DefaultMutableTreeNode
      *
@@ -0,0 +1,25 @@
+package TreeTable;
+
+/**
+ * The ways the values of a column can be rolled up the tree into an aggregate column, see
+ * AbstractTreeTableModel.setAggregate(int, int, Aggregate). Each node's own value counts along with the values of
+ * everything underneath it, values that are null or not Numbers are left out.
+ */
+public enum Aggregate {
+    /**
+     * The total of the values, 0 if there are none
+     */
+    SUM,
+    /**
+     * The number of values, always a Long
+     */
+    COUNT,
+    /**
+     * The smallest value, null if there are none
+     */
+    MIN,
+    /**
+     * The largest value, null if there are none
+     */
+    MAX
+}
@@ -0,0 +1,681 @@
+package TreeTable;
+
+import javax.swing.tree.TreePath;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the values of the aggregate columns of an AbstractTreeTableModel, see AbstractTreeTableModel.setAggregate.
+ *
+ * Every node in the tree gets a slot and each aggregate column keeps its values for the slots in primitive arrays:
+ * the node's own value, and the count and total (sum, min or max) of the values in its subtree. Columns of whole
+ * numbers keep them in longs so that big values come back exactly, other columns keep them in doubles. The model
+ * tells this class about each insert, remove and change as it fires the events for it, only the slots on the path
+ * from the changed node to the root are updated. Sums and counts are updated by the difference so that costs
+ * O(depth). A min or max is only worked out again from the children when the value that was removed was the min or max.
+ *
+ * The slots are linked to the slots of their parent and children as the tree was when they were worked out, so
+ * when the structure under a node changes the old subtree can be let go of without asking the model, which has
+ * already changed, and only the new subtree and the path to the root are worked out again.
+ */
+class AggregateColumns {
+    private AbstractTreeTableModel model;
+    private List<Definition> definitions = new ArrayList<Definition>();
+
+    // Slot of each node in the tree
+    private Map<Object, Integer> slots = new HashMap<Object, Integer>();
+    // Node in each slot, null if the slot is free
+    private Object[] nodes = new Object[64];
+    // Slots of the parent, first child and siblings of the node in each slot, -1 if there isn't one
+    private int[] parentSlots = new int[64];
+    private int[] firstChildSlots = new int[64];
+    private int[] nextSiblingSlots = new int[64];
+    private int[] previousSiblingSlots = new int[64];
+    // Slots that have been freed and can be used again
+    private int[] free = new int[16];
+    private int freeCount;
+    // Number of slots that have ever been used
+    private int slotCount;
+
+    // Nodes whose aggregate values have changed since takeChanged() was last called
+    private Set<Object> changed = new LinkedHashSet<Object>();
+    // True if every node may have changed
+    private boolean allChanged;
+
+    AggregateColumns(AbstractTreeTableModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Makes column an aggregate of sourceColumn, replacing whatever aggregate it was before, and works out its values for the whole tree
+     */
+    void add(int column, int sourceColumn, Aggregate aggregate) {
+        remove(column);
+        Class<?> sourceClass = model.getColumnClass(sourceColumn);
+        boolean integral = sourceClass == Long.class || sourceClass == Integer.class || sourceClass == Short.class || sourceClass == Byte.class;
+        definitions.add(integral ? new WholeDefinition(column, sourceColumn, aggregate) : new RealDefinition(column, sourceColumn, aggregate));
+        rebuild();
+    }
+
+    /**
+     * Stops column being an aggregate
+     *
+     * @return boolean - true if it was one
+     */
+    boolean remove(int column) {
+        Iterator<Definition> iterator = definitions.iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().column != column) continue;
+            iterator.remove();
+            return true;
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return definitions.isEmpty();
+    }
+
+    boolean isAggregate(int column) {
+        return getDefinition(column) != null;
+    }
+
+    /**
+     * Returns true if column is the source of one of the aggregates
+     */
+    boolean isSource(int column) {
+        for(Definition definition : definitions) if(definition.sourceColumn == column) return true;
+        return false;
+    }
+
+    /**
+     * Returns the value of the aggregate column for node
+     *
+     * @return Object - a Long or a Double, null for the min or max of nothing or a node that isn't in the tree
+     */
+    Object getValue(Object node, int column) {
+        Definition definition = getDefinition(column);
+        Integer slot = (node == null) ? null : slots.get(node);
+        if(definition == null || slot == null) return null;
+
+        long count = definition.count[slot];
+        if(definition.aggregate == Aggregate.COUNT) return count;
+        if(count == 0 && definition.aggregate != Aggregate.SUM) return null;
+        return definition.getTotal(slot);
+    }
+
+    /**
+     * Works out the values for every node in the tree from scratch
+     */
+    void rebuild() {
+        slots.clear();
+        Arrays.fill(nodes, 0, slotCount, null);
+        slotCount = 0;
+        freeCount = 0;
+        allChanged = true;
+        if(model.getRoot() != null) computeSubtree(model.getRoot(), false);
+    }
+
+    /**
+     * Adds the values of children and their subtrees to the last node in parentPath and its ancestors
+     */
+    void inserted(TreePath parentPath, Object[] children) {
+        if(children == null) {
+            structureChanged(parentPath);
+            return;
+        }
+
+        int[] ancestors = slotsOf(parentPath);
+        if(ancestors == null) return;
+
+        for(Object child : children) {
+            int slot = computeSubtree(child, false);
+            link(slot, ancestors[ancestors.length - 1]);
+            for(Definition definition : definitions) {
+                definition.hold(slot);
+                for(int i = ancestors.length - 1; i >= 0; i--) definition.addHeld(ancestors[i]);
+            }
+        }
+        markChanged(ancestors);
+    }
+
+    /**
+     * Takes the values of children and their subtrees away from the last node in parentPath and its ancestors.
+     * The children must already have been removed from the model.
+     */
+    void removed(TreePath parentPath, Object[] children) {
+        if(children == null) {
+            structureChanged(parentPath);
+            return;
+        }
+
+        int[] ancestors = slotsOf(parentPath);
+        if(ancestors == null) return;
+
+        // The children are taken away together, a min or max worked out again after only some of them have been
+        // taken away would still count the others
+        for(Definition definition : definitions) {
+            definition.clearHeld();
+            for(Object child : children) {
+                Integer slot = slots.get(child);
+                if(slot != null) definition.holdAlso(slot);
+            }
+        }
+        for(Object child : children) {
+            Integer slot = slots.get(child);
+            if(slot != null) freeSubtree(slot);
+        }
+        for(Definition definition : definitions) {
+            for(int i = ancestors.length - 1; i >= 0; i--) definition.removeHeld(ancestors[i]);
+        }
+        markChanged(ancestors);
+    }
+
+    /**
+     * Works out the subtree of the last node in path again after its structure has changed and updates its ancestors.
+     * Everything is worked out again if path is the root or null.
+     */
+    void structureChanged(TreePath path) {
+        if(path == null || path.getPathCount() == 1) {
+            rebuild();
+            return;
+        }
+        int[] chain = slotsOf(path);
+        if(chain == null) return;
+
+        int slot = chain[chain.length - 1];
+        Object node = nodes[slot];
+        // Let go of what was underneath the node and take its old values away from its ancestors, the node keeps
+        // its slot and its place under its parent
+        while(firstChildSlots[slot] >= 0) freeSubtree(firstChildSlots[slot]);
+        for(Definition definition : definitions) {
+            definition.hold(slot);
+            definition.clear(slot);
+            for(int i = chain.length - 2; i >= 0; i--) definition.removeHeld(chain[i]);
+        }
+
+        // Work the subtree out again and add its new values
+        computeSubtree(node, true);
+        for(Definition definition : definitions) {
+            definition.hold(slot);
+            for(int i = chain.length - 2; i >= 0; i--) definition.addHeld(chain[i]);
+        }
+        markChanged(chain);
+    }
+
+    /**
+     * Reads the own values of the last node in path again and updates it and its ancestors
+     */
+    void changed(TreePath path) {
+        int[] chain = slotsOf(path);
+        if(chain == null) return;
+
+        int slot = chain[chain.length - 1];
+        Object node = nodes[slot];
+        boolean ownChanged = false;
+        for(Definition definition : definitions) {
+            definition.holdOwn(slot);
+            if(!definition.readOwn(slot, node)) continue;
+
+            ownChanged = true;
+            for(int i = chain.length - 1; i >= 0; i--) definition.removeHeld(chain[i]);
+            definition.holdOwn(slot);
+            for(int i = chain.length - 1; i >= 0; i--) definition.addHeld(chain[i]);
+        }
+        if(ownChanged) markChanged(chain);
+    }
+
+    /**
+     * Returns the nodes whose aggregate values have changed since this was last called and forgets them
+     *
+     * @return Set - the changed nodes or null if every node may have changed
+     */
+    Set<Object> takeChanged() {
+        if(allChanged) {
+            allChanged = false;
+            changed.clear();
+            return null;
+        }
+        Set<Object> taken = changed;
+        changed = new LinkedHashSet<Object>();
+        return taken;
+    }
+
+    private Definition getDefinition(int column) {
+        for(Definition definition : definitions) if(definition.column == column) return definition;
+        return null;
+    }
+
+    /**
+     * Returns the slots of the nodes in path, or null after rebuilding everything if one of them doesn't have one
+     */
+    private int[] slotsOf(TreePath path) {
+        Object[] pathNodes = path.getPath();
+        int[] chain = new int[pathNodes.length];
+        for(int i = 0; i < pathNodes.length; i++) {
+            Integer slot = slots.get(pathNodes[i]);
+            // The model changed without telling us, start again
+            if(slot == null) {
+                rebuild();
+                return null;
+            }
+            chain[i] = slot;
+        }
+        return chain;
+    }
+
+    private void markChanged(int[] chain) {
+        if(allChanged) return;
+        for(int slot : chain) changed.add(nodes[slot]);
+    }
+
+    /**
+     * Gives node and everything underneath it a slot and works out their values from the bottom up
+     *
+     * @param mark - true to add each node to the changed nodes
+     * @return int - the slot of node
+     */
+    private int computeSubtree(Object node, boolean mark) {
+        // Parents come before their children, so going backwards the children are done first
+        List<Object> order = new ArrayList<Object>();
+        order.add(node);
+        for(int i = 0; i < order.size(); i++) {
+            Object next = order.get(i);
+            if(model.isLeaf(next)) continue;
+            int count = model.getChildCount(next);
+            for(int j = 0; j < count; j++) order.add(model.getChild(next, j));
+        }
+
+        int slot = -1;
+        for(int i = order.size() - 1; i >= 0; i--) {
+            Object next = order.get(i);
+            slot = slotFor(next);
+            if(mark && !allChanged) changed.add(next);
+            for(Definition definition : definitions) {
+                definition.readOwn(slot, next);
+                definition.holdOwn(slot);
+                definition.clear(slot);
+                definition.addHeld(slot);
+            }
+
+            if(model.isLeaf(next)) continue;
+            int count = model.getChildCount(next);
+            for(int j = count - 1; j >= 0; j--) {
+                int childSlot = slots.get(model.getChild(next, j));
+                link(childSlot, slot);
+                for(Definition definition : definitions) {
+                    definition.hold(childSlot);
+                    definition.addHeld(slot);
+                }
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Frees slot and the slots linked underneath it and takes it off its parent
+     */
+    private void freeSubtree(int slot) {
+        unlink(slot);
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = slot;
+        while(size > 0) {
+            int next = stack[--size];
+            for(int child = firstChildSlots[next]; child >= 0; child = nextSiblingSlots[child]) {
+                if(size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+                stack[size++] = child;
+            }
+            slots.remove(nodes[next]);
+            nodes[next] = null;
+            free(next);
+        }
+    }
+
+    private void free(int slot) {
+        if(freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * Returns the slot of node, giving it one with no parent or children if it doesn't have one
+     */
+    private int slotFor(Object node) {
+        Integer existing = slots.get(node);
+        if(existing != null) return existing;
+
+        int slot;
+        if(freeCount > 0) slot = free[--freeCount];
+        else {
+            slot = slotCount++;
+            if(slot == nodes.length) {
+                int length = slot * 2;
+                nodes = Arrays.copyOf(nodes, length);
+                parentSlots = Arrays.copyOf(parentSlots, length);
+                firstChildSlots = Arrays.copyOf(firstChildSlots, length);
+                nextSiblingSlots = Arrays.copyOf(nextSiblingSlots, length);
+                previousSiblingSlots = Arrays.copyOf(previousSiblingSlots, length);
+                for(Definition definition : definitions) definition.grow(length);
+            }
+        }
+        nodes[slot] = node;
+        parentSlots[slot] = -1;
+        firstChildSlots[slot] = -1;
+        nextSiblingSlots[slot] = -1;
+        previousSiblingSlots[slot] = -1;
+        slots.put(node, slot);
+        return slot;
+    }
+
+    /**
+     * Makes slot the first child of parent, taking it off the parent it had first
+     */
+    private void link(int slot, int parent) {
+        unlink(slot);
+        int first = firstChildSlots[parent];
+        parentSlots[slot] = parent;
+        nextSiblingSlots[slot] = first;
+        if(first >= 0) previousSiblingSlots[first] = slot;
+        firstChildSlots[parent] = slot;
+    }
+
+    private void unlink(int slot) {
+        int parent = parentSlots[slot];
+        if(parent < 0) return;
+
+        int previous = previousSiblingSlots[slot];
+        int next = nextSiblingSlots[slot];
+        if(previous >= 0) nextSiblingSlots[previous] = next;
+        else firstChildSlots[parent] = next;
+        if(next >= 0) previousSiblingSlots[next] = previous;
+        parentSlots[slot] = -1;
+        nextSiblingSlots[slot] = -1;
+        previousSiblingSlots[slot] = -1;
+    }
+
+    /**
+     * The values of one aggregate column. The values of a slot or a group of slots are moved between slots by
+     * holding them, hold(int) or holdOwn(int), and then adding or removing what is held.
+     */
+    private abstract class Definition {
+        int column;
+        int sourceColumn;
+        Aggregate aggregate;
+
+        // Number of values in the subtree
+        long[] count;
+        // Number of values held
+        long heldCount;
+
+        Definition(int column, int sourceColumn, Aggregate aggregate) {
+            this.column = column;
+            this.sourceColumn = sourceColumn;
+            this.aggregate = aggregate;
+            count = new long[nodes.length];
+        }
+
+        void grow(int length) {
+            count = Arrays.copyOf(count, length);
+        }
+
+        /**
+         * Returns the source value of node, null if it doesn't have one that is a Number
+         */
+        Number sourceValue(Object node) {
+            Object value = model.getAggregateSourceValue(node, sourceColumn);
+            return (value instanceof Number) ? (Number) value : null;
+        }
+
+        /**
+         * Empties slot, it has no values
+         */
+        void clear(int slot) {
+            count[slot] = 0;
+        }
+
+        /**
+         * Holds nothing
+         */
+        void clearHeld() {
+            heldCount = 0;
+        }
+
+        /**
+         * Holds the values of the subtree of slot
+         */
+        void hold(int slot) {
+            clearHeld();
+            holdAlso(slot);
+        }
+
+        /**
+         * Takes the held values away from slot. The children of the node in slot must already be up to date, a min
+         * or max is worked out again from them if what is held was the min or max.
+         */
+        void removeHeld(int slot) {
+            if(heldCount == 0) return;
+
+            count[slot] -= heldCount;
+            if(count[slot] == 0) clear(slot);
+            else subtractHeld(slot);
+        }
+
+        /**
+         * Returns the total of slot, which has values unless the aggregate is a SUM
+         */
+        abstract Object getTotal(int slot);
+
+        /**
+         * Reads the own value of node into slot
+         *
+         * @return boolean - true if it isn't the one slot had
+         */
+        abstract boolean readOwn(int slot, Object node);
+
+        /**
+         * Holds the own value of slot, or nothing if it doesn't have one
+         */
+        abstract void holdOwn(int slot);
+
+        /**
+         * Adds the values of the subtree of slot to what is held
+         */
+        abstract void holdAlso(int slot);
+
+        /**
+         * Adds the held values to slot
+         */
+        abstract void addHeld(int slot);
+
+        /**
+         * Takes the total of the held values away from the total of slot, which still has values
+         */
+        abstract void subtractHeld(int slot);
+    }
+
+    /**
+     * An aggregate of a column of whole numbers, the values are kept as longs
+     */
+    private class WholeDefinition extends Definition {
+        // The node's own value and whether it has one
+        long[] own;
+        boolean[] hasOwn;
+        // Sum, min or max of the values in the subtree, only meaningful when the count isn't 0
+        long[] total;
+        long heldTotal;
+
+        WholeDefinition(int column, int sourceColumn, Aggregate aggregate) {
+            super(column, sourceColumn, aggregate);
+            own = new long[nodes.length];
+            hasOwn = new boolean[nodes.length];
+            total = new long[nodes.length];
+        }
+
+        void grow(int length) {
+            super.grow(length);
+            own = Arrays.copyOf(own, length);
+            hasOwn = Arrays.copyOf(hasOwn, length);
+            total = Arrays.copyOf(total, length);
+        }
+
+        /**
+         * Returns the sum, min or max of two totals
+         */
+        long combine(long total1, long total2) {
+            switch(aggregate) {
+                case SUM:
+                    return total1 + total2;
+                case MIN:
+                    return Math.min(total1, total2);
+                case MAX:
+                    return Math.max(total1, total2);
+                default:
+                    return 0;
+            }
+        }
+
+        Object getTotal(int slot) {
+            return (count[slot] == 0) ? 0L : total[slot];
+        }
+
+        boolean readOwn(int slot, Object node) {
+            Number value = sourceValue(node);
+            boolean had = hasOwn[slot];
+            long old = own[slot];
+            hasOwn[slot] = value != null;
+            own[slot] = (value != null) ? value.longValue() : 0;
+            return had != hasOwn[slot] || old != own[slot];
+        }
+
+        void holdOwn(int slot) {
+            heldCount = hasOwn[slot] ? 1 : 0;
+            heldTotal = own[slot];
+        }
+
+        void holdAlso(int slot) {
+            if(count[slot] == 0) return;
+            heldTotal = (heldCount == 0) ? total[slot] : combine(heldTotal, total[slot]);
+            heldCount += count[slot];
+        }
+
+        void addHeld(int slot) {
+            if(heldCount == 0) return;
+            total[slot] = (count[slot] == 0) ? heldTotal : combine(total[slot], heldTotal);
+            count[slot] += heldCount;
+        }
+
+        void subtractHeld(int slot) {
+            if(aggregate == Aggregate.SUM) total[slot] -= heldTotal;
+            else if(aggregate != Aggregate.COUNT && heldTotal == total[slot]) recompute(slot);
+        }
+
+        /**
+         * Works out the min or max of slot again from its own value and the children linked to it
+         */
+        private void recompute(int slot) {
+            boolean found = hasOwn[slot];
+            long result = own[slot];
+            for(int child = firstChildSlots[slot]; child >= 0; child = nextSiblingSlots[child]) {
+                if(count[child] == 0) continue;
+                result = found ? combine(result, total[child]) : total[child];
+                found = true;
+            }
+            total[slot] = result;
+        }
+    }
+
+    /**
+     * An aggregate of a column of other numbers, the values are kept as doubles
+     */
+    private class RealDefinition extends Definition {
+        // The node's own value, NaN if it doesn't have one
+        double[] own;
+        // Sum, min or max of the values in the subtree, NaN for a min or max of nothing
+        double[] total;
+        double heldTotal;
+
+        RealDefinition(int column, int sourceColumn, Aggregate aggregate) {
+            super(column, sourceColumn, aggregate);
+            own = new double[nodes.length];
+            total = new double[nodes.length];
+        }
+
+        void grow(int length) {
+            super.grow(length);
+            own = Arrays.copyOf(own, length);
+            total = Arrays.copyOf(total, length);
+        }
+
+        /**
+         * Returns the sum, min or max of two totals
+         */
+        double combine(double total1, double total2) {
+            switch(aggregate) {
+                case SUM:
+                    return total1 + total2;
+                case MIN:
+                    return Math.min(total1, total2);
+                case MAX:
+                    return Math.max(total1, total2);
+                default:
+                    return Double.NaN;
+            }
+        }
+
+        void clear(int slot) {
+            super.clear(slot);
+            total[slot] = Double.NaN;
+        }
+
+        Object getTotal(int slot) {
+            return (count[slot] == 0) ? 0.0 : total[slot];
+        }
+
+        boolean readOwn(int slot, Object node) {
+            Number value = sourceValue(node);
+            double old = own[slot];
+            own[slot] = (value != null) ? value.doubleValue() : Double.NaN;
+            return Double.compare(old, own[slot]) != 0;
+        }
+
+        void holdOwn(int slot) {
+            heldCount = Double.isNaN(own[slot]) ? 0 : 1;
+            heldTotal = own[slot];
+        }
+
+        void holdAlso(int slot) {
+            if(count[slot] == 0) return;
+            heldTotal = (heldCount == 0) ? total[slot] : combine(heldTotal, total[slot]);
+            heldCount += count[slot];
+        }
+
+        void addHeld(int slot) {
+            if(heldCount == 0) return;
+            total[slot] = (count[slot] == 0) ? heldTotal : combine(total[slot], heldTotal);
+            count[slot] += heldCount;
+        }
+
+        void subtractHeld(int slot) {
+            if(aggregate == Aggregate.SUM) total[slot] -= heldTotal;
+            else if(aggregate != Aggregate.COUNT && heldTotal == total[slot]) recompute(slot);
+        }
+
+        /**
+         * Works out the min or max of slot again from its own value and the children linked to it
+         */
+        private void recompute(int slot) {
+            double result = own[slot];
+            for(int child = firstChildSlots[slot]; child >= 0; child = nextSiblingSlots[child]) {
+                if(count[child] == 0) continue;
+                result = Double.isNaN(result) ? total[child] : combine(result, total[child]);
+            }
+            total[slot] = result;
+        }
+    }
+}
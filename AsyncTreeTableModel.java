@@ -0,0 +1,379 @@
+package TreeTable;
+
+import javax.swing.JTree;
+import javax.swing.SwingUtilities;
+import javax.swing.tree.TreePath;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A TreeTableModel for data where fetching the children of a node is slow (a database, a remote service, a large directory...).
+ *
+ * The children of a node are not fetched until the node is expanded. Until they arrive the node shows a single
+ * placeholder row ("Loading...") so the EDT never waits. The children are fetched on a background thread by
+ * loadChildren(Object), when they arrive the new rows are inserted above the placeholder and then the placeholder
+ * is removed, both as normal incremental events. Collapsing a node before its children arrive cancels the load.
+ * Only getMaxConcurrentLoads() loads run at once, the rest wait their turn in the order the nodes were expanded.
+ *
+ * To create a concrete AsyncTreeTableModel you need to provide implementations for the following methods:
+ * protected List<?> loadChildren(Object parent) - called on a background thread
+ * protected boolean isLeafNode(Object node)
+ * public Object getRoot()
+ * public int getColumnCount()
+ * public Object getValueAt(Object node, int columnIndex)
+ * public Class<?> getColumnClass(int column)
+ *
+ * isLeafNode(Object) is never asked about the placeholders and neither is getValueAt(Object, int) when the values
+ * are read through the model, as the table, the row sorter and the exporter do. Code that walks the tree and calls
+ * getValueAt(Object, int) itself, like the search index and snapshots, does reach the placeholders under nodes that
+ * haven't loaded, so getValueAt(Object, int) should check isPlaceholder(Object) if the model is used that way. All
+ * of the other methods must be called on the EDT.
+ */
+public abstract class AsyncTreeTableModel extends AbstractTreeTableModel {
+    // Set the version ID for serialized objects
+    static final long serialVersionUID = 1L;
+
+    // Children of each node that has been loaded
+    private Map<Object, List<?>> children = new HashMap<Object, List<?>>();
+    // The placeholder shown under each node that has not been loaded, created when the JTree first asks for it
+    private Map<Object, Placeholder> placeholders = new HashMap<Object, Placeholder>();
+
+    // Loads that are waiting or running, by the node being loaded
+    private Map<Object, Load> loads = new HashMap<Object, Load>();
+    // Loads waiting for one of the running loads to finish
+    private Queue<Load> pending = new ArrayDeque<Load>();
+    // Number of loads that have been handed to the executor and not finished
+    private int running;
+    private int maxConcurrentLoads;
+
+    // Runs loadChildren off the EDT
+    private ExecutorService executor;
+
+    /**
+     * Creates a model that loads the children of up to 4 nodes at once on its own daemon threads
+     */
+    public AsyncTreeTableModel() {
+        this(Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TreeTable loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), 4);
+    }
+
+    /**
+     * Creates a model that loads children using executor
+     *
+     * @param executor - runs loadChildren(Object), it should have at least maxConcurrentLoads threads
+     * @param maxConcurrentLoads - the number of nodes that can be loaded at the same time
+     */
+    public AsyncTreeTableModel(ExecutorService executor, int maxConcurrentLoads) {
+        this.executor = executor;
+        setMaxConcurrentLoads(maxConcurrentLoads);
+    }
+
+    /**
+     * Fetches the children of parent. This is called on a background thread so it must not touch the model or
+     * any Swing components. If the node is collapsed before this returns the thread is interrupted, slow loads
+     * should check for this and give up.
+     *
+     * @param parent - the node whose children are wanted
+     * @return List - the children of parent in the order they should be shown
+     * @throws Exception - if the children could not be fetched, the placeholder will show the error until the node is expanded again
+     */
+    protected abstract List<?> loadChildren(Object parent) throws Exception;
+
+    /**
+     * Returns true if node can never have children. This decides whether the node gets an expand handle
+     * and so it should be answered without fetching anything.
+     *
+     * @param node - a node in the tree, never a placeholder
+     * @return boolean - true if node is a leaf
+     */
+    protected abstract boolean isLeafNode(Object node);
+
+    /**
+     * Sets the number of nodes that can be loaded at the same time. Expanding more nodes than this queues the extra loads.
+     *
+     * @param maxConcurrentLoads - number of loads, must be greater than 0
+     */
+    public void setMaxConcurrentLoads(int maxConcurrentLoads) {
+        if(maxConcurrentLoads <= 0) throw new IllegalArgumentException("maxConcurrentLoads must be greater than 0.");
+        this.maxConcurrentLoads = maxConcurrentLoads;
+        startLoads();
+    }
+
+    /**
+     * Returns the number of nodes that can be loaded at the same time
+     *
+     * @return int - number of loads
+     */
+    public int getMaxConcurrentLoads() {
+        return maxConcurrentLoads;
+    }
+
+    /**
+     * Returns true if the children of node have been loaded
+     *
+     * @param node - a node in the tree
+     * @return boolean - true if the children are loaded, false if the node still shows a placeholder
+     */
+    public boolean isLoaded(Object node) {
+        return children.containsKey(node);
+    }
+
+    /**
+     * Returns true if node is the placeholder shown while the children of a node are loading
+     *
+     * @param node - a node in the tree
+     * @return boolean - true if node is a placeholder
+     */
+    public boolean isPlaceholder(Object node) {
+        return node instanceof Placeholder;
+    }
+
+    /**
+     * Sets up the JTree and starts loading nodes when they are expanded and cancels the loads when they are collapsed
+     */
+    @Override
+    protected void setupJTree(JTree tree) {
+        super.setupJTree(tree);
+
+        tree.addTreeExpansionListener(new TreeExpansionListener() {
+            public void treeExpanded(TreeExpansionEvent event) {
+                load(event.getPath());
+            }
+
+            public void treeCollapsed(TreeExpansionEvent event) {
+                cancelLoads(event.getPath());
+            }
+        });
+
+        // The JTree expands the root when it is created, before anyone is listening
+        if(getRoot() != null) {
+            TreePath rootPath = new TreePath(getRoot());
+            if(tree.isExpanded(rootPath)) load(rootPath);
+        }
+    }
+
+    public boolean isLeaf(Object node) {
+        return node instanceof Placeholder || isLeafNode(node);
+    }
+
+    public int getChildCount(Object parent) {
+        if(isLeaf(parent)) return 0;
+
+        List<?> loaded = children.get(parent);
+        if(loaded == null) return 1;
+        // The placeholder stays below the loaded children until they have been inserted
+        return loaded.size() + (placeholders.containsKey(parent) ? 1 : 0);
+    }
+
+    public Object getChild(Object parent, int index) {
+        List<?> loaded = children.get(parent);
+        if(loaded != null && index < loaded.size()) return loaded.get(index);
+        return (index == getChildCount(parent) - 1) ? placeholderFor(parent) : null;
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        if(parent == null || child == null) return -1;
+        if(child instanceof Placeholder) return (((Placeholder) child).parent.equals(parent)) ? getChildCount(parent) - 1 : -1;
+
+        List<?> loaded = children.get(parent);
+        return (loaded == null) ? -1 : loaded.indexOf(child);
+    }
+
+    /**
+     * Placeholders only have something to show in the tree column, they never get to getValueAt(Object, int)
+     */
+    @Override
+    protected Object getCachedValueAt(Object node, int column) {
+        if(node instanceof Placeholder) return (getColumnClass(column) == TreeTableModel.class) ? node : null;
+        return super.getCachedValueAt(node, column);
+    }
+
+    /**
+     * Only the values are prefetched, the children are loaded when a node is expanded and what has been loaded is
+     * only kept up to date on the EDT
+     */
+    @Override
+    protected void prefetch(Object node, int[] columns) {
+        if(!(node instanceof Placeholder)) prefetchValues(node, columns);
+    }
+
+    /**
+     * Placeholders can't be edited, but the tree column has to stay editable so that clicks reach the JTree
+     */
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        Object node = nodeForRow(row);
+        if(node instanceof Placeholder) return getColumnClass(column) == TreeTableModel.class;
+        return isCellEditable(node, column);
+    }
+
+    /**
+     * Placeholders have nothing to add to an aggregate
+     */
+    @Override
+    Object getAggregateSourceValue(Object node, int column) {
+        return (node instanceof Placeholder) ? null : getValueAt(node, column);
+    }
+
+    /**
+     * Returns the placeholder for parent, creating it if this is the first time it has been asked for
+     */
+    private Placeholder placeholderFor(Object parent) {
+        Placeholder placeholder = placeholders.get(parent);
+        if(placeholder == null) placeholders.put(parent, placeholder = new Placeholder(parent));
+        return placeholder;
+    }
+
+    /**
+     * Queues a load for the node at the end of path unless it is already loaded or loading
+     */
+    private void load(TreePath path) {
+        Object node = path.getLastPathComponent();
+        if(isLeaf(node) || children.containsKey(node) || loads.containsKey(node)) return;
+
+        // Retrying after a failure, show that it is loading again
+        Placeholder placeholder = placeholders.get(node);
+        if(placeholder != null && placeholder.error != null) {
+            placeholder.error = null;
+            fireNodesChanged(path, new int[] { 0 }, new Object[] { placeholder });
+        }
+
+        Load load = new Load(path);
+        loads.put(node, load);
+        pending.add(load);
+        startLoads();
+    }
+
+    /**
+     * Hands waiting loads to the executor until the limit is reached
+     */
+    private void startLoads() {
+        while(running < maxConcurrentLoads && !pending.isEmpty()) {
+            Load load = pending.poll();
+            running++;
+            load.future = executor.submit(load);
+        }
+    }
+
+    /**
+     * Cancels the loads for the node at the end of path and everything below it, they can no longer be seen
+     */
+    private void cancelLoads(TreePath path) {
+        Iterator<Load> iterator = loads.values().iterator();
+        while(iterator.hasNext()) {
+            Load load = iterator.next();
+            if(!path.isDescendant(load.path)) continue;
+
+            iterator.remove();
+            load.cancelled = true;
+            // A load that has been handed to the executor no longer counts towards the limit, its result will be ignored
+            if(!pending.remove(load)) {
+                load.future.cancel(true);
+                running--;
+            }
+        }
+        startLoads();
+    }
+
+    /**
+     * Called on the EDT when a load has finished. The new children are inserted above the placeholder and then
+     * the placeholder is removed, that way the node is never left without children and the JTree keeps it expanded.
+     */
+    private void loaded(Load load, List<?> result, Throwable error) {
+        if(load.cancelled) return;
+
+        Object node = load.path.getLastPathComponent();
+        loads.remove(node);
+        running--;
+        startLoads();
+
+        Placeholder placeholder = placeholderFor(node);
+        if(error != null) {
+            placeholder.error = error;
+            fireNodesChanged(load.path, new int[] { 0 }, new Object[] { placeholder });
+            return;
+        }
+
+        // Take a copy so later changes to the list by the loader don't leak into the model
+        List<Object> loaded = (result == null) ? new ArrayList<Object>() : new ArrayList<Object>(result);
+        children.put(node, loaded);
+        if(!loaded.isEmpty()) {
+            int[] childIndices = new int[loaded.size()];
+            for(int i = 0; i < childIndices.length; i++) childIndices[i] = i;
+            fireNodesInserted(load.path, childIndices, loaded.toArray());
+        }
+
+        placeholders.remove(node);
+        fireNodesRemoved(load.path, new int[] { loaded.size() }, new Object[] { placeholder });
+    }
+
+    /**
+     * The row shown under a node while its children are loading
+     */
+    private static class Placeholder {
+        // The node whose children are loading
+        Object parent;
+        // Set if the last load failed
+        Throwable error;
+
+        Placeholder(Object parent) {
+            this.parent = parent;
+        }
+
+        // The JTree uses this as the text of the row
+        public String toString() {
+            if(error == null) return "Loading...";
+            return "Failed to load: " + ((error.getMessage() != null) ? error.getMessage() : error.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Loads the children of one node. run() is called on the executor and hands the result back to the EDT.
+     */
+    private class Load implements Runnable {
+        // Path to the node being loaded
+        TreePath path;
+        // Only touched on the EDT
+        Future<?> future;
+        boolean cancelled;
+
+        Load(TreePath path) {
+            this.path = path;
+        }
+
+        public void run() {
+            List<?> result = null;
+            Throwable error = null;
+            try {
+                result = loadChildren(path.getLastPathComponent());
+            }
+            catch(Throwable t) {
+                error = t;
+            }
+
+            final List<?> finalResult = result;
+            final Throwable finalError = error;
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    loaded(Load.this, finalResult, finalError);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package TreeTable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least recently used cache of something per cell, the base of CellValueCache and RenderCache. It keeps
+ * the entries, drops the least recently used ones when there are too many and counts hits, misses and evictions.
+ *
+ * Entries are keyed by the node and the column. Nodes are compared with equals, like the JTree and the rest of the
+ * TreeTable do, so a model that hands out a new but equal handle for a node still hits and invalidates the same
+ * entries.
+ *
+ * The methods are synchronized so the statistics can be read from any thread, subclasses synchronize on the cache
+ * too.
+ */
+abstract class CellCache<V> {
+    // Maximum number of entries held
+    private int maxSize;
+    // Access ordered so the eldest entry is the least recently used
+    private LinkedHashMap<Key, V> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates an empty cache that holds up to maxSize entries
+     *
+     * @param maxSize - maximum number of entries, must be greater than 0
+     */
+    CellCache(int maxSize) {
+        entries = new LinkedHashMap<Key, V>(16, 0.75f, true) {
+            static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+                if(size() <= CellCache.this.maxSize) return false;
+                evictions++;
+                return true;
+            }
+        };
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the entry for column of node and makes it the most recently used, without counting a hit or a miss
+     *
+     * @param node - the node of the cell
+     * @param column - the column of the cell
+     * @return V - the entry or null if there isn't one
+     */
+    synchronized V get(Object node, int column) {
+        return entries.get(new Key(node, column));
+    }
+
+    /**
+     * Caches entry for column of node, dropping the least recently used entry if there are too many
+     */
+    synchronized void put(Object node, int column, V entry) {
+        entries.put(new Key(node, column), entry);
+    }
+
+    /**
+     * Drops the entry for column of node
+     */
+    synchronized void remove(Object node, int column) {
+        entries.remove(new Key(node, column));
+    }
+
+    /**
+     * Drops the entries for the columns 0 to columnCount - 1 of node
+     */
+    synchronized void removeNode(Object node, int columnCount) {
+        if(entries.isEmpty()) return;
+        for(int column = 0; column < columnCount; column++) entries.remove(new Key(node, column));
+    }
+
+    /**
+     * Returns true if there is an entry for column of node, without making it recently used
+     */
+    synchronized boolean containsEntry(Object node, int column) {
+        return entries.containsKey(new Key(node, column));
+    }
+
+    /**
+     * Counts a lookup that found what it was after
+     */
+    synchronized void hit() {
+        hits++;
+    }
+
+    /**
+     * Counts a lookup that didn't find what it was after
+     */
+    synchronized void miss() {
+        misses++;
+    }
+
+    /**
+     * Drops every entry
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Sets the maximum number of entries held, the least recently used ones are dropped if there are more than this
+     *
+     * @param maxSize - maximum number of entries, must be greater than 0
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if(maxSize <= 0) throw new IllegalArgumentException("maxSize must be greater than 0.");
+        this.maxSize = maxSize;
+
+        Iterator<Key> iterator = entries.keySet().iterator();
+        while(entries.size() > maxSize) {
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Returns the maximum number of entries held
+     *
+     * @return int - maximum number of entries
+     */
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of entries held
+     *
+     * @return int - number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups that found a cached entry
+     *
+     * @return long - number of hits
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to work the entry out again
+     *
+     * @return long - number of misses
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries that were dropped to make room, entries dropped because they changed aren't counted
+     *
+     * @return long - number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Sets the hit, miss and eviction counts back to 0
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * A node and a column
+     */
+    private static class Key {
+        Object node;
+        int column;
+
+        Key(Object node, int column) {
+            this.node = node;
+            this.column = column;
+        }
+
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return column == other.column && (node == other.node || (node != null && node.equals(other.node)));
+        }
+
+        public int hashCode() {
+            return ((node == null) ? 0 : node.hashCode()) * 31 + column;
+        }
+    }
+}
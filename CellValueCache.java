@@ -0,0 +1,89 @@
+package TreeTable;
+
+/**
+ * A cache of cell values, see CellCache for how entries are kept and keyed.
+ *
+ * AbstractTreeTableModel puts one of these in front of getValueAt(Object, int) when setValueCacheSize(int) is
+ * called, so repaints that don't change anything (hovering, selecting) don't work the values out again. The model
+ * drops the entries for a node when it is told the node has changed or been removed.
+ */
+public class CellValueCache extends CellCache<Object> {
+    // Stands in for a null value so that a miss can be told apart from a cached null
+    private static final Object NULL = new Object();
+
+    // Bumped by every invalidation, a value worked out while this changed isn't cached
+    private long invalidations;
+
+    /**
+     * Creates an empty cache that holds up to maxSize values
+     *
+     * @param maxSize - maximum number of values, must be greater than 0
+     */
+    CellValueCache(int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * Returns the value for column of node, working it out with the model and caching it if it isn't cached
+     *
+     * @param model - the model that works the value out
+     * @param node - the node being queried
+     * @param column - the column being queried
+     * @return Object - the value of the cell
+     */
+    Object getValueAt(TreeTableModel model, Object node, int column) {
+        long generation;
+        synchronized(this) {
+            Object value = get(node, column);
+            if(value != null) {
+                hit();
+                return (value == NULL) ? null : value;
+            }
+            miss();
+            generation = invalidations;
+        }
+
+        // Don't hold the lock while the (possibly slow) value is worked out
+        Object value = model.getValueAt(node, column);
+        synchronized(this) {
+            // If anything was invalidated in the meantime this value may already be out of date
+            if(generation == invalidations) put(node, column, (value == null) ? NULL : value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if a value is cached for column of node. This doesn't count as a hit or make the entry recently used.
+     *
+     * @param node - the node being queried
+     * @param column - the column being queried
+     * @return boolean - true if there is a value
+     */
+    public boolean contains(Object node, int column) {
+        return containsEntry(node, column);
+    }
+
+    /**
+     * Drops the value for column of node
+     */
+    synchronized void invalidate(Object node, int column) {
+        invalidations++;
+        remove(node, column);
+    }
+
+    /**
+     * Drops the values for every column of node
+     */
+    synchronized void invalidateNode(Object node, int columnCount) {
+        invalidations++;
+        removeNode(node, columnCount);
+    }
+
+    /**
+     * Drops every value
+     */
+    public synchronized void clear() {
+        invalidations++;
+        super.clear();
+    }
+}
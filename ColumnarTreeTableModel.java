@@ -0,0 +1,610 @@
+package TreeTable;
+
+import javax.swing.tree.TreePath;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TreeTableModel that keeps the whole tree in primitive arrays rather than an object per node, for big trees of
+ * mostly numeric data.
+ *
+ * Each node is an int id, given out in the order nodes are added. The hierarchy is held in flat int arrays: the
+ * parent, child count, index in the parent and start of the children of each node, with the children of every parent
+ * next to each other in one shared array. Each column is an array of its own: long[] for Long columns, double[] for
+ * Double columns, int[] for Integer columns and int[] codes into a dictionary for String columns (and the tree
+ * column), adding 4 or 8 bytes per column. A million nodes under random parents with just the tree column measured
+ * 29 bytes per node as they were added and 24 after trimToSize(), the same whether or not every node had been shown.
+ * Nothing is boxed until getValueAt(Object, int) is called, renderers can use getLong, getDouble, getInt and
+ * getString to avoid even that. Children are only ever added at the end so finding a child by index, the index of a
+ * child and adding a child all take the same time however many children the parent has.
+ *
+ * The JTree needs an object for each node so the model hands out Node handles, small objects that just wrap the id.
+ * A handle is made whenever a node is asked for and isn't kept, handles for the same node are equal.
+ *
+ * Nodes can only be added, with addNode(int) or appendNode(int), and values can be changed with the set methods followed by
+ * cellsChanged(int, int...) for the columns that were set, or nodeChanged(int) to repaint the whole node. Nodes can be
+ * added while the model is shown but not during beginUpdate()/endUpdate(). The model
+ * keeps no state between reads so it can be read from other threads, like those of the search index and the
+ * filtered model, as long as it isn't being changed at the same time.
+ */
+public class ColumnarTreeTableModel extends AbstractTreeTableModel {
+    // Set the version ID for serialized objects
+    static final long serialVersionUID = 1L;
+
+    // Id used for "no node"
+    public static final int NO_NODE = -1;
+
+    private String[] columnNames;
+    private Class<?>[] columnTypes;
+
+    // Hierarchy, indexed by node id. The childCounts children of a parent are in childIds from childStarts
+    private int[] parents;
+    private int[] childCounts;
+    private int[] childIndices;
+    private int[] childStarts;
+    private int size;
+    // The children of every parent, a block per parent. A block has room for the next power of two children (at
+    // least 2) and is moved to the end when it is full, apart from the blocks before packedEnd which trimToSize()
+    // packed with no room to spare.
+    private int[] childIds;
+    private int childIdCount;
+    private int packedEnd;
+
+    // One array per column: long[], double[] or int[] (Integer columns and the dictionary codes of String columns)
+    private Object[] columns;
+    // Dictionary for each String column (and the tree column), null for the others
+    private StringDictionary[] dictionaries;
+
+    /**
+     * Creates an empty model with room for 1024 nodes
+     *
+     * @param columnNames - the names of the columns
+     * @param columnTypes - the type of each column, one must be TreeTableModel.class (the labels in the tree) and the rest Long, Double, Integer or String
+     */
+    public ColumnarTreeTableModel(String[] columnNames, Class<?>[] columnTypes) {
+        this(columnNames, columnTypes, 1024);
+    }
+
+    /**
+     * Creates an empty model with room for capacity nodes before the arrays have to grow
+     *
+     * @param columnNames - the names of the columns
+     * @param columnTypes - the type of each column, one must be TreeTableModel.class (the labels in the tree) and the rest Long, Double, Integer or String
+     * @param capacity - the number of nodes to make room for
+     */
+    public ColumnarTreeTableModel(String[] columnNames, Class<?>[] columnTypes, int capacity) {
+        if(columnNames.length != columnTypes.length) throw new IllegalArgumentException("There must be a type for each column.");
+        if(capacity < 1) throw new IllegalArgumentException("capacity must be greater than 0.");
+
+        this.columnNames = columnNames.clone();
+        this.columnTypes = columnTypes.clone();
+        columns = new Object[columnTypes.length];
+        dictionaries = new StringDictionary[columnTypes.length];
+
+        int treeColumns = 0;
+        for(int column = 0; column < columnTypes.length; column++) {
+            Class<?> type = columnTypes[column];
+            if(type == Long.class) columns[column] = new long[capacity];
+            else if(type == Double.class) columns[column] = new double[capacity];
+            else if(type == Integer.class) columns[column] = new int[capacity];
+            else if(type == String.class || type == TreeTableModel.class) {
+                columns[column] = new int[capacity];
+                dictionaries[column] = new StringDictionary();
+                if(type == TreeTableModel.class) treeColumns++;
+            }
+            else throw new IllegalArgumentException("Column " + column + " has an unsupported type " + type.getName() + ".");
+        }
+        if(treeColumns != 1) throw new IllegalArgumentException("Exactly one column must be of type TreeTableModel.");
+
+        parents = new int[capacity];
+        childCounts = new int[capacity];
+        childIndices = new int[capacity];
+        childStarts = new int[capacity];
+        childIds = new int[capacity];
+    }
+
+    /**
+     * Adds a node as the last child of parent. Its values start as 0 or null, set them before the node is shown
+     * or call nodeChanged(int) afterwards.
+     *
+     * @param parent - id of the parent or NO_NODE to add the root, which must be the first node added
+     * @return int - id of the new node
+     */
+    public int addNode(int parent) {
+        int node = appendNode(parent);
+        nodesAppended(node);
+        return node;
+    }
+
+    /**
+     * Adds a node as the last child of parent without notifying the TreeTable. Use this to add a lot of nodes at
+     * once and then call nodesAppended(int) with the id of the first one, which is far cheaper than an event per node.
+     *
+     * @param parent - id of the parent or NO_NODE to add the root, which must be the first node added
+     * @return int - id of the new node
+     */
+    public int appendNode(int parent) {
+        if(parent == NO_NODE && size > 0) throw new IllegalArgumentException("The model already has a root.");
+        if(parent != NO_NODE && (parent < 0 || parent >= size)) throw new IllegalArgumentException("No such parent " + parent + ".");
+
+        int node = size;
+        if(node == parents.length) grow(node * 2);
+        size++;
+
+        parents[node] = parent;
+        childCounts[node] = 0;
+        childIndices[node] = 0;
+        for(int column = 0; column < columns.length; column++) {
+            if(dictionaries[column] != null) ((int[]) columns[column])[node] = StringDictionary.NULL;
+        }
+        if(parent == NO_NODE) return node;
+
+        // Add it to the end of the children of the parent, moving them to a block twice as big when they are full
+        int index = childCounts[parent];
+        boolean full = (childStarts[parent] < packedEnd) || (index >= 2 && (index & (index - 1)) == 0);
+        if(index == 0 || full) moveChildren(parent, Math.max(2, index * 2));
+        childIds[childStarts[parent] + index] = node;
+        childIndices[node] = index;
+        childCounts[parent]++;
+        return node;
+    }
+
+    /**
+     * Notifies the TreeTable of the nodes added with appendNode(int) from firstNode onwards. New nodes under
+     * parents that were already there are reported with one event per parent, the nodes under those come with them.
+     *
+     * @param firstNode - id of the first node added since the TreeTable was last told
+     */
+    public void nodesAppended(int firstNode) {
+        if(firstNode < 0 || firstNode > size) throw new IllegalArgumentException("No such node " + firstNode + ".");
+        if(firstNode == size) return;
+        // A new root means everything is new
+        if(firstNode == 0) {
+            fireNodeStructureChanged(getPath(0));
+            return;
+        }
+
+        // Group the new nodes whose parents were already there by parent, they are always the last children
+        Map<Integer, List<Integer>> added = new LinkedHashMap<Integer, List<Integer>>();
+        for(int node = firstNode; node < size; node++) {
+            if(parents[node] >= firstNode) continue;
+            List<Integer> children = added.get(parents[node]);
+            if(children == null) added.put(parents[node], children = new ArrayList<Integer>());
+            children.add(node);
+        }
+
+        for(Map.Entry<Integer, List<Integer>> entry : added.entrySet()) {
+            int parent = entry.getKey();
+            List<Integer> children = entry.getValue();
+            int[] indices = new int[children.size()];
+            Object[] nodes = new Object[children.size()];
+            int first = childCounts[parent] - children.size();
+            for(int i = 0; i < indices.length; i++) {
+                indices[i] = first + i;
+                nodes[i] = handle(children.get(i));
+            }
+            fireNodesInserted(getPath(parent), indices, nodes);
+        }
+    }
+
+    /**
+     * Notifies the TreeTable that the values of node have been changed with the set methods. Every column of the node
+     * is worked out again and the JTree measures it again, use cellsChanged(int, int...) if only some columns were set.
+     *
+     * @param node - id of the node
+     */
+    public void nodeChanged(int node) {
+        checkNode(node);
+        if(parents[node] == NO_NODE) fireNodesChanged(getPath(node), null, null);
+        else fireNodesChanged(getPath(parents[node]), new int[] { childIndices[node] }, new Object[] { handle(node) });
+    }
+
+    /**
+     * Notifies the TreeTable that the values of some columns of node have been changed with the set methods. Only
+     * those cells are repainted and unless the tree column is one of them the JTree doesn't measure the node again.
+     *
+     * @param node - id of the node
+     * @param columns - the columns that were set
+     */
+    public void cellsChanged(int node, int... columns) {
+        checkNode(node);
+        fireCellsChanged(getPath(node), columns);
+    }
+
+    /**
+     * Returns the number of nodes in the tree
+     *
+     * @return int - number of nodes
+     */
+    public int getNodeCount() {
+        return size;
+    }
+
+    /**
+     * Shrinks the arrays to the number of nodes in the tree, to give back the memory left over after adding them all
+     */
+    public void trimToSize() {
+        grow(Math.max(size, 1));
+
+        // Pack the children of each parent one after the other, the root is the only node that isn't a child
+        int[] packed = new int[Math.max(size - 1, 1)];
+        int end = 0;
+        for(int node = 0; node < size; node++) {
+            int count = childCounts[node];
+            if(count == 0) continue;
+            System.arraycopy(childIds, childStarts[node], packed, end, count);
+            childStarts[node] = end;
+            end += count;
+        }
+        childIds = packed;
+        childIdCount = end;
+        packedEnd = end;
+    }
+
+    /**
+     * Returns the id of the node a handle from this model stands for
+     *
+     * @param node - a node handle from this model
+     * @return int - the id of the node
+     */
+    public int getNodeId(Object node) {
+        if(!(node instanceof Node) || ((Node) node).model != this) throw new IllegalArgumentException("Not a node of this model.");
+        return ((Node) node).id;
+    }
+
+    /**
+     * Returns a handle for the node with id node, for use with the TreeModel methods and the TreeTable
+     *
+     * @param node - id of the node
+     * @return Object - a handle for the node
+     */
+    public Object getNode(int node) {
+        checkNode(node);
+        return handle(node);
+    }
+
+    /**
+     * Returns the id of the parent of node
+     *
+     * @param node - id of the node
+     * @return int - id of the parent or NO_NODE for the root
+     */
+    public int getParent(int node) {
+        checkNode(node);
+        return parents[node];
+    }
+
+    /**
+     * Returns the path from the root to node
+     *
+     * @param node - id of the node
+     * @return TreePath - path of node handles
+     */
+    public TreePath getPath(int node) {
+        checkNode(node);
+        int depth = 0;
+        for(int next = node; next != NO_NODE; next = parents[next]) depth++;
+
+        Object[] path = new Object[depth];
+        for(int next = node; next != NO_NODE; next = parents[next]) path[--depth] = handle(next);
+        return new TreePath(path);
+    }
+
+    /**
+     * Returns the value of a Long column for the node in row without boxing it
+     *
+     * @param row - the row in the view being queried
+     * @param column - a Long column
+     * @return long - the value
+     */
+    public long getLong(int row, int column) {
+        return getLong(rowNode(row), column);
+    }
+
+    /**
+     * Returns the value of a Long column for node without boxing it
+     *
+     * @param node - a node handle from this model
+     * @param column - a Long column
+     * @return long - the value
+     */
+    public long getLong(Node node, int column) {
+        return ((long[]) typedColumn(column, Long.class))[node.id];
+    }
+
+    /**
+     * Returns the value of a Double column for the node in row without boxing it
+     *
+     * @param row - the row in the view being queried
+     * @param column - a Double column
+     * @return double - the value
+     */
+    public double getDouble(int row, int column) {
+        return getDouble(rowNode(row), column);
+    }
+
+    /**
+     * Returns the value of a Double column for node without boxing it
+     *
+     * @param node - a node handle from this model
+     * @param column - a Double column
+     * @return double - the value
+     */
+    public double getDouble(Node node, int column) {
+        return ((double[]) typedColumn(column, Double.class))[node.id];
+    }
+
+    /**
+     * Returns the value of an Integer column for the node in row without boxing it
+     *
+     * @param row - the row in the view being queried
+     * @param column - an Integer column
+     * @return int - the value
+     */
+    public int getInt(int row, int column) {
+        return getInt(rowNode(row), column);
+    }
+
+    /**
+     * Returns the value of an Integer column for node without boxing it
+     *
+     * @param node - a node handle from this model
+     * @param column - an Integer column
+     * @return int - the value
+     */
+    public int getInt(Node node, int column) {
+        return ((int[]) typedColumn(column, Integer.class))[node.id];
+    }
+
+    /**
+     * Returns the value of a String column, or the label of the tree column, for the node in row
+     *
+     * @param row - the row in the view being queried
+     * @param column - a String column or the tree column
+     * @return String - the value, which may be null
+     */
+    public String getString(int row, int column) {
+        return getString(rowNode(row), column);
+    }
+
+    /**
+     * Returns the value of a String column, or the label of the tree column, for node
+     *
+     * @param node - a node handle from this model
+     * @param column - a String column or the tree column
+     * @return String - the value, which may be null
+     */
+    public String getString(Node node, int column) {
+        return stringAt(node.id, column);
+    }
+
+    /**
+     * Sets the value of a Long column for node
+     *
+     * @param node - id of the node
+     * @param column - a Long column
+     * @param value - the new value
+     */
+    public void setLong(int node, int column, long value) {
+        checkNode(node);
+        ((long[]) typedColumn(column, Long.class))[node] = value;
+    }
+
+    /**
+     * Sets the value of a Double column for node
+     *
+     * @param node - id of the node
+     * @param column - a Double column
+     * @param value - the new value
+     */
+    public void setDouble(int node, int column, double value) {
+        checkNode(node);
+        ((double[]) typedColumn(column, Double.class))[node] = value;
+    }
+
+    /**
+     * Sets the value of an Integer column for node
+     *
+     * @param node - id of the node
+     * @param column - an Integer column
+     * @param value - the new value
+     */
+    public void setInt(int node, int column, int value) {
+        checkNode(node);
+        ((int[]) typedColumn(column, Integer.class))[node] = value;
+    }
+
+    /**
+     * Sets the value of a String column, or the label of the tree column, for node. Equal strings are only stored once per column.
+     *
+     * @param node - id of the node
+     * @param column - a String column or the tree column
+     * @param value - the new value, may be null
+     */
+    public void setString(int node, int column, String value) {
+        checkNode(node);
+        if(dictionaries[column] == null) throw new IllegalArgumentException("Column " + column + " is not a String column.");
+        ((int[]) columns[column])[node] = dictionaries[column].encode(value);
+    }
+
+    public Object getRoot() {
+        return (size == 0) ? null : handle(0);
+    }
+
+    public boolean isLeaf(Object node) {
+        return childCounts[getNodeId(node)] == 0;
+    }
+
+    public int getChildCount(Object parent) {
+        return childCounts[getNodeId(parent)];
+    }
+
+    public Object getChild(Object parent, int index) {
+        int parentId = getNodeId(parent);
+        if(index < 0 || index >= childCounts[parentId]) return null;
+        return handle(childIds[childStarts[parentId] + index]);
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        if(!(parent instanceof Node) || !(child instanceof Node)) return -1;
+        int childId = getNodeId(child);
+        if(parents[childId] != getNodeId(parent)) return -1;
+        return childIndices[childId];
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    public Class<?> getColumnClass(int column) {
+        return columnTypes[column];
+    }
+
+    /**
+     * Returns the value of column for node, boxed. The tree column returns the node handle itself, whose toString is its label.
+     */
+    public Object getValueAt(Object node, int column) {
+        int id = getNodeId(node);
+        Object values = columns[column];
+        if(columnTypes[column] == TreeTableModel.class) return node;
+        if(dictionaries[column] != null) return stringAt(id, column);
+        if(values instanceof long[]) return ((long[]) values)[id];
+        if(values instanceof double[]) return ((double[]) values)[id];
+        return ((int[]) values)[id];
+    }
+
+    /**
+     * The values are set through the set methods rather than edited in the table
+     */
+    public boolean isCellEditable(Object node, int column) {
+        return columnTypes[column] == TreeTableModel.class;
+    }
+
+    /**
+     * Returns a handle for node
+     */
+    private Node handle(int node) {
+        return new Node(this, node);
+    }
+
+    /**
+     * Moves the children of parent to a new block of capacity at the end of childIds
+     */
+    private void moveChildren(int parent, int capacity) {
+        if(childIdCount + capacity > childIds.length) childIds = Arrays.copyOf(childIds, Math.max(childIdCount + capacity, childIds.length + (childIds.length >> 1)));
+        System.arraycopy(childIds, childStarts[parent], childIds, childIdCount, childCounts[parent]);
+        childStarts[parent] = childIdCount;
+        childIdCount += capacity;
+    }
+
+    private String stringAt(int node, int column) {
+        if(dictionaries[column] == null) throw new IllegalArgumentException("Column " + column + " is not a String column.");
+        return dictionaries[column].decode(((int[]) columns[column])[node]);
+    }
+
+    private Node rowNode(int row) {
+        Node node = (Node) nodeForRow(row);
+        if(node == null) throw new IllegalArgumentException("No such row " + row + ".");
+        return node;
+    }
+
+    private Object typedColumn(int column, Class<?> type) {
+        if(columnTypes[column] != type) throw new IllegalArgumentException("Column " + column + " is not a " + type.getSimpleName() + " column.");
+        return columns[column];
+    }
+
+    private void checkNode(int node) {
+        if(node < 0 || node >= size) throw new IllegalArgumentException("No such node " + node + ".");
+    }
+
+    /**
+     * Resizes every array to capacity
+     */
+    private void grow(int capacity) {
+        parents = Arrays.copyOf(parents, capacity);
+        childCounts = Arrays.copyOf(childCounts, capacity);
+        childIndices = Arrays.copyOf(childIndices, capacity);
+        childStarts = Arrays.copyOf(childStarts, capacity);
+        for(int column = 0; column < columns.length; column++) {
+            Object values = columns[column];
+            if(values instanceof long[]) columns[column] = Arrays.copyOf((long[]) values, capacity);
+            else if(values instanceof double[]) columns[column] = Arrays.copyOf((double[]) values, capacity);
+            else columns[column] = Arrays.copyOf((int[]) values, capacity);
+        }
+    }
+
+    /**
+     * A handle for a node of a ColumnarTreeTableModel. A new one is made each time a node is asked for, handles
+     * for the same node of the same model are equal.
+     */
+    public static final class Node {
+        private final ColumnarTreeTableModel model;
+        private final int id;
+
+        Node(ColumnarTreeTableModel model, int id) {
+            this.model = model;
+            this.id = id;
+        }
+
+        /**
+         * Returns the id of the node
+         *
+         * @return int - the node id
+         */
+        public int getId() {
+            return id;
+        }
+
+        public boolean equals(Object o) {
+            if(!(o instanceof Node)) return false;
+            Node other = (Node) o;
+            return id == other.id && model == other.model;
+        }
+
+        public int hashCode() {
+            return id;
+        }
+
+        // The JTree uses this as the text of the row
+        public String toString() {
+            for(int column = 0; column < model.columnTypes.length; column++) {
+                if(model.columnTypes[column] == TreeTableModel.class) return String.valueOf(model.stringAt(id, column));
+            }
+            return String.valueOf(id);
+        }
+    }
+
+    /**
+     * The distinct strings of a column, each node stores the code of its string
+     */
+    private static class StringDictionary {
+        static final int NULL = -1;
+
+        private List<String> strings = new ArrayList<String>();
+        private Map<String, Integer> codes = new HashMap<String, Integer>();
+
+        int encode(String value) {
+            if(value == null) return NULL;
+
+            Integer code = codes.get(value);
+            if(code == null) {
+                code = strings.size();
+                strings.add(value);
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return (code == NULL) ? null : strings.get(code);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package TreeTable;
+
+import javax.swing.tree.TreePath;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A general purpose TreeTableNode holding a user object, like DefaultMutableTreeNode but with the lookups the
+ * model does on every change made cheap for nodes with a lot of children.
+ *
+ * Each node remembers its index in its parent so getIndex(TreeTableNode) doesn't have to search the siblings.
+ * Inserting or removing a child only marks the indices after it as out of date, they are renumbered in one pass
+ * the next time one of them is asked for, so appending children or changing them one at a time stays O(1).
+ *
+ * Each node also keeps the TreePath to it, built on the TreePath of its parent, so AbstractTreeTableModel can
+ * send events without rebuilding the path from the root every time. TreePaths are immutable, the cached path is
+ * only used while it still ends with the parent's current path.
+ *
+ * The children of a DefaultTreeTableNode must be DefaultTreeTableNodes too.
+ */
+public class DefaultTreeTableNode implements TreeTableNode {
+    private Object userObject;
+    private DefaultTreeTableNode parent;
+    private List<DefaultTreeTableNode> children;
+
+    // Index of this node in its parent, only right if it is below the parent's firstStaleIndex
+    private int index = -1;
+    // Children from this index on may have the wrong index
+    private int firstStaleIndex;
+    // Path from the root to this node, rebuilt when it no longer matches the parent's path
+    private TreePath path;
+
+    /**
+     * Creates a node with no user object
+     */
+    public DefaultTreeTableNode() {
+        this(null);
+    }
+
+    /**
+     * Creates a node holding userObject
+     *
+     * @param userObject - the object the node represents
+     */
+    public DefaultTreeTableNode(Object userObject) {
+        this.userObject = userObject;
+    }
+
+    /**
+     * Returns the object the node represents
+     *
+     * @return Object - the user object
+     */
+    public Object getUserObject() {
+        return userObject;
+    }
+
+    /**
+     * Sets the object the node represents. Tell the model with nodeChanged(TreeTableNode) afterwards.
+     *
+     * @param userObject - the user object
+     */
+    public void setUserObject(Object userObject) {
+        this.userObject = userObject;
+    }
+
+    public TreeTableNode getChildAt(int position) {
+        if(children == null) throw new ArrayIndexOutOfBoundsException("Node has no children.");
+        return children.get(position);
+    }
+
+    public TreeTableNode getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the number of children of this node
+     *
+     * @return int - number of children
+     */
+    public int getChildCount() {
+        return (children == null) ? 0 : children.size();
+    }
+
+    /**
+     * Returns true if this node has no children
+     *
+     * @return boolean - true if this node is a leaf
+     */
+    public boolean isLeaf() {
+        return getChildCount() == 0;
+    }
+
+    /**
+     * Inserts newChild at position, removing it from its old parent first if it has one
+     */
+    public void insert(TreeTableNode newChild, int position) {
+        if(!(newChild instanceof DefaultTreeTableNode)) throw new IllegalArgumentException("Children must be DefaultTreeTableNodes.");
+        for(TreeTableNode ancestor = this; ancestor != null; ancestor = ancestor.getParent()) {
+            if(ancestor == newChild) throw new IllegalArgumentException("A node can't be inserted into itself or its descendants.");
+        }
+
+        DefaultTreeTableNode child = (DefaultTreeTableNode) newChild;
+        // Moving a child within this node leaves one less place to put it
+        int places = (child.parent == this) ? getChildCount() - 1 : getChildCount();
+        if(position < 0 || position > places) throw new ArrayIndexOutOfBoundsException("No position " + position + ".");
+        if(child.parent != null) child.parent.remove(child.parent.getIndex(child));
+        if(children == null) children = new ArrayList<DefaultTreeTableNode>();
+
+        children.add(position, child);
+        child.parent = this;
+        child.path = null;
+        // Appending to up to date children keeps them up to date, otherwise the ones after the new child have moved
+        if(position == firstStaleIndex && position == children.size() - 1) {
+            child.index = position;
+            firstStaleIndex++;
+        }
+        else firstStaleIndex = Math.min(firstStaleIndex, position);
+    }
+
+    /**
+     * Adds newChild as the last child of this node
+     *
+     * @param newChild - the child to add
+     */
+    public void add(TreeTableNode newChild) {
+        // Adding a child of this node again moves it to the end
+        insert(newChild, (newChild.getParent() == this) ? getChildCount() - 1 : getChildCount());
+    }
+
+    public void remove(int position) {
+        if(children == null) throw new ArrayIndexOutOfBoundsException("Node has no children.");
+        DefaultTreeTableNode child = children.remove(position);
+        child.parent = null;
+        child.index = -1;
+        child.path = null;
+        firstStaleIndex = Math.min(firstStaleIndex, position);
+    }
+
+    /**
+     * Returns the index of node among the children of this node, or -1 if it isn't one of them. This doesn't
+     * search the children unless they have been moved by an insert or remove since they were last numbered.
+     */
+    public int getIndex(TreeTableNode node) {
+        if(!(node instanceof DefaultTreeTableNode) || ((DefaultTreeTableNode) node).parent != this) return -1;
+
+        DefaultTreeTableNode child = (DefaultTreeTableNode) node;
+        if(child.index < 0 || child.index >= firstStaleIndex) {
+            // Renumber everything that has moved in one go
+            for(int i = firstStaleIndex; i < children.size(); i++) children.get(i).index = i;
+            firstStaleIndex = children.size();
+        }
+        return child.index;
+    }
+
+    /**
+     * Returns the path from the top of the tree this node is in down to this node. The path is kept and only
+     * rebuilt once the node or one of its ancestors has moved.
+     *
+     * @return TreePath - the path to this node
+     */
+    public TreePath getTreePath() {
+        TreePath parentPath = (parent == null) ? null : parent.getTreePath();
+        if(path == null || path.getParentPath() != parentPath) {
+            path = (parentPath == null) ? new TreePath(this) : parentPath.pathByAddingChild(this);
+        }
+        return path;
+    }
+
+    /**
+     * Returns toString() of the user object, the JTree shows this as the label of the node
+     */
+    public String toString() {
+        return (userObject == null) ? "" : userObject.toString();
+    }
+}
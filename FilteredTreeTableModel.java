@@ -0,0 +1,546 @@
+package TreeTable;
+
+import javax.swing.JTree;
+import javax.swing.tree.TreePath;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Shows the nodes of another TreeTableModel that match a filter, along with all of their ancestors so that
+ * the matches can be reached. Give this model to the TreeTable and keep making changes through the source model,
+ * the events from the source are translated into events for the filtered tree.
+ *
+ * Setting a filter evaluates it over the whole source tree, not just the visible rows, in parallel on a
+ * ForkJoinPool. Each subtree is filtered on its own and the kept children of each node are stored, so after that
+ * getChildCount and getChild are just array lookups. Along with each kept child goes the index it has in the source,
+ * so finding a kept child or where a new one goes is a binary search, and the indices are moved along as the source
+ * inserts and removes children. When a node in the source changes only that node is tested again and only the
+ * ancestors whose kept state flips are touched on the way up.
+ *
+ * While the filter is being evaluated the EDT waits for it, so the source model is not changed at the same time,
+ * but the source's getChildCount, getChild, isLeaf and anything the filter calls (typically getValueAt) are called
+ * from several threads at once and must be safe to read concurrently.
+ */
+public class FilteredTreeTableModel extends AbstractTreeTableModel {
+    // Set the version ID for serialized objects
+    static final long serialVersionUID = 1L;
+
+    // Ranges of children at least this long are split between the threads of the pool
+    private static final int MIN_SPLIT = 16;
+
+    // The model being filtered
+    private TreeTableModel source;
+    // The filter, null when everything is shown
+    private Predicate<Object> filter;
+    // Evaluates the filter over the tree
+    private ForkJoinPool pool;
+
+    // Kept children of each node that has any, in the order they appear in the source
+    private Map<Object, KeptChildren> children = new ConcurrentHashMap<Object, KeptChildren>();
+    // Nodes that match the filter themselves rather than just being the ancestor of a match
+    private Set<Object> matches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a model showing all of source, until setFilter is called it is the same as the source.
+     * The filter is evaluated on the common ForkJoinPool.
+     *
+     * @param source - the model to filter
+     */
+    public FilteredTreeTableModel(TreeTableModel source) {
+        this(source, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a model showing all of source that evaluates its filters on pool
+     *
+     * @param source - the model to filter
+     * @param pool - the pool to evaluate the filter on
+     */
+    public FilteredTreeTableModel(TreeTableModel source, ForkJoinPool pool) {
+        this.source = source;
+        this.pool = pool;
+        source.addTreeModelListener(new SourceListener());
+    }
+
+    /**
+     * Returns the model being filtered
+     *
+     * @return TreeTableModel - the source model
+     */
+    public TreeTableModel getSource() {
+        return source;
+    }
+
+    /**
+     * Sets the filter. Every node for which the filter returns true is shown along with its ancestors, the rest
+     * are hidden. Nodes that are still shown and were expanded before stay expanded.
+     *
+     * @param filter - the filter to apply or null to show everything
+     */
+    public void setFilter(Predicate<Object> filter) {
+        this.filter = filter;
+        children.clear();
+        matches.clear();
+        if(filter != null && source.getRoot() != null) pool.invoke(new FilterTask(source.getRoot()));
+
+        Object root = getRoot();
+        if(root == null) return;
+
+        // The structure change collapses everything, remember what was open so it can be put back
+        JTree tree = getTree();
+        TreePath rootPath = new TreePath(root);
+        List<TreePath> expanded = new ArrayList<TreePath>();
+        if(tree != null) {
+            Enumeration<TreePath> paths = tree.getExpandedDescendants(rootPath);
+            if(paths != null) expanded = Collections.list(paths);
+        }
+
+        fireNodeStructureChanged(rootPath);
+
+        // Parents have to be expanded before their children
+        Collections.sort(expanded, new Comparator<TreePath>() {
+            public int compare(TreePath p1, TreePath p2) {
+                return p1.getPathCount() - p2.getPathCount();
+            }
+        });
+        for(TreePath path : expanded) {
+            if(isShown(path) && !isLeaf(path.getLastPathComponent())) tree.expandPath(path);
+        }
+    }
+
+    /**
+     * Returns the filter
+     *
+     * @return Predicate - the filter or null if everything is shown
+     */
+    public Predicate<Object> getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns true if node is shown because it matches the filter, false if it is only shown because one of its descendants does
+     *
+     * @param node - a node in the tree
+     * @return boolean - true if node matches the filter or there is no filter
+     */
+    public boolean isMatch(Object node) {
+        return filter == null || matches.contains(node);
+    }
+
+    public Object getRoot() {
+        return source.getRoot();
+    }
+
+    public boolean isLeaf(Object node) {
+        if(filter == null) return source.isLeaf(node);
+        return source.isLeaf(node) || !children.containsKey(node);
+    }
+
+    public int getChildCount(Object parent) {
+        if(filter == null) return source.getChildCount(parent);
+
+        KeptChildren kept = children.get(parent);
+        return (kept == null) ? 0 : kept.nodes.length;
+    }
+
+    public Object getChild(Object parent, int index) {
+        if(filter == null) return source.getChild(parent, index);
+
+        KeptChildren kept = children.get(parent);
+        return (kept == null || index < 0 || index >= kept.nodes.length) ? null : kept.nodes[index];
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        if(filter == null) return source.getIndexOfChild(parent, child);
+
+        KeptChildren kept = children.get(parent);
+        return (kept == null || child == null) ? -1 : kept.indexOf(child, source.getIndexOfChild(parent, child));
+    }
+
+    public int getColumnCount() {
+        return source.getColumnCount();
+    }
+
+    public String getColumnName(int columnIndex) {
+        return source.getColumnName(columnIndex);
+    }
+
+    public Class<?> getColumnClass(int columnIndex) {
+        return source.getColumnClass(columnIndex);
+    }
+
+    public Object getValueAt(Object node, int columnIndex) {
+        return source.getValueAt(node, columnIndex);
+    }
+
+    public boolean isCellEditable(Object node, int columnIndex) {
+        return source.isCellEditable(node, columnIndex);
+    }
+
+    /**
+     * Returns true if every node in path is shown
+     */
+    private boolean isShown(TreePath path) {
+        Object[] nodes = path.getPath();
+        if(!nodes[0].equals(getRoot())) return false;
+        for(int i = 1; i < nodes.length; i++) if(getIndexOfChild(nodes[i - 1], nodes[i]) < 0) return false;
+        return true;
+    }
+
+    /**
+     * Filters the subtree under node on the calling thread, splitting long lists of children off to the pool
+     *
+     * @return boolean - true if node is kept, because it matches or something underneath it does
+     */
+    private boolean filterSubtree(Object node) {
+        int count = source.isLeaf(node) ? 0 : source.getChildCount(node);
+        boolean[] kept = new boolean[count];
+
+        if(count >= MIN_SPLIT && ForkJoinTask.inForkJoinPool()) new RangeTask(node, 0, count, kept).invoke();
+        else for(int i = 0; i < count; i++) kept[i] = filterSubtree(source.getChild(node, i));
+
+        int keptCount = 0;
+        for(boolean k : kept) if(k) keptCount++;
+        if(keptCount > 0) {
+            Object[] keptChildren = new Object[keptCount];
+            int[] sourceIndices = new int[keptCount];
+            for(int i = 0, j = 0; i < count; i++) {
+                if(!kept[i]) continue;
+                keptChildren[j] = source.getChild(node, i);
+                sourceIndices[j++] = i;
+            }
+            children.put(node, new KeptChildren(keptChildren, sourceIndices));
+        }
+
+        boolean match = filter.test(node);
+        if(match) matches.add(node);
+        return match || keptCount > 0;
+    }
+
+    /**
+     * Forgets the kept children and matches for node and everything underneath it
+     */
+    private void forgetSubtree(Object node) {
+        List<Object> stack = new ArrayList<Object>();
+        stack.add(node);
+        while(!stack.isEmpty()) {
+            Object next = stack.remove(stack.size() - 1);
+            matches.remove(next);
+            KeptChildren kept = children.remove(next);
+            if(kept != null) stack.addAll(Arrays.asList(kept.nodes));
+        }
+    }
+
+    /**
+     * Returns true if the last node in path is currently shown, its parent is assumed to be
+     */
+    private boolean isKept(TreePath path) {
+        TreePath parentPath = path.getParentPath();
+        if(parentPath == null) return true;
+        return getIndexOfChild(parentPath.getLastPathComponent(), path.getLastPathComponent()) >= 0;
+    }
+
+    /**
+     * Returns true if the child at sourceIndex in the source is one of the kept children of parent
+     */
+    private boolean isKept(Object parent, int sourceIndex) {
+        KeptChildren kept = children.get(parent);
+        return kept != null && kept.find(sourceIndex) >= 0;
+    }
+
+    /**
+     * Returns true if node should be shown going by its own match and its kept children
+     */
+    private boolean shouldKeep(Object node) {
+        return node.equals(getRoot()) || matches.contains(node) || children.containsKey(node);
+    }
+
+    /**
+     * Adds child to or removes it from the kept children of the last node in parentPath. If that changes whether
+     * the parent is kept the parent is added to or removed from its own parent and so on up the tree. The event
+     * is fired at the highest level that was already shown.
+     *
+     * @param parentPath - path to the parent of child
+     * @param child - the child whose kept state has changed
+     * @param sourceIndex - the index child has in the source, or had if it has been removed from the source
+     * @param keep - true if child is now kept
+     * @param removed - true if child has been removed from the source, the kept children after it move up one
+     */
+    private void setKept(TreePath parentPath, Object child, int sourceIndex, boolean keep, boolean removed) {
+        Object parent = parentPath.getLastPathComponent();
+        boolean parentWasKept = isKept(parentPath);
+        KeptChildren oldKept = children.get(parent);
+        int index;
+
+        if(keep) {
+            // The kept children are in source order, the child goes where a binary search for it ends up
+            index = (oldKept == null) ? 0 : -oldKept.find(sourceIndex) - 1;
+            if(index < 0) return;
+            children.put(parent, (oldKept == null) ? new KeptChildren(new Object[] { child }, new int[] { sourceIndex }) : oldKept.with(index, child, sourceIndex));
+        }
+        else {
+            index = (oldKept == null) ? -1 : oldKept.find(sourceIndex);
+            if(index < 0) return;
+
+            if(oldKept.nodes.length == 1) children.remove(parent);
+            else children.put(parent, oldKept.without(index, removed ? -1 : 0));
+        }
+
+        boolean parentKept = shouldKeep(parent);
+        if(parentWasKept && parentKept) {
+            if(keep) fireNodesInserted(parentPath, new int[] { index }, new Object[] { child });
+            else fireNodesRemoved(parentPath, new int[] { index }, new Object[] { child });
+        }
+        else if(parentWasKept != parentKept) {
+            TreePath grandparentPath = parentPath.getParentPath();
+            setKept(grandparentPath, parent, source.getIndexOfChild(grandparentPath.getLastPathComponent(), parent), parentKept, false);
+        }
+    }
+
+    /**
+     * Returns the index child has in the source under parent, from the indices of an event if it has them
+     */
+    private int sourceIndexOf(Object parent, Object child, int[] indices, int i) {
+        return (indices != null && i < indices.length) ? indices[i] : source.getIndexOfChild(parent, child);
+    }
+
+    /**
+     * The kept children of a node and the index each one has in the source, the indices go up in order. A new
+     * one is made for each change so that other threads reading the tree always see a whole one.
+     */
+    private static class KeptChildren {
+        final Object[] nodes;
+        final int[] sourceIndices;
+
+        KeptChildren(Object[] nodes, int[] sourceIndices) {
+            this.nodes = nodes;
+            this.sourceIndices = sourceIndices;
+        }
+
+        /**
+         * Returns the position of the kept child at sourceIndex, or -(where it would go) - 1 if it isn't kept
+         */
+        int find(int sourceIndex) {
+            return Arrays.binarySearch(sourceIndices, sourceIndex);
+        }
+
+        /**
+         * Returns the position of node, which is at sourceIndex in the source, or -1 if it isn't kept
+         */
+        int indexOf(Object node, int sourceIndex) {
+            int index = (sourceIndex < 0) ? -1 : find(sourceIndex);
+            return (index >= 0 && nodes[index].equals(node)) ? index : -1;
+        }
+
+        /**
+         * Returns these children with node added at position
+         */
+        KeptChildren with(int position, Object node, int sourceIndex) {
+            Object[] newNodes = new Object[nodes.length + 1];
+            int[] newIndices = new int[nodes.length + 1];
+            System.arraycopy(nodes, 0, newNodes, 0, position);
+            System.arraycopy(nodes, position, newNodes, position + 1, nodes.length - position);
+            System.arraycopy(sourceIndices, 0, newIndices, 0, position);
+            System.arraycopy(sourceIndices, position, newIndices, position + 1, nodes.length - position);
+            newNodes[position] = node;
+            newIndices[position] = sourceIndex;
+            return new KeptChildren(newNodes, newIndices);
+        }
+
+        /**
+         * Returns these children without the one at position, shift is added to the source indices of those after it
+         */
+        KeptChildren without(int position, int shift) {
+            Object[] newNodes = new Object[nodes.length - 1];
+            int[] newIndices = new int[nodes.length - 1];
+            System.arraycopy(nodes, 0, newNodes, 0, position);
+            System.arraycopy(nodes, position + 1, newNodes, position, newNodes.length - position);
+            System.arraycopy(sourceIndices, 0, newIndices, 0, position);
+            for(int i = position; i < newIndices.length; i++) newIndices[i] = sourceIndices[i + 1] + shift;
+            return new KeptChildren(newNodes, newIndices);
+        }
+
+        /**
+         * Returns these children with shift added to the source indices from position on
+         */
+        KeptChildren shifted(int position, int shift) {
+            if(position >= nodes.length) return this;
+
+            int[] newIndices = sourceIndices.clone();
+            for(int i = position; i < newIndices.length; i++) newIndices[i] += shift;
+            return new KeptChildren(nodes, newIndices);
+        }
+    }
+
+    /**
+     * Filters the subtrees under a range of the children of parent, splitting the range in half while the pool has idle threads
+     */
+    private class RangeTask extends RecursiveAction {
+        static final long serialVersionUID = 1L;
+        private Object parent;
+        private int from;
+        private int to;
+        private boolean[] kept;
+
+        RangeTask(Object parent, int from, int to, boolean[] kept) {
+            this.parent = parent;
+            this.from = from;
+            this.to = to;
+            this.kept = kept;
+        }
+
+        protected void compute() {
+            if(to - from >= MIN_SPLIT && getSurplusQueuedTaskCount() < 3) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(parent, from, middle, kept), new RangeTask(parent, middle, to, kept));
+            }
+            else for(int i = from; i < to; i++) kept[i] = filterSubtree(source.getChild(parent, i));
+        }
+    }
+
+    /**
+     * Translates the events from the source model into events for the filtered tree
+     */
+    private class SourceListener implements TreeModelListener {
+        public void treeNodesChanged(TreeModelEvent e) {
+            TreePath parentPath = e.getTreePath();
+            Object[] changed = e.getChildren();
+
+            // Without children it is the root that changed, the root is always shown
+            if(filter == null || changed == null) {
+                if(changed == null && filter != null) {
+                    if(filter.test(getRoot())) matches.add(getRoot());
+                    else matches.remove(getRoot());
+                }
+                fireNodesChanged(parentPath, e.getChildIndices(), changed);
+                return;
+            }
+
+            // Test each changed node again, a node that is still shown is just repainted
+            Object parent = parentPath.getLastPathComponent();
+            List<Object> stillShown = new ArrayList<Object>();
+            List<Integer> stillShownIndices = new ArrayList<Integer>();
+            for(int i = 0; i < changed.length; i++) {
+                Object child = changed[i];
+                int sourceIndex = sourceIndexOf(parent, child, e.getChildIndices(), i);
+                boolean wasKept = isKept(parent, sourceIndex);
+                if(filter.test(child)) matches.add(child);
+                else matches.remove(child);
+
+                boolean keep = shouldKeep(child);
+                if(wasKept && keep) {
+                    stillShown.add(child);
+                    stillShownIndices.add(sourceIndex);
+                }
+                else if(wasKept != keep) setKept(parentPath, child, sourceIndex, keep, false);
+            }
+
+            if(!stillShown.isEmpty() && isShown(parentPath)) {
+                KeptChildren kept = children.get(parent);
+                int[] indices = new int[stillShown.size()];
+                for(int i = 0; i < indices.length; i++) indices[i] = kept.find(stillShownIndices.get(i));
+                fireNodesChanged(parentPath, indices, stillShown.toArray());
+            }
+        }
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            if(filter == null) {
+                fireNodesInserted(e.getTreePath(), e.getChildIndices(), e.getChildren());
+                return;
+            }
+
+            // Move the kept children after each new one along first so the source indices are right throughout
+            Object parent = e.getTreePath().getLastPathComponent();
+            Object[] inserted = e.getChildren();
+            int[] indices = new int[inserted.length];
+            for(int i = 0; i < inserted.length; i++) {
+                indices[i] = sourceIndexOf(parent, inserted[i], e.getChildIndices(), i);
+                KeptChildren kept = children.get(parent);
+                if(kept == null) continue;
+                int index = kept.find(indices[i]);
+                children.put(parent, kept.shifted((index >= 0) ? index : -index - 1, 1));
+            }
+
+            for(int i = 0; i < inserted.length; i++) {
+                if(pool.invoke(new FilterTask(inserted[i]))) setKept(e.getTreePath(), inserted[i], indices[i], true, false);
+            }
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            if(filter == null) {
+                fireNodesRemoved(e.getTreePath(), e.getChildIndices(), e.getChildren());
+                return;
+            }
+
+            // Without the children there is no telling what went, filter the parent again
+            if(e.getChildren() == null) {
+                treeStructureChanged(e);
+                return;
+            }
+
+            // From the last to the first so the source indices of the children before each one are still right
+            Object parent = e.getTreePath().getLastPathComponent();
+            Object[] removed = e.getChildren();
+            int[] indices = e.getChildIndices();
+            for(int i = removed.length - 1; i >= 0; i--) {
+                forgetSubtree(removed[i]);
+                KeptChildren kept = children.get(parent);
+                if(kept == null) continue;
+
+                int index = kept.find(indices[i]);
+                if(index >= 0) setKept(e.getTreePath(), removed[i], indices[i], false, true);
+                else children.put(parent, kept.shifted(-index - 1, -1));
+            }
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            TreePath path = e.getTreePath();
+            if(filter == null || path == null) {
+                if(filter == null && path != null) fireNodeStructureChanged(path);
+                else setFilter(filter);
+                return;
+            }
+
+            Object node = path.getLastPathComponent();
+            boolean wasKept = isKept(path);
+            forgetSubtree(node);
+            boolean keep = pool.invoke(new FilterTask(node)) || path.getParentPath() == null;
+
+            if(wasKept && keep) fireNodeStructureChanged(path);
+            else if(wasKept != keep) {
+                TreePath parentPath = path.getParentPath();
+                setKept(parentPath, node, source.getIndexOfChild(parentPath.getLastPathComponent(), node), keep, false);
+            }
+        }
+    }
+
+    /**
+     * Filters the subtree under a node and returns whether the node is kept
+     */
+    private class FilterTask extends RecursiveTask<Boolean> {
+        static final long serialVersionUID = 1L;
+        private Object node;
+
+        FilterTask(Object node) {
+            this.node = node;
+        }
+
+        protected Boolean compute() {
+            return filterSubtree(node);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package TreeTable;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The TreeModel the JTree part of the TreeTable is given. It passes everything straight through to the
+ * AbstractTreeTableModel except while the events for a batch of changes (see AbstractTreeTableModel.beginUpdate())
+ * are being fired.
+ *
+ * By the time a batch fires its events every change has already been made to the nodes, but the JTree expects the
+ * model to look the way the events it has been sent so far describe. The layout caches look children up in the
+ * model while handling an event, FixedHeightLayoutCache even creates entries for the parents on the way down to the
+ * node in the event, and would number them from children that it hasn't been told about yet. While a batch is firing
+ * the children of the parents it touched are answered from the batch instead, as they are after the events fired so far.
+ *
+ * The JTree's listeners are also kept away from nodesChanged events for nodes whose tree column hasn't changed (see
+ * AbstractTreeTableModel.cellsChanged). The JTree would only measure the nodes again, for each of them the layout
+ * cache asks the renderer for its size and moves every row below.
+ */
+class LayoutTreeModel implements TreeModel {
+    private AbstractTreeTableModel model;
+    // The JTree's listeners and what they were added to the model as
+    private Map<TreeModelListener, TreeModelListener> listeners = new IdentityHashMap<TreeModelListener, TreeModelListener>();
+
+    /**
+     * Creates the TreeModel the JTree sees for model
+     *
+     * @param model - the model of the TreeTable
+     */
+    LayoutTreeModel(AbstractTreeTableModel model) {
+        this.model = model;
+    }
+
+    public Object getRoot() {
+        return model.getRoot();
+    }
+
+    public Object getChild(Object parent, int index) {
+        Object[] children = model.getLayoutChildren(parent);
+        return (children == null) ? model.getChild(parent, index) : children[index];
+    }
+
+    public int getChildCount(Object parent) {
+        Object[] children = model.getLayoutChildren(parent);
+        return (children == null) ? model.getChildCount(parent) : children.length;
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        Object[] children = model.getLayoutChildren(parent);
+        if(children == null) return model.getIndexOfChild(parent, child);
+
+        for(int i = 0; i < children.length; i++) {
+            if(children[i] == child) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Always asks the model, a parent whose children are all being replaced isn't a leaf in between
+     */
+    public boolean isLeaf(Object node) {
+        return model.isLeaf(node);
+    }
+
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        model.valueForPathChanged(path, newValue);
+    }
+
+    public void addTreeModelListener(final TreeModelListener listener) {
+        TreeModelListener layoutListener = new TreeModelListener() {
+            public void treeNodesChanged(TreeModelEvent e) {
+                if(!model.isTreeColumnUnchanged()) listener.treeNodesChanged(e);
+            }
+
+            public void treeNodesInserted(TreeModelEvent e) {
+                listener.treeNodesInserted(e);
+            }
+
+            public void treeNodesRemoved(TreeModelEvent e) {
+                listener.treeNodesRemoved(e);
+            }
+
+            public void treeStructureChanged(TreeModelEvent e) {
+                listener.treeStructureChanged(e);
+            }
+        };
+        listeners.put(listener, layoutListener);
+        model.addTreeModelListener(layoutListener);
+    }
+
+    public void removeTreeModelListener(TreeModelListener listener) {
+        TreeModelListener layoutListener = listeners.remove(listener);
+        if(layoutListener != null) model.removeTreeModelListener(layoutListener);
+    }
+}
@@ -0,0 +1,403 @@
+package TreeTable;
+
+import javax.swing.tree.TreePath;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read only TreeTableModel that reads the tree straight out of a memory mapped file written by
+ * MappedTreeTableWriter, for trees too big to hold on the heap.
+ *
+ * Opening the file only reads the header, the OS pages in the parts of the file the JTree actually looks at so
+ * showing the first screen of a huge file is quick. Nothing is kept for any node and everything, the children of a
+ * node included, is read out of the mapping when it is asked for. The JTree is handed small Node handles, a new one
+ * each time a node is asked for, two handles for the same node are equal. Each record has the offset of the ids of
+ * its children and its own index in its parent, so finding a child by index or the index of a child is one read.
+ *
+ * The model is read only so it can be read from any thread, like those of the search index and the filtered model.
+ *
+ * The file is a header, a block of fixed width node records, a block of child ids and a heap of strings:
+ *
+ * header   - magic, version, column count, record size, node count, record offset, children offset, heap offset,
+ *            heap length, then for each column its type and name
+ * records  - parent, child count, index of the first child id in the children block and index in the parent (ints)
+ *            then an 8 byte slot per column holding a long, the bits of a double or the heap offset of a string
+ *            (-1 for null)
+ * children - the ids of the children of each parent in order, as ints, the children of a parent are together
+ * heap     - strings stored as an int length followed by UTF-8 bytes
+ *
+ * Node ids are the record numbers, given out in pre-order (a node comes before everything under it), the root is 0.
+ */
+public class MappedTreeTableModel extends AbstractTreeTableModel {
+    // Set the version ID for serialized objects
+    static final long serialVersionUID = 1L;
+
+    static final int MAGIC = 0x54544D46;
+    static final int VERSION = 2;
+    // Bytes in the header before the column descriptors
+    static final int HEADER = 56;
+
+    // Column types as stored in the header
+    static final byte TYPE_TREE = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_INTEGER = 3;
+    static final byte TYPE_DOUBLE = 4;
+
+    // Bytes in a record before the column slots
+    static final int RECORD_HEADER = 16;
+    static final int PARENT = 0;
+    static final int CHILD_COUNT = 4;
+    static final int CHILDREN = 8;
+    static final int INDEX = 12;
+
+    // The file is mapped in chunks as a MappedByteBuffer can't be bigger than 2GB. Each chunk runs on past its
+    // end by OVERLAP bytes so a record or string that starts in a chunk can always be read from it in one go.
+    static final int CHUNK_SHIFT = 30;
+    static final long CHUNK = 1L << CHUNK_SHIFT;
+    static final int OVERLAP = 1 << 17;
+    // Longest string (in UTF-8 bytes) and widest record that fit in the overlap
+    static final int MAX_STRING = 65535;
+    static final int MAX_RECORD = 65536;
+
+    private transient FileChannel channel;
+    private transient MappedByteBuffer[] chunks;
+    private long fileSize;
+
+    private String[] columnNames;
+    private Class<?>[] columnTypes;
+    private byte[] types;
+    private int treeColumn;
+    private int recordSize;
+    private int nodeCount;
+    private long recordOffset;
+    private long childrenOffset;
+    private long heapOffset;
+
+    /**
+     * Opens a file written by MappedTreeTableWriter. Only the header is read here.
+     *
+     * @param file - the file to open
+     * @throws IOException - if the file can't be read or isn't a tree file
+     */
+    public MappedTreeTableModel(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            fileSize = channel.size();
+            chunks = new MappedByteBuffer[(int) ((fileSize + CHUNK - 1) >>> CHUNK_SHIFT)];
+            readHeader();
+        }
+        catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(header, 0);
+        if(header.getInt() != MAGIC) throw new IOException("Not a tree table file.");
+        int version = header.getInt();
+        if(version != VERSION) throw new IOException("Unsupported tree table file version " + version + ".");
+
+        int columnCount = header.getInt();
+        recordSize = header.getInt();
+        long nodes = header.getLong();
+        recordOffset = header.getLong();
+        childrenOffset = header.getLong();
+        heapOffset = header.getLong();
+        long heapLength = header.getLong();
+        if(nodes > Integer.MAX_VALUE) throw new IOException("Too many nodes " + nodes + ".");
+        nodeCount = (int) nodes;
+        // Every node but the root is the child of one parent
+        long childIds = Math.max(nodeCount - 1, 0);
+        if(recordSize != RECORD_HEADER + 8 * columnCount || recordOffset + (long) recordSize * nodeCount > childrenOffset || childrenOffset + 4 * childIds > heapOffset || heapOffset + heapLength > fileSize || recordOffset < HEADER) throw new IOException("Corrupt tree table file header.");
+
+        // Column descriptors follow the fixed part of the header
+        ByteBuffer descriptors = ByteBuffer.allocate((int) (recordOffset - HEADER));
+        readFully(descriptors, HEADER);
+        columnNames = new String[columnCount];
+        columnTypes = new Class<?>[columnCount];
+        types = new byte[columnCount];
+        treeColumn = -1;
+        for(int column = 0; column < columnCount; column++) {
+            types[column] = descriptors.get();
+            byte[] name = new byte[descriptors.getShort() & 0xFFFF];
+            descriptors.get(name);
+            columnNames[column] = new String(name, StandardCharsets.UTF_8);
+            columnTypes[column] = typeClass(types[column]);
+            if(types[column] == TYPE_TREE) treeColumn = column;
+        }
+        if(treeColumn == -1) throw new IOException("Corrupt tree table file header.");
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of tree table file.");
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the class for a stored column type
+     */
+    static Class<?> typeClass(byte type) throws IOException {
+        switch(type) {
+            case TYPE_TREE: return TreeTableModel.class;
+            case TYPE_STRING: return String.class;
+            case TYPE_LONG: return Long.class;
+            case TYPE_INTEGER: return Integer.class;
+            case TYPE_DOUBLE: return Double.class;
+            default: throw new IOException("Unknown column type " + type + ".");
+        }
+    }
+
+    /**
+     * Closes the file. The mapping stays readable until it is garbage collected but the model shouldn't be used afterwards.
+     *
+     * @throws IOException - if closing the file fails
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the number of nodes in the file
+     *
+     * @return int - number of nodes
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the id of the node a handle from this model stands for
+     *
+     * @param node - a node handle from this model
+     * @return int - the id of the node
+     */
+    public int getNodeId(Object node) {
+        if(!(node instanceof Node) || ((Node) node).model != this) throw new IllegalArgumentException("Not a node of this model.");
+        return ((Node) node).id;
+    }
+
+    /**
+     * Returns the path from the root to node
+     *
+     * @param node - id of the node
+     * @return TreePath - path of node handles
+     */
+    public TreePath getPath(int node) {
+        checkNode(node);
+        int depth = 0;
+        for(int next = node; next != -1; next = recordInt(next, PARENT)) depth++;
+
+        Object[] path = new Object[depth];
+        for(int next = node; next != -1; next = recordInt(next, PARENT)) path[--depth] = handle(next);
+        return new TreePath(path);
+    }
+
+    /**
+     * Returns the value of a Long or Integer column for the node in row without boxing it
+     *
+     * @param row - the row in the view being queried
+     * @param column - a Long or Integer column
+     * @return long - the value
+     */
+    public long getLong(int row, int column) {
+        if(types[column] != TYPE_LONG && types[column] != TYPE_INTEGER) throw new IllegalArgumentException("Column " + column + " is not a Long or Integer column.");
+        return slot(rowNode(row).id, column);
+    }
+
+    /**
+     * Returns the value of a Double column for the node in row without boxing it
+     *
+     * @param row - the row in the view being queried
+     * @param column - a Double column
+     * @return double - the value
+     */
+    public double getDouble(int row, int column) {
+        if(types[column] != TYPE_DOUBLE) throw new IllegalArgumentException("Column " + column + " is not a Double column.");
+        return Double.longBitsToDouble(slot(rowNode(row).id, column));
+    }
+
+    /**
+     * Returns the value of a String column, or the label of the tree column, for the node in row
+     *
+     * @param row - the row in the view being queried
+     * @param column - a String column or the tree column
+     * @return String - the value, which may be null
+     */
+    public String getString(int row, int column) {
+        if(types[column] != TYPE_STRING && types[column] != TYPE_TREE) throw new IllegalArgumentException("Column " + column + " is not a String column.");
+        return string(slot(rowNode(row).id, column));
+    }
+
+    public Object getRoot() {
+        return (nodeCount == 0) ? null : handle(0);
+    }
+
+    public boolean isLeaf(Object node) {
+        return recordInt(getNodeId(node), CHILD_COUNT) == 0;
+    }
+
+    public int getChildCount(Object parent) {
+        return recordInt(getNodeId(parent), CHILD_COUNT);
+    }
+
+    public Object getChild(Object parent, int index) {
+        int parentId = getNodeId(parent);
+        if(index < 0 || index >= recordInt(parentId, CHILD_COUNT)) return null;
+        long position = childrenOffset + 4L * (recordInt(parentId, CHILDREN) + (long) index);
+        return handle(chunk(position).getInt((int) (position & (CHUNK - 1))));
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        if(!(parent instanceof Node) || !(child instanceof Node)) return -1;
+        int childId = getNodeId(child);
+        if(recordInt(childId, PARENT) != getNodeId(parent)) return -1;
+        return recordInt(childId, INDEX);
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    public Class<?> getColumnClass(int column) {
+        return columnTypes[column];
+    }
+
+    /**
+     * Returns the value of column for node, read from the file. The tree column returns the node handle itself, whose toString is its label.
+     */
+    public Object getValueAt(Object node, int column) {
+        int id = getNodeId(node);
+        switch(types[column]) {
+            case TYPE_TREE: return node;
+            case TYPE_STRING: return string(slot(id, column));
+            case TYPE_LONG: return slot(id, column);
+            case TYPE_INTEGER: return (int) slot(id, column);
+            default: return Double.longBitsToDouble(slot(id, column));
+        }
+    }
+
+    /**
+     * The file is read only, only the tree column is editable so clicks reach the JTree
+     */
+    public boolean isCellEditable(Object node, int column) {
+        return types[column] == TYPE_TREE;
+    }
+
+    /**
+     * Returns a handle for node
+     */
+    private Node handle(int node) {
+        return new Node(this, node);
+    }
+
+    private Node rowNode(int row) {
+        Node node = (Node) nodeForRow(row);
+        if(node == null) throw new IllegalArgumentException("No such row " + row + ".");
+        return node;
+    }
+
+    private void checkNode(int node) {
+        if(node < 0 || node >= nodeCount) throw new IllegalArgumentException("No such node " + node + ".");
+    }
+
+    /**
+     * Reads one of the int fields at the start of a record
+     */
+    private int recordInt(int node, int field) {
+        long position = recordOffset + (long) node * recordSize + field;
+        return chunk(position).getInt((int) (position & (CHUNK - 1)));
+    }
+
+    /**
+     * Reads the 8 byte slot of column in a record
+     */
+    private long slot(int node, int column) {
+        long position = recordOffset + (long) node * recordSize + RECORD_HEADER + 8L * column;
+        return chunk(position).getLong((int) (position & (CHUNK - 1)));
+    }
+
+    /**
+     * Reads a string from the heap
+     */
+    private String string(long offset) {
+        if(offset < 0) return null;
+        long position = heapOffset + offset;
+        MappedByteBuffer buffer = chunk(position);
+        int index = (int) (position & (CHUNK - 1));
+
+        byte[] bytes = new byte[buffer.getInt(index)];
+        buffer.get(index + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the chunk holding position, mapping it the first time it is used
+     */
+    private MappedByteBuffer chunk(long position) {
+        int index = (int) (position >>> CHUNK_SHIFT);
+        MappedByteBuffer buffer = chunks[index];
+        if(buffer == null) {
+            long start = (long) index << CHUNK_SHIFT;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK + OVERLAP, fileSize - start));
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("Unable to map the tree table file.", e);
+            }
+            chunks[index] = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * A handle for a node of a MappedTreeTableModel. A new one is made each time a node is asked for, two handles
+     * for the same node of the same model are equal.
+     */
+    public static final class Node {
+        private final MappedTreeTableModel model;
+        private final int id;
+
+        Node(MappedTreeTableModel model, int id) {
+            this.model = model;
+            this.id = id;
+        }
+
+        /**
+         * Returns the id of the node
+         *
+         * @return int - the node id
+         */
+        public int getId() {
+            return id;
+        }
+
+        public boolean equals(Object o) {
+            if(!(o instanceof Node)) return false;
+            Node other = (Node) o;
+            return id == other.id && model == other.model;
+        }
+
+        public int hashCode() {
+            return id;
+        }
+
+        // The JTree uses this as the text of the row
+        public String toString() {
+            return String.valueOf(model.string(model.slot(id, model.treeColumn)));
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package TreeTable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes a file for MappedTreeTableModel one node at a time, without holding the tree in memory.
+ *
+ * Nodes must be added in pre-order, every node coming before anything underneath it, which is the order a
+ * recursive scan (a filesystem walk for example) naturally produces. That means the parent of a new node is always
+ * the last node added or one of its ancestors, so only the path to the last node and the ids of the children of the
+ * nodes on it are kept in memory. A record is written out once the next node added shows it has no more children
+ * to come.
+ *
+ * Strings go into a temporary heap file as they are added and the ids of the children of a node go into another
+ * once its record is written, close() copies both to the end of the file.
+ */
+public class MappedTreeTableWriter implements Closeable {
+    // Size of the buffers used to batch up records and strings before writing them
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private Path file;
+    private Path heapFile;
+    private Path childrenFile;
+    private FileChannel channel;
+    private FileChannel heapChannel;
+    private FileChannel childrenChannel;
+
+    private byte[] types;
+    private int recordSize;
+    private long recordOffset;
+    private int nodeCount;
+    private long heapLength;
+    private int childIdCount;
+
+    // The path to the last node added, these are the only records that can still change
+    private int depth;
+    private int[] pathIds = new int[64];
+    private int[] pathParents = new int[64];
+    private int[] pathIndices = new int[64];
+    private int[] pathChildCounts = new int[64];
+    private int[][] pathChildren = new int[64][];
+    private long[][] pathSlots = new long[64][];
+
+    // Finished records waiting to be written, a run of consecutive ids starting at pendingStart
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private int pendingStart = -1;
+    private int pendingCount;
+    private ByteBuffer heapBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer childrenBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Creates the file, replacing it if it exists
+     *
+     * @param file - the file to write
+     * @param columnNames - the names of the columns
+     * @param columnTypes - the type of each column, one must be TreeTableModel.class (the labels in the tree) and the rest Long, Integer, Double or String
+     * @throws IOException - if the file can't be created
+     */
+    public MappedTreeTableWriter(Path file, String[] columnNames, Class<?>[] columnTypes) throws IOException {
+        if(columnNames.length != columnTypes.length) throw new IllegalArgumentException("There must be a type for each column.");
+        recordSize = MappedTreeTableModel.RECORD_HEADER + 8 * columnTypes.length;
+        if(recordSize > MappedTreeTableModel.MAX_RECORD) throw new IllegalArgumentException("Too many columns.");
+
+        // Work out the column descriptors for the header
+        types = new byte[columnTypes.length];
+        byte[][] names = new byte[columnNames.length][];
+        int descriptorSize = 0;
+        int treeColumns = 0;
+        for(int column = 0; column < columnTypes.length; column++) {
+            types[column] = typeOf(columnTypes[column], column);
+            if(types[column] == MappedTreeTableModel.TYPE_TREE) treeColumns++;
+            names[column] = String.valueOf(columnNames[column]).getBytes(StandardCharsets.UTF_8);
+            if(names[column].length > 0xFFFF) throw new IllegalArgumentException("Column name " + column + " is too long.");
+            descriptorSize += 3 + names[column].length;
+        }
+        if(treeColumns != 1) throw new IllegalArgumentException("Exactly one column must be of type TreeTableModel.");
+        // Start the records on an 8 byte boundary
+        recordOffset = (MappedTreeTableModel.HEADER + descriptorSize + 7) & ~7L;
+
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            heapFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".heap");
+            heapChannel = FileChannel.open(heapFile, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+            childrenFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".children");
+            childrenChannel = FileChannel.open(childrenFile, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        catch(IOException e) {
+            channel.close();
+            if(heapChannel != null) heapChannel.close();
+            if(heapFile != null) Files.deleteIfExists(heapFile);
+            if(childrenFile != null) Files.deleteIfExists(childrenFile);
+            throw e;
+        }
+
+        // Write the descriptors now, the fixed part of the header is written by close()
+        ByteBuffer descriptors = ByteBuffer.allocate((int) (recordOffset - MappedTreeTableModel.HEADER));
+        for(int column = 0; column < types.length; column++) {
+            descriptors.put(types[column]);
+            descriptors.putShort((short) names[column].length);
+            descriptors.put(names[column]);
+        }
+        descriptors.position(descriptors.limit());
+        descriptors.flip();
+        write(channel, descriptors, MappedTreeTableModel.HEADER);
+    }
+
+    private static byte typeOf(Class<?> type, int column) {
+        if(type == TreeTableModel.class) return MappedTreeTableModel.TYPE_TREE;
+        if(type == String.class) return MappedTreeTableModel.TYPE_STRING;
+        if(type == Long.class) return MappedTreeTableModel.TYPE_LONG;
+        if(type == Integer.class) return MappedTreeTableModel.TYPE_INTEGER;
+        if(type == Double.class) return MappedTreeTableModel.TYPE_DOUBLE;
+        throw new IllegalArgumentException("Column " + column + " has an unsupported type " + type.getName() + ".");
+    }
+
+    /**
+     * Writes a whole TreeTableModel to file. Columns that aren't Long, Integer, Double or the tree column are
+     * written as Strings using toString() of their values, the tree column is written as toString() of the nodes.
+     *
+     * @param model - the model to write
+     * @param file - the file to write
+     * @throws IOException - if writing fails
+     */
+    public static void write(TreeTableModel model, Path file) throws IOException {
+        int columnCount = model.getColumnCount();
+        String[] names = new String[columnCount];
+        Class<?>[] types = new Class<?>[columnCount];
+        for(int column = 0; column < columnCount; column++) {
+            names[column] = model.getColumnName(column);
+            Class<?> type = model.getColumnClass(column);
+            types[column] = (type == TreeTableModel.class || type == Long.class || type == Integer.class || type == Double.class) ? type : String.class;
+        }
+
+        try(MappedTreeTableWriter writer = new MappedTreeTableWriter(file, names, types)) {
+            Object root = model.getRoot();
+            if(root == null) return;
+
+            // Walk the tree in pre-order with our own stack so deep trees don't overflow the call stack
+            Object[] values = new Object[columnCount];
+            Object[] nodes = new Object[64];
+            int[] ids = new int[64];
+            int[] next = new int[64];
+            int top = 0;
+            nodes[0] = root;
+            ids[0] = writer.addNode(-1, valuesOf(model, root, types, values));
+            while(top >= 0) {
+                Object node = nodes[top];
+                if(next[top] == model.getChildCount(node)) {
+                    top--;
+                    continue;
+                }
+                Object child = model.getChild(node, next[top]++);
+                int id = writer.addNode(ids[top], valuesOf(model, child, types, values));
+                if(++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    ids = Arrays.copyOf(ids, top * 2);
+                    next = Arrays.copyOf(next, top * 2);
+                }
+                nodes[top] = child;
+                ids[top] = id;
+                next[top] = 0;
+            }
+        }
+    }
+
+    private static Object[] valuesOf(TreeTableModel model, Object node, Class<?>[] types, Object[] values) {
+        for(int column = 0; column < values.length; column++) {
+            Object value = (types[column] == TreeTableModel.class) ? node : model.getValueAt(node, column);
+            values[column] = (types[column] == String.class || types[column] == TreeTableModel.class) && value != null ? value.toString() : value;
+        }
+        return values;
+    }
+
+    /**
+     * Adds a node as the last child of parent. The values are given per column: the tree column and String columns
+     * take Strings, the others Numbers, null is stored as null for Strings and 0 otherwise.
+     *
+     * @param parent - id of the parent, the last node added or one of its ancestors, or -1 for the root which must come first
+     * @param values - a value for each column
+     * @return int - id of the new node
+     * @throws IOException - if writing fails
+     */
+    public int addNode(int parent, Object... values) throws IOException {
+        if(channel == null) throw new IllegalStateException("The writer has been closed.");
+        if(values.length != types.length) throw new IllegalArgumentException("There must be a value for each column.");
+        if(parent == -1 && nodeCount > 0) throw new IllegalArgumentException("The tree already has a root.");
+        if(nodeCount == Integer.MAX_VALUE) throw new IllegalStateException("Too many nodes.");
+        if(parent != -1) {
+            // Everything below parent on the path is finished
+            int level = depth - 1;
+            while(level >= 0 && pathIds[level] != parent) level--;
+            if(level < 0) throw new IllegalArgumentException("Parent " + parent + " is not the last node added or one of its ancestors.");
+            while(depth > level + 1) finish(--depth);
+        }
+
+        // Work out the slots before linking the node in so a bad value doesn't leave a half added node
+        long[] slots = new long[types.length];
+        for(int column = 0; column < types.length; column++) slots[column] = slotOf(values[column], column);
+
+        int node = nodeCount++;
+        int index = 0;
+        if(parent != -1) {
+            int level = depth - 1;
+            index = pathChildCounts[level]++;
+            int[] children = pathChildren[level];
+            if(children == null) pathChildren[level] = children = new int[16];
+            else if(index == children.length) pathChildren[level] = children = Arrays.copyOf(children, index * 2);
+            children[index] = node;
+        }
+
+        if(depth == pathIds.length) {
+            int length = depth * 2;
+            pathIds = Arrays.copyOf(pathIds, length);
+            pathParents = Arrays.copyOf(pathParents, length);
+            pathIndices = Arrays.copyOf(pathIndices, length);
+            pathChildCounts = Arrays.copyOf(pathChildCounts, length);
+            pathChildren = Arrays.copyOf(pathChildren, length);
+            pathSlots = Arrays.copyOf(pathSlots, length);
+        }
+        pathIds[depth] = node;
+        pathParents[depth] = parent;
+        pathIndices[depth] = index;
+        pathChildCounts[depth] = 0;
+        pathSlots[depth] = slots;
+        depth++;
+        return node;
+    }
+
+    /**
+     * Finishes the file: writes out the remaining records, copies the strings after them and writes the header.
+     * The file can't be opened by MappedTreeTableModel until this is done.
+     *
+     * @throws IOException - if writing fails
+     */
+    public void close() throws IOException {
+        if(channel == null) return;
+        try {
+            while(depth > 0) finish(--depth);
+            flushRecords();
+            flushChildren();
+            flushHeap();
+
+            // Copy the child ids after the records and the heap after them
+            long childrenOffset = recordOffset + (long) nodeCount * recordSize;
+            long heapOffset = childrenOffset + 4L * childIdCount;
+            copy(childrenChannel, 4L * childIdCount, childrenOffset);
+            copy(heapChannel, heapLength, heapOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(MappedTreeTableModel.HEADER);
+            header.putInt(MappedTreeTableModel.MAGIC);
+            header.putInt(MappedTreeTableModel.VERSION);
+            header.putInt(types.length);
+            header.putInt(recordSize);
+            header.putLong(nodeCount);
+            header.putLong(recordOffset);
+            header.putLong(childrenOffset);
+            header.putLong(heapOffset);
+            header.putLong(heapLength);
+            header.flip();
+            write(channel, header, 0);
+            channel.truncate(heapOffset + heapLength);
+        }
+        finally {
+            try {
+                channel.close();
+                heapChannel.close();
+                childrenChannel.close();
+            }
+            finally {
+                channel = null;
+                Files.deleteIfExists(heapFile);
+                Files.deleteIfExists(childrenFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the file being written
+     *
+     * @return Path - the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    private long slotOf(Object value, int column) throws IOException {
+        switch(types[column]) {
+            case MappedTreeTableModel.TYPE_TREE:
+            case MappedTreeTableModel.TYPE_STRING:
+                return (value == null) ? -1 : addString(value.toString());
+            case MappedTreeTableModel.TYPE_DOUBLE:
+                return Double.doubleToRawLongBits((value == null) ? 0 : number(value, column).doubleValue());
+            default:
+                return (value == null) ? 0 : number(value, column).longValue();
+        }
+    }
+
+    private static Number number(Object value, int column) {
+        if(!(value instanceof Number)) throw new IllegalArgumentException("Column " + column + " needs a Number, not " + value.getClass().getName() + ".");
+        return (Number) value;
+    }
+
+    /**
+     * Appends a string to the heap, returning its offset
+     */
+    private long addString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > MappedTreeTableModel.MAX_STRING) throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long.");
+        if(heapBuffer.remaining() < 4 + bytes.length) flushHeap();
+
+        long offset = heapLength;
+        heapBuffer.putInt(bytes.length);
+        heapBuffer.put(bytes);
+        heapLength += 4 + bytes.length;
+        return offset;
+    }
+
+    private void flushHeap() throws IOException {
+        heapBuffer.flip();
+        while(heapBuffer.hasRemaining()) heapChannel.write(heapBuffer);
+        heapBuffer.clear();
+    }
+
+    private void flushChildren() throws IOException {
+        childrenBuffer.flip();
+        while(childrenBuffer.hasRemaining()) childrenChannel.write(childrenBuffer);
+        childrenBuffer.clear();
+    }
+
+    /**
+     * Writes out the ids of the children and the record of the node at level of the path, which can't change any more
+     */
+    private void finish(int level) throws IOException {
+        int node = pathIds[level];
+        int childCount = pathChildCounts[level];
+        int childStart = childIdCount;
+        for(int i = 0; i < childCount; i++) {
+            if(!childrenBuffer.hasRemaining()) flushChildren();
+            childrenBuffer.putInt(pathChildren[level][i]);
+        }
+        childIdCount += childCount;
+
+        // Records are mostly finished in order, batch up runs of consecutive ids
+        if(pendingStart == -1 || node != pendingStart + pendingCount || pending.remaining() < recordSize) {
+            flushRecords();
+            pendingStart = node;
+        }
+        pending.putInt(pathParents[level]);
+        pending.putInt(childCount);
+        pending.putInt(childStart);
+        pending.putInt(pathIndices[level]);
+        for(long slot : pathSlots[level]) pending.putLong(slot);
+        pendingCount++;
+        pathSlots[level] = null;
+    }
+
+    private void flushRecords() throws IOException {
+        if(pendingCount > 0) {
+            pending.flip();
+            write(channel, pending, recordOffset + (long) pendingStart * recordSize);
+        }
+        pending.clear();
+        pendingStart = -1;
+        pendingCount = 0;
+    }
+
+    /**
+     * Copies length bytes from the start of a temporary file into the file at position
+     */
+    private void copy(FileChannel from, long length, long position) throws IOException {
+        long copied = 0;
+        while(copied < length) copied += from.transferTo(copied, length - copied, channel.position(position + copied));
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+}
@@ -0,0 +1,661 @@
+package TreeTable;
+
+import javax.swing.DefaultListSelectionModel;
+
+/**
+ * A ListSelectionModel that keeps the selected rows as a sorted list of ranges instead of one bit per row.
+ *
+ * DefaultListSelectionModel visits every row between the ends of the old and the new selection on each change, so
+ * selecting all of a million rows and clearing that selection again both go through a million rows. Here a change
+ * only has to look at the ranges, selecting a block of rows, selecting everything and inverting the selection cost
+ * the number of ranges and not the number of rows. Inserting and removing rows moves the ranges after them.
+ *
+ * It extends DefaultListSelectionModel so that the JTable keeps the key bindings that are only enabled for one, but
+ * none of the state of DefaultListSelectionModel is used. The selection mode, lead and anchor and the events sent
+ * behave the same way as they do in DefaultListSelectionModel.
+ */
+class RangeListSelectionModel extends DefaultListSelectionModel {
+    // Set the version ID for serialized objects
+    static final long serialVersionUID = 1L;
+
+    // Start and end (inclusive) of each selected range in order, there is always at least one row between two ranges
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int count;
+
+    private int selectionMode = MULTIPLE_INTERVAL_SELECTION;
+    private int anchorIndex = -1;
+    private int leadIndex = -1;
+    private boolean isAdjusting;
+
+    // First and last rows changed since the last event was sent
+    private int firstAdjustedIndex = Integer.MAX_VALUE;
+    private int lastAdjustedIndex = -1;
+    // First and last rows changed since the value started adjusting
+    private int firstChangedIndex = Integer.MAX_VALUE;
+    private int lastChangedIndex = -1;
+
+    /**
+     * Creates an empty selection
+     */
+    RangeListSelectionModel() {
+    }
+
+    @Override
+    public int getMinSelectionIndex() {
+        return (count == 0) ? -1 : starts[0];
+    }
+
+    @Override
+    public int getMaxSelectionIndex() {
+        return (count == 0) ? -1 : ends[count - 1];
+    }
+
+    @Override
+    public boolean getValueIsAdjusting() {
+        return isAdjusting;
+    }
+
+    @Override
+    public int getSelectionMode() {
+        return selectionMode;
+    }
+
+    /**
+     * Sets the selection mode, cutting the selection down to the first row or the first range if the new mode needs it
+     *
+     * @param selectionMode - SINGLE_SELECTION, SINGLE_INTERVAL_SELECTION or MULTIPLE_INTERVAL_SELECTION
+     */
+    @Override
+    public void setSelectionMode(int selectionMode) {
+        if(selectionMode != SINGLE_SELECTION && selectionMode != SINGLE_INTERVAL_SELECTION && selectionMode != MULTIPLE_INTERVAL_SELECTION) {
+            throw new IllegalArgumentException("invalid selectionMode");
+        }
+        int oldMode = this.selectionMode;
+        this.selectionMode = selectionMode;
+
+        if(oldMode > selectionMode && count > 0) {
+            if(selectionMode == SINGLE_SELECTION) setSelectionInterval(starts[0], starts[0]);
+            else setSelectionInterval(starts[0], ends[0]);
+        }
+    }
+
+    @Override
+    public boolean isSelectedIndex(int index) {
+        return rangeAt(index) >= 0;
+    }
+
+    @Override
+    public boolean isSelectionEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the selected rows in ascending order
+     *
+     * @return int[] - the selected rows
+     */
+    @Override
+    public int[] getSelectedIndices() {
+        int[] indices = new int[getSelectedItemsCount()];
+        int next = 0;
+        for(int i = 0; i < count; i++) {
+            for(int index = starts[i]; index <= ends[i]; index++) indices[next++] = index;
+        }
+        return indices;
+    }
+
+    /**
+     * Returns the number of selected rows, this only adds up the length of each range
+     *
+     * @return int - number of selected rows
+     */
+    @Override
+    public int getSelectedItemsCount() {
+        long total = 0;
+        for(int i = 0; i < count; i++) total += ends[i] - starts[i] + 1L;
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of selected ranges
+     *
+     * @return int - number of ranges
+     */
+    int getRangeCount() {
+        return count;
+    }
+
+    /**
+     * Returns the first row of a selected range
+     *
+     * @param range - index of the range, ranges are in ascending order
+     * @return int - first row of the range
+     */
+    int getRangeStart(int range) {
+        return starts[range];
+    }
+
+    /**
+     * Returns the last row of a selected range
+     *
+     * @param range - index of the range, ranges are in ascending order
+     * @return int - last row of the range, inclusive
+     */
+    int getRangeEnd(int range) {
+        return ends[range];
+    }
+
+    @Override
+    public void clearSelection() {
+        changeSelection(getClearMin(), getClearMax(), Integer.MAX_VALUE, -1, true);
+    }
+
+    @Override
+    public void setSelectionInterval(int index0, int index1) {
+        if(index0 == -1 || index1 == -1) return;
+        if(selectionMode == SINGLE_SELECTION) index0 = index1;
+
+        updateLeadAnchorIndices(index0, index1);
+        changeSelection(getClearMin(), getClearMax(), Math.min(index0, index1), Math.max(index0, index1), true);
+    }
+
+    @Override
+    public void addSelectionInterval(int index0, int index1) {
+        if(index0 == -1 || index1 == -1) return;
+
+        // Only one row can be selected, setSelectionInterval enforces that
+        if(selectionMode == SINGLE_SELECTION) {
+            setSelectionInterval(index0, index1);
+            return;
+        }
+
+        updateLeadAnchorIndices(index0, index1);
+
+        int setMin = Math.min(index0, index1);
+        int setMax = Math.max(index0, index1);
+        // Only one range is allowed and this would make a second one, so the new range replaces the selection
+        if(selectionMode == SINGLE_INTERVAL_SELECTION && count > 0 && (setMax < starts[0] - 1 || setMin > ends[count - 1] + 1)) {
+            setSelectionInterval(index0, index1);
+            return;
+        }
+
+        changeSelection(Integer.MAX_VALUE, -1, setMin, setMax, true);
+    }
+
+    @Override
+    public void removeSelectionInterval(int index0, int index1) {
+        if(index0 == -1 || index1 == -1) return;
+
+        updateLeadAnchorIndices(index0, index1);
+
+        int clearMin = Math.min(index0, index1);
+        int clearMax = Math.max(index0, index1);
+        // Removing the middle of the only range allowed would leave two, so everything after it goes too
+        if(selectionMode != MULTIPLE_INTERVAL_SELECTION && count > 0 && clearMin > starts[0] && clearMax < ends[count - 1]) {
+            clearMax = ends[count - 1];
+        }
+        changeSelection(clearMin, clearMax, Integer.MAX_VALUE, -1, true);
+    }
+
+    /**
+     * Inverts the selection of the rows from index0 to index1, only the ranges in between are visited
+     *
+     * @param index0 - one end of the rows to invert
+     * @param index1 - the other end of the rows to invert, inclusive
+     */
+    void invertSelection(int index0, int index1) {
+        if(index0 < 0 || index1 < 0) return;
+        if(selectionMode != MULTIPLE_INTERVAL_SELECTION) throw new IllegalStateException("Only a multiple interval selection can be inverted.");
+
+        int lo = Math.min(index0, index1);
+        int hi = Math.max(index0, index1);
+        int first = firstEndingFrom(lo);
+        int last = lastStartingBy(hi);
+
+        int[] newStarts = new int[count + (last - first + 1) + 3];
+        int[] newEnds = new int[newStarts.length];
+        int n = 0;
+
+        // The ranges before lo, including the part of one that goes over lo
+        for(int i = 0; i < first; i++) {
+            newStarts[n] = starts[i];
+            newEnds[n++] = ends[i];
+        }
+        if(first < count && starts[first] < lo) {
+            newStarts[n] = starts[first];
+            newEnds[n++] = lo - 1;
+        }
+
+        // The gaps between lo and hi become the new ranges
+        int next = lo;
+        for(int i = first; i <= last; i++) {
+            if(starts[i] > next) {
+                newStarts[n] = next;
+                newEnds[n++] = starts[i] - 1;
+            }
+            next = Math.max(next, ends[i] + 1);
+        }
+        if(next <= hi && next >= lo) {
+            newStarts[n] = next;
+            newEnds[n++] = hi;
+        }
+
+        // The ranges after hi, including the part of one that goes over hi
+        if(last >= 0 && ends[last] > hi) {
+            newStarts[n] = hi + 1;
+            newEnds[n++] = ends[last];
+        }
+        for(int i = last + 1; i < count; i++) {
+            newStarts[n] = starts[i];
+            newEnds[n++] = ends[i];
+        }
+
+        // Ranges that now touch are joined
+        count = 0;
+        for(int i = 0; i < n; i++) {
+            if(count > 0 && newStarts[i] <= newEnds[count - 1] + 1) newEnds[count - 1] = Math.max(newEnds[count - 1], newEnds[i]);
+            else {
+                newStarts[count] = newStarts[i];
+                newEnds[count++] = newEnds[i];
+            }
+        }
+        starts = newStarts;
+        ends = newEnds;
+
+        markAsDirty(lo);
+        markAsDirty(hi);
+        fireValueChanged();
+    }
+
+    @Override
+    public void insertIndexInterval(int index, int length, boolean before) {
+        if(length < 0 || index < 0) throw new IndexOutOfBoundsException("index or length is negative");
+        if(index == Integer.MAX_VALUE || length == 0) return;
+
+        // The first new row goes at insMinIndex
+        int insMinIndex = before ? index : index + 1;
+        int insMaxIndex = (insMinIndex + length >= 0) ? insMinIndex + length - 1 : Integer.MAX_VALUE;
+        boolean setInsertedValues = selectionMode != SINGLE_SELECTION && isSelectedIndex(index);
+        long[] oldBounds = boundsBetween(insMinIndex, Integer.MAX_VALUE);
+
+        // Split the range the new rows go into then move everything from there on down
+        int first = firstEndingFrom(insMinIndex);
+        if(first < count && starts[first] < insMinIndex) {
+            replace(first, first, 2, starts[first], insMinIndex - 1, insMinIndex, ends[first]);
+            first++;
+        }
+        for(int i = first; i < count; i++) {
+            starts[i] = shift(starts[i], length);
+            ends[i] = shift(ends[i], length);
+        }
+        if(setInsertedValues) select(insMinIndex, insMaxIndex);
+        markChanges(oldBounds, boundsBetween(insMinIndex, Integer.MAX_VALUE));
+
+        int leadIndex = this.leadIndex;
+        if(leadIndex > index || (before && leadIndex == index)) leadIndex = this.leadIndex + length;
+        int anchorIndex = this.anchorIndex;
+        if(anchorIndex > index || (before && anchorIndex == index)) anchorIndex = this.anchorIndex + length;
+        if(leadIndex != this.leadIndex || anchorIndex != this.anchorIndex) updateLeadAnchorIndices(anchorIndex, leadIndex);
+
+        fireValueChanged();
+    }
+
+    @Override
+    public void removeIndexInterval(int index0, int index1) {
+        if(index0 < 0 || index1 < 0) throw new IndexOutOfBoundsException("index is negative");
+
+        int rmMinIndex = Math.min(index0, index1);
+        int rmMaxIndex = Math.max(index0, index1);
+
+        // Every row has gone, like DefaultListSelectionModel the event waits for the next change
+        if(rmMinIndex == 0 && rmMaxIndex == Integer.MAX_VALUE) {
+            if(count > 0) {
+                markAsDirty(starts[0]);
+                markAsDirty(ends[count - 1]);
+            }
+            count = 0;
+            if(anchorIndex != -1 || leadIndex != -1) updateLeadAnchorIndices(-1, -1);
+            return;
+        }
+
+        int gapLength = rmMaxIndex - rmMinIndex + 1;
+        long[] oldBounds = boundsBetween(rmMinIndex, Integer.MAX_VALUE);
+
+        // Take the rows out then close the gap, joining the ranges either side of it if they now touch
+        deselect(rmMinIndex, rmMaxIndex);
+        int first = firstEndingFrom(rmMinIndex);
+        for(int i = first; i < count; i++) {
+            starts[i] -= gapLength;
+            ends[i] -= gapLength;
+        }
+        if(first > 0 && first < count && ends[first - 1] + 1 >= starts[first]) {
+            replace(first - 1, first, 1, starts[first - 1], ends[first], 0, 0);
+        }
+        markChanges(oldBounds, boundsBetween(rmMinIndex, Integer.MAX_VALUE));
+
+        int leadIndex = this.leadIndex;
+        if(leadIndex == 0 && rmMinIndex == 0) {
+            // The lead stays on the first row
+        }
+        else if(leadIndex > rmMaxIndex) leadIndex = this.leadIndex - gapLength;
+        else if(leadIndex >= rmMinIndex) leadIndex = rmMinIndex - 1;
+
+        int anchorIndex = this.anchorIndex;
+        if(anchorIndex == 0 && rmMinIndex == 0) {
+            // The anchor stays on the first row
+        }
+        else if(anchorIndex > rmMaxIndex) anchorIndex = this.anchorIndex - gapLength;
+        else if(anchorIndex >= rmMinIndex) anchorIndex = rmMinIndex - 1;
+
+        if(leadIndex != this.leadIndex || anchorIndex != this.anchorIndex) updateLeadAnchorIndices(anchorIndex, leadIndex);
+
+        fireValueChanged();
+    }
+
+    @Override
+    public void setValueIsAdjusting(boolean isAdjusting) {
+        if(isAdjusting != this.isAdjusting) {
+            this.isAdjusting = isAdjusting;
+            fireValueChanged(isAdjusting);
+        }
+    }
+
+    @Override
+    public int getAnchorSelectionIndex() {
+        return anchorIndex;
+    }
+
+    @Override
+    public int getLeadSelectionIndex() {
+        return leadIndex;
+    }
+
+    @Override
+    public void setAnchorSelectionIndex(int anchorIndex) {
+        updateLeadAnchorIndices(anchorIndex, leadIndex);
+        fireValueChanged();
+    }
+
+    @Override
+    public void moveLeadSelectionIndex(int leadIndex) {
+        // A lead of -1 is only allowed if the anchor is -1 too
+        if(leadIndex == -1 && anchorIndex != -1) return;
+
+        updateLeadAnchorIndices(anchorIndex, leadIndex);
+        fireValueChanged();
+    }
+
+    /**
+     * Moves the lead, selecting or deselecting the rows between the anchor and the lead to match the anchor
+     *
+     * @param leadIndex - the new lead
+     */
+    @Override
+    public void setLeadSelectionIndex(int leadIndex) {
+        int anchorIndex = this.anchorIndex;
+
+        // A lead of -1 is only allowed if the anchor is -1 too, otherwise nothing happens without an anchor
+        if(leadIndex == -1) {
+            if(anchorIndex == -1) {
+                updateLeadAnchorIndices(anchorIndex, leadIndex);
+                fireValueChanged();
+            }
+            return;
+        }
+        else if(anchorIndex == -1) return;
+
+        if(this.leadIndex == -1) this.leadIndex = leadIndex;
+
+        boolean shouldSelect = isSelectedIndex(this.anchorIndex);
+        if(selectionMode == SINGLE_SELECTION) {
+            anchorIndex = leadIndex;
+            shouldSelect = true;
+        }
+
+        int oldMin = Math.min(this.anchorIndex, this.leadIndex);
+        int oldMax = Math.max(this.anchorIndex, this.leadIndex);
+        int newMin = Math.min(anchorIndex, leadIndex);
+        int newMax = Math.max(anchorIndex, leadIndex);
+
+        updateLeadAnchorIndices(anchorIndex, leadIndex);
+
+        if(shouldSelect) changeSelection(oldMin, oldMax, newMin, newMax, true);
+        else changeSelection(newMin, newMax, oldMin, oldMax, false);
+    }
+
+    /**
+     * Sends the rows changed while the value was adjusting, once it has stopped
+     */
+    @Override
+    protected void fireValueChanged(boolean isAdjusting) {
+        if(lastChangedIndex == -1) return;
+
+        int oldFirstChangedIndex = firstChangedIndex;
+        int oldLastChangedIndex = lastChangedIndex;
+        firstChangedIndex = Integer.MAX_VALUE;
+        lastChangedIndex = -1;
+        fireValueChanged(oldFirstChangedIndex, oldLastChangedIndex, isAdjusting);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(getClass().getName()).append(' ').append(hashCode()).append(' ').append(isAdjusting ? '~' : '=').append('{');
+        for(int i = 0; i < count; i++) {
+            if(i > 0) s.append(", ");
+            s.append(starts[i]);
+            if(ends[i] != starts[i]) s.append('-').append(ends[i]);
+        }
+        return s.append('}').toString();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        RangeListSelectionModel clone = (RangeListSelectionModel) super.clone();
+        clone.starts = starts.clone();
+        clone.ends = ends.clone();
+        return clone;
+    }
+
+    /**
+     * Clears the rows from clearMin to clearMax and selects the rows from setMin to setMax. Where the two overlap
+     * the rows end up selected if clearFirst is true. The event covers the rows whose state actually changed.
+     */
+    private void changeSelection(int clearMin, int clearMax, int setMin, int setMax, boolean clearFirst) {
+        int lo = Math.min(clearMin, setMin);
+        int hi = Math.max(clearMax, setMax);
+        if(lo <= hi) {
+            long[] oldBounds = boundsBetween(lo, hi);
+            if(clearFirst) {
+                deselect(clearMin, clearMax);
+                select(setMin, setMax);
+            }
+            else {
+                select(setMin, setMax);
+                deselect(clearMin, clearMax);
+            }
+            markChanges(oldBounds, boundsBetween(lo, hi));
+        }
+        fireValueChanged();
+    }
+
+    /**
+     * Adds the rows from min to max to the ranges, joining any ranges they overlap or touch
+     */
+    private void select(int min, int max) {
+        if(min > max) return;
+
+        int first = firstEndingFrom(min - 1);
+        int last = lastStartingBy((max == Integer.MAX_VALUE) ? max : max + 1);
+        if(first > last) replace(first, first - 1, 1, min, max, 0, 0);
+        else replace(first, last, 1, Math.min(min, starts[first]), Math.max(max, ends[last]), 0, 0);
+    }
+
+    /**
+     * Takes the rows from min to max out of the ranges, splitting a range that goes over either end
+     */
+    private void deselect(int min, int max) {
+        if(min > max) return;
+
+        int first = firstEndingFrom(min);
+        int last = lastStartingBy(max);
+        if(first > last) return;
+
+        boolean left = starts[first] < min;
+        boolean right = ends[last] > max;
+        if(left && right) replace(first, last, 2, starts[first], min - 1, max + 1, ends[last]);
+        else if(left) replace(first, last, 1, starts[first], min - 1, 0, 0);
+        else if(right) replace(first, last, 1, max + 1, ends[last], 0, 0);
+        else replace(first, last, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Replaces the ranges from first to last with n (0, 1 or 2) new ranges, last may be first - 1 to only insert
+     */
+    private void replace(int first, int last, int n, int start0, int end0, int start1, int end1) {
+        int newCount = count - (last - first + 1) + n;
+        if(newCount > starts.length) {
+            int capacity = Math.max(newCount, starts.length * 2);
+            starts = java.util.Arrays.copyOf(starts, capacity);
+            ends = java.util.Arrays.copyOf(ends, capacity);
+        }
+        System.arraycopy(starts, last + 1, starts, first + n, count - last - 1);
+        System.arraycopy(ends, last + 1, ends, first + n, count - last - 1);
+        if(n > 0) {
+            starts[first] = start0;
+            ends[first] = end0;
+        }
+        if(n > 1) {
+            starts[first + 1] = start1;
+            ends[first + 1] = end1;
+        }
+        count = newCount;
+    }
+
+    /**
+     * Returns the first range that ends at or after index, or count if there isn't one
+     */
+    private int firstEndingFrom(int index) {
+        int low = 0;
+        int high = count;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(ends[middle] < index) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the last range that starts at or before index, or -1 if there isn't one
+     */
+    private int lastStartingBy(int index) {
+        int low = 0;
+        int high = count;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(starts[middle] <= index) low = middle + 1;
+            else high = middle;
+        }
+        return low - 1;
+    }
+
+    /**
+     * Returns the range index is in or -1 if it isn't selected
+     */
+    private int rangeAt(int index) {
+        int range = firstEndingFrom(index);
+        return (range < count && starts[range] <= index) ? range : -1;
+    }
+
+    /**
+     * Returns the edges of the selection between lo and hi, the first row of each range and the row after its end
+     */
+    private long[] boundsBetween(int lo, int hi) {
+        int first = firstEndingFrom(lo);
+        int last = lastStartingBy(hi);
+        long[] bounds = new long[Math.max(0, last - first + 1) * 2];
+        for(int i = first, j = 0; i <= last; i++) {
+            bounds[j++] = Math.max(starts[i], lo);
+            bounds[j++] = Math.min(ends[i], hi) + 1L;
+        }
+        return bounds;
+    }
+
+    /**
+     * Marks the first and last row whose state differs between two sets of edges. An edge that is in both doesn't
+     * change anything, what's left are the edges of the rows that changed.
+     */
+    private void markChanges(long[] oldBounds, long[] newBounds) {
+        int i = 0;
+        int j = 0;
+        while(i < oldBounds.length && j < newBounds.length && oldBounds[i] == newBounds[j]) {
+            i++;
+            j++;
+        }
+        if(i == oldBounds.length && j == newBounds.length) return;
+        long first = Math.min((i < oldBounds.length) ? oldBounds[i] : Long.MAX_VALUE, (j < newBounds.length) ? newBounds[j] : Long.MAX_VALUE);
+
+        i = oldBounds.length - 1;
+        j = newBounds.length - 1;
+        while(i >= 0 && j >= 0 && oldBounds[i] == newBounds[j]) {
+            i--;
+            j--;
+        }
+        long last = Math.max((i >= 0) ? oldBounds[i] : Long.MIN_VALUE, (j >= 0) ? newBounds[j] : Long.MIN_VALUE) - 1;
+
+        markAsDirty((int) first);
+        markAsDirty((int) Math.min(last, Integer.MAX_VALUE));
+    }
+
+    private void markAsDirty(int index) {
+        if(index == -1) return;
+        firstAdjustedIndex = Math.min(firstAdjustedIndex, index);
+        lastAdjustedIndex = Math.max(lastAdjustedIndex, index);
+    }
+
+    private void updateLeadAnchorIndices(int anchorIndex, int leadIndex) {
+        if(leadAnchorNotificationEnabled) {
+            if(this.anchorIndex != anchorIndex) {
+                markAsDirty(this.anchorIndex);
+                markAsDirty(anchorIndex);
+            }
+            if(this.leadIndex != leadIndex) {
+                markAsDirty(this.leadIndex);
+                markAsDirty(leadIndex);
+            }
+        }
+        this.anchorIndex = anchorIndex;
+        this.leadIndex = leadIndex;
+    }
+
+    /**
+     * Sends an event for the rows changed since the last one, while the value is adjusting they are also
+     * remembered for the event sent when it stops
+     */
+    private void fireValueChanged() {
+        if(lastAdjustedIndex == -1) return;
+
+        if(isAdjusting) {
+            firstChangedIndex = Math.min(firstChangedIndex, firstAdjustedIndex);
+            lastChangedIndex = Math.max(lastChangedIndex, lastAdjustedIndex);
+        }
+        int oldFirstAdjustedIndex = firstAdjustedIndex;
+        int oldLastAdjustedIndex = lastAdjustedIndex;
+        firstAdjustedIndex = Integer.MAX_VALUE;
+        lastAdjustedIndex = -1;
+        fireValueChanged(oldFirstAdjustedIndex, oldLastAdjustedIndex);
+    }
+
+    private int getClearMin() {
+        return (count == 0) ? Integer.MAX_VALUE : starts[0];
+    }
+
+    private int getClearMax() {
+        return (count == 0) ? -1 : ends[count - 1];
+    }
+
+    private static int shift(int index, int length) {
+        return (index > Integer.MAX_VALUE - length) ? Integer.MAX_VALUE : index + length;
+    }
+}
@@ -0,0 +1,209 @@
+package TreeTable;
+
+import javax.swing.JTree;
+import javax.swing.tree.TreePath;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Works out the changes that turn the children of a node into a new snapshot of them and makes them, for
+ * AbstractTreeTableModel.reconcile. It must be used during a batch, the batch works out the events.
+ *
+ * Old and new children are matched by key. A matched old child is kept, so the JTree and the selection still
+ * know it, and takes over the values of the new one if they differ. Its children are then reconciled with those
+ * of the new one in the same way. Old children without a match are removed and new ones without a match are
+ * inserted with everything underneath them. Of the matched children the most that are already in the right order
+ * are left where they are, the rest are moved.
+ *
+ * Moving a node means removing it and inserting it again so the JTree forgets what was expanded underneath it and
+ * the table forgets which of its rows were selected. That is remembered for the rows that are showing and put back
+ * with restoreView() once the events have been fired.
+ */
+class Reconciler {
+    private AbstractTreeTableModel model;
+    private Function<? super TreeTableNode, ?> keyFn;
+
+    // Paths that were expanded and nodes that were selected or not in the rows of the moved nodes
+    private List<TreePath> expandedPaths = new ArrayList<TreePath>();
+    private List<Object> selectedNodes = new ArrayList<Object>();
+    private List<Object> unselectedNodes = new ArrayList<Object>();
+
+    /**
+     * Creates a reconciler for model that matches nodes by the keys keyFn gives them
+     *
+     * @param model - the model that is being updated
+     * @param keyFn - gives the key of a node, nodes with equal keys are the same node
+     */
+    Reconciler(AbstractTreeTableModel model, Function<? super TreeTableNode, ?> keyFn) {
+        this.model = model;
+        this.keyFn = keyFn;
+    }
+
+    /**
+     * Turns the children of parent into newChildren, and the descendants of each child into those of the new child
+     * with the same key
+     *
+     * @param parent - the node whose children are being reconciled
+     * @param newChildren - the new children
+     */
+    void reconcile(TreeTableNode parent, TreeTableNode[] newChildren) {
+        int oldCount = model.getChildCount(parent);
+        TreeTableNode[] oldChildren = new TreeTableNode[oldCount];
+        Map<Object, Integer> oldIndex = new HashMap<Object, Integer>();
+        for(int i = 0; i < oldCount; i++) {
+            oldChildren[i] = parent.getChildAt(i);
+            Object key = keyFn.apply(oldChildren[i]);
+            if(!oldIndex.containsKey(key)) oldIndex.put(key, i);
+        }
+
+        // Match the new children with the old ones, matched[j] is the index of the old child kept for new child j
+        int[] matched = new int[newChildren.length];
+        boolean[] changed = new boolean[newChildren.length];
+        Set<Object> newKeys = new HashSet<Object>();
+        int matchCount = 0;
+        for(int j = 0; j < newChildren.length; j++) {
+            Object key = keyFn.apply(newChildren[j]);
+            if(!newKeys.add(key)) throw new IllegalArgumentException("More than one new child has the key " + key + ".");
+
+            matched[j] = -1;
+            Integer i = oldIndex.get(key);
+            if(i == null) continue;
+            TreeTableNode node = oldChildren[i];
+            if(node != newChildren[j] && !sameValues(node, newChildren[j])) {
+                // A node that can't take over the new values is replaced
+                if(!model.updateNode(node, newChildren[j])) continue;
+                changed[j] = true;
+            }
+            matched[j] = i;
+            matchCount++;
+        }
+
+        // The matched children that can stay where they are
+        int[] sequence = new int[matchCount];
+        for(int j = 0, k = 0; j < newChildren.length; j++) if(matched[j] >= 0) sequence[k++] = matched[j];
+        boolean[] inOrder = UpdateBatch.longestIncreasing(sequence);
+        boolean[] stays = new boolean[oldCount];
+        int stayCount = 0;
+        for(int j = 0, k = 0; j < newChildren.length; j++) {
+            if(matched[j] < 0) continue;
+            if(inOrder[k++]) {
+                stays[matched[j]] = true;
+                stayCount++;
+            }
+            else rememberView(oldChildren[matched[j]]);
+        }
+
+        if(stayCount < oldCount || stayCount < newChildren.length) {
+            model.childrenChanging(parent);
+            // Take out everything that isn't staying from the end so the indices still hold
+            for(int i = oldCount - 1; i >= 0; i--) if(!stays[i]) parent.remove(i);
+            // The children that stayed are in order so each of the others goes in at its final index
+            for(int j = 0; j < newChildren.length; j++) {
+                if(matched[j] < 0) parent.insert(newChildren[j], j);
+                else if(!stays[matched[j]]) parent.insert(oldChildren[matched[j]], j);
+            }
+        }
+
+        for(int j = 0; j < newChildren.length; j++) {
+            if(matched[j] < 0) continue;
+
+            TreeTableNode node = oldChildren[matched[j]];
+            if(changed[j]) model.nodeChanged(node);
+            if(node != newChildren[j]) reconcile(node, childrenOf(newChildren[j]));
+        }
+    }
+
+    /**
+     * Expands the paths and selects the nodes that were expanded and selected in the rows of the moved nodes again.
+     * Call this once the events of the batch have been fired.
+     */
+    void restoreView() {
+        JTree tree = model.getTree();
+        if(tree == null) return;
+
+        // Parents come before their children so each path is showing by the time it is expanded
+        for(TreePath path : expandedPaths) if(isInModel(path)) tree.expandPath(path);
+
+        // The table selects rows inserted into a selected block, so the rows that weren't selected need putting back too
+        TreePath[] paths = pathsFor(unselectedNodes);
+        if(paths.length > 0) tree.removeSelectionPaths(paths);
+        paths = pathsFor(selectedNodes);
+        if(paths.length > 0) tree.addSelectionPaths(paths);
+    }
+
+    /**
+     * Returns the paths to the nodes that are showing
+     */
+    private TreePath[] pathsFor(List<Object> nodes) {
+        List<TreePath> paths = new ArrayList<TreePath>();
+        for(Object node : nodes) {
+            int row = model.rowForNode(node);
+            if(row >= 0) paths.add(model.getTree().getPathForRow(row));
+        }
+        return paths.toArray(new TreePath[paths.size()]);
+    }
+
+    /**
+     * Remembers what was expanded and selected in the rows of node, which is about to be moved
+     */
+    private void rememberView(TreeTableNode node) {
+        JTree tree = model.getTree();
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        if(tree == null || rowIndex == null) return;
+
+        int row = rowIndex.getRow(node);
+        if(row < 0) return;
+
+        int last = row + rowIndex.getDescendantCount(row);
+        for(int r = row; r <= last; r++) {
+            if(tree.isExpanded(r)) expandedPaths.add(tree.getPathForRow(r));
+            if(tree.isRowSelected(r)) selectedNodes.add(rowIndex.getNode(r));
+            else unselectedNodes.add(rowIndex.getNode(r));
+        }
+    }
+
+    /**
+     * Returns true if node and newNode show the same values, leaving out aggregate columns
+     */
+    private boolean sameValues(TreeTableNode node, TreeTableNode newNode) {
+        for(int column = 0; column < model.getColumnCount(); column++) {
+            if(model.isAggregate(column)) continue;
+
+            Object value = model.getValueAt(node, column);
+            Object newValue = model.getValueAt(newNode, column);
+            // Models often give the node itself for the tree column, the JTree shows its toString()
+            if(value == node && newValue == newNode) {
+                value = String.valueOf(value);
+                newValue = String.valueOf(newValue);
+            }
+            if(!Objects.equals(value, newValue)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the children of node, copied out so that they can be moved without changing the copy
+     */
+    private TreeTableNode[] childrenOf(TreeTableNode node) {
+        TreeTableNode[] children = new TreeTableNode[model.getChildCount(node)];
+        for(int i = 0; i < children.length; i++) children[i] = node.getChildAt(i);
+        return children;
+    }
+
+    /**
+     * Returns true if each node in path is still a child of the one before it
+     */
+    private boolean isInModel(TreePath path) {
+        if(path.getPathComponent(0) != model.getRoot()) return false;
+        for(int i = 1; i < path.getPathCount(); i++) {
+            if(model.getIndexOfChild(path.getPathComponent(i - 1), path.getPathComponent(i)) < 0) return false;
+        }
+        return true;
+    }
+}
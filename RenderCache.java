@@ -0,0 +1,140 @@
+package TreeTable;
+
+import javax.swing.Icon;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableCellRenderer;
+import java.awt.Font;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A cache of the text cells are rendered with, so that repainting a cell that hasn't changed doesn't format its
+ * value or measure its label again. See CellCache for how entries are kept and keyed.
+ *
+ * TreeTable puts one of these in front of its renderers when setRenderCacheSize(int) is called. Each entry keeps
+ * the value the text was made from, a value that isn't equal to it is a new version of the cell and the text is
+ * made again. The label of the node in the tree column is kept under the column LABEL, made from the node itself,
+ * with the width it was measured at. The TreeTable drops the entries for a node when the model says it has
+ * changed or been removed, so a node whose toString() changes is picked up too.
+ */
+public class RenderCache extends CellCache<RenderCache.Entry> {
+    // The column the label of the node in the tree column is kept under
+    static final int LABEL = -1;
+
+    // The renderers JTable installs for Object, Number, Float, Double and Date. They only use the value to set
+    // their text so a cached text can be put back without them seeing the value. The JTable ones are private
+    // classes of the JDK so they can only be named here, the names have been the same since 1.2 and a JDK that
+    // renamed or changed them would only miss this set and render without the cache, never with a wrong text.
+    // Subclasses aren't in the set, they may override setValue to do more than set the text
+    private static final Set<String> DEFAULT_RENDERERS = new HashSet<String>(Arrays.asList(
+            "javax.swing.table.DefaultTableCellRenderer",
+            "javax.swing.table.DefaultTableCellRenderer$UIResource",
+            "javax.swing.JTable$NumberRenderer",
+            "javax.swing.JTable$DoubleRenderer",
+            "javax.swing.JTable$DateRenderer"));
+
+    /**
+     * Creates an empty cache that holds up to maxSize entries
+     *
+     * @param maxSize - maximum number of entries, must be greater than 0
+     */
+    RenderCache(int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * Returns true if the text renderer gives a cell can be cached. Only the JTable default renderers are, a
+     * renderer that has been subclassed could do anything else with the value.
+     *
+     * @param renderer - the renderer of the cell
+     * @return boolean - true if the text can be cached
+     */
+    static boolean canCacheText(TableCellRenderer renderer) {
+        return renderer instanceof DefaultTableCellRenderer && DEFAULT_RENDERERS.contains(renderer.getClass().getName());
+    }
+
+    /**
+     * Returns the text cached for column of node if it was made from a value equal to value
+     *
+     * @param node - the node of the cell
+     * @param column - the model column of the cell or LABEL
+     * @param value - the value the cell shows now
+     * @return String - the cached text or null if there isn't one for value
+     */
+    synchronized String getText(Object node, int column, Object value) {
+        Entry entry = get(node, column);
+        if(entry == null || !(entry.value == value || (value != null && value.equals(entry.value)))) {
+            miss();
+            return null;
+        }
+        hit();
+        return entry.text;
+    }
+
+    /**
+     * Caches text as the text of column of node, made from value
+     */
+    void putText(Object node, int column, Object value, String text) {
+        put(node, column, new Entry(value, text));
+    }
+
+    /**
+     * Returns the width the cached text for column of node was measured at with icon and font, -1 if it hasn't been.
+     * This doesn't count as a hit or a miss, the lookup of the text did that.
+     *
+     * @param node - the node of the cell
+     * @param column - the model column of the cell or LABEL
+     * @param text - the text of the label, the one from getText(Object, int, Object)
+     * @param icon - the icon of the label
+     * @param font - the font of the label
+     * @return int - the width or -1
+     */
+    synchronized int getWidth(Object node, int column, String text, Icon icon, Font font) {
+        Entry entry = get(node, column);
+        if(entry == null || entry.text != text || entry.icon != icon || entry.font != font) return -1;
+        return entry.width;
+    }
+
+    /**
+     * Caches width as the width of the text of column of node with icon and font, if that text is still cached
+     */
+    synchronized void putWidth(Object node, int column, String text, Icon icon, Font font, int width) {
+        Entry entry = get(node, column);
+        if(entry == null || entry.text != text) return;
+        entry.icon = icon;
+        entry.font = font;
+        entry.width = width;
+    }
+
+    /**
+     * Drops the text for column of node
+     */
+    void invalidate(Object node, int column) {
+        remove(node, column);
+    }
+
+    /**
+     * Drops the text for every column of node, and its label if label is true
+     */
+    synchronized void invalidateNode(Object node, int columnCount, boolean label) {
+        removeNode(node, columnCount);
+        if(label) remove(node, LABEL);
+    }
+
+    /**
+     * The text of a cell, the value it was made from and, for a label, what it was measured with
+     */
+    static class Entry {
+        Object value;
+        String text;
+        Icon icon;
+        Font font;
+        int width = -1;
+
+        Entry(Object value, String text) {
+            this.value = value;
+            this.text = text;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package TreeTable;
 
+import javax.swing.JLabel;
 import javax.swing.JTable;
+import javax.swing.JViewport;
+import javax.swing.ListSelectionModel;
+import javax.swing.RowSorter;
+import javax.swing.table.TableModel;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.TableRowSorter;
 import javax.swing.table.TableCellRenderer;
 
 import javax.swing.tree.TreePath;
@@ -38,6 +45,13 @@ public class TreeTable extends JTable {
     // Stores the Icon used for expanded rows
     private Icon expandedIcon;
 
+    // Hands the rows that are about to be scrolled into view to the model, null when prefetching is off
+    private ViewportPrefetcher prefetcher;
+    // Keeps the selection and the row at the top of the viewport in place while rows change
+    private ViewKeeper viewKeeper;
+    // Text the cells were last rendered with, null unless turned on with setRenderCacheSize
+    private RenderCache renderCache;
+
     /**
      * Contructor for the TreeTable. This takes a TreeTableModel object and configures and glues the JTree and JTable components together.
      *
@@ -59,9 +73,11 @@ public class TreeTable extends JTable {
         setDefaultRenderer(TreeTableModel.class, tree);
 
         // Create a TreeTableSelectionModel
-        TreeTableSelectionModel selectionModel = new TreeTableSelectionModel();
+        TreeTableSelectionModel selectionModel = new TreeTableSelectionModel(this);
         // Set the SelectionModel on the tree
         tree.setSelectionModel(selectionModel);
+        // Selected rows are always visible, without this the JTree builds the path of every selected row on each change to make them so
+        tree.setExpandsSelectedPaths(false);
         // Set the SelectionModel on the table
         setSelectionModel(selectionModel.getListSelectionModel());
 
@@ -73,6 +89,10 @@ public class TreeTable extends JTable {
         // Configure the JTree in the TreeTableModel
         treeTableModel.setupJTree(tree);
 
+        // Keep the user's place when rows are inserted, removed or replaced
+        viewKeeper = new ViewKeeper(this);
+        treeTableModel.setViewKeeper(viewKeeper);
+
         // TODO: Implement a property change listener for this
         // Get the orientation of the tree
         leftToRight = tree.getComponentOrientation().isLeftToRight();
@@ -110,6 +130,208 @@ public class TreeTable extends JTable {
         tree.setShowsRootHandles(newValue);
     }
 
+    /**
+     * Turns large model mode on or off. In large model mode the JTree lays its rows out with a
+     * FixedHeightLayoutCache, which only keeps an entry for each expanded node and works rows out from the fixed
+     * row height, instead of a VariableHeightLayoutCache which keeps an entry with its own bounds for every
+     * visible row. Worth turning on for models with a lot of expanded rows.
+     *
+     * All rows must then be the same height, set it with setRowHeight(int). Giving single rows their own height
+     * with setRowHeight(int, int) isn't allowed while large model mode is on.
+     *
+     * @param largeModel - true to turn large model mode on
+     */
+    public void setLargeModel(boolean largeModel) {
+        if(largeModel && getRowHeight() <= 0) throw new IllegalStateException("Large model mode needs a fixed row height.");
+        // Throw away any heights for single rows, the layout cache can only work with one
+        if(largeModel) super.setRowHeight(getRowHeight());
+        tree.setLargeModel(largeModel);
+    }
+
+    /**
+     * Returns true if large model mode is on
+     *
+     * @return boolean - true if the JTree uses a fixed height layout
+     */
+    public boolean isLargeModel() {
+        return tree.isLargeModel();
+    }
+
+    /**
+     * Overrides this method from JTable so that the JTree rows stay the same height as the table rows
+     *
+     * @param rowHeight - new height of every row in pixels
+     */
+    @Override
+    public void setRowHeight(int rowHeight) {
+        super.setRowHeight(rowHeight);
+        // The JTree sets the height of the table back to its own, only tell it if it is different to stop that going round in circles
+        if(tree != null && tree.getRowHeight() != rowHeight) tree.setRowHeight(rowHeight);
+    }
+
+    /**
+     * Overrides this method from JTable so that single rows can't be given their own height in large model mode
+     *
+     * @param row - the row to change
+     * @param rowHeight - new height of the row in pixels
+     */
+    @Override
+    public void setRowHeight(int row, int rowHeight) {
+        if(tree != null && tree.isLargeModel()) throw new IllegalStateException("Rows can't have their own height in large model mode.");
+        super.setRowHeight(row, rowHeight);
+    }
+
+    /**
+     * Overrides this method from JTable so that the TableRowSorter JTable creates when autoCreateRowSorter is set
+     * is replaced with a TreeTableRowSorter, a TableRowSorter would sort the children away from their parents.
+     *
+     * @param sorter - the RowSorter to use or null to turn sorting off
+     */
+    @Override
+    public void setRowSorter(RowSorter<? extends TableModel> sorter) {
+        if(sorter instanceof TableRowSorter && getAutoCreateRowSorter() && treeTableModel != null) sorter = new TreeTableRowSorter(treeTableModel);
+        super.setRowSorter(sorter);
+    }
+
+    /**
+     * Makes the node at the end of path visible, selects its row and scrolls it into view. Only the ancestors of
+     * the node are expanded, the rest of the tree is left as it was. Used with TreeTableSearchIndex to jump to a match.
+     *
+     * @param path - path from the root to the node to show
+     */
+    public void revealPath(TreePath path) {
+        if(path == null) return;
+        tree.makeVisible(path);
+
+        int row = treeTableModel.rowForNode(path.getLastPathComponent());
+        if(row < 0) return;
+        row = convertRowIndexToView(row);
+        if(row < 0) return;
+
+        setRowSelectionInterval(row, row);
+        scrollRectToVisible(getCellRect(row, 0, true));
+    }
+
+    /**
+     * Inverts the selection, every selected row is deselected and every other row is selected. This goes through
+     * the blocks of selected rows and not the rows themselves, so it is as quick for a million rows as for ten.
+     *
+     * Only a table that allows multiple intervals to be selected can have its selection inverted.
+     */
+    public void invertSelection() {
+        if(getRowCount() == 0) return;
+
+        ListSelectionModel rows = getSelectionModel();
+        if(rows instanceof RangeListSelectionModel) {
+            ((RangeListSelectionModel) rows).invertSelection(0, getRowCount() - 1);
+            return;
+        }
+
+        // Another selection model has been set on the table, go through the rows one at a time
+        if(rows.getSelectionMode() != ListSelectionModel.MULTIPLE_INTERVAL_SELECTION) throw new IllegalStateException("Only a multiple interval selection can be inverted.");
+        rows.setValueIsAdjusting(true);
+        try {
+            for(int row = 0; row < getRowCount(); row++) {
+                if(rows.isSelectedIndex(row)) rows.removeSelectionInterval(row, row);
+                else rows.addSelectionInterval(row, row);
+            }
+        }
+        finally {
+            rows.setValueIsAdjusting(false);
+        }
+    }
+
+    /**
+     * Sets the number of rows beyond the edge of the viewport that are prefetched. While the TreeTable is being
+     * scrolled the nodes of the next rows in the direction of the scroll are passed to
+     * AbstractTreeTableModel.prefetch(Object, int[]) on a background thread, so that slow values can be worked
+     * out before the rows are painted. By default that fills the model's value cache, so the model has to be
+     * safe to read from another thread. If the model throws while prefetching the exception is logged and
+     * prefetching stops until this is called again. The default is 0 which turns prefetching off.
+     *
+     * @param rows - number of rows to prefetch, 0 to turn it off
+     */
+    public void setPrefetchRows(int rows) {
+        if(rows < 0) throw new IllegalArgumentException("rows must not be negative.");
+
+        if(rows == 0) {
+            if(prefetcher != null) prefetcher.dispose();
+            prefetcher = null;
+        }
+        else if(prefetcher == null) {
+            prefetcher = new ViewportPrefetcher(this, rows);
+            prefetcher.setViewport(getEnclosingViewport());
+        }
+        else prefetcher.setRows(rows);
+    }
+
+    /**
+     * Returns the number of rows beyond the edge of the viewport that are prefetched
+     *
+     * @return int - number of rows, 0 if prefetching is off
+     */
+    public int getPrefetchRows() {
+        return (prefetcher != null) ? prefetcher.getRows() : 0;
+    }
+
+    /**
+     * Turns on a cache of the text of up to size cells, or turns it off if size is 0. Repainting a cell that
+     * hasn't changed then reuses the text it was rendered with instead of formatting its value again, and the label
+     * in the tree column isn't measured again either. This is worth it for big tables that repaint a lot, for
+     * example while being scrolled or while a few of their cells are updated many times a second.
+     *
+     * Text is only cached for cells that use one of the renderers JTable installs by default and for the label of
+     * the node in the tree column. A cell is rendered again when its value is no longer equal to the one its text
+     * was made from. The label is made from the node itself, so it is only rendered again when the model is told
+     * the node has changed in the same way as for setValueCacheSize(int).
+     *
+     * @param size - maximum number of cells to cache, 0 to turn the cache off
+     */
+    public void setRenderCacheSize(int size) {
+        if(size < 0) throw new IllegalArgumentException("size must not be negative.");
+
+        if(size == 0) renderCache = null;
+        else if(renderCache == null) renderCache = new RenderCache(size);
+        else renderCache.setMaxSize(size);
+        treeTableModel.setRenderCache(renderCache);
+        repaint();
+    }
+
+    /**
+     * Returns the render cache so that its hit, miss and eviction counts can be read
+     *
+     * @return RenderCache - the render cache or null if it is turned off
+     */
+    public RenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    /**
+     * Overrides this method from JTable so that the prefetcher follows the TreeTable into a scroll pane
+     */
+    @Override
+    protected void configureEnclosingScrollPane() {
+        super.configureEnclosingScrollPane();
+        if(prefetcher != null) prefetcher.setViewport(getEnclosingViewport());
+    }
+
+    /**
+     * Overrides this method from JTable so that the prefetcher stops watching the scroll pane the TreeTable was taken out of
+     */
+    @Override
+    protected void unconfigureEnclosingScrollPane() {
+        super.unconfigureEnclosingScrollPane();
+        if(prefetcher != null) prefetcher.setViewport(null);
+    }
+
+    /**
+     * Returns the viewport the TreeTable is the view of or null if it isn't in one
+     */
+    JViewport getEnclosingViewport() {
+        if(getParent() instanceof JViewport && ((JViewport) getParent()).getView() == this) return (JViewport) getParent();
+        return null;
+    }
+
     /**
      * Overrides the prepare renderer from JTable to ensure that the row and column
      * passed to the renderer gets looked up in the view instead of passing them raw
@@ -141,7 +363,23 @@ public class TreeTable extends JTable {
         }
 
         // When calling the renderer, send the converted row and column indexes. This is because it is our responsibility to convert this, not the renderer and if we don't, it will use the wrong indexes
-        return renderer.getTableCellRendererComponent(this, value, isSelected, hasFocus, convertRowIndexToModel(row), convertColumnIndexToModel(column));
+        int modelRow = convertRowIndexToModel(row);
+        int modelColumn = convertColumnIndexToModel(column);
+        RenderCache cache = renderCache;
+        if(cache == null || !RenderCache.canCacheText(renderer)) return renderer.getTableCellRendererComponent(this, value, isSelected, hasFocus, modelRow, modelColumn);
+
+        Object node = treeTableModel.nodeForRow(modelRow);
+        String text = cache.getText(node, modelColumn, value);
+        if(text != null) {
+            // The default renderers only use the value for the text, without one they just set up the colours, font and border
+            JLabel label = (JLabel) renderer.getTableCellRendererComponent(this, null, isSelected, hasFocus, modelRow, modelColumn);
+            label.setText(text);
+            return label;
+        }
+
+        JLabel label = (JLabel) renderer.getTableCellRendererComponent(this, value, isSelected, hasFocus, modelRow, modelColumn);
+        cache.putText(node, modelColumn, value, label.getText());
+        return label;
     }
 
     /**
@@ -159,7 +397,9 @@ public class TreeTable extends JTable {
             MouseEvent me = (MouseEvent) e;
             // TODO: Need to expand on this to add drag and drop support
             // If the mouse click is within the expandable control area, expand the row in the view
-            if(isLocationInExpandControl(tree.getPathForRow(convertRowIndexToModel(row)), me.getX(), me.getY())) tree.toggleExpandedState(convertRowIndexToModel(row));
+            // The node and its depth come from the model's row index so no TreePath is needed unless the row is toggled
+            int modelRow = convertRowIndexToModel(row);
+            if(isLocationInExpandControl(treeTableModel.nodeForRow(modelRow), treeTableModel.getRowIndex().getDepth(modelRow), me.getX())) tree.toggleExpandedState(modelRow);
         }
         // Catch any exceptions, do nothing
         catch(Exception ex) {
@@ -168,7 +408,32 @@ public class TreeTable extends JTable {
         return super.editCellAt(row, column, e);
     }
 
-    // TODO: This is a bit of a dirty hack, see the TODO in nodesWereInserted
+    /**
+     * Overrides this method from JTable so that the row at the top of the viewport stays there when rows are
+     * inserted or removed above it
+     *
+     * @param e - the event from the model
+     */
+    @Override
+    public void tableChanged(TableModelEvent e) {
+        invalidateRenderCache(e);
+        // The JTable constructor sends an event before there is a keeper
+        if(viewKeeper != null) viewKeeper.tableChanging(e);
+        super.tableChanged(e);
+        if(viewKeeper != null) viewKeeper.tableChanged(e);
+    }
+
+    /**
+     * Drops the cached text if e says the whole table or its columns have changed. The model drops the text of the
+     * nodes it is told have changed itself, the text of a cell in a row that is updated any other way is made again
+     * once its value changes.
+     */
+    private void invalidateRenderCache(TableModelEvent e) {
+        if(renderCache == null || e == null || e.getType() != TableModelEvent.UPDATE) return;
+        if(e.getFirstRow() == TableModelEvent.HEADER_ROW || e.getLastRow() == Integer.MAX_VALUE) renderCache.clear();
+    }
+
+    // TODO: This is a bit of a dirty hack, the JTree can ask for the view row of a node while the JTable still has no rows
     @Override
     public int convertRowIndexToView(int modelRowIndex) {
         if(getRowCount() == 0) return 0;
@@ -189,14 +454,28 @@ public class TreeTable extends JTable {
      *         is used to expand/collapse the node and the node is not a leaf.
      */
     protected boolean isLocationInExpandControl(TreePath path, int mouseX, int mouseY) {
-        if(path != null && !treeTableModel.isLeaf(path.getLastPathComponent())) {
+        if(path == null) return false;
+        return isLocationInExpandControl(path.getLastPathComponent(), path.getPathCount() - 1, mouseX);
+    }
+
+    /**
+     * Returns true if mouseX falls in the expand control of node, which is displayed at depth. This is only
+     * arithmetic on the depth, the JTree isn't asked where the row is.
+     *
+     * @param node - the node of the row
+     * @param depth - depth of the node, the root has a depth of 0
+     * @param mouseX - an X coordinate
+     * @return boolean - true if node isn't a leaf and mouseX is over its expand control
+     */
+    private boolean isLocationInExpandControl(Object node, int depth, int mouseX) {
+        if(node != null && !treeTableModel.isLeaf(node)) {
             int boxWidth;
             Insets i = tree.getInsets();
 
             if(getExpandedIcon() != null) boxWidth = getExpandedIcon().getIconWidth();
             else boxWidth = 8;
 
-            int boxLeftX = getRowX(tree.getRowForPath(path), path.getPathCount() - 1);
+            int boxLeftX = getRowX(depth);
 
             if (leftToRight) boxLeftX = boxLeftX + i.left - getRightChildIndent() + 1;
             else boxLeftX = tree.getWidth() - boxLeftX - i.right + getRightChildIndent() - 1;
@@ -229,7 +508,7 @@ public class TreeTable extends JTable {
         return expandedIcon;
     }
 
-    private int getRowX(int row, int depth) {
+    private int getRowX(int depth) {
         return getChildIndent() * (depth + getDepthOffset());
     }
 
@@ -2,6 +2,7 @@ package TreeTable;
 
 import javax.swing.JTree;
 import javax.swing.tree.DefaultTreeCellRenderer;
+import javax.swing.tree.TreeCellRenderer;
 import javax.swing.table.TableCellRenderer;
 import java.awt.Component;
 import javax.swing.JTable;
@@ -12,18 +13,61 @@ import java.awt.Rectangle;
 
 import javax.swing.tree.TreePath;
 
+import javax.swing.CellRendererPane;
+import javax.swing.Icon;
+import javax.swing.JLabel;
+import javax.swing.UIManager;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.plaf.basic.BasicTreeUI;
+import javax.swing.plaf.metal.MetalTreeUI;
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Stroke;
+import java.util.Arrays;
+
 /**
  * This class is responsible for rendering individual cells in the TreeTable. Unlike the DefaultTableCellRenderer which extends JLabel, we 
  * extend JTree here so that rows are expandable.
  *
+ * Each cell only paints its own row. Rather than letting BasicTreeUI.paint work out which paths are visible from the
+ * layout cache for every cell, the node, its depth and whether it is expanded come from the row index of the model and
+ * the lines, expand control and label are drawn the same way BasicTreeUI would draw them. The lines need to know
+ * which ancestors of the node have siblings after them, this is carried over from one row to the next as the table
+ * paints the rows in order so only the first row of a paint needs a TreePath.
+ *
+ * This is only done for the Basic and Metal tree UIs, other UIs change how the rows look by overriding the protected
+ * painting methods of BasicTreeUI so the whole JTree is painted for them, translated so that the row lines up with the cell.
  */
 public class TreeTableCellRenderer extends JTree implements TableCellRenderer {
     // Store a reference to the TreeTable
     private TreeTable treeTable;
     // Store a reference to the row that was rendered last
     private int lastRenderedRow;
+    // Whether the JTable said the row rendered last is selected
+    private boolean lastRenderedSelected;
     // Store a reference to the JTree cell renderer
     private DefaultTreeCellRenderer treeRenderer;
+    // The model when it is an AbstractTreeTableModel, rows can only be painted without the JTree if it is
+    private AbstractTreeTableModel model;
+    // Used to paint the label of the row
+    private CellRendererPane rendererPane = new CellRendererPane();
+
+    // Look and feel settings for painting the lines, set when the UI is installed
+    private boolean paintLines;
+    private boolean lineTypeDashed;
+    private Color hashColor;
+    private Color lineColor;
+
+    // The row the nodes and siblings below were worked out for, -1 if they need working out again
+    private int legRow = -1;
+    // The nodes from the root down to the node in legRow, by depth
+    private Object[] legNodes = new Object[16];
+    // True for each node in legNodes that has a sibling after it, the line down to that sibling passes through the rows in between
+    private boolean[] legSiblings = new boolean[16];
+    // For each depth the first row after legRow that is no deeper, where the subtree of the node in legNodes ends
+    private int[] legEnds = new int[16];
 
     // TODO: The following TODO Needs checking, I think the JTable is already converting it so I don't think it needs converting...
     // TODO: All JTree methods need to be checked (like isRowSelected) to see if they also require having row input converted to the view row. This needs to happen if the view has been sorted
@@ -35,8 +79,8 @@ public class TreeTableCellRenderer extends JTree implements TableCellRenderer {
      *
      */
     public TreeTableCellRenderer(TreeTable treeTable, TreeTableModel treeTableModel) {
-        // Set the model of the TreeTable using the supers constructor
-        super(treeTableModel);
+        // Set the model of the TreeTable using the supers constructor, wrapped so the JTree stays in step with batches of changes
+        super((treeTableModel instanceof AbstractTreeTableModel) ? new LayoutTreeModel((AbstractTreeTableModel) treeTableModel) : treeTableModel);
         // Set the reference to the treeTable that we are being used with
         this.treeTable = treeTable;
 
@@ -45,48 +89,111 @@ public class TreeTableCellRenderer extends JTree implements TableCellRenderer {
 
         // Get the JTree renderer
         treeRenderer = (DefaultTreeCellRenderer) this.getCellRenderer();
+
+        if(treeTableModel instanceof AbstractTreeTableModel) {
+            model = (AbstractTreeTableModel) treeTableModel;
+            // Any change to the rows can change which nodes have siblings after them
+            model.addTableModelListener(new TableModelListener() {
+                public void tableChanged(TableModelEvent e) {
+                    legRow = -1;
+                }
+            });
+        }
+    }
+
+    /**
+     * Overrides this method from JTree to pick up the settings for painting the lines from the new look and feel
+     */
+    @Override
+    public void updateUI() {
+        super.updateUI();
+        paintLines = UIManager.getBoolean("Tree.paintLines");
+        lineTypeDashed = UIManager.getBoolean("Tree.lineTypeDashed");
+        hashColor = UIManager.getColor("Tree.hash");
+        lineColor = UIManager.getColor("Tree.line");
+        legRow = -1;
+    }
+
+    /**
+     * Overrides this method from JTree so that the text of a node comes from the render cache of the TreeTable when
+     * it has one. The DefaultTreeCellRenderer asks for it every time a row is painted or measured.
+     *
+     * @param value - the node to convert to text
+     * @param selected - true if the node is selected
+     * @param expanded - true if the node is expanded
+     * @param leaf - true if the node is a leaf
+     * @param row - the row of the node
+     * @param hasFocus - true if the node has the focus
+     * @return String - the text of the node
+     */
+    @Override
+    public String convertValueToText(Object value, boolean selected, boolean expanded, boolean leaf, int row, boolean hasFocus) {
+        // The JTree constructor can ask before there is a TreeTable
+        RenderCache cache = (treeTable != null) ? treeTable.getRenderCache() : null;
+        if(cache == null || value == null) return super.convertValueToText(value, selected, expanded, leaf, row, hasFocus);
+
+        String text = cache.getText(value, RenderCache.LABEL, value);
+        if(text == null) {
+            text = super.convertValueToText(value, selected, expanded, leaf, row, hasFocus);
+            cache.putText(value, RenderCache.LABEL, value, text);
+        }
+        return text;
     }
 
     /**
-     * Overrides this method from JTree so that the row is converted to the correct
-     * row from the View. This will ensure after sorting that the correct rows are
-     * selected.
+     * Overrides this method from JTree so that the selection is looked up by node. The JTree lays out rows as soon
+     * as it is told they have been added, removed or expanded, before the JTable and its RowSorter have them, so
+     * a row of the JTree can't be turned into a row of the view. The node goes through the row index and the RowSorter
+     * of the TreeTable, which always agree, so a node the JTable doesn't have yet is simply not selected.
      *
-     * @param int - row to test for selection in the view
-     * @return boolean - true if selected in the view, else false.
+     * @param int - row to test for selection in the JTree
+     * @return boolean - true if the node in the row is selected in the view, else false.
      */
     @Override
     public boolean isRowSelected(int row) {
         // Only bother trying if the row could exist and the treeTable reference is not null (this can happen if this method is called when invoking the JTree constructor with the model)
         if(row >= 0 && treeTable != null) {
-            // Pass the corrected row to the supers method
-            return super.isRowSelected(treeTable.convertRowIndexToView(row));
+            TreePath path = getPathForRow(row);
+            return path != null && isPathSelected(path);
         }
         return false;
     }
 
     /**
-     * Overrides this method from JTree so that the row is converted to the correct
-     * row from the View. This will ensure after sorting that the correct rows are
+     * Overrides this method from JTree so that the row in the View is converted to
+     * the row in the JTree. This will ensure after sorting that the correct rows are
      * collapsed.
      *
      * @param int - row to collapse in the view
      */
     @Override
     public void collapseRow(int row) {
-        if(row >= 0 && treeTable != null) super.collapseRow(treeTable.convertRowIndexToView(row));
+        if(row >= 0 && treeTable != null) super.collapseRow(treeTable.convertRowIndexToModel(row));
     }
 
     /**
-     * Overrides this method from JTree so that the row is converted to the correct
-     * row from the View. This will ensure after sorting that the correct rows are
+     * Overrides this method from JTree so that the row in the View is converted to
+     * the row in the JTree. This will ensure after sorting that the correct rows are
      * expanded
      *
      * @param int - row to expand in the view
      */
     @Override
     public void expandRow(int row) {
-        if(row >= 0 && treeTable != null) super.expandRow(treeTable.convertRowIndexToView(row));
+        if(row >= 0 && treeTable != null) super.expandRow(treeTable.convertRowIndexToModel(row));
+    }
+
+    /**
+     * Overrides this method from JTree so that the selection is left alone when a node is collapsed or removed.
+     * The JTable deselects the rows as they go, the JTree would build the path of every selected row to find them.
+     *
+     * @param path - the collapsed or removed node
+     * @param includePath - true if the node itself should be deselected too
+     * @return boolean - always false, nothing is deselected here
+     */
+    @Override
+    protected boolean removeDescendantSelectedPaths(TreePath path, boolean includePath) {
+        return false;
     }
 
     /**
@@ -146,6 +253,7 @@ public class TreeTableCellRenderer extends JTree implements TableCellRenderer {
     public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
         // Update the reference to the last row that was drawn. This is used to ensure the indented rows are renderer in the correct location
         lastRenderedRow = row;
+        lastRenderedSelected = isSelected;
         // Check if this item was selected, if it was set the background and foreground of the cell to be selected otherwise only the text is
         // TODO: Check this over here. What I think needs to happen is that when the TreeTable selection colours are changed it should be reflected in both the JTree and JTable. 
         // TODO:    I need to double check that this is whats going on here, this is whisky fueled rush code
@@ -180,15 +288,228 @@ public class TreeTableCellRenderer extends JTree implements TableCellRenderer {
     }
 
     /**
-     * Translate the original draw position for this cell slightly to the right. This is used to indent child objects of expanded rows
+     * Paints the row that was rendered last. The row is painted straight from the row index, if that can't be done
+     * the whole JTree is painted translated so that the row lines up with the cell.
      *
      * @param g - the Graphics context in which to paint
      */
     @Override
     public void paint(Graphics g) {
         g.translate(0, super.getRowHeight() * -lastRenderedRow);
- 
-        super.paint(g);
+
+        if(!paintRow(g, lastRenderedRow)) super.paint(g);
+    }
+
+    /**
+     * Paints the background, lines, expand control and label of row like BasicTreeUI.paint does for each row
+     *
+     * @param g - the Graphics context, translated so that row is where the JTree would paint it
+     * @param row - the row to paint
+     * @return boolean - false if the row couldn't be painted this way and nothing was painted
+     */
+    private boolean paintRow(Graphics g, int row) {
+        // Other UIs override the protected painting methods or paint the rows in their own way, let them paint the whole JTree
+        if(getUI() == null || (getUI().getClass() != BasicTreeUI.class && getUI().getClass() != MetalTreeUI.class)) return false;
+        BasicTreeUI ui = (BasicTreeUI) getUI();
+        boolean metal = ui instanceof MetalTreeUI;
+
+        int rowHeight = super.getRowHeight();
+        VisibleRowIndex rowIndex = (model != null) ? model.getRowIndex() : null;
+        TreeCellRenderer renderer = getCellRenderer();
+        if(rowHeight <= 0 || rowIndex == null || renderer == null || !updateLegs(rowIndex, row)) return false;
+
+        int depth = rowIndex.getDepth(row);
+        Object node = legNodes[depth];
+        boolean leftToRight = getComponentOrientation().isLeftToRight();
+        boolean rootVisible = isRootVisible();
+        boolean isLeaf = model.isLeaf(node);
+        // The node is expanded if the row after it is one of its children
+        boolean isExpanded = !isLeaf && rowIndex.getDepth(row + 1) > depth;
+        int rightChildIndent = ui.getRightChildIndent();
+        int totalChildIndent = ui.getLeftChildIndent() + rightChildIndent;
+        int depthOffset = rootVisible ? (getShowsRootHandles() ? 1 : 0) : (getShowsRootHandles() ? 0 : -1);
+        Insets insets = getInsets();
+        Rectangle clip = g.getClipBounds();
+
+        // The label goes where the layout cache would put it
+        // The JTable has already worked out whether the row is selected, there is no need to look the node up again
+        Component component = renderer.getTreeCellRendererComponent(this, node, lastRenderedSelected, isExpanded, isLeaf, row, false);
+        Rectangle bounds = new Rectangle(totalChildIndent * (depth + depthOffset), insets.top + row * rowHeight, labelWidth(node, component), rowHeight);
+        if(leftToRight) bounds.x += insets.left;
+        else bounds.x = getWidth() - (bounds.x + bounds.width) - insets.right;
+        int middleY = bounds.y + bounds.height / 2;
+
+        // The background, as ComponentUI.update would
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        boolean hiddenHandles = (depth == 0 || (depth == 1 && !rootVisible)) && !getShowsRootHandles();
+        Object lineStyle = getClientProperty("JTree.lineStyle");
+        if(paintLines && (!metal || lineStyle == null || "Angled".equals(lineStyle))) {
+            g.setColor(hashColor);
+
+            // The vertical line of each ancestor passes through the row if the ancestor's child on the way down to
+            // the node has a sibling after it, the line of the parent always reaches at least the middle of the row
+            for(int level = 0; level < depth; level++) {
+                if(level == 0 && !getShowsRootHandles() && !rootVisible) continue;
+
+                int bottom = bounds.y + bounds.height - 1;
+                if(!legSiblings[level + 1]) {
+                    if(level < depth - 1) continue;
+                    bottom = middleY;
+                }
+                // The line of a hidden root starts in the middle of its first child
+                int top = (level == 0 && !rootVisible && row == 0) ? Math.max(insets.top, middleY) : bounds.y;
+
+                int lineX = totalChildIndent * (level + 1 + depthOffset);
+                if(leftToRight) lineX = lineX - rightChildIndent + insets.left;
+                else lineX = getWidth() - lineX - insets.right + rightChildIndent - 1;
+                if(top <= bottom) paintLine(g, lineX, top, bottom, true);
+            }
+
+            // The horizontal line from the parent's line to the label, Metal stops it short of the label
+            if((depth > 0 || (rootVisible && row == 0)) && !hiddenHandles) {
+                int legBuffer = metal ? 3 : 0;
+                if(leftToRight) {
+                    int leftX = bounds.x - rightChildIndent;
+                    int nodeX = bounds.x - legBuffer;
+                    if(leftX < nodeX) paintLine(g, middleY, leftX, nodeX - 1, false);
+                }
+                else {
+                    int nodeX = bounds.x + bounds.width + legBuffer;
+                    int rightX = bounds.x + bounds.width + rightChildIndent;
+                    if(nodeX < rightX) paintLine(g, middleY, nodeX, rightX - 1, false);
+                }
+            }
+        }
+
+        // The expand control, not for a node that has been expanded and turned out to have no children
+        if(!isLeaf && !hiddenHandles && (model.getChildCount(node) > 0 || !hasBeenExpanded(new TreePath(Arrays.copyOf(legNodes, depth + 1))))) {
+            Icon icon = isExpanded ? ui.getExpandedIcon() : ui.getCollapsedIcon();
+            if(icon != null) {
+                int middleX = leftToRight ? bounds.x - rightChildIndent + 1 : bounds.x + bounds.width + rightChildIndent - 1;
+                int iconX = leftToRight ? middleX - (int) Math.ceil(icon.getIconWidth() / 2.0) : middleX - (int) Math.floor(icon.getIconWidth() / 2.0);
+                icon.paintIcon(this, g, iconX, middleY - icon.getIconHeight() / 2);
+            }
+        }
+
+        rendererPane.paintComponent(g, component, this, bounds.x, bounds.y, bounds.width, bounds.height, true);
+        rendererPane.removeAll();
+
+        // Metal can draw a line above each child of the root instead
+        if(metal && "Horizontal".equals(lineStyle) && !isLargeModel() && depth == 1) {
+            g.setColor(lineColor);
+            g.drawLine(clip.x, bounds.y, clip.x + clip.width, bounds.y);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the width of the label component has been set up to show for node. When the TreeTable has a render
+     * cache the width it was measured at is kept with the text, and used again while the text, icon and font are the same.
+     *
+     * @param node - the node of the row
+     * @param component - the renderer component set up for node
+     * @return int - the preferred width of the label
+     */
+    private int labelWidth(Object node, Component component) {
+        RenderCache cache = treeTable.getRenderCache();
+        if(cache == null || !(component instanceof JLabel)) return component.getPreferredSize().width;
+
+        JLabel label = (JLabel) component;
+        int width = cache.getWidth(node, RenderCache.LABEL, label.getText(), label.getIcon(), label.getFont());
+        if(width < 0) {
+            width = label.getPreferredSize().width;
+            cache.putWidth(node, RenderCache.LABEL, label.getText(), label.getIcon(), label.getFont(), width);
+        }
+        return width;
+    }
+
+    /**
+     * Brings legNodes and legSiblings up to date for row. When row follows the row they were last worked out for
+     * only the node in row is new, otherwise they are worked out again from the path to the row. A node has a sibling
+     * after it if the first row after its subtree has the same depth, the depths come from the row index so the
+     * model is never asked.
+     *
+     * @param rowIndex - the row index of the model
+     * @param row - the row about to be painted
+     * @return boolean - false if the node in row isn't known to the JTree
+     */
+    private boolean updateLegs(VisibleRowIndex rowIndex, int row) {
+        Object node = rowIndex.getNode(row);
+        int depth = rowIndex.getDepth(row);
+        if(node == null) return false;
+
+        if(depth >= legNodes.length) {
+            legNodes = Arrays.copyOf(legNodes, depth * 2);
+            legSiblings = Arrays.copyOf(legSiblings, depth * 2);
+            legEnds = Arrays.copyOf(legEnds, depth * 2);
+        }
+
+        // The ancestors of the row after legRow are ancestors of legRow or legRow itself, their subtrees end where they did
+        if(legRow >= 0 && row == legRow + 1 && depth <= rowIndex.getDepth(legRow) + 1) {
+            legNodes[depth] = node;
+            if(depth > 0) {
+                // Everything before the end of the parent's subtree is at least as deep as the node
+                int end = row + 1;
+                int parentEnd = (depth > 1) ? legEnds[depth - 1] : rowIndex.size();
+                while(end < parentEnd && rowIndex.getDepth(end) > depth) end++;
+                legEnds[depth] = end;
+                legSiblings[depth] = end < parentEnd;
+            }
+        }
+        else {
+            TreePath path = getPathForRow(row);
+            if(path == null || path.getPathCount() != depth + 1 || path.getLastPathComponent() != node) {
+                legRow = -1;
+                return false;
+            }
+            for(int level = 0; level <= depth; level++) legNodes[level] = path.getPathComponent(level);
+
+            // One pass down the rows finds where the subtree of each node on the path ends, deepest first
+            int level = depth;
+            for(int end = row + 1; level > 0 && end < rowIndex.size(); end++) {
+                int endDepth = rowIndex.getDepth(end);
+                for(; level >= endDepth && level > 0; level--) {
+                    legEnds[level] = end;
+                    legSiblings[level] = endDepth == level;
+                }
+            }
+            for(; level > 0; level--) {
+                legEnds[level] = rowIndex.size();
+                legSiblings[level] = false;
+            }
+            legSiblings[0] = false;
+        }
+        legRow = row;
+        return true;
+    }
+
+    /**
+     * Lifted from BasicTreeUI.paintVerticalLine and paintHorizontalLine, draws a dashed line if the look and feel uses them
+     *
+     * @param g - the Graphics context
+     * @param v - x of a vertical line or y of a horizontal line
+     * @param v1 - where the line starts
+     * @param v2 - where the line ends
+     * @param isVertical - true for a vertical line
+     */
+    private void paintLine(Graphics g, int v, int v1, int v2, boolean isVertical) {
+        if(!lineTypeDashed) {
+            if(isVertical) g.drawLine(v, v1, v, v2);
+            else g.drawLine(v1, v, v2, v);
+            return;
+        }
+        if(v1 >= v2) return;
+
+        // Drawing only even coordinates helps join line segments so they appear as one line
+        v1 += (v1 % 2);
+        Graphics2D g2d = (Graphics2D) g;
+        Stroke oldStroke = g2d.getStroke();
+        g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 0, new float[]{1}, 0));
+        if(isVertical) g2d.drawLine(v, v1, v, v2);
+        else g2d.drawLine(v1, v, v2, v);
+        g2d.setStroke(oldStroke);
     }
 
     /**
@@ -0,0 +1,479 @@
+package TreeTable;
+
+import javax.swing.JTree;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreePath;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Writes the rows of an AbstractTreeTableModel out as CSV or TSV, either the whole tree or just the rows that are
+ * visible in the TreeTable.
+ *
+ * The tree is walked depth first with an explicit stack straight from the model, nothing is copied into a list of
+ * rows so memory use depends on the depth of the tree and not its size. The tree column is written indented by
+ * depth or, if setPathSeparator has been called, as the path from the root. The other columns are written as
+ * toString() of their values.
+ *
+ * export(Writer) writes everything on the calling thread, which must be the EDT if the model is shown. start(Writer,
+ * Runnable) exports in the background: the model is read on the EDT a slice of rows at a time and the text is written
+ * out on a background thread in between. The tree can change in between slices, each row is written as it is when
+ * the export gets to it. Nodes inserted or removed before the row the export has got to are already behind it, so
+ * they are missed or stay written, the position in the tree is moved along with them. Only a structure change of a
+ * subtree the export is part way through makes it fail, there is no telling where in the new subtree it had got to.
+ */
+public class TreeTableExporter {
+    /**
+     * The formats that can be written
+     */
+    public enum Format {
+        /**
+         * Comma separated values, fields holding a comma, quote or line break are quoted
+         */
+        CSV,
+        /**
+         * Tab separated values, quoted like CSV
+         */
+        TSV
+    }
+
+    // Rows read from the model on the EDT in one go by a background export
+    static final int SLICE_ROWS = 1024;
+    // Size of the buffer used when writing to a channel
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private AbstractTreeTableModel model;
+    private Format format = Format.CSV;
+    private boolean visibleOnly;
+    private String indent = "  ";
+    private String pathSeparator;
+    private LongConsumer progressListener;
+
+    /**
+     * Creates an exporter for model that writes the whole tree as CSV
+     *
+     * @param model - the model to export
+     */
+    public TreeTableExporter(AbstractTreeTableModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Sets the format to write
+     *
+     * @param format - CSV or TSV
+     */
+    public void setFormat(Format format) {
+        if(format == null) throw new IllegalArgumentException("format can't be null.");
+        this.format = format;
+    }
+
+    /**
+     * Sets whether only the rows visible in the TreeTable are written (true) or the whole tree (false). Visible
+     * rows can only be exported once the model has been given to a TreeTable.
+     *
+     * @param visibleOnly - true to only write the visible rows
+     */
+    public void setVisibleOnly(boolean visibleOnly) {
+        this.visibleOnly = visibleOnly;
+    }
+
+    /**
+     * Sets the text the tree column is indented with for each level below the root
+     *
+     * @param indent - the indent, may be empty
+     */
+    public void setIndent(String indent) {
+        this.indent = (indent == null) ? "" : indent;
+    }
+
+    /**
+     * Writes the tree column as the path from the root, the labels of the nodes joined by separator, instead of indenting it
+     *
+     * @param separator - the separator between the labels, or null to indent instead
+     */
+    public void setPathSeparator(String separator) {
+        pathSeparator = separator;
+    }
+
+    /**
+     * Sets a listener told the number of rows written so far after each slice of rows. It is called on the EDT
+     * during a background export and on the calling thread otherwise.
+     *
+     * @param listener - the listener, or null for none
+     */
+    public void setProgressListener(LongConsumer listener) {
+        progressListener = listener;
+    }
+
+    /**
+     * Writes the tree to out on the calling thread, which must be the EDT if the model is shown. out is flushed but not closed.
+     *
+     * @param out - where to write the rows
+     * @return long - the number of rows written, not counting the header
+     * @throws IOException - if writing fails
+     */
+    public long export(Writer out) throws IOException {
+        Walker walker = new Walker();
+        StringBuilder text = new StringBuilder();
+        walker.header(text);
+        while(walker.next(text, SLICE_ROWS)) {
+            out.append(text);
+            text.setLength(0);
+            if(progressListener != null) progressListener.accept(walker.rows);
+        }
+        out.append(text);
+        out.flush();
+        if(progressListener != null) progressListener.accept(walker.rows);
+        return walker.rows;
+    }
+
+    /**
+     * Writes the tree to channel as UTF-8 on the calling thread, see export(Writer). The channel is not closed.
+     *
+     * @param channel - where to write the rows
+     * @return long - the number of rows written, not counting the header
+     * @throws IOException - if writing fails
+     */
+    public long export(WritableByteChannel channel) throws IOException {
+        return export(new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), BUFFER_SIZE));
+    }
+
+    /**
+     * Starts exporting in the background. Must be called on the EDT.
+     *
+     * @param out - where to write the rows, it is flushed but not closed
+     * @param whenDone - run on the EDT once the export has finished, failed or been cancelled, may be null
+     * @return Export - the running export
+     */
+    public Export start(Writer out, Runnable whenDone) {
+        if(!SwingUtilities.isEventDispatchThread()) throw new IllegalStateException("A background export must be started on the EDT.");
+        Export export = new Export(out, whenDone);
+        export.start();
+        return export;
+    }
+
+    /**
+     * An export running in the background
+     */
+    public class Export {
+        private Writer out;
+        private Runnable whenDone;
+        private Walker walker;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile IOException error;
+        // Set by the listener if the tree changes in a way the walk can't follow
+        private volatile boolean changed;
+
+        // Called on the EDT, in between the slices
+        private TreeModelListener listener = new TreeModelListener() {
+            public void treeNodesChanged(TreeModelEvent e) {
+                // The rows not written yet pick up the new values, the walk isn't affected
+            }
+
+            public void treeNodesInserted(TreeModelEvent e) {
+                if(!walker.inserted(e)) changed = true;
+            }
+
+            public void treeNodesRemoved(TreeModelEvent e) {
+                if(!walker.removed(e)) changed = true;
+            }
+
+            public void treeStructureChanged(TreeModelEvent e) {
+                if(!walker.structureChanged(e)) changed = true;
+            }
+        };
+
+        Export(Writer out, Runnable whenDone) {
+            this.out = out;
+            this.whenDone = whenDone;
+        }
+
+        private void start() {
+            walker = new Walker();
+            model.addTreeModelListener(listener);
+
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        final StringBuilder text = new StringBuilder();
+                        final boolean[] more = new boolean[1];
+                        SwingUtilities.invokeAndWait(new Runnable() {
+                            public void run() {
+                                walker.header(text);
+                            }
+                        });
+                        do {
+                            // Read a slice of rows on the EDT then write them out here
+                            SwingUtilities.invokeAndWait(new Runnable() {
+                                public void run() {
+                                    if(changed) return;
+                                    more[0] = walker.next(text, SLICE_ROWS);
+                                    if(progressListener != null) progressListener.accept(walker.rows);
+                                }
+                            });
+                            if(changed) throw new IOException("The tree changed during the export.");
+                            out.append(text);
+                            text.setLength(0);
+                        } while(more[0] && !cancelled);
+                        out.flush();
+                    }
+                    catch(IOException e) {
+                        error = e;
+                    }
+                    catch(InterruptedException e) {
+                        cancelled = true;
+                    }
+                    catch(InvocationTargetException e) {
+                        error = new IOException("Unable to read the tree.", e.getCause());
+                    }
+                    finally {
+                        done = true;
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                model.removeTreeModelListener(listener);
+                                if(whenDone != null) whenDone.run();
+                            }
+                        });
+                    }
+                }
+            }, "TreeTable exporter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Stops the export after the slice being written
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns true once the export has stopped, because it finished, failed or was cancelled
+         *
+         * @return boolean - true if the export has stopped
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Returns the number of rows exported so far
+         *
+         * @return long - rows written, not counting the header
+         */
+        public long getRowCount() {
+            return walker.rows;
+        }
+
+        /**
+         * Returns the reason the export failed, if it did
+         *
+         * @return IOException - the failure or null
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Walks the tree in pre-order, formatting a slice of rows at a time
+     */
+    private class Walker {
+        private JTree tree;
+        private int treeColumn = -1;
+        private char separator;
+
+        // The path to the current node and the index of the next child to visit at each level
+        private Object[] nodes = new Object[64];
+        private int[] next = new int[64];
+        // Paths at each level, only kept when exporting the visible rows
+        private TreePath[] paths;
+        // Labels at each level, only kept when writing paths
+        private String[] labels;
+        private int top = -1;
+        private boolean started;
+        private volatile long rows;
+
+        Walker() {
+            tree = model.getTree();
+            if(visibleOnly && tree == null) throw new IllegalStateException("Only the visible rows of a model shown in a TreeTable can be exported.");
+            if(visibleOnly) paths = new TreePath[64];
+            if(pathSeparator != null) labels = new String[64];
+            separator = (format == Format.TSV) ? '\t' : ',';
+            for(int column = 0; column < model.getColumnCount(); column++) {
+                if(model.getColumnClass(column) == TreeTableModel.class) treeColumn = column;
+            }
+        }
+
+        void header(StringBuilder text) {
+            for(int column = 0; column < model.getColumnCount(); column++) {
+                if(column > 0) text.append(separator);
+                field(text, model.getColumnName(column));
+            }
+            text.append('\n');
+        }
+
+        /**
+         * Appends up to max rows to text, returns false once the whole tree has been written
+         */
+        boolean next(StringBuilder text, int max) {
+            if(!started) {
+                started = true;
+                Object root = model.getRoot();
+                if(root == null) return false;
+                push(root, (paths == null) ? null : new TreePath(root));
+                // A hidden root isn't a row but its children still are
+                if(tree == null || tree.isRootVisible()) row(text, root, 0);
+                max--;
+            }
+
+            for(int count = 0; count < max && top >= 0; ) {
+                Object node = nodes[top];
+                // Only go into the children of expanded nodes if just the visible rows are wanted
+                if(next[top] == model.getChildCount(node) || (paths != null && !tree.isExpanded(paths[top]))) {
+                    nodes[top--] = null;
+                    continue;
+                }
+                Object child = model.getChild(node, next[top]++);
+                push(child, (paths == null) ? null : paths[top].pathByAddingChild(child));
+                row(text, child, top);
+                count++;
+            }
+            return top >= 0;
+        }
+
+        /**
+         * Moves the walk along for children inserted under a node it is part way through. Returns false if it can't
+         * tell where they went.
+         */
+        boolean inserted(TreeModelEvent e) {
+            if(e.getTreePath() == null) return !started;
+            int level = levelOf(e.getTreePath());
+            if(level < 0) return true;
+            int[] indices = e.getChildIndices();
+            if(indices == null) return false;
+
+            // Children inserted before the next one to visit push it along
+            int[] sorted = indices.clone();
+            Arrays.sort(sorted);
+            for(int index : sorted) if(index < next[level]) next[level]++;
+            return true;
+        }
+
+        /**
+         * Moves the walk back for children removed from a node it is part way through, if it was inside one of them the
+         * rest of that subtree is skipped. Returns false if it can't tell which were removed.
+         */
+        boolean removed(TreeModelEvent e) {
+            if(e.getTreePath() == null) return !started;
+            int level = levelOf(e.getTreePath());
+            if(level < 0) return true;
+            int[] indices = e.getChildIndices();
+            if(indices == null) return false;
+
+            // The indices are from before the removal, the child at next - 1 is the one being walked
+            int position = next[level];
+            int passed = 0;
+            for(int index : indices) {
+                if(index >= position) continue;
+                passed++;
+                if(index == position - 1) while(top > level) nodes[top--] = null;
+            }
+            next[level] = position - passed;
+            return true;
+        }
+
+        /**
+         * Returns false if the subtree that changed is one the walk is part way through
+         */
+        boolean structureChanged(TreeModelEvent e) {
+            if(e.getTreePath() == null) return !started;
+            int level = levelOf(e.getTreePath());
+            // Nothing underneath the node has been written yet
+            return level < 0 || (level == top && next[level] == 0);
+        }
+
+        /**
+         * Returns the level of the last node of path in the walk or -1 if the walk isn't inside it
+         */
+        private int levelOf(TreePath path) {
+            int level = path.getPathCount() - 1;
+            if(level > top || !path.getLastPathComponent().equals(nodes[level])) return -1;
+            return level;
+        }
+
+        private void push(Object node, TreePath path) {
+            if(++top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, top * 2);
+                next = Arrays.copyOf(next, top * 2);
+                if(paths != null) paths = Arrays.copyOf(paths, top * 2);
+                if(labels != null) labels = Arrays.copyOf(labels, top * 2);
+            }
+            nodes[top] = node;
+            next[top] = 0;
+            if(paths != null) paths[top] = path;
+            if(labels != null) labels[top] = String.valueOf(node);
+        }
+
+        private void row(StringBuilder text, Object node, int depth) {
+            for(int column = 0; column < model.getColumnCount(); column++) {
+                if(column > 0) text.append(separator);
+                if(column != treeColumn) {
+                    Object value = model.getCachedValueAt(node, column);
+                    field(text, (value == null) ? "" : value.toString());
+                }
+                else if(labels != null) {
+                    StringBuilder path = new StringBuilder();
+                    // A hidden root isn't part of the path either
+                    for(int level = (tree == null || tree.isRootVisible()) ? 0 : 1; level <= depth; level++) {
+                        if(path.length() > 0) path.append(pathSeparator);
+                        path.append(labels[level]);
+                    }
+                    field(text, path.toString());
+                }
+                else {
+                    StringBuilder label = new StringBuilder();
+                    int levels = (tree == null || tree.isRootVisible()) ? depth : depth - 1;
+                    for(int level = 0; level < levels; level++) label.append(indent);
+                    field(text, label.append(node).toString());
+                }
+            }
+            text.append('\n');
+            rows++;
+        }
+
+        /**
+         * Appends a field, quoting it if it holds the separator, a quote or a line break
+         */
+        private void field(StringBuilder text, String value) {
+            boolean quote = false;
+            for(int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == separator || c == '"' || c == '\n' || c == '\r';
+            }
+            if(!quote) {
+                text.append(value);
+                return;
+            }
+            text.append('"');
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if(c == '"') text.append('"');
+                text.append(c);
+            }
+            text.append('"');
+        }
+    }
+}
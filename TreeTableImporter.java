@@ -0,0 +1,832 @@
+package TreeTable;
+
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a ColumnarTreeTableModel from a flat CSV, TSV or JSON lines export without holding the export in memory.
+ *
+ * Each record either names its own id and the id of its parent (setIdFields) or gives its place in the tree as a
+ * path like a/b/c (setPathField), in which case the missing nodes along the path are made as they are needed. Ids
+ * must be whole numbers, they are looked up in a map of primitive longs to node ids. Records with no parent go
+ * under a root made by the importer, records that come before their parent are held back until it turns up.
+ *
+ * The model's columns take their values from the fields with the same names, the tree column from the label
+ * field (by default the field with the tree column's name, or the last part of the path). CSV and TSV exports must
+ * start with a line of field names, JSON lines exports have one flat object per line.
+ *
+ * read(ReadableByteChannel) builds the whole model on the calling thread, off the EDT, and only notifies its
+ * listeners once at the end. load(ReadableByteChannel) builds it in the background a chunk at a time, adding each
+ * chunk on the EDT so the top of the tree can be looked at while the rest is still loading.
+ */
+public class TreeTableImporter {
+    /**
+     * The formats that can be imported
+     */
+    public enum Format {
+        /**
+         * Comma separated values, fields may be quoted with " and quotes doubled inside them
+         */
+        CSV,
+        /**
+         * Tab separated values, quoted like CSV
+         */
+        TSV,
+        /**
+         * One flat JSON object per line
+         */
+        JSON_LINES
+    }
+
+    // Number of nodes read before they are added to the model
+    static final int CHUNK_NODES = 8192;
+    // Size of the buffer the export is read through
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private Format format;
+    private String[] columnNames;
+    private Class<?>[] columnTypes;
+    private int treeColumn = -1;
+
+    private String idField;
+    private String parentField;
+    private String pathField;
+    private String pathSeparator;
+    private String labelField;
+    private String rootLabel = "root";
+
+    /**
+     * Creates an importer for exports in format that makes models with the given columns
+     *
+     * @param format - the format of the exports
+     * @param columnNames - the names of the columns, which are also the fields their values are read from
+     * @param columnTypes - the type of each column, one must be TreeTableModel.class and the rest Long, Double, Integer or String
+     */
+    public TreeTableImporter(Format format, String[] columnNames, Class<?>[] columnTypes) {
+        if(columnNames.length != columnTypes.length) throw new IllegalArgumentException("There must be a type for each column.");
+        for(int column = 0; column < columnTypes.length; column++) {
+            if(columnTypes[column] == TreeTableModel.class) treeColumn = column;
+        }
+        // Let the model check the types
+        new ColumnarTreeTableModel(columnNames, columnTypes, 1);
+
+        this.format = format;
+        this.columnNames = columnNames.clone();
+        this.columnTypes = columnTypes.clone();
+        labelField = columnNames[treeColumn];
+    }
+
+    /**
+     * Builds the tree from the id of each record and the id of its parent. A record whose parent field is empty goes under the root.
+     *
+     * @param idField - the field holding the id of the record
+     * @param parentField - the field holding the id of the parent
+     */
+    public void setIdFields(String idField, String parentField) {
+        if(idField == null || parentField == null) throw new IllegalArgumentException("Both fields must be given.");
+        this.idField = idField;
+        this.parentField = parentField;
+        pathField = null;
+    }
+
+    /**
+     * Builds the tree from a path in each record, the parts of the path separated by separator
+     *
+     * @param pathField - the field holding the path
+     * @param separator - the separator between the parts, for example "/"
+     */
+    public void setPathField(String pathField, String separator) {
+        if(pathField == null || separator == null || separator.isEmpty()) throw new IllegalArgumentException("The field and separator must be given.");
+        this.pathField = pathField;
+        pathSeparator = separator;
+        idField = null;
+        parentField = null;
+    }
+
+    /**
+     * Sets the field the tree column is read from. If it is null, or a record doesn't have it, the last part of
+     * the path or the id is used instead.
+     *
+     * @param labelField - the field holding the label of each node
+     */
+    public void setLabelField(String labelField) {
+        this.labelField = labelField;
+    }
+
+    /**
+     * Sets the label of the root the importer puts the top level records under
+     *
+     * @param rootLabel - the label of the root
+     */
+    public void setRootLabel(String rootLabel) {
+        this.rootLabel = rootLabel;
+    }
+
+    /**
+     * Reads a whole export into a new model. Call this off the EDT, the model doesn't notify anything until it is
+     * finished and then fires a single structure changed event.
+     *
+     * @param channel - the export, it is not closed
+     * @return ColumnarTreeTableModel - the model holding the tree
+     * @throws IOException - if reading fails or the export is malformed
+     */
+    public ColumnarTreeTableModel read(ReadableByteChannel channel) throws IOException {
+        Builder builder = new Builder(channel);
+        Chunk chunk;
+        while((chunk = builder.next()) != null) builder.apply(chunk);
+        builder.finish();
+        builder.model.nodesAppended(0);
+        return builder.model;
+    }
+
+    /**
+     * Creates a Loader that reads an export in the background once it is started, the model it fills can be shown
+     * in a TreeTable straight away.
+     *
+     * @param channel - the export, it is closed when the loader finishes
+     * @return Loader - the loader for the export
+     */
+    public Loader load(ReadableByteChannel channel) {
+        Builder builder = new Builder(channel);
+        builder.model.nodesAppended(0);
+        return new Loader(builder);
+    }
+
+    /**
+     * Reads an export on a background thread and adds it to its model on the EDT a chunk at a time
+     */
+    public static class Loader {
+        private Builder builder;
+        private Thread thread;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile IOException error;
+
+        Loader(Builder builder) {
+            this.builder = builder;
+        }
+
+        /**
+         * Returns the model the export is being read into, it only has the root until the loader is started
+         *
+         * @return ColumnarTreeTableModel - the model
+         */
+        public ColumnarTreeTableModel getModel() {
+            return builder.model;
+        }
+
+        /**
+         * Starts reading the export. Each chunk of nodes is added to the model on the EDT as soon as it has been read.
+         *
+         * @param whenDone - run on the EDT once the whole export has been read, it failed or the loader was cancelled, may be null
+         */
+        public synchronized void start(final Runnable whenDone) {
+            if(thread != null) throw new IllegalStateException("The loader has already been started.");
+
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Chunk chunk;
+                        while(!cancelled && (chunk = builder.next()) != null) publish(chunk);
+                        if(!cancelled) builder.finish();
+                    }
+                    catch(IOException e) {
+                        error = e;
+                    }
+                    catch(InterruptedException e) {
+                        cancelled = true;
+                    }
+                    catch(InvocationTargetException e) {
+                        error = new IOException("Unable to add the export to the model.", e.getCause());
+                    }
+                    finally {
+                        try {
+                            builder.channel.close();
+                        }
+                        catch(IOException e) {
+                            if(error == null) error = e;
+                        }
+                        done = true;
+                        if(whenDone != null) SwingUtilities.invokeLater(whenDone);
+                    }
+                }
+            }, "TreeTable importer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void publish(final Chunk chunk) throws InterruptedException, InvocationTargetException {
+            // Wait for each chunk to be added so the reader can't get far ahead of the EDT
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    if(cancelled) return;
+                    int first = builder.model.getNodeCount();
+                    builder.apply(chunk);
+                    builder.model.nodesAppended(first);
+                    for(int node : chunk.updates) {
+                        if(node < first) builder.model.nodeChanged(node);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stops reading, the nodes read so far stay in the model
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns true once the loader has stopped, because it finished, failed or was cancelled
+         *
+         * @return boolean - true if the loader has stopped
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Returns the reason the loader failed, if it did
+         *
+         * @return IOException - the failure or null
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Nodes read from the export but not yet added to the model, in the order they are to be added, and new
+     * values for nodes that were made before their own record was read
+     */
+    private static class Chunk {
+        int[] parents = new int[CHUNK_NODES];
+        Object[][] values = new Object[CHUNK_NODES][];
+        int count;
+        List<Integer> updates = new ArrayList<Integer>();
+        List<Object[]> updatedValues = new ArrayList<Object[]>();
+    }
+
+    /**
+     * Reads records and works out where each goes in the tree. Only the model is touched by apply, everything
+     * else belongs to the thread doing the reading, which works out the id each node will get as the model hands
+     * them out in order.
+     */
+    private class Builder {
+        private ReadableByteChannel channel;
+        private ColumnarTreeTableModel model;
+        private RecordReader records;
+
+        // Fields wanted from each record, the columns first
+        private String[] fields;
+        private int idIndex = -1;
+        private int parentIndex = -1;
+        private int pathIndex = -1;
+        private int labelIndex = -1;
+
+        // Number of nodes the model will have once everything read so far has been added
+        private int nodeCount;
+        // Node for each record id, or for each path in path mode
+        private LongIntMap ids = new LongIntMap();
+        private Map<String, Integer> paths = new HashMap<String, Integer>();
+        // Nodes made for the parts of a path that haven't had a record of their own yet
+        private BitSet implicit = new BitSet();
+        // Records waiting for their parent to turn up, by parent id
+        private Map<Long, List<Pending>> waiting = new HashMap<Long, List<Pending>>();
+        private int waitingCount;
+
+        private Chunk chunk;
+
+        Builder(ReadableByteChannel channel) {
+            if(idField == null && pathField == null) throw new IllegalStateException("Either setIdFields or setPathField must be called first.");
+            this.channel = channel;
+
+            List<String> wanted = new ArrayList<String>(Arrays.asList(columnNames));
+            if(labelField != null) labelIndex = add(wanted, labelField);
+            if(idField != null) {
+                idIndex = add(wanted, idField);
+                parentIndex = add(wanted, parentField);
+            }
+            else pathIndex = add(wanted, pathField);
+            fields = wanted.toArray(new String[wanted.size()]);
+
+            Reader reader = Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE);
+            records = (format == Format.JSON_LINES) ? new JsonLinesReader(reader, fields) : new SeparatedReader(reader, fields, (format == Format.TSV) ? '\t' : ',');
+
+            model = new ColumnarTreeTableModel(columnNames, columnTypes);
+            model.setString(model.appendNode(ColumnarTreeTableModel.NO_NODE), treeColumn, rootLabel);
+            nodeCount = 1;
+        }
+
+        private int add(List<String> wanted, String field) {
+            int index = wanted.indexOf(field);
+            if(index >= 0) return index;
+            wanted.add(field);
+            return wanted.size() - 1;
+        }
+
+        /**
+         * Reads up to a chunk of nodes, returns null at the end of the export
+         */
+        Chunk next() throws IOException {
+            chunk = new Chunk();
+            while(chunk.count < CHUNK_NODES && chunk.updates.size() < CHUNK_NODES && records.next()) {
+                if(pathIndex >= 0) addPath();
+                else addRecord();
+            }
+            return (chunk.count == 0 && chunk.updates.isEmpty()) ? null : chunk;
+        }
+
+        private void addRecord() throws IOException {
+            long id = parseId(records.get(idIndex), idField);
+            String parentText = records.get(parentIndex);
+            Object[] values = values(records.get(idIndex));
+
+            if(parentText == null || parentText.isEmpty()) {
+                add(id, 0, values);
+                return;
+            }
+            long parentId = parseId(parentText, parentField);
+            int parent = ids.get(parentId);
+            if(parent >= 0) add(id, parent, values);
+            else {
+                // Hold it back until the parent turns up
+                List<Pending> list = waiting.get(parentId);
+                if(list == null) waiting.put(parentId, list = new ArrayList<Pending>());
+                list.add(new Pending(id, values));
+                waitingCount++;
+            }
+        }
+
+        /**
+         * Adds a node for the record with id, and then any records that were waiting for it
+         */
+        private void add(long id, int parent, Object[] values) throws IOException {
+            addRecord(id, parent, values);
+            if(waiting.isEmpty()) return;
+
+            // Add the records that were waiting for it, then the ones waiting for those, without recursing
+            List<Long> added = new ArrayList<Long>();
+            added.add(id);
+            while(!added.isEmpty()) {
+                long next = added.remove(added.size() - 1);
+                List<Pending> children = waiting.remove(next);
+                if(children == null) continue;
+                waitingCount -= children.size();
+                for(Pending child : children) {
+                    addRecord(child.id, ids.get(next), child.values);
+                    added.add(child.id);
+                }
+            }
+        }
+
+        private void addRecord(long id, int parent, Object[] values) throws IOException {
+            if(ids.get(id) >= 0) throw new IOException("Line " + records.getLine() + ": duplicate id " + id + ".");
+            ids.put(id, addNode(parent, values));
+        }
+
+        private void addPath() throws IOException {
+            String path = records.get(pathIndex);
+            if(path == null || path.isEmpty()) throw new IOException("Line " + records.getLine() + ": no path.");
+
+            // Find the deepest part of the path that is already there, then make the rest
+            int parent = 0;
+            int end = path.lastIndexOf(pathSeparator);
+            while(end > 0 && paths.get(path.substring(0, end)) == null) end = path.lastIndexOf(pathSeparator, end - 1);
+            if(end > 0) parent = paths.get(path.substring(0, end));
+            int start = (end < 0) ? 0 : end + pathSeparator.length();
+
+            while(true) {
+                int next = path.indexOf(pathSeparator, start);
+                if(next < 0) break;
+                if(next > start) {
+                    parent = addNode(parent, values(path.substring(start, next), false));
+                    paths.put(path.substring(0, next), parent);
+                    implicit.set(parent);
+                }
+                start = next + pathSeparator.length();
+            }
+
+            Integer existing = paths.get(path);
+            if(existing == null) paths.put(path, addNode(parent, values(path.substring(start))));
+            // A record for a node that was made for an earlier path fills in its values
+            else if(implicit.get(existing)) {
+                implicit.clear(existing);
+                chunk.updates.add(existing);
+                chunk.updatedValues.add(values(path.substring(start)));
+            }
+            else throw new IOException("Line " + records.getLine() + ": duplicate path " + path + ".");
+        }
+
+        /**
+         * Converts the fields of the current record to the values of the columns
+         */
+        private Object[] values(String defaultLabel) throws IOException {
+            return values(defaultLabel, true);
+        }
+
+        private Object[] values(String defaultLabel, boolean fromRecord) throws IOException {
+            Object[] values = new Object[columnNames.length];
+            for(int column = 0; column < columnNames.length; column++) {
+                if(column == treeColumn) {
+                    String label = (fromRecord && labelIndex >= 0) ? records.get(labelIndex) : null;
+                    values[column] = (label == null) ? defaultLabel : label;
+                }
+                else if(fromRecord) values[column] = convert(records.get(column), column);
+            }
+            return values;
+        }
+
+        private Object convert(String text, int column) throws IOException {
+            Class<?> type = columnTypes[column];
+            if(type == String.class) return text;
+            if(text == null || text.isEmpty()) return null;
+            try {
+                if(type == Long.class) return Long.valueOf(text.trim());
+                if(type == Integer.class) return Integer.valueOf(text.trim());
+                return Double.valueOf(text.trim());
+            }
+            catch(NumberFormatException e) {
+                throw new IOException("Line " + records.getLine() + ": " + columnNames[column] + " is not a " + type.getSimpleName() + ".");
+            }
+        }
+
+        private long parseId(String text, String field) throws IOException {
+            try {
+                return Long.parseLong(text.trim());
+            }
+            catch(NullPointerException | NumberFormatException e) {
+                throw new IOException("Line " + records.getLine() + ": " + field + " is not a whole number.");
+            }
+        }
+
+        /**
+         * Queues a node to be added to the model and returns the id it will have
+         */
+        private int addNode(int parent, Object[] values) {
+            if(chunk.count == chunk.parents.length) {
+                chunk.parents = Arrays.copyOf(chunk.parents, chunk.count * 2);
+                chunk.values = Arrays.copyOf(chunk.values, chunk.count * 2);
+            }
+            chunk.parents[chunk.count] = parent;
+            chunk.values[chunk.count++] = values;
+            return nodeCount++;
+        }
+
+        /**
+         * Checks nothing is still waiting for a parent
+         */
+        void finish() throws IOException {
+            if(waitingCount > 0) throw new IOException(waitingCount + " records refer to parents that are not in the export, for example " + waiting.keySet().iterator().next() + ".");
+        }
+
+        /**
+         * Adds the nodes in chunk to the model and sets the updated values, without notifying it
+         */
+        void apply(Chunk chunk) {
+            for(int i = 0; i < chunk.count; i++) set(model.appendNode(chunk.parents[i]), chunk.values[i]);
+            for(int i = 0; i < chunk.updates.size(); i++) set(chunk.updates.get(i), chunk.updatedValues.get(i));
+        }
+
+        private void set(int node, Object[] values) {
+            for(int column = 0; column < values.length; column++) {
+                Object value = values[column];
+                if(value == null) continue;
+                Class<?> type = columnTypes[column];
+                if(type == Long.class) model.setLong(node, column, (Long) value);
+                else if(type == Integer.class) model.setInt(node, column, (Integer) value);
+                else if(type == Double.class) model.setDouble(node, column, (Double) value);
+                else model.setString(node, column, (String) value);
+            }
+        }
+    }
+
+    /**
+     * A record held back until its parent turns up
+     */
+    private static class Pending {
+        long id;
+        Object[] values;
+
+        Pending(long id, Object[] values) {
+            this.id = id;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Reads records from an export, keeping only the wanted fields
+     */
+    private abstract static class RecordReader {
+        private Reader reader;
+        private char[] buffer = new char[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private int line = 1;
+
+        protected String[] fields;
+        protected String[] values;
+
+        RecordReader(Reader reader, String[] fields) {
+            this.reader = reader;
+            this.fields = fields;
+            values = new String[fields.length];
+        }
+
+        /**
+         * Moves on to the next record, returns false at the end of the export
+         */
+        abstract boolean next() throws IOException;
+
+        /**
+         * Returns the value of a wanted field in the current record, null if the record doesn't have it
+         */
+        String get(int field) {
+            return values[field];
+        }
+
+        /**
+         * Returns the line the current record ended on
+         */
+        int getLine() {
+            return line;
+        }
+
+        protected int peek() throws IOException {
+            if(position == limit) {
+                limit = reader.read(buffer);
+                position = 0;
+                if(limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position];
+        }
+
+        protected int read() throws IOException {
+            int c = peek();
+            if(c >= 0) {
+                position++;
+                if(c == '\n') line++;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Reads CSV or TSV, the first line names the fields
+     */
+    private static class SeparatedReader extends RecordReader {
+        private char separator;
+        // Index of each column of the export in the wanted fields, -1 for columns that aren't wanted
+        private int[] wanted;
+        private List<String> row = new ArrayList<String>();
+        private StringBuilder field = new StringBuilder();
+
+        SeparatedReader(Reader reader, String[] fields, char separator) {
+            super(reader, fields);
+            this.separator = separator;
+        }
+
+        boolean next() throws IOException {
+            if(wanted == null) {
+                if(!readRow()) return false;
+                wanted = new int[row.size()];
+                List<String> names = Arrays.asList(fields);
+                for(int column = 0; column < wanted.length; column++) wanted[column] = names.indexOf(row.get(column).trim());
+            }
+
+            // Skip blank lines
+            do {
+                if(!readRow()) return false;
+            } while(row.size() == 1 && row.get(0).isEmpty());
+
+            Arrays.fill(values, null);
+            for(int column = 0; column < row.size() && column < wanted.length; column++) {
+                if(wanted[column] >= 0) values[wanted[column]] = row.get(column);
+            }
+            return true;
+        }
+
+        /**
+         * Reads the fields of one line, which may run over several lines inside quotes
+         */
+        private boolean readRow() throws IOException {
+            row.clear();
+            if(peek() < 0) return false;
+
+            while(true) {
+                field.setLength(0);
+                int c = read();
+                if(c == '"') {
+                    // Quoted field, a doubled quote is a quote
+                    while(true) {
+                        c = read();
+                        if(c < 0) throw new IOException("Line " + getLine() + ": unterminated quote.");
+                        if(c == '"') {
+                            if(peek() != '"') break;
+                            read();
+                        }
+                        field.append((char) c);
+                    }
+                    c = read();
+                }
+                else {
+                    while(c >= 0 && c != separator && c != '\n' && c != '\r') {
+                        field.append((char) c);
+                        c = read();
+                    }
+                }
+                row.add(field.toString());
+
+                if(c == separator) continue;
+                if(c == '\r' && peek() == '\n') read();
+                if(c < 0 || c == '\n' || c == '\r') return true;
+                throw new IOException("Line " + getLine() + ": unexpected character after a quoted field.");
+            }
+        }
+    }
+
+    /**
+     * Reads one flat JSON object per line. Nested objects and arrays aren't supported.
+     */
+    private static class JsonLinesReader extends RecordReader {
+        private Map<String, Integer> wanted = new HashMap<String, Integer>();
+        private StringBuilder text = new StringBuilder();
+
+        JsonLinesReader(Reader reader, String[] fields) {
+            super(reader, fields);
+            for(int field = 0; field < fields.length; field++) wanted.put(fields[field], field);
+        }
+
+        boolean next() throws IOException {
+            skipWhitespace();
+            if(peek() < 0) return false;
+
+            Arrays.fill(values, null);
+            expect('{');
+            skipWhitespace();
+            if(peek() == '}') {
+                read();
+                return true;
+            }
+            while(true) {
+                skipWhitespace();
+                expect('"');
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                String value = readValue();
+                Integer field = wanted.get(key);
+                if(field != null) values[field] = value;
+
+                skipWhitespace();
+                int c = read();
+                if(c == '}') return true;
+                if(c != ',') throw new IOException("Line " + getLine() + ": expected , or }.");
+            }
+        }
+
+        private String readValue() throws IOException {
+            int c = peek();
+            if(c == '"') {
+                read();
+                return readString();
+            }
+            if(c == '{' || c == '[') throw new IOException("Line " + getLine() + ": nested objects and arrays aren't supported.");
+
+            // A number, true, false or null
+            text.setLength(0);
+            while((c = peek()) >= 0 && c != ',' && c != '}' && !Character.isWhitespace(c)) text.append((char) read());
+            String literal = text.toString();
+            if(literal.isEmpty()) throw new IOException("Line " + getLine() + ": missing value.");
+            return literal.equals("null") ? null : literal;
+        }
+
+        /**
+         * Reads the rest of a string after the opening quote
+         */
+        private String readString() throws IOException {
+            text.setLength(0);
+            while(true) {
+                int c = read();
+                if(c < 0 || c == '\n') throw new IOException("Line " + getLine() + ": unterminated string.");
+                if(c == '"') return text.toString();
+                if(c != '\\') {
+                    text.append((char) c);
+                    continue;
+                }
+                c = read();
+                switch(c) {
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'n': text.append('\n'); break;
+                    case 'r': text.append('\r'); break;
+                    case 't': text.append('\t'); break;
+                    case 'u':
+                        int code = 0;
+                        for(int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if(digit < 0) throw new IOException("Line " + getLine() + ": bad unicode escape.");
+                            code = code * 16 + digit;
+                        }
+                        text.append((char) code);
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        text.append((char) c);
+                        break;
+                    default: throw new IOException("Line " + getLine() + ": bad escape.");
+                }
+            }
+        }
+
+        private void expect(char expected) throws IOException {
+            if(read() != expected) throw new IOException("Line " + getLine() + ": expected " + expected + ".");
+        }
+
+        private void skipWhitespace() throws IOException {
+            int c;
+            while((c = peek()) >= 0 && Character.isWhitespace(c)) read();
+        }
+    }
+
+    /**
+     * Open addressing map from long record ids to int node ids, so the ids aren't boxed
+     */
+    private static class LongIntMap {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] keys;
+        private int[] values;
+        private int size;
+        private boolean hasEmptyKey;
+        private int emptyKeyValue;
+
+        LongIntMap() {
+            keys = new long[1024];
+            values = new int[1024];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * Returns the value for key or -1
+         */
+        int get(long key) {
+            if(key == EMPTY) return hasEmptyKey ? emptyKeyValue : -1;
+            int mask = keys.length - 1;
+            for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                if(keys[slot] == key) return values[slot];
+                if(keys[slot] == EMPTY) return -1;
+            }
+        }
+
+        void put(long key, int value) {
+            if(key == EMPTY) {
+                hasEmptyKey = true;
+                emptyKeyValue = value;
+                return;
+            }
+            // Keep it at most half full
+            if(size * 2 >= keys.length) resize();
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while(keys[slot] != EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+            if(keys[slot] == EMPTY) size++;
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for(int slot = 0; slot < oldKeys.length; slot++) {
+                if(oldKeys[slot] != EMPTY) put(oldKeys[slot], oldValues[slot]);
+            }
+        }
+
+        private static int hash(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32));
+        }
+    }
+}
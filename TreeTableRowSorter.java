@@ -0,0 +1,778 @@
+package TreeTable;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A RowSorter for the TreeTable that sorts the children of each node rather than the rows.
+ *
+ * A TableRowSorter sorts the flattened rows so children end up away from their parents. This sorter keeps every
+ * subtree together directly under its parent and only reorders siblings, so the view is the same tree with each
+ * level in sorted order.
+ *
+ * The sorted order of the children of each parent is cached (a cached order is only used if the parent still has
+ * exactly the same children). When rows are inserted only the parent they went under is sorted again and only the
+ * block of rows underneath it is rewritten, the rest of the view is moved along in place. The mapping arrays only
+ * ever grow so inserting and removing rows doesn't allocate anything the size of the table. Removing rows doesn't
+ * change the order of the rows that are left so nothing is sorted at all. Like
+ * DefaultRowSorter, changed values only move rows once setSortsOnUpdates(true) has been called. Each changed row
+ * is then taken out of the cached order of its siblings and put back in with a binary search on the values they
+ * were sorted with, and only its subtree and the rows it passes are moved in the view. Large sibling lists are
+ * sorted with Arrays.parallelSort, the values are read from the model on the EDT first so the comparators run on
+ * their own.
+ *
+ * TreeTable swaps this in automatically when setAutoCreateRowSorter(true) is used.
+ */
+public class TreeTableRowSorter extends RowSorter<AbstractTreeTableModel> implements TreeModelListener {
+    // Sibling lists at least this long are sorted in parallel
+    private static final int PARALLEL_SORT_THRESHOLD = 8192;
+    // Updates spanning more rows than this sort everything again rather than looking for the parents of each row
+    private static final int MAX_UPDATED_ROWS = 256;
+
+    // Used for columns that haven't been given their own comparator
+    private static final Comparator<Object> DEFAULT_COMPARATOR = new Comparator<Object>() {
+        private Collator collator = Collator.getInstance();
+
+        @SuppressWarnings("unchecked")
+        public int compare(Object o1, Object o2) {
+            // Values of the same class that know how to compare themselves do so, anything else compares as text
+            if(o1 instanceof Comparable && o1.getClass() == o2.getClass()) return ((Comparable<Object>) o1).compareTo(o2);
+            return collator.compare(o1.toString(), o2.toString());
+        }
+    };
+
+    private AbstractTreeTableModel model;
+
+    private List<SortKey> sortKeys = Collections.emptyList();
+    private int maxSortKeys = 3;
+    private boolean sortsOnUpdates;
+    // Comparators set for particular columns
+    private Map<Integer, Comparator<?>> comparators = new HashMap<Integer, Comparator<?>>();
+
+    // Sorted order of the children of each parent that has been sorted
+    private Map<Object, SortedChildren> sortedChildren = new HashMap<Object, SortedChildren>();
+
+    // Mapping between view rows and model rows, both null when nothing is sorted (the view is the model). The
+    // arrays can be longer than the number of rows, only the first viewRowCount entries are in use.
+    private int[] viewToModel;
+    private int[] modelToView;
+    private int viewRowCount;
+    // Kept the same as viewToModel between changes so the sorter events have the previous order without a copy
+    // every time. The JTable doesn't read the previous order of the events fired while it passes on a model change,
+    // those are given this array as it is, only the full sorts give their listeners a copy of the right length.
+    private int[] previousViewToModel;
+
+    /**
+     * Creates a sorter for model that doesn't sort anything until sort keys are set
+     *
+     * @param model - the model whose rows are sorted
+     */
+    public TreeTableRowSorter(AbstractTreeTableModel model) {
+        this.model = model;
+        model.addTreeModelListener(this);
+    }
+
+    /**
+     * Returns the model whose rows are sorted
+     *
+     * @return AbstractTreeTableModel - the model
+     */
+    public AbstractTreeTableModel getModel() {
+        return model;
+    }
+
+    /**
+     * Sets the comparator used to sort the values in column. Without one Comparable values of the same class
+     * are compared with compareTo and anything else is compared as text.
+     *
+     * @param column - the column, as a model index
+     * @param comparator - the comparator to use or null for the default
+     */
+    public void setComparator(int column, Comparator<?> comparator) {
+        if(comparator == null) comparators.remove(column);
+        else comparators.put(column, comparator);
+        sortedChildren.clear();
+        sort();
+    }
+
+    /**
+     * Returns the comparator used to sort the values in column
+     *
+     * @param column - the column, as a model index
+     * @return Comparator - the comparator for the column
+     */
+    public Comparator<?> getComparator(int column) {
+        Comparator<?> comparator = comparators.get(column);
+        return (comparator != null) ? comparator : DEFAULT_COMPARATOR;
+    }
+
+    /**
+     * Sets the number of sort keys kept by toggleSortOrder
+     *
+     * @param maxSortKeys - number of sort keys, must be at least 1
+     */
+    public void setMaxSortKeys(int maxSortKeys) {
+        if(maxSortKeys < 1) throw new IllegalArgumentException("maxSortKeys must be at least 1.");
+        this.maxSortKeys = maxSortKeys;
+    }
+
+    public int getMaxSortKeys() {
+        return maxSortKeys;
+    }
+
+    /**
+     * Sets whether rows are moved when their values change. This is off by default, as it is for DefaultRowSorter,
+     * so rows stay where they are while they are edited.
+     *
+     * @param sortsOnUpdates - true to move rows when their values change
+     */
+    public void setSortsOnUpdates(boolean sortsOnUpdates) {
+        this.sortsOnUpdates = sortsOnUpdates;
+    }
+
+    public boolean getSortsOnUpdates() {
+        return sortsOnUpdates;
+    }
+
+    /**
+     * Makes column the primary sort key, sorting it ascending or reversing it if it already was the primary key
+     *
+     * @param column - the column, as a model index
+     */
+    public void toggleSortOrder(int column) {
+        List<SortKey> keys = new ArrayList<SortKey>(sortKeys);
+        SortOrder order = SortOrder.ASCENDING;
+
+        for(int i = 0; i < keys.size(); i++) {
+            if(keys.get(i).getColumn() == column) {
+                if(i == 0) order = (keys.get(i).getSortOrder() == SortOrder.ASCENDING) ? SortOrder.DESCENDING : SortOrder.ASCENDING;
+                keys.remove(i);
+                break;
+            }
+        }
+        keys.add(0, new SortKey(column, order));
+        if(keys.size() > maxSortKeys) keys = keys.subList(0, maxSortKeys);
+
+        setSortKeys(keys);
+    }
+
+    public List<? extends SortKey> getSortKeys() {
+        return sortKeys;
+    }
+
+    /**
+     * Sets the columns to sort by, the first key is the most significant
+     *
+     * @param keys - the sort keys or null to stop sorting
+     */
+    public void setSortKeys(List<? extends SortKey> keys) {
+        List<SortKey> newKeys = (keys == null) ? new ArrayList<SortKey>() : new ArrayList<SortKey>(keys);
+        for(SortKey key : newKeys) {
+            if(key == null || key.getColumn() < 0 || key.getColumn() >= model.getColumnCount()) throw new IllegalArgumentException("Invalid SortKey.");
+        }
+        if(newKeys.equals(sortKeys)) return;
+
+        sortKeys = Collections.unmodifiableList(newKeys);
+        sortedChildren.clear();
+        fireSortOrderChanged();
+        sort();
+    }
+
+    public int convertRowIndexToModel(int index) {
+        if(viewToModel == null) {
+            if(index < 0 || index >= getModelRowCount()) throw new IndexOutOfBoundsException("Invalid index");
+            return index;
+        }
+        if(index < 0 || index >= viewRowCount) throw new IndexOutOfBoundsException("Invalid index");
+        return viewToModel[index];
+    }
+
+    public int convertRowIndexToView(int index) {
+        if(modelToView == null) {
+            if(index < 0 || index >= getModelRowCount()) throw new IndexOutOfBoundsException("Invalid index");
+            return index;
+        }
+        if(index < 0 || index >= viewRowCount) throw new IndexOutOfBoundsException("Invalid index");
+        return modelToView[index];
+    }
+
+    /**
+     * Returns the number of rows in the view. While sorted this is the number of rows the sorter was last told
+     * about, which is what the JTable expects until it passes on the next change.
+     */
+    public int getViewRowCount() {
+        return (viewToModel != null) ? viewRowCount : getModelRowCount();
+    }
+
+    public int getModelRowCount() {
+        return model.getRowCount();
+    }
+
+    public void modelStructureChanged() {
+        // Forget any sort keys for columns that have gone
+        List<SortKey> keys = new ArrayList<SortKey>();
+        for(SortKey key : sortKeys) if(key.getColumn() < model.getColumnCount()) keys.add(key);
+        if(keys.size() != sortKeys.size()) {
+            sortKeys = Collections.unmodifiableList(keys);
+            fireSortOrderChanged();
+        }
+
+        sortedChildren.clear();
+        sort();
+    }
+
+    public void allRowsChanged() {
+        sortedChildren.clear();
+        sort();
+    }
+
+    /**
+     * The children of the parent the rows went under are sorted again and the block of rows underneath it is
+     * rewritten, the rest of the view keeps its order
+     */
+    public void rowsInserted(int firstRow, int endRow) {
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        int count = endRow - firstRow + 1;
+        // The row index can already have the rows of the events still to come, then everything is worked out again
+        if(!isSorted() || viewToModel == null || rowIndex == null || rowIndex.size() != viewRowCount + count || firstRow < 0 || count <= 0) {
+            sort();
+            return;
+        }
+
+        // The new rows all sit underneath the parent of the shallowest of them
+        int shallowest = firstRow;
+        for(int row = firstRow; row <= endRow; row++) if(rowIndex.getDepth(row) < rowIndex.getDepth(shallowest)) shallowest = row;
+        int parentRow = rowIndex.getParentRow(shallowest);
+        // They went under the hidden root, everything has to be gone through
+        if(parentRow < 0) {
+            sort();
+            return;
+        }
+
+        int parentDepth = rowIndex.getDepth(parentRow);
+        int to = endRow + 1;
+        while(to < rowIndex.size() && rowIndex.getDepth(to) > parentDepth) to++;
+        int from = parentRow + 1;
+        int viewFrom = modelToView[parentRow] + 1;
+        int viewTo = viewFrom + to - from - count;
+        int oldCount = viewRowCount;
+        ensureCapacity(oldCount + count);
+        viewRowCount += count;
+
+        // Move the model rows after the new ones down and the view after the block down, the block is written again
+        shift(viewToModel, 0, oldCount, firstRow, count);
+        System.arraycopy(viewToModel, viewTo, viewToModel, viewTo + count, oldCount - viewTo);
+        System.arraycopy(modelToView, firstRow, modelToView, firstRow + count, oldCount - firstRow);
+        shift(modelToView, 0, viewRowCount, viewTo, count);
+
+        sortedChildren.remove(rowIndex.getNode(parentRow));
+        fill(rowIndex.getNode(parentRow), from, to, viewFrom, subtreeEnds(from, to), from);
+        fireRowSorterChanged(previousViewToModel);
+        System.arraycopy(viewToModel, 0, previousViewToModel, 0, viewRowCount);
+    }
+
+    /**
+     * Taking rows out leaves the rest in sorted order, the removed rows are taken out of the view and the model rows after them moved up
+     */
+    public void rowsDeleted(int firstRow, int endRow) {
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        int count = endRow - firstRow + 1;
+        if(!isSorted() || viewToModel == null || rowIndex == null || rowIndex.size() != viewRowCount - count || firstRow < 0 || count <= 0) {
+            sort();
+            return;
+        }
+
+        // Close up the view in place, nothing is written ahead of what has been read
+        int newView = 0;
+        for(int view = 0; view < viewRowCount; view++) {
+            int row = viewToModel[view];
+            if(row >= firstRow && row <= endRow) continue;
+            if(row > endRow) row -= count;
+            viewToModel[newView] = row;
+            modelToView[row] = newView++;
+        }
+        viewRowCount = newView;
+
+        fireRowSorterChanged(previousViewToModel);
+        System.arraycopy(viewToModel, 0, previousViewToModel, 0, viewRowCount);
+    }
+
+    /**
+     * Only does anything when sorting on updates. Each changed row is moved to its new place among its siblings,
+     * the siblings of a parent that hasn't got a cached order are all sorted again.
+     */
+    public void rowsUpdated(int firstRow, int endRow) {
+        if(!sortsOnUpdates || !isSorted()) return;
+
+        if(endRow - firstRow >= MAX_UPDATED_ROWS) {
+            allRowsChanged();
+            return;
+        }
+
+        // The row index can already have the rows of the events still to come, then everything is worked out again
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        if(viewToModel == null || rowIndex == null || rowIndex.size() != viewRowCount) {
+            sort();
+            return;
+        }
+
+        // Only the siblings of the changed rows can have moved, so group the rows by their parent
+        Map<Object, List<Integer>> parents = new LinkedHashMap<Object, List<Integer>>();
+        for(int row = Math.max(firstRow, 0); row <= endRow && row < model.getRowCount(); row++) {
+            // The visible root has no siblings
+            if(rowIndex.getDepth(row) == 0) continue;
+
+            int parentRow = rowIndex.getParentRow(row);
+            Object parent = (parentRow < 0) ? model.getRoot() : rowIndex.getNode(parentRow);
+            List<Integer> rows = parents.get(parent);
+            if(rows == null) {
+                rows = new ArrayList<Integer>();
+                parents.put(parent, rows);
+            }
+            rows.add(row);
+        }
+
+        for(Map.Entry<Object, List<Integer>> entry : parents.entrySet()) {
+            if(!moveChildren(entry.getKey(), entry.getValue())) sortChildren(entry.getKey());
+        }
+    }
+
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        for(SortKey key : sortKeys) {
+            if(key.getColumn() == column && key.getSortOrder() != SortOrder.UNSORTED) {
+                rowsUpdated(firstRow, endRow);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The values of the children in the event have changed so the order of their parent can't be trusted. When
+     * sorting on updates the table events that follow move the rows that are visible, this catches the ones that
+     * aren't visible.
+     */
+    public void treeNodesChanged(TreeModelEvent e) {
+        Object[] children = e.getChildren();
+        if(children == null || children.length == 0) return;
+
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        if(sortsOnUpdates && rowIndex != null && rowIndex.getRow(children[0]) >= 0) return;
+        sortedChildren.remove(e.getTreePath().getLastPathComponent());
+    }
+
+    public void treeNodesInserted(TreeModelEvent e) {
+    }
+
+    public void treeNodesRemoved(TreeModelEvent e) {
+    }
+
+    public void treeStructureChanged(TreeModelEvent e) {
+        sortedChildren.clear();
+    }
+
+    /**
+     * Returns true if any of the sort keys actually sort
+     */
+    private boolean isSorted() {
+        for(SortKey key : sortKeys) if(key.getSortOrder() != SortOrder.UNSORTED) return true;
+        return false;
+    }
+
+    /**
+     * Works out the order of every row from the (mostly cached) order of each parent's children and tells the listeners
+     */
+    private void sort() {
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        int[] oldViewToModel;
+
+        if(!isSorted() || rowIndex == null) {
+            // The view was already the model, nothing has moved
+            if(viewToModel == null) return;
+
+            oldViewToModel = Arrays.copyOf(previousViewToModel, viewRowCount);
+            viewToModel = null;
+            modelToView = null;
+            previousViewToModel = null;
+        }
+        else {
+            if(viewToModel != null) oldViewToModel = Arrays.copyOf(previousViewToModel, viewRowCount);
+            else {
+                // Going from unsorted to sorted the rows were in model order
+                oldViewToModel = new int[getModelRowCount()];
+                for(int i = 0; i < oldViewToModel.length; i++) oldViewToModel[i] = i;
+            }
+
+            int rowCount = rowIndex.size();
+            ensureCapacity(rowCount);
+            viewRowCount = rowCount;
+
+            // With the root showing it is the only top level row, otherwise the top level rows are its children
+            Object parent = (rowCount > 0 && rowIndex.getDepth(0) == 0) ? null : model.getRoot();
+            fill(parent, 0, rowCount, 0, subtreeEnds(0, rowCount), 0);
+            System.arraycopy(viewToModel, 0, previousViewToModel, 0, rowCount);
+        }
+
+        fireRowSorterChanged(oldViewToModel);
+    }
+
+    /**
+     * Adds count to every value from the index from up to the index to that is at least min. There is no branch in
+     * the loop so it is as quick as copying the array, whatever the values are.
+     */
+    private static void shift(int[] values, int from, int to, int min, int count) {
+        for(int i = from; i < to; i++) values[i] += count & ~((values[i] - min) >> 31);
+    }
+
+    /**
+     * Grows the mapping arrays so that they can hold at least capacity rows, they are created if nothing was sorted
+     */
+    private void ensureCapacity(int capacity) {
+        if(viewToModel == null) {
+            viewToModel = new int[capacity];
+            modelToView = new int[capacity];
+            previousViewToModel = new int[capacity];
+            return;
+        }
+        if(capacity <= viewToModel.length) return;
+
+        int newCapacity = Math.max(capacity, viewToModel.length + (viewToModel.length >> 1));
+        viewToModel = Arrays.copyOf(viewToModel, newCapacity);
+        modelToView = Arrays.copyOf(modelToView, newCapacity);
+        previousViewToModel = Arrays.copyOf(previousViewToModel, newCapacity);
+    }
+
+    /**
+     * Sorts the children of parent again and rewrites just the block of rows underneath it
+     */
+    private void sortChildren(Object parent) {
+        sortedChildren.remove(parent);
+
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        int rowCount = rowIndex.size();
+        int from;
+        int to;
+        int viewRow;
+
+        if(parent.equals(model.getRoot()) && (rowCount == 0 || rowIndex.getDepth(0) != 0)) {
+            // The hidden root, its children are every row
+            from = 0;
+            to = rowCount;
+            viewRow = 0;
+        }
+        else {
+            int parentRow = rowIndex.getRow(parent);
+            if(parentRow < 0) return;
+
+            from = parentRow + 1;
+            to = from;
+            int depth = rowIndex.getDepth(parentRow);
+            while(to < rowCount && rowIndex.getDepth(to) > depth) to++;
+            viewRow = modelToView[parentRow] + 1;
+        }
+        if(from == to) return;
+
+        fill(parent, from, to, viewRow, subtreeEnds(from, to), from);
+
+        // Only tell the listeners if something actually moved
+        int count = to - from;
+        for(int i = viewRow; i < viewRow + count; i++) {
+            if(viewToModel[i] != previousViewToModel[i]) {
+                fireRowSorterChanged(previousViewToModel);
+                System.arraycopy(viewToModel, viewRow, previousViewToModel, viewRow, count);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves each of the changed rows to its new place among its siblings, using the cached order of parent
+     *
+     * @param parent - the parent of the rows
+     * @param rows - model rows of the changed children
+     * @return boolean - false if there is no cached order that can be used and the children need sorting again
+     */
+    private boolean moveChildren(Object parent, List<Integer> rows) {
+        SortedChildren cached = sortedChildren.get(parent);
+        if(cached == null || cached.children.length != model.getChildCount(parent)) return false;
+
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        Object[] children = cached.children;
+        int[] order = cached.order;
+        SiblingComparator comparator = cached.comparator;
+        int changedFrom = Integer.MAX_VALUE;
+        int changedTo = -1;
+
+        for(int row : rows) {
+            // The child in model order, its sorted position and where it is in the view
+            int child = findChild(children, row);
+            if(child < 0) return false;
+            int viewRow = modelToView[row];
+            int position = findPosition(children, order, viewRow);
+            if(position < 0) return false;
+
+            comparator.readValues(children, child);
+
+            // Binary search the other children for where it goes now
+            int low = 0;
+            int high = order.length - 1;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(comparator.compare(child, order[(mid < position) ? mid : mid + 1]) < 0) high = mid;
+                else low = mid + 1;
+            }
+            if(low == position) continue;
+
+            int size = 1 + rowIndex.getDescendantCount(row);
+            int[] block = Arrays.copyOfRange(viewToModel, viewRow, viewRow + size);
+            int from;
+            int to;
+            if(low < position) {
+                // Up to just before the child it now goes in front of, everything from there down moves below it
+                System.arraycopy(order, low, order, low + 1, position - low);
+                from = modelToView[rowIndex.getRow(children[order[low + 1]])];
+                to = viewRow + size;
+                System.arraycopy(viewToModel, from, viewToModel, from + size, viewRow - from);
+                System.arraycopy(block, 0, viewToModel, from, size);
+            }
+            else {
+                // Down to just after the subtree of the child it now goes behind
+                System.arraycopy(order, position + 1, order, position, low - position);
+                int previousRow = rowIndex.getRow(children[order[low - 1]]);
+                from = viewRow;
+                to = modelToView[previousRow] + 1 + rowIndex.getDescendantCount(previousRow);
+                System.arraycopy(viewToModel, viewRow + size, viewToModel, viewRow, to - viewRow - size);
+                System.arraycopy(block, 0, viewToModel, to - size, size);
+            }
+            order[low] = child;
+
+            for(int i = from; i < to; i++) modelToView[viewToModel[i]] = i;
+            changedFrom = Math.min(changedFrom, from);
+            changedTo = Math.max(changedTo, to);
+        }
+
+        if(changedTo >= 0) {
+            fireRowSorterChanged(previousViewToModel);
+            System.arraycopy(viewToModel, changedFrom, previousViewToModel, changedFrom, changedTo - changedFrom);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the child in row among children, the rows of the children go up in model order
+     *
+     * @return int - the index or -1 if children doesn't match the rows any more
+     */
+    private int findChild(Object[] children, int row) {
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        int low = 0;
+        int high = children.length - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int midRow = rowIndex.getRow(children[mid]);
+            if(midRow < 0) return -1;
+            if(midRow < row) low = mid + 1;
+            else if(midRow > row) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position in order of the child shown at viewRow, the view rows of the children go up in sorted order
+     *
+     * @return int - the position or -1 if the order doesn't match the view any more
+     */
+    private int findPosition(Object[] children, int[] order, int viewRow) {
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        int low = 0;
+        int high = order.length - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int midRow = rowIndex.getRow(children[order[mid]]);
+            if(midRow < 0) return -1;
+            int midView = modelToView[midRow];
+            if(midView < viewRow) low = mid + 1;
+            else if(midView > viewRow) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Puts the children of parent (the rows from from up to to) and everything underneath them into the view
+     * from viewRow in sorted order
+     *
+     * @param parent - the parent of the rows, null for the visible root which has no siblings
+     * @param from - first model row of the block
+     * @param to - the model row after the block
+     * @param viewRow - view row to start writing at
+     * @param ends - for each row in the range the row after its subtree, indexed from offset
+     * @param offset - model row of ends[0]
+     * @return int - the view row after the block
+     */
+    private int fill(Object parent, int from, int to, int viewRow, int[] ends, int offset) {
+        int count = 0;
+        for(int row = from; row < to; row = ends[row - offset]) count++;
+
+        int[] childRows = new int[count];
+        count = 0;
+        for(int row = from; row < to; row = ends[row - offset]) childRows[count++] = row;
+
+        int[] order = (parent == null || count < 2) ? null : getOrder(parent, childRows);
+
+        for(int i = 0; i < childRows.length; i++) {
+            int row = childRows[(order == null) ? i : order[i]];
+            viewToModel[viewRow] = row;
+            modelToView[row] = viewRow;
+            viewRow++;
+
+            int end = ends[row - offset];
+            if(end > row + 1) viewRow = fill(model.getRowIndex().getNode(row), row + 1, end, viewRow, ends, offset);
+        }
+        return viewRow;
+    }
+
+    /**
+     * Returns the sorted order of the children of parent, from the cache if they haven't changed
+     *
+     * @param parent - the parent node
+     * @param childRows - model rows of the children in model order
+     * @return int[] - indices into childRows in sorted order
+     */
+    private int[] getOrder(Object parent, int[] childRows) {
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        Object[] children = new Object[childRows.length];
+        for(int i = 0; i < children.length; i++) children[i] = rowIndex.getNode(childRows[i]);
+
+        SortedChildren cached = sortedChildren.get(parent);
+        if(cached != null && Arrays.equals(cached.children, children)) return cached.order;
+
+        SiblingComparator comparator = new SiblingComparator(children);
+        int[] order = sort(comparator);
+        sortedChildren.put(parent, new SortedChildren(children, order, comparator));
+        return order;
+    }
+
+    /**
+     * Sorts siblings by the sort keys
+     *
+     * @param comparator - compares the siblings by index, with their values already read
+     * @return int[] - indices into the siblings in sorted order
+     */
+    private int[] sort(SiblingComparator comparator) {
+        Integer[] indices = new Integer[comparator.size];
+        for(int i = 0; i < indices.length; i++) indices[i] = i;
+
+        if(indices.length >= PARALLEL_SORT_THRESHOLD) Arrays.parallelSort(indices, comparator);
+        else Arrays.sort(indices, comparator);
+
+        int[] order = new int[indices.length];
+        for(int i = 0; i < order.length; i++) order[i] = indices[i];
+        return order;
+    }
+
+    /**
+     * Returns the comparator for column as one that takes any value, the values of a column are whatever it was set up to compare
+     */
+    @SuppressWarnings("unchecked")
+    private Comparator<Object> getObjectComparator(int column) {
+        return (Comparator<Object>) getComparator(column);
+    }
+
+    /**
+     * For each row from from up to to works out the row after its subtree
+     *
+     * @return int[] - the end of the subtree of each row, indexed from from
+     */
+    private int[] subtreeEnds(int from, int to) {
+        VisibleRowIndex rowIndex = model.getRowIndex();
+        int[] ends = new int[to - from];
+        // Rows whose subtree hasn't ended yet, deepest on top
+        int[] open = new int[16];
+        int top = 0;
+
+        for(int row = from; row < to; row++) {
+            int depth = rowIndex.getDepth(row);
+            while(top > 0 && rowIndex.getDepth(open[top - 1]) >= depth) ends[open[--top] - from] = row;
+
+            if(top == open.length) open = Arrays.copyOf(open, top * 2);
+            open[top++] = row;
+        }
+        while(top > 0) ends[open[--top] - from] = to;
+
+        return ends;
+    }
+
+    /**
+     * The children of a parent in model order along with their sorted order and the values they were sorted by
+     */
+    private static class SortedChildren {
+        Object[] children;
+        int[] order;
+        SiblingComparator comparator;
+
+        SortedChildren(Object[] children, int[] order, SiblingComparator comparator) {
+            this.children = children;
+            this.order = order;
+            this.comparator = comparator;
+        }
+    }
+
+    /**
+     * Compares siblings by their index using the values of the sort key columns, which are read on the EDT up
+     * front so the comparisons don't touch the model
+     */
+    private class SiblingComparator implements Comparator<Integer> {
+        List<SortKey> keys = new ArrayList<SortKey>();
+        List<Comparator<Object>> keyComparators = new ArrayList<Comparator<Object>>();
+        // The value of each key for each sibling, one sibling after another
+        Object[] values;
+        int size;
+
+        SiblingComparator(Object[] children) {
+            size = children.length;
+            for(SortKey key : sortKeys) {
+                if(key.getSortOrder() == SortOrder.UNSORTED) continue;
+                keys.add(key);
+                keyComparators.add(getObjectComparator(key.getColumn()));
+            }
+
+            values = new Object[children.length * keys.size()];
+            for(int i = 0; i < children.length; i++) readValues(children, i);
+        }
+
+        /**
+         * Reads the values of the sibling at index from the model again
+         */
+        void readValues(Object[] children, int index) {
+            for(int k = 0; k < keys.size(); k++) values[index * keys.size() + k] = model.getCachedValueAt(children[index], keys.get(k).getColumn());
+        }
+
+        public int compare(Integer i1, Integer i2) {
+            for(int k = 0; k < keys.size(); k++) {
+                Object v1 = values[i1 * keys.size() + k];
+                Object v2 = values[i2 * keys.size() + k];
+                int result;
+                // Nulls go first
+                if(v1 == null) result = (v2 == null) ? 0 : -1;
+                else if(v2 == null) result = 1;
+                else result = keyComparators.get(k).compare(v1, v2);
+
+                if(result != 0) return (keys.get(k).getSortOrder() == SortOrder.DESCENDING) ? -result : result;
+            }
+            // Equal children keep the model order, so a changed child can be put back with a binary search
+            return i1.compareTo(i2);
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package TreeTable;
+
+import javax.swing.SwingUtilities;
+import javax.swing.tree.TreePath;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A text index over the values of some of the columns of a TreeTableModel, for finding nodes without calling
+ * getValueAt for every node and without the nodes having to be visible.
+ *
+ * The string form of the indexed columns of every node is lower cased and broken into trigrams (every run of 3
+ * characters), each trigram maps to the nodes that contain it. A query looks up the trigram of the query with the
+ * fewest nodes and only checks those nodes, so it costs about the same however big the tree is. Queries shorter
+ * than 3 characters check every node.
+ *
+ * The index is built on a background thread when it is created, until isReady() returns true queries find nothing.
+ * While it is being built the model's getChildCount, getChild, isLeaf and getValueAt are called from that thread
+ * so they must be safe to read while the EDT is changing the model; changes made during the build are applied
+ * once it has finished. If the model throws during the build the exception is logged, the build is started again if
+ * the model changed while it ran, otherwise isFailed() returns true until the next change to the model starts it
+ * again. After that the index follows the model's insert, remove, change and structure change events.
+ *
+ * The sorted matches of the last query are kept until the model changes, so stepping through them with
+ * findNext() and findPrevious() only looks up where the step starts.
+ *
+ * All of the methods must be called on the EDT.
+ */
+public class TreeTableSearchIndex {
+    // Once this many nodes have been removed (and there are more removed than present) the index is rebuilt without them
+    private static final int COMPACT_THRESHOLD = 1024;
+    // Separates the values of the columns so a query can't match across two of them
+    private static final char SEPARATOR = '\n';
+
+    private static final Logger LOGGER = Logger.getLogger(TreeTableSearchIndex.class.getName());
+
+    private TreeTableModel model;
+    private int[] columns;
+    private Listener listener = new Listener();
+
+    // The index, null until the first build has finished
+    private Index index;
+    // Events that arrived while the index was being built, replayed when it is done
+    private List<TreeModelEvent> deferred;
+    private List<Integer> deferredTypes;
+    // True if the last build threw, the next change to the model starts another
+    private boolean failed;
+
+    // The last query and the paths to its matches in the order of the tree
+    private String matchedQuery;
+    private List<TreePath> matched;
+
+    /**
+     * Creates an index over columns of model and starts building it in the background
+     *
+     * @param model - the model to index
+     * @param columns - model indices of the columns whose values are searched
+     */
+    public TreeTableSearchIndex(TreeTableModel model, int[] columns) {
+        if(columns == null || columns.length == 0) throw new IllegalArgumentException("At least one column must be indexed.");
+        for(int column : columns) {
+            if(column < 0 || column >= model.getColumnCount()) throw new IllegalArgumentException("Column " + column + " is not in the model.");
+        }
+
+        this.model = model;
+        this.columns = columns.clone();
+        model.addTreeModelListener(listener);
+        rebuild();
+    }
+
+    /**
+     * Returns true once the index has been built, before that queries find nothing
+     *
+     * @return boolean - true if the index is ready
+     */
+    public boolean isReady() {
+        return index != null && deferred == null;
+    }
+
+    /**
+     * Returns true if the model threw while the index was being built. The index is built again the next time the model changes.
+     *
+     * @return boolean - true if the last build failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Stops following the model. The index can't be used after this.
+     */
+    public void dispose() {
+        model.removeTreeModelListener(listener);
+        index = null;
+        deferred = null;
+        forgetMatches();
+    }
+
+    /**
+     * Finds every node that contains text in one of the indexed columns, ignoring case
+     *
+     * @param text - the text to look for
+     * @return List - paths to the matching nodes in the order they appear in the tree, empty if there are none or the index isn't ready
+     */
+    public List<TreePath> find(String text) {
+        if(!match(text)) return new ArrayList<TreePath>();
+        return new ArrayList<TreePath>(matched);
+    }
+
+    /**
+     * Finds the first matching node after from in the order of the tree, going back to the top after the last one
+     *
+     * @param text - the text to look for
+     * @param from - path to the node to start after or null to start at the top
+     * @return TreePath - path to the next match or null if there isn't one
+     */
+    public TreePath findNext(String text, TreePath from) {
+        if(!match(text) || matched.isEmpty()) return null;
+        if(from == null) return matched.get(0);
+
+        // Where from would go in the list, past it if it is a match itself
+        int index = Collections.binarySearch(matched, from, new PathComparator());
+        index = (index >= 0) ? index + 1 : -index - 1;
+        return matched.get(index % matched.size());
+    }
+
+    /**
+     * Finds the last matching node before from in the order of the tree, going round to the bottom before the first one
+     *
+     * @param text - the text to look for
+     * @param from - path to the node to start before or null to start at the bottom
+     * @return TreePath - path to the previous match or null if there isn't one
+     */
+    public TreePath findPrevious(String text, TreePath from) {
+        if(!match(text) || matched.isEmpty()) return null;
+        if(from == null) return matched.get(matched.size() - 1);
+
+        int index = Collections.binarySearch(matched, from, new PathComparator());
+        index = (index >= 0) ? index - 1 : -index - 2;
+        return matched.get((index + matched.size()) % matched.size());
+    }
+
+    /**
+     * Makes matched the matches for text in the order of the tree, unless it already is
+     *
+     * @param text - the text to look for
+     * @return boolean - false if there is nothing to look for or the index isn't ready
+     */
+    private boolean match(String text) {
+        if(!isReady() || text == null || text.isEmpty()) return false;
+
+        String query = text.toLowerCase(Locale.ROOT);
+        if(query.equals(matchedQuery)) return true;
+
+        List<TreePath> found = new ArrayList<TreePath>();
+        for(int id : index.candidates(query)) {
+            if(!index.texts[id].contains(query)) continue;
+            TreePath path = index.pathFor(id);
+            if(path != null) found.add(path);
+        }
+
+        Collections.sort(found, new PathComparator());
+        matched = found;
+        matchedQuery = query;
+        return true;
+    }
+
+    /**
+     * Throws away the matches of the last query, called whenever the model changes
+     */
+    private void forgetMatches() {
+        matchedQuery = null;
+        matched = null;
+    }
+
+    /**
+     * Throws the index away and builds it again in the background
+     */
+    private void rebuild() {
+        deferred = new ArrayList<TreeModelEvent>();
+        deferredTypes = new ArrayList<Integer>();
+        failed = false;
+        forgetMatches();
+
+        final Object root = model.getRoot();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Index built = new Index();
+                RuntimeException failure = null;
+                try {
+                    if(root != null) built.addSubtree(root, -1);
+                }
+                catch(RuntimeException e) {
+                    built = null;
+                    failure = e;
+                }
+
+                final Index result = built;
+                final RuntimeException error = failure;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if(error != null) failed(error);
+                        else built(result);
+                    }
+                });
+            }
+        }, "TreeTable search index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Called on the EDT when a build has finished
+     */
+    private void built(Index built) {
+        // Disposed while it was being built
+        if(deferred == null) return;
+
+        index = built;
+        List<TreeModelEvent> events = deferred;
+        List<Integer> types = deferredTypes;
+        deferred = null;
+        deferredTypes = null;
+        for(int i = 0; i < events.size(); i++) listener.apply(events.get(i), types.get(i));
+    }
+
+    /**
+     * Called on the EDT when the model threw during a build. If the model changed while it was being read that is
+     * likely to be why so it is built again straight away, otherwise the next change to the model starts it again.
+     */
+    private void failed(RuntimeException e) {
+        // Disposed while it was being built
+        if(deferred == null) return;
+
+        LOGGER.log(Level.WARNING, "Building the search index failed.", e);
+        boolean changed = !deferred.isEmpty();
+        deferred = null;
+        deferredTypes = null;
+        if(changed) rebuild();
+        else failed = true;
+    }
+
+    /**
+     * Puts paths in the order their nodes appear in the tree
+     */
+    private class PathComparator implements Comparator<TreePath> {
+        public int compare(TreePath p1, TreePath p2) {
+            Object[] nodes1 = p1.getPath();
+            Object[] nodes2 = p2.getPath();
+            int length = Math.min(nodes1.length, nodes2.length);
+            for(int i = 1; i < length; i++) {
+                if(nodes1[i].equals(nodes2[i])) continue;
+                return model.getIndexOfChild(nodes1[i - 1], nodes1[i]) - model.getIndexOfChild(nodes2[i - 1], nodes2[i]);
+            }
+            // A parent comes before its children
+            return nodes1.length - nodes2.length;
+        }
+    }
+
+    /**
+     * Follows the changes to the model. Events that arrive while the index is being built are kept until it is done.
+     */
+    private class Listener implements TreeModelListener {
+        private static final int CHANGED = 0;
+        private static final int INSERTED = 1;
+        private static final int REMOVED = 2;
+        private static final int STRUCTURE = 3;
+
+        public void treeNodesChanged(TreeModelEvent e) {
+            apply(e, CHANGED);
+        }
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            apply(e, INSERTED);
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            apply(e, REMOVED);
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            apply(e, STRUCTURE);
+        }
+
+        void apply(TreeModelEvent e, int type) {
+            if(deferred != null) {
+                deferred.add(e);
+                deferredTypes.add(type);
+                return;
+            }
+            if(failed) {
+                rebuild();
+                return;
+            }
+            if(index == null) return;
+            forgetMatches();
+
+            TreePath path = e.getTreePath();
+            Object[] children = e.getChildren();
+
+            // The whole tree has changed or we don't know what has
+            if(path == null || (type == STRUCTURE && path.getParentPath() == null) || (type != STRUCTURE && type != CHANGED && children == null)) {
+                index = null;
+                rebuild();
+                return;
+            }
+
+            Object parent = path.getLastPathComponent();
+            int parentId = index.idOf(parent);
+            // Somewhere the index doesn't know about, its own events will have been missed too
+            if(parentId < 0) return;
+            switch(type) {
+                case CHANGED:
+                    // Without children it is the root that changed
+                    if(children == null) index.update(parent, parentId, index.parentOf(parentId));
+                    else for(Object child : children) index.update(child, index.idOf(child), parentId);
+                    break;
+                case INSERTED:
+                    for(Object child : children) index.addSubtree(child, parentId);
+                    break;
+                case REMOVED:
+                    for(Object child : children) index.removeSubtree(child);
+                    break;
+                case STRUCTURE:
+                    index.removeDescendants(parentId);
+                    index.addSubtree(parent, index.parentOf(parentId));
+                    break;
+            }
+            if(index.dead > COMPACT_THRESHOLD && index.dead > index.size - index.dead) index.compact();
+        }
+    }
+
+    /**
+     * The indexed text of every node and the trigrams pointing at them. Each node has an id, the position of its
+     * text in the arrays. Removed nodes leave a hole (a null node) until the index is compacted. Trigram lists may
+     * have ids of holes in them and ids whose text no longer has the trigram, the text is always checked.
+     *
+     * Each id is linked to its first child and its siblings (in no particular order) so that the nodes underneath
+     * one can be removed without going through the whole index. A removed node keeps the links to its children.
+     */
+    private class Index {
+        Object[] nodes = new Object[1024];
+        String[] texts = new String[1024];
+        int[] parents = new int[1024];
+        int[] firstChildren = new int[1024];
+        int[] nextSiblings = new int[1024];
+        int[] previousSiblings = new int[1024];
+        int size;
+        int dead;
+
+        Map<Object, Integer> ids = new HashMap<Object, Integer>();
+        Map<Long, IdList> trigrams = new HashMap<Long, IdList>();
+
+        int idOf(Object node) {
+            Integer id = ids.get(node);
+            return (id == null) ? -1 : id;
+        }
+
+        int parentOf(int id) {
+            return (id < 0) ? -1 : parents[id];
+        }
+
+        /**
+         * Indexes node and everything underneath it, nodes that are already in the index are updated
+         */
+        void addSubtree(Object node, int parentId) {
+            // Iterative so that a deep tree can't overflow the stack
+            List<Object> stack = new ArrayList<Object>();
+            List<Integer> stackParents = new ArrayList<Integer>();
+            stack.add(node);
+            stackParents.add(parentId);
+            while(!stack.isEmpty()) {
+                Object next = stack.remove(stack.size() - 1);
+                int id = update(next, idOf(next), stackParents.remove(stackParents.size() - 1));
+
+                if(model.isLeaf(next)) continue;
+                for(int i = model.getChildCount(next) - 1; i >= 0; i--) {
+                    stack.add(model.getChild(next, i));
+                    stackParents.add(id);
+                }
+            }
+        }
+
+        /**
+         * Sets the text of node from the model, adding it to the index if id is -1
+         *
+         * @return int - the id of node
+         */
+        int update(Object node, int id, int parentId) {
+            String text = textOf(node);
+            String oldText = "";
+            if(id < 0) {
+                id = size++;
+                if(id == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, id * 2);
+                    texts = Arrays.copyOf(texts, id * 2);
+                    parents = Arrays.copyOf(parents, id * 2);
+                    firstChildren = Arrays.copyOf(firstChildren, id * 2);
+                    nextSiblings = Arrays.copyOf(nextSiblings, id * 2);
+                    previousSiblings = Arrays.copyOf(previousSiblings, id * 2);
+                }
+                nodes[id] = node;
+                firstChildren[id] = -1;
+                link(id, parentId);
+                ids.put(node, id);
+            }
+            else {
+                oldText = texts[id];
+                // Moved to another parent
+                if(parents[id] != parentId) {
+                    unlink(id);
+                    link(id, parentId);
+                }
+            }
+
+            texts[id] = text;
+            if(!text.equals(oldText)) {
+                // The lists are only added to, an id is only added for trigrams its old text didn't have
+                long[] old = trigramsOf(oldText);
+                for(long trigram : trigramsOf(text)) {
+                    if(Arrays.binarySearch(old, trigram) >= 0) continue;
+                    IdList list = trigrams.get(trigram);
+                    if(list == null) trigrams.put(trigram, list = new IdList());
+                    list.add(id);
+                }
+            }
+            return id;
+        }
+
+        /**
+         * Removes node and everything the model still has underneath it. Anything that was underneath it but isn't
+         * any more can't be reached from the root, it is left out of the results and dropped when the index is compacted.
+         */
+        void removeSubtree(Object node) {
+            List<Object> stack = new ArrayList<Object>();
+            stack.add(node);
+            while(!stack.isEmpty()) {
+                Object next = stack.remove(stack.size() - 1);
+                remove(idOf(next));
+                if(model.isLeaf(next)) continue;
+                for(int i = model.getChildCount(next) - 1; i >= 0; i--) stack.add(model.getChild(next, i));
+            }
+        }
+
+        /**
+         * Makes id the first child of parentId
+         */
+        private void link(int id, int parentId) {
+            parents[id] = parentId;
+            previousSiblings[id] = -1;
+            nextSiblings[id] = -1;
+            if(parentId < 0) return;
+
+            int first = firstChildren[parentId];
+            nextSiblings[id] = first;
+            if(first >= 0) previousSiblings[first] = id;
+            firstChildren[parentId] = id;
+        }
+
+        /**
+         * Takes id out of the children of its parent
+         */
+        private void unlink(int id) {
+            int previous = previousSiblings[id];
+            int next = nextSiblings[id];
+            if(previous >= 0) nextSiblings[previous] = next;
+            else if(parents[id] >= 0) firstChildren[parents[id]] = next;
+            if(next >= 0) previousSiblings[next] = previous;
+            previousSiblings[id] = -1;
+            nextSiblings[id] = -1;
+        }
+
+        /**
+         * Removes every node underneath the node with ancestorId by following the links to its children
+         */
+        void removeDescendants(int ancestorId) {
+            int[] stack = new int[16];
+            int length = 0;
+            for(int child = firstChildren[ancestorId]; child >= 0; child = nextSiblings[child]) {
+                if(length == stack.length) stack = Arrays.copyOf(stack, length * 2);
+                stack[length++] = child;
+            }
+            while(length > 0) {
+                int id = stack[--length];
+                for(int child = firstChildren[id]; child >= 0; child = nextSiblings[child]) {
+                    if(length == stack.length) stack = Arrays.copyOf(stack, length * 2);
+                    stack[length++] = child;
+                }
+                remove(id);
+                firstChildren[id] = -1;
+                parents[id] = -1;
+            }
+            firstChildren[ancestorId] = -1;
+        }
+
+        /**
+         * Removes every node whose parent is no longer in the index, they can't be reached from the root
+         */
+        void removeOrphans() {
+            // 0 not known yet, 1 goes, 2 stays
+            byte[] state = new byte[size];
+            int[] chain = new int[16];
+            for(int id = 0; id < size; id++) {
+                if(nodes[id] == null || state[id] != 0) continue;
+
+                // Walk up until we reach a node we already know about
+                int length = 0;
+                int next = id;
+                byte result = 2;
+                while(true) {
+                    if(next < 0) break;
+                    if(nodes[next] == null) {
+                        result = 1;
+                        break;
+                    }
+                    if(state[next] != 0) {
+                        result = state[next];
+                        break;
+                    }
+                    if(length == chain.length) chain = Arrays.copyOf(chain, length * 2);
+                    chain[length++] = next;
+                    next = parents[next];
+                }
+
+                for(int i = 0; i < length; i++) state[chain[i]] = result;
+            }
+
+            for(int id = 0; id < size; id++) if(state[id] == 1) remove(id);
+        }
+
+        private void remove(int id) {
+            if(id < 0 || nodes[id] == null) return;
+            unlink(id);
+            ids.remove(nodes[id]);
+            nodes[id] = null;
+            texts[id] = null;
+            dead++;
+        }
+
+        /**
+         * Returns the ids of the nodes that might contain query, the text of each must still be checked
+         */
+        int[] candidates(String query) {
+            if(query.length() < 3) {
+                int[] all = new int[size - dead];
+                for(int id = 0, i = 0; id < size; id++) if(nodes[id] != null) all[i++] = id;
+                return all;
+            }
+
+            // The trigram with the fewest nodes, a trigram no node has means there are no matches
+            IdList fewest = null;
+            for(long trigram : trigramsOf(query)) {
+                IdList list = trigrams.get(trigram);
+                if(list == null) return new int[0];
+                if(fewest == null || list.size < fewest.size) fewest = list;
+            }
+
+            // A node can be in a list twice if its text changed and changed back
+            int[] ids = Arrays.copyOf(fewest.ids, fewest.size);
+            Arrays.sort(ids);
+            int count = 0;
+            for(int i = 0; i < ids.length; i++) {
+                if(nodes[ids[i]] == null || (count > 0 && ids[count - 1] == ids[i])) continue;
+                ids[count++] = ids[i];
+            }
+            return Arrays.copyOf(ids, count);
+        }
+
+        /**
+         * Returns the path to the node with id or null if it isn't connected to the root any more
+         */
+        TreePath pathFor(int id) {
+            List<Object> path = new ArrayList<Object>();
+            for(int next = id; next >= 0; next = parents[next]) {
+                if(nodes[next] == null) return null;
+                path.add(nodes[next]);
+            }
+            Collections.reverse(path);
+            if(!path.get(0).equals(model.getRoot())) return null;
+            return new TreePath(path.toArray());
+        }
+
+        /**
+         * Drops the holes left by removed nodes and the stale entries in the trigram lists
+         */
+        void compact() {
+            removeOrphans();
+
+            int[] newIds = new int[size];
+            int count = 0;
+            for(int id = 0; id < size; id++) {
+                newIds[id] = (nodes[id] == null) ? -1 : count;
+                if(nodes[id] == null) continue;
+                nodes[count] = nodes[id];
+                texts[count] = texts[id];
+                parents[count] = parents[id];
+                count++;
+            }
+            for(int id = count; id < size; id++) {
+                nodes[id] = null;
+                texts[id] = null;
+            }
+            size = count;
+            dead = 0;
+
+            ids.clear();
+            trigrams.clear();
+            for(int id = 0; id < size; id++) firstChildren[id] = -1;
+            for(int id = 0; id < size; id++) {
+                link(id, (parents[id] >= 0) ? newIds[parents[id]] : -1);
+                ids.put(nodes[id], id);
+                for(long trigram : trigramsOf(texts[id])) {
+                    IdList list = trigrams.get(trigram);
+                    if(list == null) trigrams.put(trigram, list = new IdList());
+                    list.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the text that is searched for node
+     */
+    private String textOf(Object node) {
+        StringBuilder text = new StringBuilder();
+        for(int column : columns) {
+            if(text.length() > 0) text.append(SEPARATOR);
+            text.append(String.valueOf(model.getValueAt(node, column)).toLowerCase(Locale.ROOT));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns every run of 3 characters in text packed into a long, sorted and without duplicates
+     */
+    private static long[] trigramsOf(String text) {
+        if(text.length() < 3) return new long[0];
+
+        long[] trigrams = new long[text.length() - 2];
+        for(int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+
+        int count = 0;
+        for(int i = 0; i < trigrams.length; i++) if(count == 0 || trigrams[count - 1] != trigrams[i]) trigrams[count++] = trigrams[i];
+        return (count == trigrams.length) ? trigrams : Arrays.copyOf(trigrams, count);
+    }
+
+    /**
+     * A growable list of ids
+     */
+    private static class IdList {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if(size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+}
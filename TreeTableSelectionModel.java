@@ -1,37 +1,54 @@
 package TreeTable;
- 
+
 import javax.swing.tree.DefaultTreeSelectionModel;
-import javax.swing.event.ListSelectionListener;
-import javax.swing.event.ListSelectionEvent;
+import javax.swing.tree.TreePath;
+import javax.swing.event.TreeSelectionEvent;
 import javax.swing.ListSelectionModel;
 
+import java.util.Arrays;
+
 /**
  * This class overrides parts of the selection model used by the JTree and the JTable to ensure that
  * the full row and row text is selected properly.
  * The row is part of the JTable but the text is part of the JTree which is why this glue is needed.
  *
+ * The selected rows of the JTable are the selection, kept as ranges of rows by a RangeListSelectionModel, and the
+ * TreePaths the JTree asks for are only built when they are asked for. Selecting, deselecting or inverting a block
+ * of a million rows doesn't create a million TreePaths. The JTable keeps the rows up to date as rows are inserted,
+ * removed, expanded and collapsed so there is nothing to reset when the layout of the JTree changes.
+ *
+ * Changes made through the JTable (clicking on rows, selectAll() and so on) only send ListSelectionEvents. Changes
+ * made through the paths send a TreeSelectionEvent for the paths that were given and changed state.
  */
 public class TreeTableSelectionModel extends DefaultTreeSelectionModel {
- 
+    // Null for a model made with the deprecated constructor, which works like a DefaultTreeSelectionModel
+    private TreeTable treeTable;
+
     /**
-     * This default constructor will setup a DefaultTreeSelectionModel and set an overriden ListSelectionListener.
-     * The ListSelectionListener has its valueChanged overriden so that it is a no-op.
+     * Creates a selection model that isn't tied to a TreeTable and works like a DefaultTreeSelectionModel
+     *
+     * @deprecated the selection of a TreeTable is kept by its rows so the model needs the TreeTable, use
+     * TreeTableSelectionModel(TreeTable). The TreeTable makes its own and this one can't be given to it.
      */
+    @Deprecated
     public TreeTableSelectionModel() {
-        // Call the super constructor
         super();
+    }
 
-        // Create a new ListSelectionListener object but override the valueChanged method.
-        // This ensures that when the rows are selected, the text in the JTree is also selected
-        ListSelectionListener lsl = new ListSelectionListener() {
-            public void valueChanged(ListSelectionEvent e) {
-            }
-        };
+    /**
+     * Creates the selection model for treeTable, the selection starts off empty
+     *
+     * @param treeTable - the TreeTable whose rows are selected
+     */
+    public TreeTableSelectionModel(TreeTable treeTable) {
+        // Call the super constructor
+        super();
 
-        // Add our slightly modified ListSelectionListener for this SelectionModel object
-        this.getListSelectionModel().addListSelectionListener(lsl);
+        this.treeTable = treeTable;
+        // Replace the list selection model, the JTable uses it to hold the selected rows
+        listSelectionModel = new RangeListSelectionModel();
     }
- 
+
     /**
      * Return the current ListSelectionObject.
      * This is used by the JTable to get and set the correct SelectionModel
@@ -42,4 +59,361 @@ public class TreeTableSelectionModel extends DefaultTreeSelectionModel {
         // This object comes from DefaultTreeSelectionModel source
         return listSelectionModel;
     }
+
+    /**
+     * Sets the selection mode, this is passed on to the rows as the matching ListSelectionModel mode
+     *
+     * @param mode - SINGLE_TREE_SELECTION, CONTIGUOUS_TREE_SELECTION or DISCONTIGUOUS_TREE_SELECTION
+     */
+    @Override
+    public void setSelectionMode(int mode) {
+        if(treeTable == null) {
+            super.setSelectionMode(mode);
+            return;
+        }
+
+        int oldMode = getSelectionMode();
+
+        if(mode == SINGLE_TREE_SELECTION) listSelectionModel.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        else if(mode == CONTIGUOUS_TREE_SELECTION) listSelectionModel.setSelectionMode(ListSelectionModel.SINGLE_INTERVAL_SELECTION);
+        // Anything else is DISCONTIGUOUS_TREE_SELECTION, like DefaultTreeSelectionModel
+        else listSelectionModel.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+
+        selectionMode = getSelectionMode();
+        if(oldMode != selectionMode && changeSupport != null) changeSupport.firePropertyChange(SELECTION_MODE_PROPERTY, oldMode, selectionMode);
+    }
+
+    /**
+     * Returns the selection mode, the JTable can change it through the rows so it is worked out from them
+     *
+     * @return int - SINGLE_TREE_SELECTION, CONTIGUOUS_TREE_SELECTION or DISCONTIGUOUS_TREE_SELECTION
+     */
+    @Override
+    public int getSelectionMode() {
+        if(treeTable == null) return super.getSelectionMode();
+
+        switch(listSelectionModel.getSelectionMode()) {
+            case ListSelectionModel.SINGLE_SELECTION:
+                return SINGLE_TREE_SELECTION;
+            case ListSelectionModel.SINGLE_INTERVAL_SELECTION:
+                return CONTIGUOUS_TREE_SELECTION;
+            default:
+                return DISCONTIGUOUS_TREE_SELECTION;
+        }
+    }
+
+    @Override
+    public void setSelectionPaths(TreePath[] paths) {
+        if(treeTable == null) {
+            super.setSelectionPaths(paths);
+            return;
+        }
+
+        changePaths(paths, true, true);
+    }
+
+    @Override
+    public void addSelectionPaths(TreePath[] paths) {
+        if(treeTable == null) {
+            super.addSelectionPaths(paths);
+            return;
+        }
+
+        changePaths(paths, true, false);
+    }
+
+    @Override
+    public void removeSelectionPaths(TreePath[] paths) {
+        if(treeTable == null) {
+            super.removeSelectionPaths(paths);
+            return;
+        }
+
+        changePaths(paths, false, false);
+    }
+
+    /**
+     * Deselects every row. Like the JTable clearing its selection this doesn't send a TreeSelectionEvent,
+     * that would mean building a TreePath for every row that was selected.
+     */
+    @Override
+    public void clearSelection() {
+        if(treeTable == null) {
+            super.clearSelection();
+            return;
+        }
+
+        listSelectionModel.clearSelection();
+    }
+
+    /**
+     * Returns the path of the first selected row
+     *
+     * @return TreePath - path of the first selected row or null if nothing is selected
+     */
+    @Override
+    public TreePath getSelectionPath() {
+        if(treeTable == null) return super.getSelectionPath();
+
+        if(listSelectionModel.isSelectionEmpty()) return null;
+        return new RowPaths().getPath(treeTable.convertRowIndexToModel(listSelectionModel.getMinSelectionIndex()));
+    }
+
+    /**
+     * Returns the paths of the selected rows in the order the rows appear in the table. The paths are built
+     * from the rows, each path in a block of rows is built on the paths of the rows before it.
+     *
+     * @return TreePath[] - paths of the selected rows or null if nothing is selected
+     */
+    @Override
+    public TreePath[] getSelectionPaths() {
+        if(treeTable == null) return super.getSelectionPaths();
+
+        RangeListSelectionModel rows = getRows();
+        if(rows.isSelectionEmpty()) return null;
+
+        TreePath[] paths = new TreePath[rows.getSelectedItemsCount()];
+        RowPaths rowPaths = new RowPaths();
+        int count = 0;
+        for(int i = 0; i < rows.getRangeCount(); i++) {
+            for(int row = rows.getRangeStart(i); row <= rows.getRangeEnd(i); row++) {
+                TreePath path = rowPaths.getPath(treeTable.convertRowIndexToModel(row));
+                if(path != null) paths[count++] = path;
+            }
+        }
+        if(count == 0) return null;
+        return (count == paths.length) ? paths : Arrays.copyOf(paths, count);
+    }
+
+    @Override
+    public int getSelectionCount() {
+        if(treeTable == null) return super.getSelectionCount();
+
+        return getRows().getSelectedItemsCount();
+    }
+
+    @Override
+    public boolean isPathSelected(TreePath path) {
+        if(treeTable == null) return super.isPathSelected(path);
+
+        int row = getViewRow(path);
+        return row >= 0 && listSelectionModel.isSelectedIndex(row);
+    }
+
+    @Override
+    public boolean isSelectionEmpty() {
+        if(treeTable == null) return super.isSelectionEmpty();
+
+        return listSelectionModel.isSelectionEmpty();
+    }
+
+    /**
+     * Returns the selected rows of the JTree, which are the rows of the model and not of the (maybe sorted) view
+     *
+     * @return int[] - the selected rows in ascending order or null if nothing is selected
+     */
+    @Override
+    public int[] getSelectionRows() {
+        if(treeTable == null) return super.getSelectionRows();
+
+        if(listSelectionModel.isSelectionEmpty()) return null;
+
+        int[] rows = getRows().getSelectedIndices();
+        if(treeTable.getRowSorter() != null) {
+            for(int i = 0; i < rows.length; i++) rows[i] = treeTable.convertRowIndexToModel(rows[i]);
+            Arrays.sort(rows);
+        }
+        return rows;
+    }
+
+    @Override
+    public int getMinSelectionRow() {
+        if(treeTable == null) return super.getMinSelectionRow();
+
+        if(treeTable.getRowSorter() == null) return listSelectionModel.getMinSelectionIndex();
+
+        int[] rows = getSelectionRows();
+        return (rows == null) ? -1 : rows[0];
+    }
+
+    @Override
+    public int getMaxSelectionRow() {
+        if(treeTable == null) return super.getMaxSelectionRow();
+
+        if(treeTable.getRowSorter() == null) return listSelectionModel.getMaxSelectionIndex();
+
+        int[] rows = getSelectionRows();
+        return (rows == null) ? -1 : rows[rows.length - 1];
+    }
+
+    /**
+     * The rows are the selection and the JTable moves them along with the layout, so there is nothing to reset
+     */
+    @Override
+    public void resetRowSelection() {
+        if(treeTable == null) super.resetRowSelection();
+    }
+
+    /**
+     * Returns the row of the JTree the lead of the table is on
+     *
+     * @return int - the lead row or -1 if there isn't one
+     */
+    @Override
+    public int getLeadSelectionRow() {
+        if(treeTable == null) return super.getLeadSelectionRow();
+
+        int row = listSelectionModel.getLeadSelectionIndex();
+        if(row < 0 || row >= treeTable.getRowCount()) return -1;
+        return treeTable.convertRowIndexToModel(row);
+    }
+
+    @Override
+    public TreePath getLeadSelectionPath() {
+        if(treeTable == null) return super.getLeadSelectionPath();
+
+        int row = getLeadSelectionRow();
+        return (row < 0) ? null : new RowPaths().getPath(row);
+    }
+
+    /**
+     * Selects or deselects the rows of paths as a few blocks of rows and sends one TreeSelectionEvent for the paths
+     * that changed. Paths that aren't visible are made visible before being selected, as the JTree would, and are
+     * left alone when deselecting as their rows can't be selected.
+     *
+     * @param paths - the paths to change
+     * @param select - true to select the paths, false to deselect them
+     * @param replace - true to deselect everything else
+     */
+    private void changePaths(TreePath[] paths, boolean select, boolean replace) {
+        RangeListSelectionModel rows = getRows();
+        if(paths == null) paths = new TreePath[0];
+
+        // Expanding changes the rows so do it before looking any of them up
+        if(select) {
+            for(TreePath path : paths) {
+                if(path != null && path.getParentPath() != null && getViewRow(path) < 0) treeTable.getModel().getTree().makeVisible(path);
+            }
+        }
+
+        int[] viewRows = new int[paths.length];
+        boolean[] wasSelected = new boolean[paths.length];
+        int lastRow = -1;
+        for(int i = 0; i < paths.length; i++) {
+            viewRows[i] = getViewRow(paths[i]);
+            wasSelected[i] = viewRows[i] >= 0 && rows.isSelectedIndex(viewRows[i]);
+            // Only the first path can be selected in single selection mode
+            if(viewRows[i] >= 0 && (lastRow < 0 || rows.getSelectionMode() != ListSelectionModel.SINGLE_SELECTION)) lastRow = viewRows[i];
+        }
+        TreePath oldLeadPath = getLeadSelectionPath();
+        int anchor = rows.getAnchorSelectionIndex();
+        int lead = rows.getLeadSelectionIndex();
+
+        rows.setValueIsAdjusting(true);
+        try {
+            if(replace) rows.clearSelection();
+            if(select && rows.getSelectionMode() == ListSelectionModel.SINGLE_SELECTION) {
+                if(lastRow >= 0) rows.setSelectionInterval(lastRow, lastRow);
+            }
+            else {
+                // Sort the rows and change each block of rows in one go
+                int[] sorted = viewRows.clone();
+                Arrays.sort(sorted);
+                int first = 0;
+                while(first < sorted.length && sorted[first] < 0) first++;
+                for(int i = first + 1; i <= sorted.length; i++) {
+                    if(i == sorted.length || sorted[i] > sorted[i - 1] + 1) {
+                        if(select) rows.addSelectionInterval(sorted[first], sorted[i - 1]);
+                        else rows.removeSelectionInterval(sorted[first], sorted[i - 1]);
+                        first = i;
+                    }
+                }
+            }
+
+            // The lead ends up on the last path selected, removing paths leaves it where it was
+            if(select && lastRow >= 0) {
+                anchor = lastRow;
+                lead = lastRow;
+            }
+            rows.setAnchorSelectionIndex(anchor);
+            rows.moveLeadSelectionIndex(lead);
+        }
+        finally {
+            rows.setValueIsAdjusting(false);
+        }
+
+        int changed = 0;
+        for(int i = 0; i < paths.length; i++) {
+            if(viewRows[i] >= 0 && rows.isSelectedIndex(viewRows[i]) != wasSelected[i]) changed++;
+        }
+        if(changed == 0) return;
+
+        TreePath[] changedPaths = new TreePath[changed];
+        boolean[] areNew = new boolean[changed];
+        for(int i = 0, j = 0; i < paths.length; i++) {
+            if(viewRows[i] >= 0 && rows.isSelectedIndex(viewRows[i]) != wasSelected[i]) {
+                changedPaths[j] = paths[i];
+                areNew[j++] = !wasSelected[i];
+            }
+        }
+        fireValueChanged(new TreeSelectionEvent(this, changedPaths, areNew, oldLeadPath, getLeadSelectionPath()));
+    }
+
+    /**
+     * Returns the row of the table that path is displayed in
+     *
+     * @param path - the path to find
+     * @return int - the row in the view or -1 if the path isn't visible
+     */
+    private int getViewRow(TreePath path) {
+        if(path == null) return -1;
+
+        AbstractTreeTableModel model = treeTable.getModel();
+        int row = model.rowForNode(path.getLastPathComponent());
+        // The node may be somewhere else in the tree than the path says
+        if(row < 0 || model.getRowIndex().getDepth(row) != path.getPathCount() - 1) return -1;
+        return treeTable.convertRowIndexToView(row);
+    }
+
+    private RangeListSelectionModel getRows() {
+        return (RangeListSelectionModel) listSelectionModel;
+    }
+
+    /**
+     * Builds the paths of rows of the JTree. When the rows are asked for in order each path is made by adding the
+     * node to the path of its parent, which is remembered from the rows before it, and the JTree is only asked for
+     * the path of the first row of each block.
+     */
+    private class RowPaths {
+        // Path of the last row and of each of its ancestors, by depth
+        private TreePath[] pathAtDepth = new TreePath[16];
+        private int lastRow = -2;
+
+        /**
+         * Returns the path of row
+         *
+         * @param row - a row of the JTree
+         * @return TreePath - path to the node in the row or null if there is no such row
+         */
+        TreePath getPath(int row) {
+            VisibleRowIndex rowIndex = treeTable.getModel().getRowIndex();
+            int depth = rowIndex.getDepth(row);
+            if(depth < 0) return null;
+            if(depth >= pathAtDepth.length) pathAtDepth = Arrays.copyOf(pathAtDepth, Math.max(depth + 1, pathAtDepth.length * 2));
+
+            TreePath path;
+            // The parent of the row after the last one is the last one or one of its ancestors
+            if(row == lastRow + 1 && depth > 0) path = pathAtDepth[depth - 1].pathByAddingChild(rowIndex.getNode(row));
+            else {
+                path = treeTable.getModel().getTree().getPathForRow(row);
+                if(path == null) return null;
+
+                TreePath parentPath = path.getParentPath();
+                for(int d = depth - 1; d >= 0 && parentPath != null; d--, parentPath = parentPath.getParentPath()) pathAtDepth[d] = parentPath;
+            }
+            pathAtDepth[depth] = path;
+            lastRow = row;
+            return path;
+        }
+    }
 }
@@ -0,0 +1,686 @@
+package TreeTable;
+
+import javax.swing.JTree;
+import javax.swing.SwingUtilities;
+import javax.swing.tree.TreePath;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the contents of a tree table, along with which nodes are expanded, to a compact binary snapshot and loads
+ * it back into a ColumnarTreeTableModel.
+ *
+ * The snapshot is written and read through NIO channels. After the header (magic, version and the name and type of
+ * each column) the nodes follow in pre-order in blocks of up to BLOCK_NODES nodes. Each block starts with its length
+ * and holds the child count of each node as a varint (which together with the order is enough to rebuild the tree),
+ * a bit per node saying whether it was expanded and then the values a column at a time:
+ *
+ * Long and Integer - zig-zag varints of the difference from the node before
+ * Double           - 8 bytes each
+ * String and tree  - varint codes into a string dictionary shared by the columns, 0 is null, 1 is a new string
+ *                    that follows (length and UTF-8 bytes) and is added to the dictionary, n is dictionary entry n - 2
+ *
+ * Columns of other types are saved as Strings (toString() of the values) and the tree column is toString() of the
+ * nodes. Numbers that are null are saved as 0.
+ *
+ * load(ReadableByteChannel) reads the snapshot a block at a time on a background thread and adds each block to the
+ * model on the EDT as it arrives, expanding the nodes that were expanded, so the first rows show up straight away.
+ */
+public class TreeTableSnapshot {
+    static final int MAGIC = 0x5454534E;
+    static final int VERSION = 1;
+
+    // Number of nodes in each block
+    static final int BLOCK_NODES = 4096;
+    // Number of strings the dictionary holds, strings after it is full are written in full every time
+    static final int MAX_DICTIONARY = 1 << 16;
+
+    // Column types
+    static final byte TYPE_TREE = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_INTEGER = 3;
+    static final byte TYPE_DOUBLE = 4;
+
+    // Dictionary codes below the first entry
+    private static final int CODE_NULL = 0;
+    private static final int CODE_NEW = 1;
+
+    private TreeTableSnapshot() {
+    }
+
+    /**
+     * Writes everything in model to channel. If the model is shown in a TreeTable the expanded nodes are saved too.
+     * Must be called on the EDT if the model is shown.
+     *
+     * @param model - the model to save
+     * @param channel - where to write the snapshot, it is not closed
+     * @throws IOException - if writing fails
+     */
+    public static void write(AbstractTreeTableModel model, WritableByteChannel channel) throws IOException {
+        int columnCount = model.getColumnCount();
+        byte[] types = new byte[columnCount];
+        int treeColumns = 0;
+        for(int column = 0; column < columnCount; column++) {
+            types[column] = typeOf(model.getColumnClass(column));
+            if(types[column] == TYPE_TREE) treeColumns++;
+        }
+        if(treeColumns != 1) throw new IllegalArgumentException("Exactly one column must be of type TreeTableModel.");
+
+        Output out = new Output();
+        out.putInt(MAGIC);
+        out.putVarint(VERSION);
+        out.putVarint(columnCount);
+        for(int column = 0; column < columnCount; column++) {
+            out.putByte(types[column]);
+            out.putString(model.getColumnName(column));
+        }
+        out.writeTo(channel);
+
+        Object root = model.getRoot();
+        if(root != null) new Writer(model, types, channel).write(root);
+
+        // An empty block marks the end
+        out.putVarint(0);
+        out.writeTo(channel);
+    }
+
+    private static byte typeOf(Class<?> type) {
+        if(type == TreeTableModel.class) return TYPE_TREE;
+        if(type == Long.class) return TYPE_LONG;
+        if(type == Integer.class) return TYPE_INTEGER;
+        if(type == Double.class) return TYPE_DOUBLE;
+        return TYPE_STRING;
+    }
+
+    private static Class<?> classOf(byte type) throws IOException {
+        switch(type) {
+            case TYPE_TREE: return TreeTableModel.class;
+            case TYPE_STRING: return String.class;
+            case TYPE_LONG: return Long.class;
+            case TYPE_INTEGER: return Integer.class;
+            case TYPE_DOUBLE: return Double.class;
+            default: throw new IOException("Unknown column type " + type + ".");
+        }
+    }
+
+    /**
+     * Reads a whole snapshot into a new model. The saved expansion state is not used, see load(ReadableByteChannel).
+     *
+     * @param channel - where to read the snapshot from, it is not closed
+     * @return ColumnarTreeTableModel - the model holding the snapshot
+     * @throws IOException - if reading fails or the snapshot is corrupt
+     */
+    public static ColumnarTreeTableModel read(ReadableByteChannel channel) throws IOException {
+        Reader reader = new Reader(channel);
+        Block block;
+        // Nothing can be listening to the new model yet, it is told about all of the nodes at once at the end
+        while((block = reader.next()) != null) reader.append(block, null);
+        reader.model.nodesAppended(0);
+        return reader.model;
+    }
+
+    /**
+     * Reads the header of a snapshot and returns a Loader that reads the rest of it into the Loader's model in the
+     * background once it is started. Show the model in a TreeTable before starting the Loader for the expanded nodes
+     * to be expanded again.
+     *
+     * @param channel - where to read the snapshot from, it is closed when the loader finishes
+     * @return Loader - the loader for the rest of the snapshot
+     * @throws IOException - if the header can't be read
+     */
+    public static Loader load(ReadableByteChannel channel) throws IOException {
+        return new Loader(new Reader(channel));
+    }
+
+    /**
+     * Reads the blocks of a snapshot on a background thread and adds them to its model on the EDT
+     */
+    public static class Loader {
+        private Reader reader;
+        private Thread thread;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile IOException error;
+
+        Loader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Returns the model the snapshot is being loaded into. It has the columns straight away, the nodes
+         * appear once the loader is started.
+         *
+         * @return ColumnarTreeTableModel - the model
+         */
+        public ColumnarTreeTableModel getModel() {
+            return reader.model;
+        }
+
+        /**
+         * Starts reading the rest of the snapshot. Each block is added to the model on the EDT as soon as it has
+         * been read, the expanded nodes in it are expanded if the model is shown in a TreeTable.
+         *
+         * @param whenDone - run on the EDT once the whole snapshot has been loaded, it failed or the loader was cancelled, may be null
+         */
+        public synchronized void start(final Runnable whenDone) {
+            if(thread != null) throw new IllegalStateException("The loader has already been started.");
+
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Block block;
+                        while(!cancelled && (block = reader.next()) != null) {
+                            final Block next = block;
+                            SwingUtilities.invokeAndWait(new Runnable() {
+                                public void run() {
+                                    if(!cancelled) reader.apply(next, reader.model.getTree());
+                                }
+                            });
+                        }
+                    }
+                    catch(IOException e) {
+                        error = e;
+                    }
+                    catch(InterruptedException e) {
+                        cancelled = true;
+                    }
+                    catch(InvocationTargetException e) {
+                        error = new IOException("Unable to add the snapshot to the model.", e.getCause());
+                    }
+                    finally {
+                        try {
+                            reader.in.channel.close();
+                        }
+                        catch(IOException e) {
+                            if(error == null) error = e;
+                        }
+                        done = true;
+                        if(whenDone != null) SwingUtilities.invokeLater(whenDone);
+                    }
+                }
+            }, "TreeTable snapshot loader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Stops loading, the nodes loaded so far stay in the model
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns true once the loader has stopped, because it finished, failed or was cancelled
+         *
+         * @return boolean - true if the loader has stopped
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Returns the reason the loader failed, if it did
+         *
+         * @return IOException - the failure or null
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Walks a model in pre-order writing it out a block at a time
+     */
+    private static class Writer {
+        private AbstractTreeTableModel model;
+        private byte[] types;
+        private WritableByteChannel channel;
+        private JTree tree;
+        private Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        // The nodes of the block being built up
+        private Object[] nodes = new Object[BLOCK_NODES];
+        private int[] childCounts = new int[BLOCK_NODES];
+        private boolean[] expanded = new boolean[BLOCK_NODES];
+        private int count;
+
+        private Output block = new Output();
+        private Output header = new Output();
+
+        Writer(AbstractTreeTableModel model, byte[] types, WritableByteChannel channel) {
+            this.model = model;
+            this.types = types;
+            this.channel = channel;
+            tree = model.getTree();
+        }
+
+        void write(Object root) throws IOException {
+            // The path to the current node, only kept while every node on it is expanded as that is the only time
+            // the nodes underneath can be expanded
+            Object[] stack = new Object[64];
+            int[] next = new int[64];
+            TreePath[] paths = new TreePath[64];
+            int top = 0;
+            stack[0] = root;
+            paths[0] = add(root, null, true);
+
+            while(top >= 0) {
+                Object node = stack[top];
+                if(next[top] == model.getChildCount(node)) {
+                    top--;
+                    continue;
+                }
+                Object child = model.getChild(node, next[top]++);
+                TreePath path = add(child, paths[top], false);
+                if(++top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                    next = Arrays.copyOf(next, top * 2);
+                    paths = Arrays.copyOf(paths, top * 2);
+                }
+                stack[top] = child;
+                next[top] = 0;
+                paths[top] = path;
+            }
+            flush();
+        }
+
+        /**
+         * Adds a node to the block, returning its path if it is expanded. parentPath is null for the root and
+         * for nodes whose parent isn't expanded.
+         */
+        private TreePath add(Object node, TreePath parentPath, boolean root) throws IOException {
+            int children = model.getChildCount(node);
+            TreePath path = null;
+            if(tree != null && children > 0 && (parentPath != null || root)) {
+                path = (parentPath == null) ? new TreePath(node) : parentPath.pathByAddingChild(node);
+                if(!tree.isExpanded(path)) path = null;
+            }
+
+            nodes[count] = node;
+            childCounts[count] = children;
+            expanded[count] = path != null;
+            if(++count == BLOCK_NODES) flush();
+            return path;
+        }
+
+        private void flush() throws IOException {
+            if(count == 0) return;
+
+            block.putVarint(count);
+            for(int i = 0; i < count; i++) block.putVarint(childCounts[i]);
+            for(int i = 0; i < count; i += 8) {
+                int bits = 0;
+                for(int j = 0; j < 8 && i + j < count; j++) if(expanded[i + j]) bits |= 1 << j;
+                block.putByte((byte) bits);
+            }
+
+            for(int column = 0; column < types.length; column++) {
+                long previous = 0;
+                for(int i = 0; i < count; i++) {
+                    Object value = (types[column] == TYPE_TREE) ? nodes[i] : model.getValueAt(nodes[i], column);
+                    switch(types[column]) {
+                        case TYPE_LONG:
+                        case TYPE_INTEGER:
+                            long number = (value instanceof Number) ? ((Number) value).longValue() : 0;
+                            block.putVarint(zigZag(number - previous));
+                            previous = number;
+                            break;
+                        case TYPE_DOUBLE:
+                            block.putLong(Double.doubleToRawLongBits((value instanceof Number) ? ((Number) value).doubleValue() : 0));
+                            break;
+                        default:
+                            putString(value == null ? null : value.toString());
+                    }
+                }
+            }
+
+            header.putVarint(block.size());
+            header.writeTo(channel);
+            block.writeTo(channel);
+            Arrays.fill(nodes, 0, count, null);
+            count = 0;
+        }
+
+        private void putString(String value) {
+            if(value == null) {
+                block.putVarint(CODE_NULL);
+                return;
+            }
+            Integer code = dictionary.get(value);
+            if(code != null) {
+                block.putVarint(code + 2);
+                return;
+            }
+            block.putVarint(CODE_NEW);
+            block.putString(value);
+            if(dictionary.size() < MAX_DICTIONARY) dictionary.put(value, dictionary.size());
+        }
+    }
+
+    /**
+     * A block read from a snapshot but not yet added to the model
+     */
+    private static class Block {
+        int firstNode;
+        int[] parents;
+        boolean[] expanded;
+        // long[], double[] or String[] for each column
+        Object[] values;
+    }
+
+    /**
+     * Reads the header and blocks of a snapshot. The blocks are decoded off the EDT and then added to the model with apply.
+     */
+    private static class Reader {
+        private Input in;
+        private byte[] types;
+        private ColumnarTreeTableModel model;
+        private List<String> dictionary = new ArrayList<String>();
+
+        // Nodes whose children are still to come and how many of them there are, the parents of the next nodes
+        private int[] openNodes = new int[64];
+        private int[] openChildren = new int[64];
+        private int open;
+        private int nodeCount;
+        private boolean finished;
+
+        // Nodes that were expanded but whose children haven't been added yet
+        private List<Integer> pendingExpansions = new ArrayList<Integer>();
+
+        Reader(ReadableByteChannel channel) throws IOException {
+            in = new Input(channel);
+            if(in.getInt() != MAGIC) throw new IOException("Not a tree table snapshot.");
+            int version = (int) in.getVarint();
+            if(version != VERSION) throw new IOException("Unsupported tree table snapshot version " + version + ".");
+
+            int columnCount = (int) in.getVarint();
+            types = new byte[columnCount];
+            String[] names = new String[columnCount];
+            Class<?>[] classes = new Class<?>[columnCount];
+            for(int column = 0; column < columnCount; column++) {
+                types[column] = in.getByte();
+                names[column] = in.getString();
+                classes[column] = classOf(types[column]);
+            }
+            try {
+                model = new ColumnarTreeTableModel(names, classes);
+            }
+            catch(IllegalArgumentException e) {
+                throw new IOException("Corrupt tree table snapshot header.", e);
+            }
+        }
+
+        /**
+         * Reads and decodes the next block, returns null at the end of the snapshot
+         */
+        Block next() throws IOException {
+            if(finished) return null;
+            int length = (int) in.getVarint();
+            if(length == 0) {
+                finished = true;
+                if(open > 0) throw new IOException("Tree table snapshot ends part way through the tree.");
+                return null;
+            }
+            Input data = new Input(in.getBytes(length));
+
+            Block block = new Block();
+            int count = (int) data.getVarint();
+            block.firstNode = nodeCount;
+            block.parents = new int[count];
+            block.expanded = new boolean[count];
+
+            // Work out the parents from the child counts, the parent of each node is the nearest open node
+            for(int i = 0; i < count; i++) {
+                int node = nodeCount++;
+                if(open == 0) {
+                    if(node != 0) throw new IOException("Tree table snapshot has more than one root.");
+                    block.parents[i] = ColumnarTreeTableModel.NO_NODE;
+                }
+                else {
+                    block.parents[i] = openNodes[open - 1];
+                    if(--openChildren[open - 1] == 0) open--;
+                }
+                int children = (int) data.getVarint();
+                if(children > 0) {
+                    if(open == openNodes.length) {
+                        openNodes = Arrays.copyOf(openNodes, open * 2);
+                        openChildren = Arrays.copyOf(openChildren, open * 2);
+                    }
+                    openNodes[open] = node;
+                    openChildren[open++] = children;
+                }
+            }
+            for(int i = 0; i < count; i += 8) {
+                int bits = data.getByte();
+                for(int j = 0; j < 8 && i + j < count; j++) block.expanded[i + j] = (bits & (1 << j)) != 0;
+            }
+
+            block.values = new Object[types.length];
+            for(int column = 0; column < types.length; column++) {
+                switch(types[column]) {
+                    case TYPE_LONG:
+                    case TYPE_INTEGER:
+                        long[] numbers = new long[count];
+                        long previous = 0;
+                        for(int i = 0; i < count; i++) numbers[i] = previous += unZigZag(data.getVarint());
+                        block.values[column] = numbers;
+                        break;
+                    case TYPE_DOUBLE:
+                        double[] doubles = new double[count];
+                        for(int i = 0; i < count; i++) doubles[i] = Double.longBitsToDouble(data.getLong());
+                        block.values[column] = doubles;
+                        break;
+                    default:
+                        String[] strings = new String[count];
+                        for(int i = 0; i < count; i++) strings[i] = getString(data);
+                        block.values[column] = strings;
+                }
+            }
+            return block;
+        }
+
+        private String getString(Input data) throws IOException {
+            int code = (int) data.getVarint();
+            if(code == CODE_NULL) return null;
+            if(code == CODE_NEW) {
+                String value = data.getString();
+                if(dictionary.size() < MAX_DICTIONARY) dictionary.add(value);
+                return value;
+            }
+            if(code - 2 >= dictionary.size()) throw new IOException("Corrupt tree table snapshot string.");
+            return dictionary.get(code - 2);
+        }
+
+        /**
+         * Adds a decoded block to the model, notifies it and expands the nodes that were expanded if tree isn't null
+         */
+        void apply(Block block, JTree tree) {
+            append(block, tree);
+            model.nodesAppended(block.firstNode);
+            if(tree == null) return;
+
+            // Parents come before their children so expanding in order never expands a node whose parent is collapsed.
+            // A node at the end of the block may not have its children yet, leave it for the next block.
+            int expanded = 0;
+            for(int node : pendingExpansions) {
+                if(model.getChildCount(model.getNode(node)) == 0) break;
+                tree.expandPath(model.getPath(node));
+                expanded++;
+            }
+            pendingExpansions.subList(0, expanded).clear();
+        }
+
+        /**
+         * Adds the nodes and values of a decoded block to the model without notifying it, the nodes that were
+         * expanded are kept for apply if tree isn't null
+         */
+        void append(Block block, JTree tree) {
+            int count = block.parents.length;
+            for(int i = 0; i < count; i++) {
+                int node = model.appendNode(block.parents[i]);
+                for(int column = 0; column < types.length; column++) {
+                    Object values = block.values[column];
+                    switch(types[column]) {
+                        case TYPE_LONG: model.setLong(node, column, ((long[]) values)[i]); break;
+                        case TYPE_INTEGER: model.setInt(node, column, (int) ((long[]) values)[i]); break;
+                        case TYPE_DOUBLE: model.setDouble(node, column, ((double[]) values)[i]); break;
+                        default: model.setString(node, column, ((String[]) values)[i]);
+                    }
+                }
+                if(block.expanded[i] && tree != null) pendingExpansions.add(node);
+            }
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A growable buffer that the snapshot is encoded into before it is written to the channel
+     */
+    private static class Output {
+        private byte[] bytes = new byte[1024];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void putByte(byte value) {
+            ensure(1);
+            bytes[size++] = value;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            for(int shift = 24; shift >= 0; shift -= 8) bytes[size++] = (byte) (value >>> shift);
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            for(int shift = 56; shift >= 0; shift -= 8) bytes[size++] = (byte) (value >>> shift);
+        }
+
+        void putVarint(long value) {
+            ensure(10);
+            while((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        private void ensure(int extra) {
+            if(size + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+
+        /**
+         * Writes everything out and empties the buffer
+         */
+        void writeTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, size);
+            while(buffer.hasRemaining()) channel.write(buffer);
+            size = 0;
+        }
+    }
+
+    /**
+     * Reads from a channel through a buffer, or from an array that has already been read
+     */
+    private static class Input {
+        private ReadableByteChannel channel;
+        private ByteBuffer buffer;
+
+        Input(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer = ByteBuffer.allocate(1 << 16);
+            buffer.flip();
+        }
+
+        Input(byte[] bytes) {
+            buffer = ByteBuffer.wrap(bytes);
+        }
+
+        /**
+         * Makes sure there are count bytes in the buffer
+         */
+        private void require(int count) throws IOException {
+            if(buffer.remaining() >= count) return;
+            if(channel == null) throw new IOException("Corrupt tree table snapshot block.");
+
+            if(buffer.capacity() < count) buffer = ByteBuffer.allocate(count).put(buffer);
+            else buffer.compact();
+            while(buffer.position() < count) {
+                if(channel.read(buffer) < 0) throw new EOFException("Unexpected end of tree table snapshot.");
+            }
+            buffer.flip();
+        }
+
+        byte getByte() throws IOException {
+            require(1);
+            return buffer.get();
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            require(8);
+            return buffer.getLong();
+        }
+
+        long getVarint() throws IOException {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                byte b = getByte();
+                value |= (long) (b & 0x7F) << shift;
+                if(b >= 0) return value;
+            }
+            throw new IOException("Corrupt tree table snapshot varint.");
+        }
+
+        byte[] getBytes(int count) throws IOException {
+            if(count < 0) throw new IOException("Corrupt tree table snapshot length.");
+            byte[] bytes = new byte[count];
+            int copied = Math.min(count, buffer.remaining());
+            buffer.get(bytes, 0, copied);
+            // Read anything bigger than the buffer straight into the array
+            ByteBuffer rest = ByteBuffer.wrap(bytes, copied, count - copied);
+            while(rest.hasRemaining()) {
+                if(channel == null || channel.read(rest) < 0) throw new EOFException("Unexpected end of tree table snapshot.");
+            }
+            return bytes;
+        }
+
+        String getString() throws IOException {
+            return new String(getBytes((int) getVarint()), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package TreeTable;
+
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets threads other than the EDT change an AbstractTreeTableModel.
+ *
+ * Changes are posted to the queue from any thread without taking any locks. The queue is drained on the EDT
+ * no more often than the rate set with setRate(int), by default 60 times a second, and each drain is applied as
+ * one batch (see AbstractTreeTableModel.beginUpdate()) so the listeners get a few coalesced events per frame
+ * rather than one per change. Repeated postChanged calls for the same node before a drain only change it once,
+ * repeated postCellsChanged calls merge the columns. A posted change that throws is logged and the rest are applied.
+ *
+ * Get the queue for a model with AbstractTreeTableModel.getUpdateQueue().
+ */
+public class TreeTableUpdateQueue {
+    private static final Logger LOGGER = Logger.getLogger(TreeTableUpdateQueue.class.getName());
+
+    // The model the changes are applied to
+    private AbstractTreeTableModel model;
+
+    // Structural changes in the order they were posted
+    private Queue<Runnable> changes = new ConcurrentLinkedQueue<Runnable>();
+    // Nodes that have changed how they are represented, a set so that repeated changes are only applied once
+    private Set<TreeTableNode> changedNodes = ConcurrentHashMap.newKeySet();
+    // Nodes that have changed some of their columns, repeated changes are merged. The masks are never changed once in the map.
+    private ConcurrentHashMap<TreeTableNode, BitSet> changedCells = new ConcurrentHashMap<TreeTableNode, BitSet>();
+
+    // Number of changes waiting to be applied
+    private AtomicInteger depth = new AtomicInteger();
+    // Number of the structural changes that are in changes, counted after they are added so never more than are there
+    private AtomicInteger waitingChanges = new AtomicInteger();
+    // Time the oldest waiting change was posted (System.nanoTime()), 0 when nothing is waiting
+    private AtomicLong oldestPost = new AtomicLong();
+    // Set while the timer is running
+    private AtomicBoolean scheduled = new AtomicBoolean();
+
+    // Fires on the EDT to drain the queue
+    private Timer timer;
+    // Number of drains per second
+    private volatile int rate;
+
+    // Statistics about the last drain, and the worst drain so far
+    private volatile long lastDrainLatency;
+    private volatile long maxDrainLatency;
+    private volatile int lastDrainCount;
+
+    /**
+     * Creates a queue for model that drains 60 times a second
+     *
+     * @param model - the model the changes are applied to
+     */
+    TreeTableUpdateQueue(AbstractTreeTableModel model) {
+        this.model = model;
+
+        timer = new Timer(0, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                drain();
+            }
+        });
+        setRate(60);
+    }
+
+    /**
+     * Sets the maximum number of times per second that the queue is drained
+     *
+     * @param rate - drains per second, must be greater than 0
+     */
+    public void setRate(int rate) {
+        if(rate <= 0) throw new IllegalArgumentException("rate must be greater than 0.");
+        this.rate = rate;
+        timer.setInitialDelay(1000 / rate);
+        timer.setDelay(1000 / rate);
+    }
+
+    /**
+     * Returns the maximum number of times per second that the queue is drained
+     *
+     * @return int - drains per second
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * Queues newChild to be inserted into parent at index, see AbstractTreeTableModel.insertNodeInto
+     *
+     * @param newChild - child node to be inserted
+     * @param parent - node to which the new node will be added
+     * @param index - index of parent's children
+     */
+    public void postInsert(final TreeTableNode newChild, final TreeTableNode parent, final int index) {
+        post(new Runnable() {
+            public void run() {
+                model.insertNodeInto(newChild, parent, index);
+            }
+        });
+    }
+
+    /**
+     * Queues newChild to be added to the end of the children of parent
+     *
+     * @param newChild - child node to be inserted
+     * @param parent - node to which the new node will be added
+     */
+    public void postAppend(final TreeTableNode newChild, final TreeTableNode parent) {
+        post(new Runnable() {
+            public void run() {
+                model.insertNodeInto(newChild, parent, model.getChildCount(parent));
+            }
+        });
+    }
+
+    /**
+     * Queues node to be removed from its parent, see AbstractTreeTableModel.removeNodeFromParent
+     *
+     * @param node - the node to be removed
+     */
+    public void postRemove(final TreeTableNode node) {
+        post(new Runnable() {
+            public void run() {
+                // It may already have been removed along with one of its ancestors
+                if(node.getParent() != null) model.removeNodeFromParent(node);
+            }
+        });
+    }
+
+    /**
+     * Queues a change to how node is represented, see AbstractTreeTableModel.nodeChanged.
+     * If node is already waiting to be changed this does nothing.
+     *
+     * @param node - the changed node
+     */
+    public void postChanged(TreeTableNode node) {
+        if(changedNodes.add(node)) posted();
+    }
+
+    /**
+     * Queues a change to the values of some columns of node, see AbstractTreeTableModel.cellsChanged. If node is
+     * already waiting for columns to be changed these are added to them. The queue changes the model in batches so
+     * it only takes TreeTableNodes, models whose nodes are something else (like ColumnarTreeTableModel with
+     * cellsChanged(int, int...)) tell the TreeTable about changed cells on the EDT through fireCellsChanged.
+     *
+     * @param node - the changed node
+     * @param columns - the model indices of the columns whose values changed
+     */
+    public void postCellsChanged(TreeTableNode node, int[] columns) {
+        BitSet mask = new BitSet();
+        for(int column : columns) {
+            if(column < 0) throw new IllegalArgumentException("Column is not in the model.");
+            mask.set(column);
+        }
+
+        // Either this adds the node, and counts it, or merges into the columns that are waiting. If the drain takes
+        // the waiting columns in between the replace fails and the node is added again.
+        while(true) {
+            BitSet waiting = changedCells.putIfAbsent(node, mask);
+            if(waiting == null) {
+                posted();
+                return;
+            }
+
+            BitSet merged = (BitSet) waiting.clone();
+            merged.or(mask);
+            if(changedCells.replace(node, waiting, merged)) return;
+        }
+    }
+
+    /**
+     * Queues any other change to the model. The change is run on the EDT while the model is updating
+     * so it should make its changes through the model's methods and they will be batched with the rest.
+     *
+     * @param change - the change to run
+     */
+    public void post(Runnable change) {
+        changes.add(change);
+        waitingChanges.incrementAndGet();
+        posted();
+    }
+
+    /**
+     * Applies everything that is waiting straight away rather than waiting for the next drain. Must be called on the EDT.
+     */
+    public void flush() {
+        drain();
+    }
+
+    /**
+     * Returns the number of changes that are waiting to be applied. If this keeps growing the producers are
+     * posting faster than the EDT can keep up.
+     *
+     * @return int - number of waiting changes
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Returns the time between the oldest change being posted and it being applied by the last drain
+     *
+     * @return long - latency of the last drain in nanoseconds
+     */
+    public long getLastDrainLatency() {
+        return lastDrainLatency;
+    }
+
+    /**
+     * Returns the longest time any change has waited to be applied
+     *
+     * @return long - worst drain latency in nanoseconds
+     */
+    public long getMaxDrainLatency() {
+        return maxDrainLatency;
+    }
+
+    /**
+     * Returns the number of changes applied by the last drain
+     *
+     * @return int - number of changes
+     */
+    public int getLastDrainCount() {
+        return lastDrainCount;
+    }
+
+    /**
+     * Counts a newly posted change and makes sure a drain is coming
+     */
+    private void posted() {
+        depth.incrementAndGet();
+        oldestPost.compareAndSet(0, System.nanoTime());
+        schedule();
+    }
+
+    /**
+     * Starts the timer if it isn't already running. Timer.start() is safe to call from any thread.
+     */
+    private void schedule() {
+        if(scheduled.compareAndSet(false, true)) timer.start();
+    }
+
+    /**
+     * Applies the waiting changes to the model as one batch
+     */
+    private void drain() {
+        long posted = oldestPost.getAndSet(0);
+        // Only take the structural changes that are there now, anything posted while draining waits for the next
+        // drain. Each change is counted as applied once it has been taken so one that throws isn't left waiting.
+        int count = waitingChanges.get();
+        int taken = 0;
+        int applied = 0;
+
+        model.beginUpdate();
+        try {
+            while(taken < count) {
+                Runnable change = changes.poll();
+                taken++;
+                applied++;
+                // A change that throws would stop the timer for good if it got out, the rest still go through
+                try {
+                    change.run();
+                }
+                catch(RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "A change posted to the TreeTable update queue failed.", e);
+                }
+            }
+
+            for(TreeTableNode node : changedNodes) {
+                if(!changedNodes.remove(node)) continue;
+                applied++;
+                model.nodeChanged(node);
+            }
+
+            for(TreeTableNode node : changedCells.keySet()) {
+                BitSet columns = changedCells.remove(node);
+                if(columns == null) continue;
+                applied++;
+                model.cellsChanged(node, columns);
+            }
+        }
+        finally {
+            waitingChanges.addAndGet(-taken);
+            depth.addAndGet(-applied);
+            model.endUpdate();
+        }
+
+        if(posted != 0) {
+            lastDrainLatency = System.nanoTime() - posted;
+            if(lastDrainLatency > maxDrainLatency) maxDrainLatency = lastDrainLatency;
+        }
+        lastDrainCount = applied;
+
+        // Keep the timer going while there is work, once the queue is empty stop it until something else is posted
+        if(depth.get() > 0) oldestPost.compareAndSet(0, System.nanoTime());
+        else {
+            timer.stop();
+            scheduled.set(false);
+            // Something may have been posted after we looked but before the flag was cleared
+            if(depth.get() > 0) schedule();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package TreeTable;
+
+import javax.swing.event.TableModelEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Collects the changes made to an AbstractTreeTableModel between beginUpdate() and endUpdate() so that
+ * they can be sent to the listeners as a few coalesced events instead of one per change.
+ *
+ * Rather than recording every insert and remove (and then having to work out how the indices of later
+ * changes were shifted by earlier ones) the children of each parent are copied the first time it is
+ * touched. When the batch ends the copy is compared with the children the parent has now, which gives
+ * one sorted array of removed indices and one sorted array of inserted indices per parent. Children that
+ * were moved are in both, as few of them as possible.
+ */
+class UpdateBatch {
+    // Changed rows that are this close together are repainted as one block, a few extra rows is cheaper than another event
+    private static final int MAX_ROW_GAP = 8;
+
+    // The model the batch belongs to
+    private AbstractTreeTableModel model;
+
+    // Children of each touched parent as they were before the first change in the batch
+    private Map<TreeTableNode, Object[]> oldChildren = new LinkedHashMap<TreeTableNode, Object[]>();
+    // Nodes that have changed how they are represented
+    private Set<TreeTableNode> changed = new LinkedHashSet<TreeTableNode>();
+    // Nodes that have only changed the values of some columns, and which columns
+    private Map<TreeTableNode, BitSet> changedCells = new LinkedHashMap<TreeTableNode, BitSet>();
+    // While the events are fired, the children of each touched parent as the events fired so far describe them
+    private Map<Object, Object[]> layoutChildren = new HashMap<Object, Object[]>();
+
+    /**
+     * Creates an empty batch for model
+     *
+     * @param model - the model that is being updated
+     */
+    UpdateBatch(AbstractTreeTableModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Call this before the children of parent are changed so the original children can be remembered
+     *
+     * @param parent - the node whose children are about to change
+     */
+    void childrenChanging(TreeTableNode parent) {
+        if(oldChildren.containsKey(parent)) return;
+
+        int count = model.getChildCount(parent);
+        Object[] children = new Object[count];
+        for(int i = 0; i < count; i++) children[i] = parent.getChildAt(i);
+        oldChildren.put(parent, children);
+    }
+
+    /**
+     * Call this after children have been inserted into parent without calling childrenChanging() first.
+     * The original children are worked out by leaving out the new ones.
+     *
+     * @param parent - the node the children were inserted into
+     * @param childIndices - indices of the new children in ascending order
+     */
+    void childrenInserted(TreeTableNode parent, int[] childIndices) {
+        if(oldChildren.containsKey(parent)) return;
+
+        int count = model.getChildCount(parent);
+        Object[] children = new Object[count - childIndices.length];
+        int next = 0;
+        for(int i = 0, j = 0; i < count; i++) {
+            if(next < childIndices.length && childIndices[next] == i) next++;
+            else children[j++] = parent.getChildAt(i);
+        }
+        oldChildren.put(parent, children);
+    }
+
+    /**
+     * Call this after children have been removed from parent without calling childrenChanging() first.
+     * The original children are worked out by putting the removed ones back.
+     *
+     * @param parent - the node the children were removed from
+     * @param childIndices - indices the children had in ascending order
+     * @param removedChildren - the children that were removed
+     */
+    void childrenRemoved(TreeTableNode parent, int[] childIndices, Object[] removedChildren) {
+        if(oldChildren.containsKey(parent)) return;
+
+        int count = model.getChildCount(parent);
+        Object[] children = new Object[count + childIndices.length];
+        int next = 0;
+        for(int i = 0, j = 0; i < children.length; i++) {
+            if(next < childIndices.length && childIndices[next] == i) children[i] = removedChildren[next++];
+            else children[i] = parent.getChildAt(j++);
+        }
+        oldChildren.put(parent, children);
+    }
+
+    /**
+     * Call this when node has changed how it is represented
+     *
+     * @param node - the changed node
+     */
+    void nodeChanged(TreeTableNode node) {
+        changed.add(node);
+        changedCells.remove(node);
+    }
+
+    /**
+     * Call this when the values of columns of node have changed. The columns are added to any that have already
+     * changed for node during the batch, if the whole node has changed this does nothing.
+     *
+     * @param node - the changed node
+     * @param columns - the model indices of the changed columns
+     */
+    void cellsChanged(TreeTableNode node, BitSet columns) {
+        if(changed.contains(node)) return;
+
+        BitSet mask = changedCells.get(node);
+        if(mask == null) changedCells.put(node, (BitSet) columns.clone());
+        else mask.or(columns);
+    }
+
+    /**
+     * Sends the events for everything in the batch to the model's listeners. All of the removals are sent
+     * first, then the insertions and finally the changes, so a node that was moved from one parent to
+     * another never appears twice.
+     *
+     * The model must no longer be updating when this is called as the events are sent through its normal methods.
+     */
+    void fireEvents() {
+        // Nodes that were not there before the batch, anything underneath these is sent along with them
+        Set<Object> added = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        List<ParentChanges> parents = new ArrayList<ParentChanges>();
+
+        for(Map.Entry<TreeTableNode, Object[]> entry : oldChildren.entrySet()) {
+            ParentChanges changes = new ParentChanges(entry.getKey(), entry.getValue());
+            for(int index : changes.inserted) added.add(changes.parent.getChildAt(index));
+            parents.add(changes);
+            // Until its events are fired the JTree still sees the children the parent had before
+            layoutChildren.put(changes.parent, entry.getValue());
+        }
+
+        try {
+            // Removals first, parents that have gone or are new themselves don't need telling
+            for(ParentChanges changes : parents) {
+                if(changes.removed.length > 0 && isReported(changes.parent, added)) {
+                    layoutChildren.put(changes.parent, changes.kept);
+                    model.nodesWereRemoved(changes.parent, changes.removed, changes.removedChildren);
+                }
+            }
+
+            // Parents that are gone or new are only seen again through the insertions, with the children they have now
+            for(ParentChanges changes : parents) {
+                if(changes.inserted.length > 0 && isReported(changes.parent, added)) layoutChildren.put(changes.parent, changes.kept);
+                else layoutChildren.remove(changes.parent);
+            }
+
+            for(ParentChanges changes : parents) {
+                if(changes.inserted.length > 0 && isReported(changes.parent, added)) {
+                    layoutChildren.remove(changes.parent);
+                    model.nodesWereInserted(changes.parent, changes.inserted);
+                }
+            }
+        }
+        finally {
+            layoutChildren.clear();
+        }
+
+        fireChanged(added);
+        fireCellsChanged(added);
+    }
+
+    /**
+     * Returns the children of parent as the events fired so far describe them, while the events are being fired
+     *
+     * @param parent - the node being queried
+     * @return Object[] - the children or null if parent wasn't touched or has had all of its events
+     */
+    Object[] getLayoutChildren(Object parent) {
+        return layoutChildren.get(parent);
+    }
+
+    /**
+     * Sends one nodesChanged event for each parent of the changed nodes and updates their rows in the table
+     */
+    private void fireChanged(Set<Object> added) {
+        Map<TreeTableNode, List<Integer>> byParent = new LinkedHashMap<TreeTableNode, List<Integer>>();
+        List<Integer> rows = new ArrayList<Integer>();
+
+        for(TreeTableNode node : changed) {
+            // New nodes were sent with their insert and removed nodes aren't there to be changed
+            if(!isReported(node, added)) continue;
+            TreeTableNode parent = node.getParent();
+            if(parent == null) model.notifyNodesChanged(node, null);
+            else if(!addToParent(byParent, parent, node)) continue;
+
+            int row = model.rowForNode(node);
+            if(row >= 0) rows.add(row);
+        }
+
+        // The cached values were dropped when the changes were made, the events must not drop them again
+        for(Map.Entry<TreeTableNode, List<Integer>> entry : byParent.entrySet()) model.notifyNodesChanged(entry.getKey(), toSortedArray(entry.getValue()));
+
+        // Repaint the visible rows, a block of rows that are close together is one event
+        fireRowsUpdated(rows, TableModelEvent.ALL_COLUMNS);
+    }
+
+    /**
+     * Sends one nodesChanged event for each parent of the nodes that have changed some of their columns and updates
+     * just those cells of the visible rows in the table. The JTree only hears about the nodes whose tree column
+     * changed, the rest don't need measuring again.
+     */
+    private void fireCellsChanged(Set<Object> added) {
+        if(changedCells.isEmpty()) return;
+
+        int treeColumn = -1;
+        for(int column = 0; column < model.getColumnCount() && treeColumn < 0; column++) {
+            if(model.getColumnClass(column) == TreeTableModel.class) treeColumn = column;
+        }
+
+        Map<TreeTableNode, List<Integer>> byParent = new LinkedHashMap<TreeTableNode, List<Integer>>();
+        Map<TreeTableNode, List<Integer>> labelsByParent = new LinkedHashMap<TreeTableNode, List<Integer>>();
+        Map<Integer, List<Integer>> rowsByColumn = new TreeMap<Integer, List<Integer>>();
+
+        for(Map.Entry<TreeTableNode, BitSet> entry : changedCells.entrySet()) {
+            TreeTableNode node = entry.getKey();
+            BitSet columns = entry.getValue();
+            if(!isReported(node, added)) continue;
+
+            boolean label = treeColumn >= 0 && columns.get(treeColumn);
+            TreeTableNode parent = node.getParent();
+            if(parent == null) {
+                if(label) model.notifyNodesChanged(node, null);
+                else model.notifyCellsChanged(node, null);
+            }
+            else if(!addToParent(label ? labelsByParent : byParent, parent, node)) continue;
+
+            // Nodes that aren't showing only needed the bookkeeping
+            int row = model.rowForNode(node);
+            if(row < 0) continue;
+            for(int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+                List<Integer> rows = rowsByColumn.get(column);
+                if(rows == null) rowsByColumn.put(column, rows = new ArrayList<Integer>());
+                rows.add(row);
+            }
+        }
+
+        for(Map.Entry<TreeTableNode, List<Integer>> entry : labelsByParent.entrySet()) model.notifyNodesChanged(entry.getKey(), toSortedArray(entry.getValue()));
+        for(Map.Entry<TreeTableNode, List<Integer>> entry : byParent.entrySet()) model.notifyCellsChanged(entry.getKey(), toSortedArray(entry.getValue()));
+
+        // Each column is repainted separately, the blocks of cells are the same as the blocks of rows
+        for(Map.Entry<Integer, List<Integer>> entry : rowsByColumn.entrySet()) fireRowsUpdated(entry.getValue(), entry.getKey());
+    }
+
+    /**
+     * Adds the index of node to the indices of parent in byParent
+     *
+     * @return boolean - false if node isn't one of the children of parent
+     */
+    private boolean addToParent(Map<TreeTableNode, List<Integer>> byParent, TreeTableNode parent, TreeTableNode node) {
+        int index = parent.getIndex(node);
+        if(index < 0) return false;
+
+        List<Integer> indices = byParent.get(parent);
+        if(indices == null) byParent.put(parent, indices = new ArrayList<Integer>());
+        indices.add(index);
+        return true;
+    }
+
+    /**
+     * Fires an update of column for the rows, a block of rows that are close together is one event
+     */
+    private void fireRowsUpdated(List<Integer> rows, int column) {
+        int[] sortedRows = toSortedArray(rows);
+        int first = 0;
+        for(int i = 1; i <= sortedRows.length; i++) {
+            if(i == sortedRows.length || sortedRows[i] - sortedRows[i - 1] > MAX_ROW_GAP) {
+                model.fireTableChanged(new TableModelEvent(model, sortedRows[first], sortedRows[i - 1], column));
+                first = i;
+            }
+        }
+    }
+
+    /**
+     * Returns true if events need to be sent for node. This is the case when it is still in the tree
+     * and neither it nor any of its ancestors were added during the batch.
+     */
+    private boolean isReported(TreeTableNode node, Set<Object> added) {
+        TreeTableNode last = node;
+        for(TreeTableNode n = node; n != null; n = n.getParent()) {
+            if(added.contains(n)) return false;
+            last = n;
+        }
+        return last == model.getRoot();
+    }
+
+    /**
+     * The difference between the children a parent had before the batch and the children it has now
+     */
+    private class ParentChanges {
+        TreeTableNode parent;
+        // Indices of the children that have gone, from the children before the batch
+        int[] removed;
+        Object[] removedChildren;
+        // Indices of the children that are new, from the children now
+        int[] inserted;
+        // The children that are there both before and after, in order
+        Object[] kept;
+
+        ParentChanges(TreeTableNode parent, Object[] before) {
+            this.parent = parent;
+
+            Object[] after = new Object[model.getChildCount(parent)];
+            for(int i = 0; i < after.length; i++) after[i] = parent.getChildAt(i);
+
+            // Children that stayed but were moved past the others are sent as removed from their old place and
+            // inserted at their new one, the most children possible keep their order and are left alone
+            Set<Object> beforeSet = identitySet(before);
+            Set<Object> afterSet = identitySet(after);
+            Set<Object> moved = movedNodes(before, afterSet, after);
+            removed = indicesNotIn(before, afterSet, moved);
+            inserted = indicesNotIn(after, beforeSet, moved);
+
+            removedChildren = new Object[removed.length];
+            for(int i = 0; i < removed.length; i++) removedChildren[i] = before[removed[i]];
+
+            kept = new Object[before.length - removed.length];
+            for(int i = 0, j = 0, next = 0; i < before.length; i++) {
+                if(next < removed.length && removed[next] == i) next++;
+                else kept[j++] = before[i];
+            }
+        }
+    }
+
+    private static Set<Object> identitySet(Object[] nodes) {
+        Set<Object> set = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>(nodes.length));
+        set.addAll(Arrays.asList(nodes));
+        return set;
+    }
+
+    /**
+     * Returns the indices of the nodes that are not in set or are in moved, in ascending order
+     */
+    private static int[] indicesNotIn(Object[] nodes, Set<Object> set, Set<Object> moved) {
+        int[] indices = new int[nodes.length];
+        int count = 0;
+        for(int i = 0; i < nodes.length; i++) if(!set.contains(nodes[i]) || moved.contains(nodes[i])) indices[count++] = i;
+
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Returns the nodes that are in both before and after but are out of order in after. The rest are the longest
+     * run of the nodes in both that appear in the same order in each.
+     */
+    private static Set<Object> movedNodes(Object[] before, Set<Object> afterSet, Object[] after) {
+        Map<Object, Integer> beforeIndex = new IdentityHashMap<Object, Integer>();
+        for(int i = 0; i < before.length; i++) if(afterSet.contains(before[i])) beforeIndex.put(before[i], i);
+
+        // The old index of each node that stayed, in their new order
+        int[] sequence = new int[beforeIndex.size()];
+        Object[] stayed = new Object[sequence.length];
+        int count = 0;
+        for(Object node : after) {
+            Integer index = beforeIndex.get(node);
+            if(index == null) continue;
+            stayed[count] = node;
+            sequence[count++] = index;
+        }
+
+        Set<Object> moved = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        boolean[] inOrder = longestIncreasing(sequence);
+        for(int i = 0; i < count; i++) if(!inOrder[i]) moved.add(stayed[i]);
+        return moved;
+    }
+
+    /**
+     * Marks the values that make up a longest strictly increasing subsequence of values, in O(n log n). Values that
+     * are already in order are all marked without any searching.
+     *
+     * @param values - the values to look through
+     * @return boolean[] - true for each value that is in the subsequence
+     */
+    static boolean[] longestIncreasing(int[] values) {
+        boolean[] marked = new boolean[values.length];
+        int n = values.length;
+
+        int sorted = 1;
+        while(sorted < n && values[sorted - 1] < values[sorted]) sorted++;
+        if(sorted >= n) {
+            Arrays.fill(marked, true);
+            return marked;
+        }
+
+        // tails[k] is the index of the smallest value that ends an increasing run of length k + 1
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for(int i = 0; i < n; i++) {
+            int low = 0;
+            int high = length;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(values[tails[mid]] < values[i]) low = mid + 1;
+                else high = mid;
+            }
+            previous[i] = (low > 0) ? tails[low - 1] : -1;
+            tails[low] = i;
+            if(low == length) length++;
+        }
+
+        for(int i = tails[length - 1]; i >= 0; i = previous[i]) marked[i] = true;
+        return marked;
+    }
+
+    private static int[] toSortedArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for(int i = 0; i < array.length; i++) array[i] = values.get(i);
+        Arrays.sort(array);
+        return array;
+    }
+}
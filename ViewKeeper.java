@@ -0,0 +1,387 @@
+package TreeTable;
+
+import javax.swing.DefaultListSelectionModel;
+import javax.swing.JViewport;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.TableModelEvent;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the user's place in a TreeTable while the rows change underneath them, so that a table that is being
+ * updated doesn't jump about or lose its selection.
+ *
+ * When rows are inserted or removed above the top of the viewport the view is scrolled by the same amount, the
+ * row at the top stays at the top. When the AbstractTreeTableModel replaces a block of rows, because the
+ * structure under a node changed or the tree was reloaded, it hands over the nodes that were in the block first.
+ * The selection and the top row inside the block are then found again by node once the new rows are in. Nodes are
+ * matched with equals(), as the row index does, so models that hand out a new handle for a node each time work too.
+ * Only the rows in the block are looked at, the JTable moves everything after it along itself. With a sorter the
+ * JTable can't be left to do that, the selected rows outside the block are kept as model rows and moved by hand.
+ */
+class ViewKeeper {
+    private TreeTable treeTable;
+
+    // Set while the model is replacing rows, the table events it fires in between are dealt with at the end
+    private boolean replacing;
+    // Nodes in the replaced rows that were selected
+    private Set<Object> selectedNodes;
+    // Nodes the lead and anchor were on if they were in the replaced rows
+    private Object leadNode;
+    private Object anchorNode;
+    // With a sorter, the model rows outside the replaced rows that were selected and those the lead and anchor were on, -1 if they weren't
+    private int[] selectedRows;
+    private int selectedRowCount;
+    private int leadRow = -1;
+    private int anchorRow = -1;
+
+    // Model row at the top of the viewport and how far the viewport is scrolled past the top of it, -1 if there isn't one
+    private int topRow = -1;
+    private int topOffset;
+    // Node in the top row if it was in the replaced rows
+    private Object topNode;
+
+    // Model rows that were selected past the end of a table with a sorter when rows are removed and the lead if it was one
+    private List<Integer> lostRows;
+    private int lostLead = -1;
+
+    /**
+     * Creates the keeper for treeTable
+     *
+     * @param treeTable - the TreeTable whose place is kept
+     */
+    ViewKeeper(TreeTable treeTable) {
+        this.treeTable = treeTable;
+    }
+
+    /**
+     * Call this before the JTable handles e, remembers the row at the top of the viewport if e inserts or removes rows
+     *
+     * @param e - the event from the model
+     */
+    void tableChanging(TableModelEvent e) {
+        topRow = -1;
+        lostRows = null;
+        if(replacing || e == null || e.getType() == TableModelEvent.UPDATE || e.getFirstRow() < 0 || e.getLastRow() == Integer.MAX_VALUE) return;
+
+        rememberTop();
+        if(e.getType() == TableModelEvent.DELETE && treeTable.getRowSorter() != null) rememberRowsPastEnd();
+    }
+
+    /**
+     * Call this after the JTable has handled e, scrolls the row that was at the top of the viewport back to the top
+     *
+     * @param e - the event from the model
+     */
+    void tableChanged(TableModelEvent e) {
+        if(replacing || e == null) return;
+
+        int first = e.getFirstRow();
+        int last = e.getLastRow();
+        if(lostRows != null) restoreRowsPastEnd(last + 1, last - first + 1);
+
+        if(topRow < 0) return;
+        int row = topRow;
+        if(e.getType() == TableModelEvent.INSERT) {
+            if(row >= first) row += last - first + 1;
+        }
+        else if(row > last) row -= last - first + 1;
+        // The top row has gone, the row after the removed ones takes its place
+        else if(row >= first) {
+            row = first;
+            topOffset = 0;
+        }
+
+        if(row != topRow || treeTable.getRowSorter() != null) scrollToTop(row);
+        topRow = -1;
+    }
+
+    /**
+     * Call this before the table is told that the rows from firstRow have been replaced. The row index of the model
+     * can already have the new rows but the JTable must still have the old ones.
+     *
+     * @param firstRow - the first replaced row
+     * @param oldRows - the nodes that were in the replaced rows
+     */
+    void rowsReplacing(int firstRow, Object[] oldRows) {
+        replacing = true;
+
+        ListSelectionModel selection = treeTable.getSelectionModel();
+        selectedNodes = new HashSet<Object>();
+        leadNode = null;
+        anchorNode = null;
+        if(treeTable.getRowSorter() != null) {
+            // The JTable loses rows off the end of the selection when it has a sorter and rows are removed, so keep all
+            // of it. The sorter still has the old rows, only those in the block need their nodes, the rest are model rows.
+            selectedRows = new int[16];
+            selectedRowCount = 0;
+            int[] ranges = selectedRanges(selection);
+            for(int range = 0; range < ranges.length; range += 2) {
+                for(int row = ranges[range]; row <= ranges[range + 1]; row++) {
+                    int modelRow = treeTable.convertRowIndexToModel(row);
+                    int i = modelRow - firstRow;
+                    if(i >= 0 && i < oldRows.length) selectedNodes.add(oldRows[i]);
+                    else {
+                        if(selectedRowCount == selectedRows.length) selectedRows = Arrays.copyOf(selectedRows, selectedRowCount * 2);
+                        selectedRows[selectedRowCount++] = modelRow;
+                    }
+                }
+            }
+            leadNode = nodeAt(selection.getLeadSelectionIndex(), firstRow, oldRows);
+            anchorNode = nodeAt(selection.getAnchorSelectionIndex(), firstRow, oldRows);
+            leadRow = (leadNode == null) ? modelRowAt(selection.getLeadSelectionIndex()) : -1;
+            anchorRow = (anchorNode == null) ? modelRowAt(selection.getAnchorSelectionIndex()) : -1;
+        }
+        else {
+            if(!selection.isSelectionEmpty()) {
+                for(int i = 0; i < oldRows.length; i++) {
+                    if(selection.isSelectedIndex(firstRow + i)) selectedNodes.add(oldRows[i]);
+                }
+            }
+            leadNode = nodeAt(selection.getLeadSelectionIndex(), firstRow, oldRows);
+            anchorNode = nodeAt(selection.getAnchorSelectionIndex(), firstRow, oldRows);
+        }
+
+        rememberTop();
+        topNode = (topRow >= firstRow && topRow < firstRow + oldRows.length) ? oldRows[topRow - firstRow] : null;
+    }
+
+    /**
+     * Call this once the table has been told about the replaced rows. The nodes that were selected are selected
+     * again wherever they are in the new rows, as are the lead and anchor, and the viewport is put back.
+     *
+     * @param firstRow - the first replaced row
+     * @param oldRows - the nodes that were in the replaced rows
+     * @param newCount - the number of rows that replaced them
+     */
+    void rowsReplaced(int firstRow, Object[] oldRows, int newCount) {
+        replacing = false;
+
+        AbstractTreeTableModel model = treeTable.getModel();
+        ListSelectionModel selection = treeTable.getSelectionModel();
+        int lead = selection.getLeadSelectionIndex();
+        int anchor = selection.getAnchorSelectionIndex();
+        int top = topRow;
+        if(topRow >= firstRow + oldRows.length) top += newCount - oldRows.length;
+
+        selection.setValueIsAdjusting(true);
+        try {
+            if(treeTable.getRowSorter() != null) {
+                // The new rows are all over the place in the view, select every row and node that was selected again
+                selection.clearSelection();
+                int shift = newCount - oldRows.length;
+                for(int i = 0; i < selectedRowCount; i++) {
+                    int row = viewRowFor(selectedRows[i], firstRow + oldRows.length, shift);
+                    if(row >= 0) selection.addSelectionInterval(row, row);
+                }
+                for(Object node : selectedNodes) {
+                    int row = viewRowFor(node);
+                    if(row >= 0) selection.addSelectionInterval(row, row);
+                }
+                if(leadNode != null) lead = viewRowFor(leadNode);
+                else if(leadRow >= 0) lead = viewRowFor(leadRow, firstRow + oldRows.length, shift);
+                if(anchorNode != null) anchor = viewRowFor(anchorNode);
+                else if(anchorRow >= 0) anchor = viewRowFor(anchorRow, firstRow + oldRows.length, shift);
+                if(topNode != null && model.rowForNode(topNode) >= 0) top = model.rowForNode(topNode);
+            }
+            else {
+                // The new rows were selected by position, clear them and select the blocks of nodes that were selected before
+                if(newCount > 0 && !selection.isSelectionEmpty()) selection.removeSelectionInterval(firstRow, firstRow + newCount - 1);
+
+                int start = -1;
+                for(int i = 0; i < newCount; i++) {
+                    Object node = model.nodeForRow(firstRow + i);
+                    if(node.equals(topNode)) top = firstRow + i;
+                    if(node.equals(leadNode)) lead = firstRow + i;
+                    if(node.equals(anchorNode)) anchor = firstRow + i;
+
+                    if(!selectedNodes.contains(node)) {
+                        if(start >= 0) selection.addSelectionInterval(firstRow + start, firstRow + i - 1);
+                        start = -1;
+                    }
+                    else if(start < 0) start = i;
+                }
+                if(start >= 0) selection.addSelectionInterval(firstRow + start, firstRow + newCount - 1);
+            }
+
+            // Changing the selection moved the lead and anchor, put them back if the selection model can do that without selecting anything
+            if(selection instanceof DefaultListSelectionModel) {
+                selection.setAnchorSelectionIndex(anchor);
+                ((DefaultListSelectionModel) selection).moveLeadSelectionIndex(lead);
+            }
+        }
+        finally {
+            selection.setValueIsAdjusting(false);
+        }
+
+        if(topRow >= 0) scrollToTop(top);
+        selectedNodes = null;
+        leadNode = null;
+        anchorNode = null;
+        selectedRows = null;
+        selectedRowCount = 0;
+        leadRow = -1;
+        anchorRow = -1;
+        topNode = null;
+        topRow = -1;
+    }
+
+    /**
+     * Returns the model row of view row or -1 if there isn't one
+     */
+    private int modelRowAt(int row) {
+        if(row < 0 || row >= treeTable.getRowCount()) return -1;
+
+        return treeTable.convertRowIndexToModel(row);
+    }
+
+    /**
+     * Returns the view row that a model row from before rows were replaced is in now, rows from endRow moved by shift
+     */
+    private int viewRowFor(int row, int endRow, int shift) {
+        if(row >= endRow) row += shift;
+        return (row < treeTable.getModel().getRowCount()) ? treeTable.convertRowIndexToView(row) : -1;
+    }
+
+    /**
+     * Returns the selected ranges of selection as pairs of first and last rows. The ranges of a
+     * RangeListSelectionModel are read directly, other selection models are walked from the first selected row to the last.
+     */
+    private static int[] selectedRanges(ListSelectionModel selection) {
+        if(selection instanceof RangeListSelectionModel) {
+            RangeListSelectionModel ranges = (RangeListSelectionModel) selection;
+            int[] bounds = new int[ranges.getRangeCount() * 2];
+            for(int range = 0; range < ranges.getRangeCount(); range++) {
+                bounds[range * 2] = ranges.getRangeStart(range);
+                bounds[range * 2 + 1] = ranges.getRangeEnd(range);
+            }
+            return bounds;
+        }
+
+        int[] bounds = new int[8];
+        int count = 0;
+        int max = selection.getMaxSelectionIndex();
+        for(int row = Math.max(selection.getMinSelectionIndex(), 0); row <= max; row++) {
+            if(!selection.isSelectedIndex(row)) continue;
+            if(count > 0 && bounds[count - 1] == row - 1) bounds[count - 1] = row;
+            else {
+                if(count == bounds.length) bounds = Arrays.copyOf(bounds, count * 2);
+                bounds[count++] = row;
+                bounds[count++] = row;
+            }
+        }
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * Returns the view row node is in or -1 if it isn't showing
+     */
+    private int viewRowFor(Object node) {
+        int row = treeTable.getModel().rowForNode(node);
+        return (row < 0) ? -1 : treeTable.convertRowIndexToView(row);
+    }
+
+    /**
+     * Returns the node in view row if that is one of the replaced rows
+     */
+    private Object nodeAt(int row, int firstRow, Object[] oldRows) {
+        if(row < 0 || row >= treeTable.getRowCount()) return null;
+
+        row = treeTable.convertRowIndexToModel(row) - firstRow;
+        return (row >= 0 && row < oldRows.length) ? oldRows[row] : null;
+    }
+
+    /**
+     * When rows are removed from a table with a sorter that isn't sorting, the JTable goes by the number of rows the
+     * model has now to find the model rows that were selected. The selected rows past the new end are lost, so
+     * remember them, and the lead if it was one of them. The sorter keeps the order of the model so they are model rows.
+     */
+    private void rememberRowsPastEnd() {
+        // A sorter that is sorting still has the old rows and the JTable gets them right
+        int from = treeTable.getModel().getRowCount();
+        if(treeTable.getRowCount() != from) return;
+
+        ListSelectionModel selection = treeTable.getSelectionModel();
+        int to = selection.getMaxSelectionIndex();
+        int lead = selection.getLeadSelectionIndex();
+        lostLead = (lead >= from) ? lead : -1;
+
+        List<Integer> rows = new ArrayList<Integer>();
+        for(int row = from; row <= to; row++) {
+            if(selection.isSelectedIndex(row)) rows.add(row);
+        }
+
+        if(!rows.isEmpty() || lostLead >= 0) lostRows = rows;
+    }
+
+    /**
+     * Selects the rows remembered by rememberRowsPastEnd() again, rows from fromRow moved up by count
+     */
+    private void restoreRowsPastEnd(int fromRow, int count) {
+        ListSelectionModel selection = treeTable.getSelectionModel();
+        int lead = selection.getLeadSelectionIndex();
+        int anchor = selection.getAnchorSelectionIndex();
+        if(lostLead >= fromRow) {
+            lead = treeTable.convertRowIndexToView(lostLead - count);
+            anchor = lead;
+        }
+
+        selection.setValueIsAdjusting(true);
+        try {
+            for(int row : lostRows) {
+                if(row < fromRow) continue;
+                row = treeTable.convertRowIndexToView(row - count);
+                if(row >= 0) selection.addSelectionInterval(row, row);
+            }
+            // Selecting the rows moved the lead and anchor, put them back
+            if(selection instanceof DefaultListSelectionModel) {
+                selection.setAnchorSelectionIndex(anchor);
+                ((DefaultListSelectionModel) selection).moveLeadSelectionIndex(lead);
+            }
+        }
+        finally {
+            selection.setValueIsAdjusting(false);
+        }
+        lostRows = null;
+    }
+
+    /**
+     * Remembers the model row at the top of the viewport, going by the rows the JTable has before the change
+     */
+    private void rememberTop() {
+        topRow = -1;
+        JViewport viewport = treeTable.getEnclosingViewport();
+        if(viewport == null) return;
+
+        Rectangle view = viewport.getViewRect();
+        int row = treeTable.rowAtPoint(new Point(0, view.y));
+        if(row < 0) return;
+
+        topOffset = view.y - treeTable.getCellRect(row, 0, true).y;
+        topRow = treeTable.convertRowIndexToModel(row);
+    }
+
+    /**
+     * Scrolls the viewport so that the model row is at the top, scrolled past by the remembered offset
+     */
+    private void scrollToTop(int row) {
+        JViewport viewport = treeTable.getEnclosingViewport();
+        if(viewport == null) return;
+
+        row = Math.min(row, treeTable.getModel().getRowCount() - 1);
+        if(row < 0) return;
+        row = treeTable.convertRowIndexToView(row);
+        if(row < 0) return;
+
+        // The JTable hasn't been laid out again yet, keep the view inside the rows it will have
+        int maxY = Math.max(0, treeTable.getPreferredSize().height - viewport.getExtentSize().height);
+        int y = Math.max(0, Math.min(treeTable.getCellRect(row, 0, true).y + topOffset, maxY));
+        Point position = viewport.getViewPosition();
+        if(position.y != y) viewport.setViewPosition(new Point(position.x, y));
+    }
+}
@@ -0,0 +1,203 @@
+package TreeTable;
+
+import javax.swing.JViewport;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the viewport a TreeTable is scrolled in and hands the nodes of the rows that are about to come into view
+ * to AbstractTreeTableModel.prefetch on a background thread, so they are ready by the time they are painted.
+ *
+ * Only the rows in the direction of the scroll are prefetched and each row is only handed over once until the
+ * rows change, so a steady scroll costs a few row lookups on the EDT per viewport change.
+ */
+class ViewportPrefetcher implements ChangeListener, TableModelListener {
+    private static final Logger LOGGER = Logger.getLogger(ViewportPrefetcher.class.getName());
+
+    private TreeTable table;
+    // Number of rows to prefetch beyond the edge of the viewport
+    private int rows;
+
+    // The viewport being watched, null when the table isn't in one
+    private JViewport viewport;
+    // First visible row the last time the viewport changed, -1 before the first change
+    private int lastFirstRow = -1;
+    // True if the last scroll was downwards, the first prefetch goes down
+    private boolean lastDown = true;
+    // Rows (view indices) that have already been handed to the background thread
+    private int prefetchedFirst;
+    private int prefetchedLast = -1;
+
+    // Prefetches run one after another on a single daemon thread, created when first needed
+    private ExecutorService executor;
+    // Bumped whenever the prefetches waiting to run are no longer wanted
+    private AtomicInteger generation = new AtomicInteger();
+    // Set when the model threw while prefetching, nothing more is prefetched until setRows is called
+    private volatile boolean failed;
+
+    /**
+     * Creates a prefetcher for table, it does nothing until setViewport is called
+     *
+     * @param table - the TreeTable whose rows are prefetched
+     * @param rows - number of rows to prefetch beyond the edge of the viewport
+     */
+    ViewportPrefetcher(TreeTable table, int rows) {
+        this.table = table;
+        this.rows = rows;
+        table.getModel().addTableModelListener(this);
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    void setRows(int rows) {
+        this.rows = rows;
+        failed = false;
+        forget();
+    }
+
+    /**
+     * Starts watching viewport instead of the current one
+     *
+     * @param viewport - the viewport the table is in or null if it isn't in one
+     */
+    void setViewport(JViewport viewport) {
+        if(this.viewport == viewport) return;
+        if(this.viewport != null) this.viewport.removeChangeListener(this);
+        this.viewport = viewport;
+        if(viewport != null) viewport.addChangeListener(this);
+        forget();
+    }
+
+    /**
+     * Stops watching the viewport and the model and lets the background thread finish
+     */
+    void dispose() {
+        setViewport(null);
+        table.getModel().removeTableModelListener(this);
+        if(executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * The viewport has moved or changed size
+     */
+    public void stateChanged(ChangeEvent e) {
+        Rectangle view = viewport.getViewRect();
+        int rowCount = table.getRowCount();
+        int first = table.rowAtPoint(new Point(0, view.y));
+        if(first < 0 || rows <= 0 || failed) return;
+        int last = table.rowAtPoint(new Point(0, view.y + view.height - 1));
+        if(last < 0) last = rowCount - 1;
+
+        // Work out which way we are going, changing direction makes anything still waiting pointless
+        boolean down = (first == lastFirstRow) ? lastDown : first > lastFirstRow;
+        if(lastFirstRow >= 0 && down != lastDown) {
+            generation.incrementAndGet();
+            prefetchedFirst = 0;
+            prefetchedLast = -1;
+        }
+        lastFirstRow = first;
+        lastDown = down;
+
+        int from = down ? last + 1 : Math.max(0, first - rows);
+        int to = down ? Math.min(rowCount - 1, last + rows) : first - 1;
+
+        // Leave out the rows that have already been handed over
+        if(from >= prefetchedFirst && from <= prefetchedLast) from = prefetchedLast + 1;
+        if(to >= prefetchedFirst && to <= prefetchedLast) to = prefetchedFirst - 1;
+        if(from > to) return;
+
+        if(from <= prefetchedLast + 1 && to >= prefetchedFirst - 1) {
+            prefetchedFirst = Math.min(from, prefetchedFirst);
+            prefetchedLast = Math.max(to, prefetchedLast);
+        }
+        else {
+            prefetchedFirst = from;
+            prefetchedLast = to;
+        }
+
+        submit(from, to, down);
+    }
+
+    /**
+     * The rows have changed so the rows that were handed over may now be different nodes
+     */
+    public void tableChanged(TableModelEvent e) {
+        // Updates to existing rows don't move anything
+        if(e.getType() == TableModelEvent.UPDATE && e.getLastRow() != Integer.MAX_VALUE) return;
+        forget();
+    }
+
+    /**
+     * Forgets which rows have been handed over so they will be prefetched again
+     */
+    private void forget() {
+        prefetchedFirst = 0;
+        prefetchedLast = -1;
+        lastFirstRow = -1;
+        lastDown = true;
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Looks up the nodes for the rows from to to on the EDT and prefetches them in the background, nearest to the viewport first
+     */
+    private void submit(int from, int to, boolean down) {
+        final AbstractTreeTableModel model = table.getModel();
+
+        final Object[] nodes = new Object[to - from + 1];
+        for(int i = 0; i < nodes.length; i++) {
+            int row = down ? from + i : to - i;
+            nodes[i] = model.nodeForRow(table.convertRowIndexToModel(row));
+        }
+
+        final int[] columns = new int[table.getColumnCount()];
+        for(int i = 0; i < columns.length; i++) columns[i] = table.convertColumnIndexToModel(i);
+
+        final int submitted = generation.get();
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                for(Object node : nodes) {
+                    // Give up if the rows have changed, we are now scrolling the other way or the model has thrown
+                    if(generation.get() != submitted || failed || Thread.currentThread().isInterrupted()) return;
+                    if(node == null) continue;
+
+                    try {
+                        model.prefetch(node, columns);
+                    }
+                    // Prefetching is only an optimisation, the rows will be worked out again when they are painted.
+                    // A model that throws for one row is likely to throw for the rest so prefetching stops
+                    catch(RuntimeException ex) {
+                        failed = true;
+                        LOGGER.log(Level.WARNING, "Prefetching the rows of the TreeTable failed, it has been turned off.", ex);
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    private ExecutorService getExecutor() {
+        if(executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TreeTable prefetcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
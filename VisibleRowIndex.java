@@ -0,0 +1,531 @@
+package TreeTable;
+
+import javax.swing.JTree;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a flattened copy of the rows that are currently visible in the TreeTable so that the
+ * model can answer row to node (and node to row) questions without going through the JTree.
+ *
+ * JTree.getPathForRow() allocates a TreePath and walks the layout cache every time it is called
+ * and the JTable calls it for every cell it paints. This index is just an array of nodes (and their
+ * depth) in row order, so a lookup is an array access.
+ *
+ * The index is not rebuilt when things change, the AbstractTreeTableModel tells it which node was
+ * expanded, collapsed, inserted or removed and only that part of the array is spliced. The JTree is
+ * only consulted for the expanded state of nodes as they become visible.
+ *
+ * The node to row map is kept up to date lazily. Splicing rows moves every row after it, so rather than
+ * renumbering everything on each change each splice is written to a short log of the rows it moved and by how
+ * much. The map holds the row a node was in and how much of the log had been applied to it, a lookup applies the
+ * rest. Once the log is full every row is renumbered and it starts again.
+ */
+class VisibleRowIndex {
+    // The JTree part of the TreeTable, used for the model, root visibility and expanded state
+    private JTree tree;
+
+    // Nodes in the order that they appear as rows
+    private Object[] nodes = new Object[16];
+    // Depth of the node in each row, the root has a depth of 0
+    private int[] depths = new int[16];
+    // Number of rows in use
+    private int size;
+
+    // Rows are grouped into blocks of this many so finding a parent can skip over whole blocks of its children
+    private static final int DEPTH_BLOCK = 64;
+    // Smallest depth in each block of rows, only the first depthBlockCount are up to date
+    private int[] blockDepths = new int[16];
+    private int depthBlockCount;
+
+    // Number of splices logged before every row is renumbered
+    private static final int MAX_SHIFTS = 1024;
+
+    // Map of node to the row it was in when its slot was last brought up to date
+    private Map<Object, Slot> rows = new HashMap<Object, Slot>();
+    // The row of each splice since the last renumbering and the number of rows it inserted, or removed if negative
+    private int[] shiftRows = new int[MAX_SHIFTS];
+    private int[] shiftCounts = new int[MAX_SHIFTS];
+    private int shiftCount;
+
+    // The layout cache expands the root whenever it is rebuilt, whatever the JTree thinks, so we track it ourselves
+    private boolean rootExpanded;
+
+    /**
+     * Creates an empty index for tree. Call rebuild() to populate it.
+     *
+     * @param tree - the JTree whose visible rows this index tracks
+     */
+    VisibleRowIndex(JTree tree) {
+        this.tree = tree;
+
+        // When the UI is installed the layout cache takes the expanded state of the root from the JTree
+        Object root = tree.getModel().getRoot();
+        rootExpanded = root != null && tree.isExpanded(new TreePath(root));
+    }
+
+    /**
+     * Returns the number of visible rows
+     *
+     * @return int - number of visible rows
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the node displayed at row
+     *
+     * @param row - the row being queried
+     * @return Object - node at row or null if the row is out of range
+     */
+    Object getNode(int row) {
+        if(row < 0 || row >= size) return null;
+        return nodes[row];
+    }
+
+    /**
+     * Returns a copy of the nodes in row order
+     *
+     * @return Object[] - the visible nodes
+     */
+    Object[] toArray() {
+        Object[] copy = new Object[size];
+        System.arraycopy(nodes, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the nodes in count rows starting at row
+     *
+     * @param row - the first row to copy
+     * @param count - the number of rows to copy
+     * @return Object[] - the nodes in those rows
+     */
+    Object[] toArray(int row, int count) {
+        Object[] copy = new Object[count];
+        System.arraycopy(nodes, row, copy, 0, count);
+        return copy;
+    }
+
+    /**
+     * Returns the depth of the node displayed at row, the root node has a depth of 0
+     *
+     * @param row - the row being queried
+     * @return int - depth of the node at row or -1 if the row is out of range
+     */
+    int getDepth(int row) {
+        if(row < 0 || row >= size) return -1;
+        return depths[row];
+    }
+
+    /**
+     * Returns the row of the parent of the node displayed at row. The rows above it are gone through a block at a
+     * time, so a node with a million siblings above it doesn't go through every one of them.
+     *
+     * @param row - the row being queried
+     * @return int - row of the parent or -1 if the parent is the hidden root or the row is the root or out of range
+     */
+    int getParentRow(int row) {
+        if(row < 0 || row >= size) return -1;
+        int depth = depths[row];
+
+        // The rows above it in its own block
+        int block = row / DEPTH_BLOCK;
+        for(int i = row - 1; i >= block * DEPTH_BLOCK; i--) if(depths[i] < depth) return i;
+
+        // Then the first block above it with anything shallower in it
+        updateBlockDepths(block);
+        for(int b = block - 1; b >= 0; b--) {
+            if(blockDepths[b] >= depth) continue;
+            for(int i = (b + 1) * DEPTH_BLOCK - 1; ; i--) if(depths[i] < depth) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the row that node is displayed in
+     *
+     * @param node - node to find
+     * @return int - row for node or -1 if the node is not visible
+     */
+    int getRow(Object node) {
+        if(node == null) return -1;
+
+        Slot slot = rows.get(node);
+        if(slot == null) return -1;
+
+        // Move the row along by the splices made since the slot was last brought up to date. The rows that were
+        // removed lost their slots so a splice either moves the row or is after it.
+        int row = slot.row;
+        for(int i = slot.shifts; i < shiftCount; i++) {
+            if(row >= shiftRows[i]) row += shiftCounts[i];
+        }
+        slot.row = row;
+        slot.shifts = shiftCount;
+
+        return (row < size && node.equals(nodes[row])) ? row : -1;
+    }
+
+    /**
+     * Returns the number of visible rows directly beneath row that belong to its subtree.
+     * A row of -1 refers to the root when it is not visible, in which case every row is counted.
+     *
+     * @param row - the row being queried
+     * @return int - number of visible descendants
+     */
+    int getDescendantCount(int row) {
+        if(row < 0) return size;
+
+        int depth = depths[row];
+        int last = row + 1;
+        while(last < size && depths[last] > depth) last++;
+
+        return last - row - 1;
+    }
+
+    /**
+     * Returns true if the children of the node at the end of path are (or would be) visible rows.
+     * This is the case when the node is the hidden root or when it is visible and expanded.
+     *
+     * @param path - path to the node being queried
+     * @return boolean - true if the children of the node are displayed
+     */
+    boolean isShowingChildren(TreePath path) {
+        if(path.getParentPath() == null) return rootExpanded;
+        return getRow(path.getLastPathComponent()) >= 0 && tree.isExpanded(path);
+    }
+
+    /**
+     * Throws away the index and rebuilds it from the model and the expanded state of the JTree
+     */
+    void rebuild() {
+        size = 0;
+        shiftCount = 0;
+        rows.clear();
+
+        Object root = tree.getModel().getRoot();
+        if(root == null) return;
+
+        TreePath rootPath = new TreePath(root);
+        RowBuffer buffer = new RowBuffer();
+
+        if(tree.isRootVisible()) buffer.add(root, 0);
+        if(rootExpanded) collect(rootPath, 0, buffer);
+
+        splice(0, buffer);
+    }
+
+    /**
+     * Rebuilds the index after the JTree has replaced its layout cache, which it does when large model mode is
+     * turned on or off. The new layout cache takes the expanded state of the root from the JTree.
+     */
+    void layoutReplaced() {
+        Object root = tree.getModel().getRoot();
+        rootExpanded = root != null && tree.isExpanded(new TreePath(root));
+        rebuild();
+    }
+
+    /**
+     * Adds the rows for the children of the node at the end of path once it has been expanded
+     *
+     * @param path - path to the node that was expanded
+     * @return int - number of rows added directly after the row of the node
+     */
+    int treeExpanded(TreePath path) {
+        if(path.getParentPath() == null) {
+            if(rootExpanded) return 0;
+            rootExpanded = true;
+        }
+
+        int row = getRow(path.getLastPathComponent());
+        // The hidden root doesn't have a row of its own, its children start at the top
+        if(row < 0 && path.getParentPath() == null && !tree.isRootVisible()) {
+            RowBuffer buffer = new RowBuffer();
+            collect(path, 0, buffer);
+            splice(0, buffer);
+            return buffer.size;
+        }
+        // Nothing to do if the node is not visible or its children are already showing
+        if(row < 0 || getDescendantCount(row) > 0) return 0;
+
+        return insertDescendants(row, path);
+    }
+
+    /**
+     * Removes the rows for the children of the node at the end of path once it has been collapsed
+     *
+     * @param path - path to the node that was collapsed
+     * @return int - number of rows removed directly after the row of the node
+     */
+    int treeCollapsed(TreePath path) {
+        if(path.getParentPath() == null) {
+            if(!rootExpanded) return 0;
+            rootExpanded = false;
+        }
+
+        int row = getRow(path.getLastPathComponent());
+        // Collapsing the hidden root takes every row with it
+        if(row < 0 && path.getParentPath() == null && !tree.isRootVisible()) {
+            int count = size;
+            remove(0, count);
+            return count;
+        }
+        if(row < 0) return 0;
+
+        return removeDescendants(row);
+    }
+
+    /**
+     * Adds the row for a child that has been inserted into the model along with the rows of any of its
+     * descendants that should be visible.
+     *
+     * Children of the same parent must be added in ascending index order as the row of the previous
+     * sibling is used to work out where the new row goes.
+     *
+     * @param parentPath - path to the parent the child was inserted into
+     * @param index - index of the new child in its parent
+     * @return int - the row the child was inserted at or -1 if the child is not visible
+     */
+    int childInserted(TreePath parentPath, int index) {
+        if(!isShowingChildren(parentPath)) return -1;
+
+        TreeModel model = tree.getModel();
+        Object parent = parentPath.getLastPathComponent();
+        int parentRow = getRow(parent);
+
+        // Work out where the child goes, directly after the parent or after the previous sibling and its subtree
+        int row;
+        if(index == 0) row = parentRow + 1;
+        else {
+            int siblingRow = getRow(model.getChild(parent, index - 1));
+            if(siblingRow < 0) {
+                // The index has got out of step with the model, the best we can do is start again
+                rebuild();
+                return getRow(model.getChild(parent, index));
+            }
+            row = siblingRow + 1 + getDescendantCount(siblingRow);
+        }
+
+        Object child = model.getChild(parent, index);
+        TreePath childPath = parentPath.pathByAddingChild(child);
+        int depth = childPath.getPathCount() - 1;
+
+        RowBuffer buffer = new RowBuffer();
+        buffer.add(child, depth);
+        if(!model.isLeaf(child) && tree.isExpanded(childPath)) collect(childPath, depth, buffer);
+
+        splice(row, buffer);
+        return row;
+    }
+
+    /**
+     * Removes the row of a child that has been removed from the model along with the rows of its descendants
+     *
+     * @param parentPath - path to the parent the child was removed from
+     * @param child - the child that was removed
+     * @return int - the row the child was removed from or -1 if it was not visible
+     */
+    int childRemoved(TreePath parentPath, Object child) {
+        // A parent that has lost all of its children is collapsed by the JTree and the layout cache
+        if(parentPath.getParentPath() == null && tree.getModel().isLeaf(parentPath.getLastPathComponent())) rootExpanded = false;
+
+        int row = getRow(child);
+        if(row < 0) return -1;
+
+        remove(row, getDescendantCount(row) + 1);
+        return row;
+    }
+
+    /**
+     * Re-reads the part of the index under the node at the end of path after its structure has changed
+     *
+     * @param path - path to the node whose structure changed, null or the root path rebuilds everything
+     */
+    void structureChanged(TreePath path) {
+        if(path == null || path.getParentPath() == null) {
+            // The layout cache expands the root again when it rebuilds, unless it is a leaf
+            Object root = tree.getModel().getRoot();
+            rootExpanded = root != null && !tree.getModel().isLeaf(root);
+            rebuild();
+            return;
+        }
+
+        int row = getRow(path.getLastPathComponent());
+        if(row < 0) return;
+
+        removeDescendants(row);
+        if(tree.isExpanded(path)) insertDescendants(row, path);
+    }
+
+    /**
+     * Adds the visible descendants of the node at row, which is at the end of path
+     *
+     * @return int - number of rows added
+     */
+    private int insertDescendants(int row, TreePath path) {
+        RowBuffer buffer = new RowBuffer();
+        collect(path, depths[row], buffer);
+        splice(row + 1, buffer);
+
+        return buffer.size;
+    }
+
+    /**
+     * Removes the visible descendants of the node at row
+     *
+     * @return int - number of rows removed
+     */
+    private int removeDescendants(int row) {
+        int count = getDescendantCount(row);
+        remove(row + 1, count);
+
+        return count;
+    }
+
+    /**
+     * Walks the children of the node at the end of path adding each of them to buffer, recursing into any
+     * child that the JTree has expanded
+     */
+    private void collect(TreePath path, int depth, RowBuffer buffer) {
+        TreeModel model = tree.getModel();
+        Object parent = path.getLastPathComponent();
+        int count = model.getChildCount(parent);
+
+        for(int i = 0; i < count; i++) {
+            Object child = model.getChild(parent, i);
+            buffer.add(child, depth + 1);
+
+            if(!model.isLeaf(child)) {
+                TreePath childPath = path.pathByAddingChild(child);
+                if(tree.isExpanded(childPath)) collect(childPath, depth + 1, buffer);
+            }
+        }
+    }
+
+    /**
+     * Inserts the rows held in buffer at row
+     */
+    private void splice(int row, RowBuffer buffer) {
+        int count = buffer.size;
+        if(count == 0) return;
+
+        ensureCapacity(size + count);
+        System.arraycopy(nodes, row, nodes, row + count, size - row);
+        System.arraycopy(depths, row, depths, row + count, size - row);
+        System.arraycopy(buffer.nodes, 0, nodes, row, count);
+        System.arraycopy(buffer.depths, 0, depths, row, count);
+        size += count;
+        depthBlockCount = Math.min(depthBlockCount, row / DEPTH_BLOCK);
+
+        shifted(row, count);
+        for(int i = row; i < row + count; i++) rows.put(nodes[i], new Slot(i, shiftCount));
+    }
+
+    /**
+     * Removes count rows starting at row
+     */
+    private void remove(int row, int count) {
+        if(count == 0) return;
+
+        for(int i = row; i < row + count; i++) rows.remove(nodes[i]);
+
+        System.arraycopy(nodes, row + count, nodes, row, size - row - count);
+        System.arraycopy(depths, row + count, depths, row, size - row - count);
+        size -= count;
+        depthBlockCount = Math.min(depthBlockCount, row / DEPTH_BLOCK);
+        // Don't hang on to nodes that are no longer displayed
+        for(int i = size; i < size + count; i++) nodes[i] = null;
+
+        shifted(row, -count);
+    }
+
+    /**
+     * Logs a splice of count rows at row, renumbering every row instead once the log is full
+     */
+    private void shifted(int row, int count) {
+        if(shiftCount < MAX_SHIFTS) {
+            shiftRows[shiftCount] = row;
+            shiftCounts[shiftCount++] = count;
+            return;
+        }
+
+        shiftCount = 0;
+        for(int i = 0; i < size; i++) {
+            Slot slot = rows.get(nodes[i]);
+            if(slot == null) rows.put(nodes[i], new Slot(i, 0));
+            else {
+                slot.row = i;
+                slot.shifts = 0;
+            }
+        }
+    }
+
+    /**
+     * Works out the smallest depth of the blocks that have changed, up to the full block before block
+     */
+    private void updateBlockDepths(int block) {
+        if(depthBlockCount >= block) return;
+        if(blockDepths.length < block) blockDepths = Arrays.copyOf(blockDepths, Math.max(block, blockDepths.length * 2));
+
+        for(int b = depthBlockCount; b < block; b++) {
+            int depth = Integer.MAX_VALUE;
+            for(int i = b * DEPTH_BLOCK; i < (b + 1) * DEPTH_BLOCK; i++) depth = Math.min(depth, depths[i]);
+            blockDepths[b] = depth;
+        }
+        depthBlockCount = block;
+    }
+
+    /**
+     * Grows the row arrays so that they can hold at least capacity rows
+     */
+    private void ensureCapacity(int capacity) {
+        if(capacity <= nodes.length) return;
+
+        int newCapacity = Math.max(capacity, nodes.length + (nodes.length >> 1));
+        Object[] newNodes = new Object[newCapacity];
+        int[] newDepths = new int[newCapacity];
+        System.arraycopy(nodes, 0, newNodes, 0, size);
+        System.arraycopy(depths, 0, newDepths, 0, size);
+        nodes = newNodes;
+        depths = newDepths;
+    }
+
+    /**
+     * The row of a node as it was once the first shifts splices in the log had been made
+     */
+    private static class Slot {
+        int row;
+        int shifts;
+
+        Slot(int row, int shifts) {
+            this.row = row;
+            this.shifts = shifts;
+        }
+    }
+
+    /**
+     * Holds the rows that are about to be added to the index so that they can be spliced in with one copy
+     */
+    private static class RowBuffer {
+        Object[] nodes = new Object[16];
+        int[] depths = new int[16];
+        int size;
+
+        void add(Object node, int depth) {
+            if(size == nodes.length) {
+                Object[] newNodes = new Object[size * 2];
+                int[] newDepths = new int[size * 2];
+                System.arraycopy(nodes, 0, newNodes, 0, size);
+                System.arraycopy(depths, 0, newDepths, 0, size);
+                nodes = newNodes;
+                depths = newDepths;
+            }
+            nodes[size] = node;
+            depths[size++] = depth;
+        }
+    }
+}